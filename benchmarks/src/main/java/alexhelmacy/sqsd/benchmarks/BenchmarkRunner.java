@@ -0,0 +1,22 @@
+package alexhelmacy.sqsd.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the SQSD benchmarks with the GC profiler so every result comes with its allocation rate.
+ * Usage: java -jar target/benchmarks.jar [benchmark regex]
+ */
+public class BenchmarkRunner{
+
+  public static void main(String[] args) throws RunnerException{
+    Options options = new OptionsBuilder()
+                                          .include(args.length > 0 ? args[0] : "alexhelmacy\\.sqsd\\..*Benchmark")
+                                          .addProfiler(GCProfiler.class)
+                                          .build();
+    new Runner(options).run();
+  }
+}
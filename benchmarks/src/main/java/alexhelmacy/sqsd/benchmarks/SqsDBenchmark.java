@@ -0,0 +1,55 @@
+package alexhelmacy.sqsd.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import alexhelmacy.sqsd.SqsD;
+import alexhelmacy.sqsd.local.LocalSqsClient;
+import alexhelmacy.sqsd.processor.ExampleSqsDThread;
+import alexhelmacy.sqsd.processor.SqsDThread;
+
+/**
+ * Benchmarks starting and stopping SqsD. Threads poll an empty queue on the LocalSqsClient without long polling, so the time is spent
+ * creating the pool, submitting the threads and waiting for them to stop.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SqsDBenchmark{
+
+  @Param({"1", "4", "16"})
+  public int threads;//threads started and stopped
+
+  private final LocalSqsClient sqs = LocalSqsClient.builder().build();//the local client
+  private final String queueUrl = sqs.createQueue("benchmark");//never sent to, so every receive is empty
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public SqsD startStop(){
+    List<SqsDThread> sqsdThreads = new ArrayList<>(threads);
+    for (int i = 0; i < threads; i++){
+      sqsdThreads.add(new ExampleSqsDThread(ExampleSqsDThread.builder()
+                                                             .queueUrl(queueUrl)
+                                                             .waitTime(0)
+                                                             .sqsClient(sqs)));
+    }
+    SqsD sqsd = new SqsD(sqsdThreads);
+    sqsd.start();
+    sqsd.stop("Benchmark");
+    return sqsd;
+  }
+}
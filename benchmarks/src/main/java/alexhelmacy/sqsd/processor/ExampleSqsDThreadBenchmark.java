@@ -0,0 +1,152 @@
+package alexhelmacy.sqsd.processor;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import alexhelmacy.sqsd.budget.InFlightBudget;
+import alexhelmacy.sqsd.delete.DeleteRetryScheduler;
+import alexhelmacy.sqsd.local.LocalSqsClient;
+
+/**
+ * Benchmarks one receive/process/delete cycle of ExampleSqsDThread against the in-process LocalSqsClient.
+ * Lives in the processor package so it can drive the cycle without the run loop.
+ * Throughput benchmarks report batches/sec, plus the messages actually received per second in the messages counter.
+ * Latency benchmarks sample the time of one batch.
+ * Queues are refilled in bulk every few thousand messages so the cost of sending is spread thin. The allocation rate includes the
+ * client's own receive and delete work.
+ */
+@State(Scope.Thread)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ExampleSqsDThreadBenchmark{
+  private static final int BATCH_SIZE = 10;//messages per receive
+  private static final int REFILL = 10_000;//messages put on a queue at once
+  private static final double FAILED_ENTRY_RATE = 0.3;//share of delete entries failing in the retry benchmarks
+
+  @Param({"256", "4096"})
+  public int bodyBytes;//size of each message body
+
+  private String body;//body of every message
+  private Feed feed;//receive/process/delete, every delete succeeds
+  private Feed retryingFeed;//a share of delete entries fail and are retried by the retry scheduler
+  private DeleteRetryScheduler retryScheduler;//retries failed deletes without backing off the poll loop
+  private InFlightBudget retryBudget;//budget of the retrying feed. large enough to never hold the poll loop back
+
+  /**
+   * messages received, reported next to the batch throughput
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Received{
+    public long messages;//messages received in the current iteration
+
+    @Setup(Level.Iteration)
+    public void reset(){
+      messages = 0;
+    }
+  }
+
+  /**
+   * a thread and the local queue it drains
+   */
+  private final class Feed{
+    private final LocalSqsClient sqs;//the local client
+    private final String queueUrl;//the queue the thread receives from
+    private final ExampleSqsDThread thread;//the thread, RUNNING without its run loop
+    private int receivesLeft = 0;//full receives left before the queue needs a refill
+
+    private Feed(LocalSqsClient sqs, ExampleSqsDThread.ExampleSqsDThreadBuilder builder){
+      this.sqs = sqs;
+      this.queueUrl = sqs.createQueue("benchmark");
+      this.thread = new ExampleSqsDThread(builder.queueUrl(queueUrl)
+                                                 .maxNumberOfMessages(BATCH_SIZE)
+                                                 .waitTime(0)
+                                                 .sqsClient(sqs));
+      thread.lifecycle.start();
+    }
+
+    /**
+     * run one cycle, refilling the queue first when it is about to run dry
+     * @return messages received in the cycle
+     * @throws InterruptedException if interrupted
+     */
+    private long pollOnce() throws InterruptedException{
+      if (receivesLeft-- <= 0){
+        sqs.enqueue(queueUrl, body, REFILL);
+        receivesLeft = REFILL / BATCH_SIZE - 1;
+      }
+      long received = sqs.received();
+      thread.pollOnce();
+      return sqs.received() - received;
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setup(){
+    StringBuilder builder = new StringBuilder(bodyBytes);
+    for (int i = 0; i < bodyBytes; i++)builder.append('x');
+    body = builder.toString();
+    feed = new Feed(LocalSqsClient.builder().build(), ExampleSqsDThread.builder());
+    LocalSqsClient failingSqs = LocalSqsClient.builder().batchEntryFailureRate(FAILED_ENTRY_RATE).seed(1).build();
+    retryScheduler = DeleteRetryScheduler.builder()
+                                         .sqsClient(failingSqs)
+                                         .baseDelayMillis(1)
+                                         .maxDelayMillis(1)//measure the retry path, not the backoff
+                                         .build();
+    retryBudget = InFlightBudget.builder().maxMessages(REFILL).build();//keeps the budget accounting in the measurement without waiting on it
+    retryingFeed = new Feed(failingSqs, ExampleSqsDThread.builder()
+                                                         .deleteRetryScheduler(retryScheduler)
+                                                         .inFlightBudget(retryBudget));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown(){
+    feed.thread.stop();
+    retryingFeed.thread.stop();
+    retryScheduler.close();
+    if (retryBudget.waits() > 0)throw new IllegalStateException("The retrying feed waited " + retryBudget.waits() + " times for the in-flight budget");
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public void pollLoop(Received received) throws InterruptedException{
+    received.messages += feed.pollOnce();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SampleTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public void pollLoopBatchLatency() throws InterruptedException{
+    feed.pollOnce();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public void deleteRetry(Received received) throws InterruptedException{
+    received.messages += retryingFeed.pollOnce();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SampleTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public void deleteRetryBatchLatency() throws InterruptedException{
+    retryingFeed.pollOnce();
+  }
+}
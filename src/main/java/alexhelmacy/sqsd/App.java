@@ -16,13 +16,53 @@ import software.amazon.awssdk.services.sqs.model.GetQueueUrlRequest;
 import software.amazon.awssdk.services.sqs.model.GetQueueUrlResponse;
 import software.amazon.awssdk.services.sqs.model.SqsException;
 
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import alexhelmacy.sqsd.processor.ExampleSqsDThread;
+import alexhelmacy.sqsd.processor.MessageHandler;
 import alexhelmacy.sqsd.processor.SqsDThread;
 import alexhelmacy.sqsd.processor.ExampleSqsDThread.ExampleSqsDThreadBuilder;
+import alexhelmacy.sqsd.async.AsyncSqsD;
+import alexhelmacy.sqsd.claimcheck.ClaimCheckStage;
+import alexhelmacy.sqsd.claimcheck.ExamplePayloadHandler;
+import alexhelmacy.sqsd.claimcheck.FileSystemPayloadStore;
+import alexhelmacy.sqsd.claimcheck.PayloadCache;
+import alexhelmacy.sqsd.dedup.DedupCache;
+import alexhelmacy.sqsd.decode.BodyDecoders;
+import alexhelmacy.sqsd.decode.BodyDecodingStage;
+import alexhelmacy.sqsd.decode.BodyParser;
+import alexhelmacy.sqsd.decode.BodyParsers;
+import alexhelmacy.sqsd.decode.ExampleDecodedMessageHandler;
+import alexhelmacy.sqsd.batch.ExampleBatchHandler;
+import alexhelmacy.sqsd.batch.MicroBatcher;
+import alexhelmacy.sqsd.budget.InFlightBudget;
+import alexhelmacy.sqsd.budget.InFlightBudget.InFlightBudgetBuilder;
+import alexhelmacy.sqsd.delete.DeleteCoalescer;
+import alexhelmacy.sqsd.delete.DeleteRetryScheduler;
+import alexhelmacy.sqsd.events.EventLog;
+import alexhelmacy.sqsd.events.EventType;
+import alexhelmacy.sqsd.forward.HttpForwarder;
+import alexhelmacy.sqsd.forward.HttpForwardingSqsDThread;
+import alexhelmacy.sqsd.journal.AckJournal;
+import alexhelmacy.sqsd.metrics.SqsDMetrics;
+import alexhelmacy.sqsd.multiqueue.QueueScheduler;
+import alexhelmacy.sqsd.prefetch.PrefetchBuffer;
+import alexhelmacy.sqsd.prefetch.PrefetchBuffer.PrefetchBufferBuilder;
+import alexhelmacy.sqsd.visibility.VisibilityHeartbeat;
+import alexhelmacy.sqsd.async.AsyncSqsD.AsyncSqsDBuilder;
+import alexhelmacy.sqsd.pipeline.PipelineSqsD;
+import alexhelmacy.sqsd.scaling.PollerAutoscaler;
+import alexhelmacy.sqsd.pipeline.PipelineSqsD.PipelineSqsDBuilder;
 
 public class App {
     private static final CommandLineParser parser = new DefaultParser();//Command Parser
@@ -61,8 +101,138 @@ public class App {
 
     private static final String REGION_LONG_OPTION = "region";
 
+    private static final String PIPELINE_SHORT_PARAMETER = "pl";
+    private static final String PIPELINE_LONG_PARAMETER = "pipeline";
+
+    private static final String PROCESSOR_THREADS_SHORT_PARAMETER = "pt";
+    private static final String PROCESSOR_THREADS_LONG_PARAMETER = "processor-threads";
+
+    private static final String DELETE_THREADS_SHORT_PARAMETER = "dt";
+    private static final String DELETE_THREADS_LONG_PARAMETER = "delete-threads";
+
+    private static final String QUEUE_CAPACITY_SHORT_PARAMETER = "qc";
+    private static final String QUEUE_CAPACITY_LONG_PARAMETER = "queue-capacity";
+
+    private static final String ASYNC_SHORT_PARAMETER = "as";
+    private static final String ASYNC_LONG_PARAMETER = "async";
+
+    private static final String IN_FLIGHT_POLLS_SHORT_PARAMETER = "ifp";
+    private static final String IN_FLIGHT_POLLS_LONG_PARAMETER = "in-flight-polls";
+
+    private static final String VIRTUAL_THREADS_SHORT_PARAMETER = "vt";
+    private static final String VIRTUAL_THREADS_LONG_PARAMETER = "virtual-threads";
+
+    private static final String MAX_IN_FLIGHT_SHORT_PARAMETER = "mif";
+    private static final String MAX_IN_FLIGHT_LONG_PARAMETER = "max-in-flight";
+
+    private static final String MAX_CONNECTIONS_SHORT_PARAMETER = "mc";
+    private static final String MAX_CONNECTIONS_LONG_PARAMETER = "max-connections";
+
+    private static final String CONNECTION_TTL_SHORT_PARAMETER = "ttl";
+    private static final String CONNECTION_TTL_LONG_PARAMETER = "connection-ttl";
+
+    private static final String COALESCE_DELETES_SHORT_PARAMETER = "cd";
+    private static final String COALESCE_DELETES_LONG_PARAMETER = "coalesce-deletes";
+
+    private static final String MIN_THREADS_SHORT_PARAMETER = "tmin";
+    private static final String MIN_THREADS_LONG_PARAMETER = "min-threads";
+
+    private static final String MAX_THREADS_SHORT_PARAMETER = "tmax";
+    private static final String MAX_THREADS_LONG_PARAMETER = "max-threads";
+
+    private static final String SCALE_INTERVAL_SHORT_PARAMETER = "si";
+    private static final String SCALE_INTERVAL_LONG_PARAMETER = "scale-interval";
+
+    private static final String PARALLEL_MESSAGES_SHORT_PARAMETER = "pm";
+    private static final String PARALLEL_MESSAGES_LONG_PARAMETER = "parallel-messages";
+
+    private static final String HEARTBEAT_SHORT_PARAMETER = "hb";
+    private static final String HEARTBEAT_LONG_PARAMETER = "heartbeat";
+
+    private static final String HEARTBEAT_MAX_SHORT_PARAMETER = "hbm";
+    private static final String HEARTBEAT_MAX_LONG_PARAMETER = "heartbeat-max";
+
+    private static final String JMX_SHORT_PARAMETER = "jmx";
+    private static final String JMX_LONG_PARAMETER = "jmx";
+
+    private static final String METRICS_PORT_SHORT_PARAMETER = "mp";
+    private static final String METRICS_PORT_LONG_PARAMETER = "metrics-port";
+
+    private static final String PREFETCH_SHORT_PARAMETER = "pf";
+    private static final String PREFETCH_LONG_PARAMETER = "prefetch";
+
+    private static final String BUDGET_MESSAGES_SHORT_PARAMETER = "bm";
+    private static final String BUDGET_MESSAGES_LONG_PARAMETER = "budget-messages";
+
+    private static final String BUDGET_MEGABYTES_SHORT_PARAMETER = "bmb";
+    private static final String BUDGET_MEGABYTES_LONG_PARAMETER = "budget-megabytes";
+
+    private static final String WORKER_URL_SHORT_PARAMETER = "wu";
+    private static final String WORKER_URL_LONG_PARAMETER = "worker-url";
+
+    private static final String WORKER_CONNECTIONS_SHORT_PARAMETER = "wc";
+    private static final String WORKER_CONNECTIONS_LONG_PARAMETER = "worker-connections";
+
+    private static final String WORKER_TIMEOUT_SHORT_PARAMETER = "wt";
+    private static final String WORKER_TIMEOUT_LONG_PARAMETER = "worker-timeout";
+
+    private static final String ERROR_VISIBILITY_TIMEOUT_SHORT_PARAMETER = "evt";
+    private static final String ERROR_VISIBILITY_TIMEOUT_LONG_PARAMETER = "error-visibility-timeout";
+
+    private static final String RETRY_DELETES_SHORT_PARAMETER = "rd";
+    private static final String RETRY_DELETES_LONG_PARAMETER = "retry-deletes";
+
+    private static final String DECODE_SHORT_PARAMETER = "dec";
+    private static final String DECODE_LONG_PARAMETER = "decode";
+
+    private static final String EVENT_LOG_SHORT_PARAMETER = "el";
+    private static final String EVENT_LOG_LONG_PARAMETER = "event-log";
+
+    private static final String EVENT_SAMPLE_SHORT_PARAMETER = "es";
+    private static final String EVENT_SAMPLE_LONG_PARAMETER = "event-sample";
+
+    private static final String DEDUP_SHORT_PARAMETER = "dd";
+    private static final String DEDUP_LONG_PARAMETER = "dedup";
+
+    private static final String DEDUP_TTL_SHORT_PARAMETER = "ddt";
+    private static final String DEDUP_TTL_LONG_PARAMETER = "dedup-ttl";
+
+    private static final String DEDUP_KEYS_SHORT_PARAMETER = "ddk";
+    private static final String DEDUP_KEYS_LONG_PARAMETER = "dedup-keys";
+
+    private static final String ACK_JOURNAL_SHORT_PARAMETER = "aj";
+    private static final String ACK_JOURNAL_LONG_PARAMETER = "ack-journal";
+
+    private static final String ACK_JOURNAL_COMMIT_SHORT_PARAMETER = "ajc";
+    private static final String ACK_JOURNAL_COMMIT_LONG_PARAMETER = "ack-journal-commit";
+
+    private static final String CLAIM_CHECK_SHORT_PARAMETER = "cc";
+    private static final String CLAIM_CHECK_LONG_PARAMETER = "claim-check";
+
+    private static final String CLAIM_CHECK_CACHE_SHORT_PARAMETER = "ccm";
+    private static final String CLAIM_CHECK_CACHE_LONG_PARAMETER = "claim-check-cache";
+
+    private static final String MICRO_BATCH_SHORT_PARAMETER = "mb";
+    private static final String MICRO_BATCH_LONG_PARAMETER = "micro-batch";
+
+    private static final String MICRO_BATCH_LATENCY_SHORT_PARAMETER = "mbl";
+    private static final String MICRO_BATCH_LATENCY_LONG_PARAMETER = "micro-batch-latency";
+
+    private static final String MICRO_BATCH_THREADS_SHORT_PARAMETER = "mbt";
+    private static final String MICRO_BATCH_THREADS_LONG_PARAMETER = "micro-batch-threads";
+
+    private static final String DRAIN_SECONDS_SHORT_PARAMETER = "dr";
+    private static final String DRAIN_SECONDS_LONG_PARAMETER = "drain-seconds";
+
+    private static final int OFF_HEAP_DEDUP_ENTRIES = 1 << 20;//dedup tables this large are kept outside the heap
+
+    private static final long DEFAULT_COALESCE_DELETES_MILLIS = 20;//delete coalescer delay when parallel mode turns the coalescer on
+
+    private static final int HELPER_CONNECTIONS = 10;//connections kept for the heartbeat, delete coalescer, retry scheduler, prefetch fetcher and backlog reads
+
     private static final Logger logger = LoggerFactory.getLogger(App.class);
-    private static SqsD sqsd;
+    private static ISqsD sqsd;
+    private static long drainSeconds = 0;//how long a stop may drain in threaded mode. stops right away when 0
 
     /**
      * Initialize the options to be used in CLI. Should only be called once
@@ -71,16 +241,57 @@ public class App {
     synchronized static final boolean init(){
         if (!init){
             //add all options
-            options.addOption(QUEUE_URL_SHORT_PARAMETER, QUEUE_URL_LONG_PARAMETER, true, "Queue URL to consume messages from. Required if Queue name is not present");
-            options.addOption(QUEUE_NAME_SHORT_PARAMETER, QUEUE_NAME_LONG_PARAMETER, true, "Queue Name of SQS queue to consume messages from. Required if Queue URL is not present");
+            options.addOption(QUEUE_URL_SHORT_PARAMETER, QUEUE_URL_LONG_PARAMETER, true, "Queue URL to consume messages from. Required if Queue name is not present. Repeat to consume several queues. Append =<weight> to set a queue's share of the threads");
+            options.addOption(QUEUE_NAME_SHORT_PARAMETER, QUEUE_NAME_LONG_PARAMETER, true, "Queue Name of SQS queue to consume messages from. Required if Queue URL is not present. Repeat to consume several queues. Append =<weight> to set a queue's share of the threads");
             options.addOption(MAX_MESSAGES_SHORT_PARAMETER, MAX_MESSAGES_LONG_PARAMETER, true, "Max Number of Messages to receive per request");
             options.addOption(WAIT_TIME_SHORT_PARAMETER, WAIT_TIME_LONG_PARAMETER, true, "How long to wait to receive messages");
-            options.addOption(THREAD_COUNT_SHORT_PARAMETER, THREAD_COUNT_LONG_PARAMETER, true, "Number of threads. Max of 16");
+            options.addOption(THREAD_COUNT_SHORT_PARAMETER, THREAD_COUNT_LONG_PARAMETER, true, "Number of threads. Max of 16 unless --virtual-threads is set");
             options.addOption(MESSAGE_ATTRIBUTES_SHORT_PARAMETER, MESSAGE_ATTRIBUTES_LONG_PARAMETER, true, "Message Attributes");
             options.addOption(SYSTEM_MESSAGE_ATTRIBUTES_SHORT_PARAMETER, SYSTEM_MESSAGE_ATTRIBUTES_LONG_PARAMETER, true, "System Parameters");
             options.addOption(HELP_MESSAGE_SHORT_PARAMETER, HELP_MESSAGE_LONG_PARAMETER, false, "Prints this help message");    
             options.addOption(QUEUE_ACCOUNT_ID_SHORT_PARAMETER, QUEUE_ACCOUNT_ID_LONG_PARAMETER, true, "AWS Account id of SQS Queue. Required if the Queue is in a different account.");        
             options.addOption(REGION_LONG_OPTION, REGION_LONG_OPTION, true, "AWS Region");
+            options.addOption(PIPELINE_SHORT_PARAMETER, PIPELINE_LONG_PARAMETER, false, "Run pollers, processors and deleters as separate pipeline stages. --threads sets the number of pollers");
+            options.addOption(PROCESSOR_THREADS_SHORT_PARAMETER, PROCESSOR_THREADS_LONG_PARAMETER, true, "Number of processor threads in pipeline and async mode");
+            options.addOption(ASYNC_SHORT_PARAMETER, ASYNC_LONG_PARAMETER, false, "Use the non-blocking SqsAsyncClient engine");
+            options.addOption(VIRTUAL_THREADS_SHORT_PARAMETER, VIRTUAL_THREADS_LONG_PARAMETER, false, "Run threads on virtual threads. Requires Java 21");
+            options.addOption(MAX_IN_FLIGHT_SHORT_PARAMETER, MAX_IN_FLIGHT_LONG_PARAMETER, true, "Max number of threads with --virtual-threads. Default of " + SqsD.DEFAULT_MAX_IN_FLIGHT);
+            options.addOption(MAX_CONNECTIONS_SHORT_PARAMETER, MAX_CONNECTIONS_LONG_PARAMETER, true, "Max pooled connections of the shared SQS client. Must cover the pollers. Defaults to the pollers plus 10, at least 50");
+            options.addOption(CONNECTION_TTL_SHORT_PARAMETER, CONNECTION_TTL_LONG_PARAMETER, true, "How long in seconds a pooled connection is reused");
+            options.addOption(COALESCE_DELETES_SHORT_PARAMETER, COALESCE_DELETES_LONG_PARAMETER, true, "Share deletes across threads. Batches are sent when full or after this many milliseconds");
+            options.addOption(MIN_THREADS_SHORT_PARAMETER, MIN_THREADS_LONG_PARAMETER, true, "Fewest threads when autoscaling. Default of 1");
+            options.addOption(MAX_THREADS_SHORT_PARAMETER, MAX_THREADS_LONG_PARAMETER, true, "Enables autoscaling between --min-threads and this many threads. --threads is the starting count");
+            options.addOption(SCALE_INTERVAL_SHORT_PARAMETER, SCALE_INTERVAL_LONG_PARAMETER, true, "How often in seconds the autoscaler evaluates. Default of 10");
+            options.addOption(PARALLEL_MESSAGES_SHORT_PARAMETER, PARALLEL_MESSAGES_LONG_PARAMETER, true, "Handle each received message on a shared pool of this many threads and delete it as soon as it succeeds. Turns on --coalesce-deletes");
+            options.addOption(HEARTBEAT_SHORT_PARAMETER, HEARTBEAT_LONG_PARAMETER, true, "Keep messages invisible while they are processed by extending their visibility timeout to this many seconds");
+            options.addOption(HEARTBEAT_MAX_SHORT_PARAMETER, HEARTBEAT_MAX_LONG_PARAMETER, true, "Stop extending a message after this many seconds. Default of 3600");
+            options.addOption(JMX_SHORT_PARAMETER, JMX_LONG_PARAMETER, false, "Register poller metrics as JMX MXBeans under alexhelmacy.sqsd");
+            options.addOption(METRICS_PORT_SHORT_PARAMETER, METRICS_PORT_LONG_PARAMETER, true, "Serve poller metrics in the Prometheus text format on http://127.0.0.1:<port>/metrics");
+            options.addOption(PREFETCH_SHORT_PARAMETER, PREFETCH_LONG_PARAMETER, true, "Receive ahead of the threads into a shared buffer of at most this many messages. Messages about to become visible again are released");
+            options.addOption(BUDGET_MESSAGES_SHORT_PARAMETER, BUDGET_MESSAGES_LONG_PARAMETER, true, "Most messages held by all threads at once. Threads wait for room before receiving. Default of 1000 when --budget-megabytes is set");
+            options.addOption(BUDGET_MEGABYTES_SHORT_PARAMETER, BUDGET_MEGABYTES_LONG_PARAMETER, true, "Most message payload megabytes held by all threads at once. Default of 64 when --budget-messages is set");
+            options.addOption(WORKER_URL_SHORT_PARAMETER, WORKER_URL_LONG_PARAMETER, true, "POST every message to this worker URL and delete the messages it answers with a 2xx");
+            options.addOption(WORKER_CONNECTIONS_SHORT_PARAMETER, WORKER_CONNECTIONS_LONG_PARAMETER, true, "Most requests open to the worker at once. Default of 50");
+            options.addOption(WORKER_TIMEOUT_SHORT_PARAMETER, WORKER_TIMEOUT_LONG_PARAMETER, true, "Seconds the worker can take to respond. Default of 60");
+            options.addOption(ERROR_VISIBILITY_TIMEOUT_SHORT_PARAMETER, ERROR_VISIBILITY_TIMEOUT_LONG_PARAMETER, true, "Visibility timeout in seconds set on messages the worker fails. Left unchanged by default");
+            options.addOption(RETRY_DELETES_SHORT_PARAMETER, RETRY_DELETES_LONG_PARAMETER, true, "Retry failed deletes in the background with jittered exponential backoff capped at this many milliseconds");
+            options.addOption(DECODE_SHORT_PARAMETER, DECODE_LONG_PARAMETER, true, "Decode message bodies before they are handled. Comma separated steps run in order: base64, gzip, deflate and a final json");
+            options.addOption(EVENT_LOG_SHORT_PARAMETER, EVENT_LOG_LONG_PARAMETER, true, "Record per-message and per-poll logging as JSON events written by a background thread. Events beyond this many waiting are dropped");
+            options.addOption(EVENT_SAMPLE_SHORT_PARAMETER, EVENT_SAMPLE_LONG_PARAMETER, true, "Keep about 1 in n events of a type, as comma separated TYPE=n pairs such as RECEIVED=100,DELETED=100. 0 turns a type off");
+            options.addOption(DEDUP_SHORT_PARAMETER, DEDUP_LONG_PARAMETER, true, "Remember up to this many handled messages and delete their redeliveries without handling them again");
+            options.addOption(DEDUP_TTL_SHORT_PARAMETER, DEDUP_TTL_LONG_PARAMETER, true, "Seconds a handled message is remembered. Default of 3600");
+            options.addOption(DEDUP_KEYS_SHORT_PARAMETER, DEDUP_KEYS_LONG_PARAMETER, true, "What identifies a handled message, as a comma separated list of message-id and body-md5. Default of message-id");
+            options.addOption(CLAIM_CHECK_SHORT_PARAMETER, CLAIM_CHECK_LONG_PARAMETER, true, "Resolve claim-check messages of the SQS Extended Client from this directory, holding one directory per bucket, and stream their payloads to the handler");
+            options.addOption(CLAIM_CHECK_CACHE_SHORT_PARAMETER, CLAIM_CHECK_CACHE_LONG_PARAMETER, true, "Megabytes of claim-check payloads cached in memory. 0 turns the cache off. Default of 64");
+            options.addOption(MICRO_BATCH_SHORT_PARAMETER, MICRO_BATCH_LONG_PARAMETER, true, "Gather messages from every receive and thread into batches of up to this many for one batch handler call. Only the messages that succeed are deleted. Turns on --coalesce-deletes");
+            options.addOption(MICRO_BATCH_LATENCY_SHORT_PARAMETER, MICRO_BATCH_LATENCY_LONG_PARAMETER, true, "Milliseconds a message waits for its micro-batch to fill. Default of 100");
+            options.addOption(MICRO_BATCH_THREADS_SHORT_PARAMETER, MICRO_BATCH_THREADS_LONG_PARAMETER, true, "Micro-batches handled at once. Default of 1");
+            options.addOption(DRAIN_SECONDS_SHORT_PARAMETER, DRAIN_SECONDS_LONG_PARAMETER, true, "On stop, stop receiving and finish messages already received for up to this many seconds, then release the rest for other consumers right away");
+            options.addOption(ACK_JOURNAL_SHORT_PARAMETER, ACK_JOURNAL_LONG_PARAMETER, true, "Journal handled messages to this file and finish their deletes on the next start after a crash");
+            options.addOption(ACK_JOURNAL_COMMIT_SHORT_PARAMETER, ACK_JOURNAL_COMMIT_LONG_PARAMETER, true, "Milliseconds between forces of the ack journal to disk. Default of 10");
+            options.addOption(IN_FLIGHT_POLLS_SHORT_PARAMETER, IN_FLIGHT_POLLS_LONG_PARAMETER, true, "Number of concurrent long polls in async mode");
+            options.addOption(DELETE_THREADS_SHORT_PARAMETER, DELETE_THREADS_LONG_PARAMETER, true, "Number of delete threads in pipeline mode");
+            options.addOption(QUEUE_CAPACITY_SHORT_PARAMETER, QUEUE_CAPACITY_LONG_PARAMETER, true, "Max messages waiting between two pipeline stages");
             //set list options
             options.getOption(MESSAGE_ATTRIBUTES_SHORT_PARAMETER).setArgs(Option.UNLIMITED_VALUES);
             options.getOption(SYSTEM_MESSAGE_ATTRIBUTES_LONG_PARAMETER).setArgs(Option.UNLIMITED_VALUES);
@@ -89,6 +300,42 @@ public class App {
         return init;
     }
 
+    /**
+     * build the handler for --decode
+     * @param steps comma separated decoder names. json may only come last
+     * @return a handler that decodes each body and logs it
+     * @throws IllegalArgumentException if a step is unknown
+     */
+    private static MessageHandler decodingHandler(String steps){
+        BodyDecodingStage.BodyDecodingStageBuilder stageBuilder = BodyDecodingStage.builder();
+        BodyParser<?> parser = null;//parses the decoded body. the text is logged when null
+        for (String step: steps.split(",")){
+            if (parser != null)throw new IllegalArgumentException("json must be the last --" + DECODE_LONG_PARAMETER + " step");
+            if (step.trim().equalsIgnoreCase("json")){
+                parser = BodyParsers.json();
+            }else{
+                stageBuilder.decoder(BodyDecoders.forName(step));
+            }
+        }
+        return stageBuilder.build().handler(new ExampleDecodedMessageHandler(parser));
+    }
+
+    /**
+     * create a handler that streams claim-check payloads from a directory
+     * @param root directory holding one directory per bucket
+     * @param cacheMegabytes megabytes of payloads cached in memory. 0 turns the cache off
+     * @return the message handler
+     */
+    private static MessageHandler claimCheckHandler(String root, long cacheMegabytes){
+        ClaimCheckStage.ClaimCheckStageBuilder stageBuilder = ClaimCheckStage.builder()
+                                                                             .store(FileSystemPayloadStore.builder().root(Paths.get(root)).build());
+        if (cacheMegabytes > 0){//keep payloads shared by many messages in memory
+            long cacheBytes = cacheMegabytes * 1024 * 1024;
+            stageBuilder.cache(PayloadCache.builder().maxBytes(cacheBytes).maxEntryBytes((int)Math.min(cacheBytes / 16, 8 * 1024 * 1024)).build());
+        }
+        return stageBuilder.build().handler(new ExamplePayloadHandler());
+    }
+
     /**
      * Prints the help message 
      * @param footer String to add at the end of the help command. Can be used to displace exception information when starting this app.
@@ -110,7 +357,10 @@ public class App {
      * @param reason why was the app stopped.
      */
     synchronized public static final void stop(String reason){
-        if (sqsd instanceof SqsD){//sqsd is not null
+        if (sqsd instanceof SqsD && drainSeconds > 0){//finish what was received and release the rest
+            logger.info("Draining SQSD for up to " + drainSeconds + "s: " + reason);
+            ((SqsD)sqsd).drain(reason, drainSeconds, TimeUnit.SECONDS);
+        }else if (sqsd instanceof ISqsD){//sqsd is not null
             logger.info("Stopping SQSD: " + reason);//log that sqsd is stopping
             sqsd.stop(reason);//stop
         }else{//sqsd is null
@@ -131,10 +381,32 @@ public class App {
                                                                .queueName(queueName);//add queue name
         if (accountId instanceof String)builder.queueOwnerAWSAccountId(accountId);//add account id if accound id is not null
         GetQueueUrlRequest request = builder.build();//build GetQueueUrlRequest
-        SqsClient sqs = DependencyFactory.sqsClient(region);//Create an SQS Client with the region
-        GetQueueUrlResponse response = sqs.getQueueUrl(request);//make the request of SQS
-        return response.queueUrl();//return the queue url
+        SqsClient sqs = DependencyFactory.acquireSqsClient(region);//get the shared SQS Client for the region
+        try{
+            GetQueueUrlResponse response = sqs.getQueueUrl(request);//make the request of SQS
+            return response.queueUrl();//return the queue url
+        }finally{
+            DependencyFactory.releaseSqsClient(region);//release the shared client
+        }
+    }
+    /**
+     * @param queue a queue url or name with an optional =weight suffix
+     * @return the queue url or name
+     */
+    private static final String queueWithoutWeight(String queue){
+        int separator = queue.lastIndexOf('=');
+        return separator >= 0 ? queue.substring(0, separator) : queue;
+    }
+
+    /**
+     * @param queue a queue url or name with an optional =weight suffix
+     * @return the weight. 1 when there is no suffix
+     */
+    private static final int queueWeight(String queue){
+        int separator = queue.lastIndexOf('=');
+        return separator >= 0 ? Integer.parseInt(queue.substring(separator + 1)) : 1;
     }
+
     /**
      * SQSD main function
      * @param args SQSD args
@@ -150,12 +422,51 @@ public class App {
         String queueName = null;//queue name
         String queueUrl = null;//queue url
         String accountId = null;//account id
+        Map<String, Integer> queueWeights = new LinkedHashMap<>();//weight of every queue url
         int threadCount = 4;//default thread count
+        int maxConnections = -1;//max pooled connections of the shared sqs client. sized from the pollers by default
+        long connectionTtlSeconds = -1;//how long a pooled connection is reused. client default when not set
         int maxMessages = -1;//default max message
         int waitTime = -1;//default wait time
         String region = "us-east-1";//default region
         String[] messageAttributes = null;//default message attributes
         String[] systemAttributes = null;//default system attributes
+        boolean pipeline = false;//run in pipeline mode
+        int processorThreads = 4;//default processor threads in pipeline mode
+        int deleteThreads = 1;//default delete threads in pipeline mode
+        int queueCapacity = -1;//default hand-off queue capacity in pipeline mode
+        boolean async = false;//run the async engine
+        int inFlightPolls = 64;//default concurrent long polls in async mode
+        boolean virtualThreads = false;//run on virtual threads
+        int maxInFlight = SqsD.DEFAULT_MAX_IN_FLIGHT;//default thread cap on virtual threads
+        long coalesceDeletesMillis = -1;//delete coalescer max delay. disabled by default
+        long retryDeletesMillis = -1;//delete retry scheduler max delay. disabled by default
+        int parallelMessages = -1;//parallel mode pool size. disabled by default
+        int minThreads = 1;//fewest threads when autoscaling
+        int maxThreads = -1;//most threads when autoscaling. disabled by default
+        long scaleIntervalSeconds = 10;//autoscaler interval
+        int heartbeatSeconds = -1;//visibility timeout set by the heartbeat. disabled by default
+        int heartbeatMaxSeconds = 3600;//stop extending a message after this long
+        boolean jmx = false;//register metrics MXBeans
+        int metricsPort = -1;//port of the metrics endpoint. disabled by default
+        int prefetch = -1;//most messages prefetched. disabled by default
+        int budgetMessages = -1;//in-flight budget in messages. disabled by default
+        long budgetMegabytes = -1;//in-flight budget in megabytes. disabled by default
+        String workerUrl = null;//worker messages are forwarded to. disabled by default
+        int workerConnections = 50;//most requests open to the worker
+        int workerTimeoutSeconds = 60;//how long the worker can take to respond
+        int errorVisibilityTimeout = -1;//visibility timeout of failed messages. unchanged by default
+        MessageHandler bodyHandler = null;//handles decoded bodies or claim-check payloads. disabled by default
+        int dedupEntries = -1;//handled messages remembered. disabled by default
+        long dedupTtlSeconds = 3600;//how long a handled message is remembered
+        List<DedupCache.Key> dedupKeys = new ArrayList<>();//what identifies a handled message. the message id by default
+        int eventLogCapacity = -1;//events waiting to be written. disabled by default
+        Map<EventType, Integer> eventSamples = new LinkedHashMap<>();//keep 1 in n events of each type listed
+        int microBatchSize = -1;//messages in a micro-batch. disabled by default
+        long microBatchLatencyMillis = 100;//how long a message waits for its micro-batch to fill
+        int microBatchThreads = 1;//micro-batches handled at once
+        String ackJournalPath = null;//journal of handled and deleted messages. disabled by default
+        long ackJournalCommitMillis = 10;//time between forces of the journal to disk
 
         boolean exceptionEncountered = false;//boolean for if an exception has been 
         String exceptionMessage = "";//exception message
@@ -165,23 +476,97 @@ public class App {
                 help();//print help message
                 System.exit(0);//exit successfully
             }
-            queueUrl = cmd.getOptionValue(QUEUE_URL_SHORT_PARAMETER);//get the queue url
+            waitTime = Integer.parseInt(cmd.getOptionValue(WAIT_TIME_SHORT_PARAMETER, Integer.toString(waitTime)));//get the wait time for the CLI
+
+            maxConnections = Integer.parseInt(cmd.getOptionValue(MAX_CONNECTIONS_SHORT_PARAMETER, Integer.toString(maxConnections)));//get max connections
+            connectionTtlSeconds = Long.parseLong(cmd.getOptionValue(CONNECTION_TTL_SHORT_PARAMETER, Long.toString(connectionTtlSeconds)));//get the connection ttl
+
             region = cmd.getOptionValue(REGION_LONG_OPTION, region);//get the region provided
-            if (!(queueUrl instanceof String)){//if the queue url is null
-                queueName = cmd.getOptionValue(QUEUE_NAME_SHORT_PARAMETER);//get the queue name
-                if (!(queueName instanceof String)){//both queue name and queue url are null
-                    throw new IllegalArgumentException("Queue Name or Queue URL must be specified.");
+            accountId = cmd.getOptionValue(QUEUE_ACCOUNT_ID_SHORT_PARAMETER);//get the account id
+            if (cmd.hasOption(QUEUE_URL_SHORT_PARAMETER)){//queue urls with optional weights
+                for (String queue: cmd.getOptionValues(QUEUE_URL_SHORT_PARAMETER))queueWeights.put(queueWithoutWeight(queue), queueWeight(queue));
+            }
+            if (cmd.hasOption(QUEUE_NAME_SHORT_PARAMETER)){//queue names with optional weights
+                for (String queue: cmd.getOptionValues(QUEUE_NAME_SHORT_PARAMETER)){
+                    queueName = queueWithoutWeight(queue);
+                    queueWeights.put(getQueueUrlFromQueueName(queueName, accountId, region), queueWeight(queue));//get the queue url based on the queue name
                 }
-                accountId = cmd.getOptionValue(QUEUE_ACCOUNT_ID_SHORT_PARAMETER);//get the account id
-                queueUrl = getQueueUrlFromQueueName(queueName, accountId, region);//get the queue url based on the queue name
             }
+            if (queueWeights.isEmpty()){//both queue name and queue url are missing
+                throw new IllegalArgumentException("Queue Name or Queue URL must be specified.");
+            }
+            queueUrl = queueWeights.keySet().iterator().next();//the first queue
 
             threadCount = Integer.parseInt(cmd.getOptionValue(THREAD_COUNT_SHORT_PARAMETER, Integer.toString(threadCount)));//get the requested thread count
             maxMessages = Integer.parseInt(cmd.getOptionValue(MAX_MESSAGES_SHORT_PARAMETER, Integer.toString(maxMessages)));//get max messages
-            waitTime = Integer.parseInt(cmd.getOptionValue(WAIT_TIME_SHORT_PARAMETER, Integer.toString(waitTime)));//get the wait time for the CLI
             
             messageAttributes = cmd.getOptionValues(MESSAGE_ATTRIBUTES_SHORT_PARAMETER);//get the message attributes
             systemAttributes = cmd.getOptionValues(SYSTEM_MESSAGE_ATTRIBUTES_SHORT_PARAMETER);//get the system attributes
+
+            pipeline = cmd.hasOption(PIPELINE_SHORT_PARAMETER);//is pipeline mode requested
+            processorThreads = Integer.parseInt(cmd.getOptionValue(PROCESSOR_THREADS_SHORT_PARAMETER, Integer.toString(processorThreads)));//get processor threads
+            deleteThreads = Integer.parseInt(cmd.getOptionValue(DELETE_THREADS_SHORT_PARAMETER, Integer.toString(deleteThreads)));//get delete threads
+            queueCapacity = Integer.parseInt(cmd.getOptionValue(QUEUE_CAPACITY_SHORT_PARAMETER, Integer.toString(queueCapacity)));//get queue capacity
+
+            async = cmd.hasOption(ASYNC_SHORT_PARAMETER);//is the async engine requested
+            inFlightPolls = Integer.parseInt(cmd.getOptionValue(IN_FLIGHT_POLLS_SHORT_PARAMETER, Integer.toString(inFlightPolls)));//get in flight polls
+
+            coalesceDeletesMillis = Long.parseLong(cmd.getOptionValue(COALESCE_DELETES_SHORT_PARAMETER, Long.toString(coalesceDeletesMillis)));//get the delete coalescer delay
+            retryDeletesMillis = Long.parseLong(cmd.getOptionValue(RETRY_DELETES_SHORT_PARAMETER, Long.toString(retryDeletesMillis)));//get the delete retry max delay
+
+            parallelMessages = Integer.parseInt(cmd.getOptionValue(PARALLEL_MESSAGES_SHORT_PARAMETER, Integer.toString(parallelMessages)));//get the parallel mode pool size
+            if (parallelMessages > 0 && coalesceDeletesMillis < 0)coalesceDeletesMillis = DEFAULT_COALESCE_DELETES_MILLIS;//parallel mode deletes through the coalescer
+
+            minThreads = Integer.parseInt(cmd.getOptionValue(MIN_THREADS_SHORT_PARAMETER, Integer.toString(minThreads)));//get min threads
+            maxThreads = Integer.parseInt(cmd.getOptionValue(MAX_THREADS_SHORT_PARAMETER, Integer.toString(maxThreads)));//get max threads
+            scaleIntervalSeconds = Long.parseLong(cmd.getOptionValue(SCALE_INTERVAL_SHORT_PARAMETER, Long.toString(scaleIntervalSeconds)));//get the autoscaler interval
+
+            heartbeatSeconds = Integer.parseInt(cmd.getOptionValue(HEARTBEAT_SHORT_PARAMETER, Integer.toString(heartbeatSeconds)));//get the heartbeat visibility timeout
+            heartbeatMaxSeconds = Integer.parseInt(cmd.getOptionValue(HEARTBEAT_MAX_SHORT_PARAMETER, Integer.toString(heartbeatMaxSeconds)));//get the heartbeat max extension
+
+            jmx = cmd.hasOption(JMX_SHORT_PARAMETER);//are MXBeans requested
+            metricsPort = Integer.parseInt(cmd.getOptionValue(METRICS_PORT_SHORT_PARAMETER, Integer.toString(metricsPort)));//get the metrics port
+            prefetch = Integer.parseInt(cmd.getOptionValue(PREFETCH_SHORT_PARAMETER, Integer.toString(prefetch)));//get the prefetch buffer size
+            budgetMessages = Integer.parseInt(cmd.getOptionValue(BUDGET_MESSAGES_SHORT_PARAMETER, Integer.toString(budgetMessages)));//get the budget in messages
+            budgetMegabytes = Long.parseLong(cmd.getOptionValue(BUDGET_MEGABYTES_SHORT_PARAMETER, Long.toString(budgetMegabytes)));//get the budget in megabytes
+
+            workerUrl = cmd.getOptionValue(WORKER_URL_SHORT_PARAMETER);//get the worker url
+            workerConnections = Integer.parseInt(cmd.getOptionValue(WORKER_CONNECTIONS_SHORT_PARAMETER, Integer.toString(workerConnections)));//get the worker connections
+            workerTimeoutSeconds = Integer.parseInt(cmd.getOptionValue(WORKER_TIMEOUT_SHORT_PARAMETER, Integer.toString(workerTimeoutSeconds)));//get the worker timeout
+            errorVisibilityTimeout = Integer.parseInt(cmd.getOptionValue(ERROR_VISIBILITY_TIMEOUT_SHORT_PARAMETER, Integer.toString(errorVisibilityTimeout)));//get the error visibility timeout
+            dedupEntries = Integer.parseInt(cmd.getOptionValue(DEDUP_SHORT_PARAMETER, Integer.toString(dedupEntries)));//get the dedup entries
+            dedupTtlSeconds = Long.parseLong(cmd.getOptionValue(DEDUP_TTL_SHORT_PARAMETER, Long.toString(dedupTtlSeconds)));//get the dedup ttl
+            if (cmd.hasOption(DEDUP_KEYS_SHORT_PARAMETER)){//get the dedup keys
+                for (String key: cmd.getOptionValue(DEDUP_KEYS_SHORT_PARAMETER).split(","))dedupKeys.add(DedupCache.Key.valueOf(key.trim().toUpperCase().replace('-', '_')));
+            }
+            eventLogCapacity = Integer.parseInt(cmd.getOptionValue(EVENT_LOG_SHORT_PARAMETER, Integer.toString(eventLogCapacity)));//get the event log capacity
+            if (cmd.hasOption(EVENT_SAMPLE_SHORT_PARAMETER)){//get the event sample rates
+                for (String sample: cmd.getOptionValue(EVENT_SAMPLE_SHORT_PARAMETER).split(",")){
+                    String[] typeAndRate = sample.split("=", 2);
+                    if (typeAndRate.length != 2)throw new IllegalArgumentException("Event sample must be TYPE=n: " + sample);
+                    eventSamples.put(EventType.valueOf(typeAndRate[0].trim().toUpperCase()), Integer.parseInt(typeAndRate[1].trim()));
+                }
+                if (eventLogCapacity <= 0)eventLogCapacity = 8192;//sampling implies the event log
+            }
+            microBatchSize = Integer.parseInt(cmd.getOptionValue(MICRO_BATCH_SHORT_PARAMETER, Integer.toString(microBatchSize)));//get the micro-batch size
+            microBatchLatencyMillis = Long.parseLong(cmd.getOptionValue(MICRO_BATCH_LATENCY_SHORT_PARAMETER, Long.toString(microBatchLatencyMillis)));//get the micro-batch latency
+            microBatchThreads = Integer.parseInt(cmd.getOptionValue(MICRO_BATCH_THREADS_SHORT_PARAMETER, Integer.toString(microBatchThreads)));//get the micro-batch threads
+            if (microBatchSize > 0 && coalesceDeletesMillis < 0)coalesceDeletesMillis = DEFAULT_COALESCE_DELETES_MILLIS;//micro-batches delete through the coalescer
+            drainSeconds = Long.parseLong(cmd.getOptionValue(DRAIN_SECONDS_SHORT_PARAMETER, Long.toString(drainSeconds)));//get the drain time
+            ackJournalPath = cmd.getOptionValue(ACK_JOURNAL_SHORT_PARAMETER);//get the ack journal path
+            ackJournalCommitMillis = Long.parseLong(cmd.getOptionValue(ACK_JOURNAL_COMMIT_SHORT_PARAMETER, Long.toString(ackJournalCommitMillis)));//get the ack journal commit interval
+            if (cmd.hasOption(DECODE_SHORT_PARAMETER))bodyHandler = decodingHandler(cmd.getOptionValue(DECODE_SHORT_PARAMETER));//get the decoding steps
+            if (cmd.hasOption(CLAIM_CHECK_SHORT_PARAMETER)){//get the claim-check store
+                if (bodyHandler != null)throw new IllegalArgumentException("--" + CLAIM_CHECK_LONG_PARAMETER + " cannot be used with --" + DECODE_LONG_PARAMETER);
+                long cacheMegabytes = Long.parseLong(cmd.getOptionValue(CLAIM_CHECK_CACHE_SHORT_PARAMETER, "64"));
+                bodyHandler = claimCheckHandler(cmd.getOptionValue(CLAIM_CHECK_SHORT_PARAMETER), cacheMegabytes);
+            }
+
+            virtualThreads = cmd.hasOption(VIRTUAL_THREADS_SHORT_PARAMETER);//are virtual threads requested
+            maxInFlight = Integer.parseInt(cmd.getOptionValue(MAX_IN_FLIGHT_SHORT_PARAMETER, Integer.toString(maxInFlight)));//get the thread cap on virtual threads
+            if (virtualThreads && !DependencyFactory.virtualThreadsSupported()){//virtual threads need Java 21
+                throw new IllegalArgumentException("--" + VIRTUAL_THREADS_LONG_PARAMETER + " requires Java 21 or later");
+            }
             
         } catch (ParseException pe){//cmd failed to parse
             exceptionMessage = "Failed to parse args: " + pe.getMessage();//get failure message
@@ -206,22 +591,244 @@ public class App {
             logger.warn("Thread count specified is less than or equal to 0. Setting to default of 4.");
             threadCount = 4;
         }
+
+        //configure the shared sqs clients before the pollers acquire them. every blocking poller holds a pooled connection for its long poll
+        int pollers = async ? 0 : pipeline ? threadCount + deleteThreads : Math.max(threadCount, maxThreads);//the async engine has its own client
+        if (maxConnections > 0 && maxConnections < pollers){
+            help("--" + MAX_CONNECTIONS_LONG_PARAMETER + " of " + maxConnections + " is less than the " + pollers + " pollers. Each poller holds a connection for its long poll");
+            System.exit(1);
+        }
+        SqsClientSettings.SqsClientSettingsBuilder clientSettings = SqsClientSettings.builder();
+        clientSettings.maxConnections(maxConnections > 0 ? maxConnections : Math.max(SqsClientSettings.DEFAULT_MAX_CONNECTIONS, pollers + HELPER_CONNECTIONS));//pollers plus the heartbeat, delete and backlog helpers
+        if (connectionTtlSeconds > 0)clientSettings.connectionTimeToLive(Duration.ofSeconds(connectionTtlSeconds));//add connection ttl if present
+        if (waitTime >= 0)clientSettings.socketTimeout(Duration.ofSeconds(Math.max(30, waitTime + 10)));//socket timeout must outlast the long poll
+        DependencyFactory.configure(clientSettings.build());
         
-        List<SqsDThread> threads = new ArrayList<>();//list of threads
-        ExampleSqsDThreadBuilder builder = ExampleSqsDThread.builder();//example sqsd thread builder
-
-        builder.queueUrl(queueUrl)//add the queue url
-               .region(region);//add region
-        if (maxMessages > 0)builder.maxNumberOfMessages(maxMessages);//add max messages if present
-        if (waitTime >= 0)builder.waitTime(waitTime);//add wait time if present
-        if (messageAttributes != null)builder.messageAttributes(Arrays.asList(messageAttributes));//add message attributes if present
-        if (systemAttributes != null)builder.systemAttributes(Arrays.asList(systemAttributes));//add system attributes if present
-        
-        
-        
-        for (int i = 0; i < threadCount; i++)threads.add(new ExampleSqsDThread(builder));//add as many threads as requested
-        
-        sqsd = new SqsD(threads);//create an instance of sqsd with the threads list
+        boolean multiQueue = queueWeights.size() > 1;//consume several queues
+        if (multiQueue && (async || pipeline || prefetch > 0 || workerUrl != null || maxThreads > 0)){
+            help("Several queues cannot be combined with --" + ASYNC_LONG_PARAMETER + ", --" + PIPELINE_LONG_PARAMETER + ", --" + PREFETCH_LONG_PARAMETER + ", --" + WORKER_URL_LONG_PARAMETER + " or --" + MAX_THREADS_LONG_PARAMETER);
+            System.exit(1);
+        }
+        if (bodyHandler != null && workerUrl != null){
+            help("--" + DECODE_LONG_PARAMETER + " and --" + CLAIM_CHECK_LONG_PARAMETER + " cannot be used with --" + WORKER_URL_LONG_PARAMETER + ". The worker receives the raw body");
+            System.exit(1);
+        }
+        boolean fifo = queueWeights.keySet().stream().anyMatch((url) -> url.endsWith(".fifo"));//FIFO queue names end in .fifo
+        if (fifo && prefetch > 0){
+            help("--" + PREFETCH_LONG_PARAMETER + " cannot be used with FIFO queues");
+            System.exit(1);
+        }
+        if (microBatchSize > 0 && (parallelMessages > 0 || workerUrl != null || fifo)){
+            help("--" + MICRO_BATCH_LONG_PARAMETER + " cannot be used with --" + PARALLEL_MESSAGES_LONG_PARAMETER + ", --" + WORKER_URL_LONG_PARAMETER + " or FIFO queues");
+            System.exit(1);
+        }
+        if (microBatchSize > 0 && (async || pipeline))logger.warn("--" + MICRO_BATCH_LONG_PARAMETER + " only applies to the threaded mode");
+        if (dedupEntries > 0 && (async || pipeline))logger.warn("--" + DEDUP_LONG_PARAMETER + " only applies to the threaded mode");
+        if (drainSeconds > 0 && (async || pipeline))logger.warn("--" + DRAIN_SECONDS_LONG_PARAMETER + " only applies to the threaded mode");
+        if (ackJournalPath != null && (async || pipeline))logger.warn("--" + ACK_JOURNAL_LONG_PARAMETER + " only applies to the threaded mode");
+        if (eventLogCapacity > 0 && (async || pipeline))logger.warn("--" + EVENT_LOG_LONG_PARAMETER + " only applies to the threaded mode");
+        if (fifo && (async || pipeline))logger.warn("Async and pipeline modes do not keep the order of FIFO message groups");
+
+        if (async){//async mode
+            AsyncSqsDBuilder asyncBuilder = AsyncSqsD.builder();//async builder
+            asyncBuilder.queueUrl(queueUrl)//add the queue url
+                        .region(region)//add region
+                        .inFlightPolls(inFlightPolls)//add in flight polls
+                        .processingThreads(processorThreads)//add processor threads
+                        .virtualThreads(virtualThreads);//add virtual threads
+            if (maxMessages > 0)asyncBuilder.maxNumberOfMessages(maxMessages);//add max messages if present
+            if (waitTime >= 0)asyncBuilder.waitTime(waitTime);//add wait time if present
+            if (messageAttributes != null)asyncBuilder.messageAttributes(Arrays.asList(messageAttributes));//add message attributes if present
+            if (systemAttributes != null)asyncBuilder.systemAttributes(Arrays.asList(systemAttributes));//add system attributes if present
+            if (bodyHandler != null)asyncBuilder.handler(bodyHandler);//add the body handler if present
+            sqsd = asyncBuilder.build();//create the async sqsd
+        }else if (pipeline){//pipeline mode
+            PipelineSqsDBuilder pipelineBuilder = PipelineSqsD.builder();//pipeline builder
+            pipelineBuilder.queueUrl(queueUrl)//add the queue url
+                           .region(region)//add region
+                           .pollers(threadCount)//one poller per thread
+                           .processors(processorThreads)//add processor threads
+                           .deleters(deleteThreads)//add delete threads
+                           .virtualThreads(virtualThreads);//add virtual threads
+            if (maxMessages > 0)pipelineBuilder.maxNumberOfMessages(maxMessages);//add max messages if present
+            if (waitTime >= 0)pipelineBuilder.waitTime(waitTime);//add wait time if present
+            if (queueCapacity > 0)pipelineBuilder.queueCapacity(queueCapacity);//add queue capacity if present
+            if (messageAttributes != null)pipelineBuilder.messageAttributes(Arrays.asList(messageAttributes));//add message attributes if present
+            if (systemAttributes != null)pipelineBuilder.systemAttributes(Arrays.asList(systemAttributes));//add system attributes if present
+            if (bodyHandler != null)pipelineBuilder.handler(bodyHandler);//add the body handler if present
+            sqsd = pipelineBuilder.build();//create the pipeline
+        }else{
+            List<SqsDThread> threads = new ArrayList<>();//list of threads
+            ExampleSqsDThreadBuilder builder = ExampleSqsDThread.builder();//example sqsd thread builder
+
+            builder.queueUrl(queueUrl)//add the queue url
+                   .region(region)//add region
+                   .fifo(fifo);//keep message groups in order
+            if (maxMessages > 0)builder.maxNumberOfMessages(maxMessages);//add max messages if present
+            if (waitTime >= 0)builder.waitTime(waitTime);//add wait time if present
+            if (messageAttributes != null)builder.messageAttributes(Arrays.asList(messageAttributes));//add message attributes if present
+            if (systemAttributes != null)builder.systemAttributes(Arrays.asList(systemAttributes));//add system attributes if present
+            if (bodyHandler != null)builder.messageHandler(bodyHandler);//add the body handler if present
+            DedupCache dedupCache = null;//shared dedup cache
+            if (dedupEntries > 0 || ackJournalPath != null){//skip redeliveries of handled messages. the journal needs it for recovered messages
+                DedupCache.DedupCacheBuilder dedupBuilder = DedupCache.builder()
+                                                                  .ttlMillis(TimeUnit.SECONDS.toMillis(dedupTtlSeconds))
+                                                                  .offHeap(dedupEntries >= OFF_HEAP_DEDUP_ENTRIES);
+                if (dedupEntries > 0)dedupBuilder.maxEntries(dedupEntries);//add the entries if present
+                if (!dedupKeys.isEmpty())dedupBuilder.keys(dedupKeys.toArray(new DedupCache.Key[0]));//add the keys if present
+                dedupCache = dedupBuilder.build();
+                builder.dedupCache(dedupCache);
+            }
+            AckJournal ackJournal = null;//shared ack journal
+            if (ackJournalPath != null){//journal handled messages so a restart finishes their deletes
+                ackJournal = AckJournal.builder()
+                                       .path(Paths.get(ackJournalPath))
+                                       .commitMillis(ackJournalCommitMillis)
+                                       .region(region)
+                                       .build();
+                ackJournal.recover(dedupCache);//before any thread polls
+                builder.ackJournal(ackJournal);
+            }
+            EventLog eventLog = null;//shared event log
+            if (eventLogCapacity > 0){//record logging as events written off the poll loop
+                EventLog.EventLogBuilder eventLogBuilder = EventLog.builder().capacity(eventLogCapacity);
+                for (Map.Entry<EventType, Integer> sample: eventSamples.entrySet())eventLogBuilder.sample(sample.getKey(), sample.getValue());
+                eventLog = eventLogBuilder.build();
+                builder.eventLog(eventLog);
+            }
+            VisibilityHeartbeat heartbeat = null;//shared visibility heartbeat
+            if (heartbeatSeconds > 0){//extend visibility while messages are processed
+                heartbeat = VisibilityHeartbeat.builder()
+                                               .region(region)
+                                               .visibilityTimeoutSeconds(heartbeatSeconds)
+                                               .maxExtensionSeconds(heartbeatMaxSeconds)
+                                               .build();
+                builder.visibilityHeartbeat(heartbeat);
+            }
+            DeleteRetryScheduler deleteRetryScheduler = null;//shared delete retry scheduler
+            if (retryDeletesMillis > 0){//retry failed deletes in the background
+                deleteRetryScheduler = DeleteRetryScheduler.builder()
+                                                           .region(region)
+                                                           .maxDelayMillis(retryDeletesMillis)
+                                                           .baseDelayMillis(Math.min(retryDeletesMillis, 50))//the first retry may not wait longer than the cap
+                                                           .build();
+                builder.deleteRetryScheduler(deleteRetryScheduler);
+            }
+            DeleteCoalescer deleteCoalescer = null;//shared delete coalescer
+            if (coalesceDeletesMillis >= 0){//coalesce deletes across threads
+                deleteCoalescer = DeleteCoalescer.builder()
+                                                 .region(region)
+                                                 .maxDelayMillis(coalesceDeletesMillis)
+                                                 .retryScheduler(deleteRetryScheduler)
+                                                 .build();
+                builder.deleteCoalescer(deleteCoalescer);
+            }
+            MicroBatcher microBatcher = null;//shared micro-batcher
+            if (microBatchSize > 0){//gather messages across receives and threads for the batch handler
+                microBatcher = MicroBatcher.builder()
+                                           .handler(new ExampleBatchHandler(bodyHandler))
+                                           .batchSize(microBatchSize)
+                                           .maxLatencyMillis(microBatchLatencyMillis)
+                                           .handlerThreads(microBatchThreads)
+                                           .build();
+                builder.microBatcher(microBatcher);
+            }
+            if (budgetMessages > 0 || budgetMegabytes > 0){//bound the messages held in memory
+                InFlightBudgetBuilder budgetBuilder = InFlightBudget.builder();
+                if (budgetMessages > 0)budgetBuilder.maxMessages(budgetMessages);//add max messages if present
+                if (budgetMegabytes > 0)budgetBuilder.maxBytes(budgetMegabytes * 1024 * 1024);//add max bytes if present
+                builder.inFlightBudget(budgetBuilder.build());
+            }
+            PrefetchBuffer prefetchBuffer = null;//shared prefetch buffer
+            if (prefetch > 0){//receive ahead of the threads
+                PrefetchBufferBuilder prefetchBuilder = PrefetchBuffer.builder()
+                                                                      .queueUrl(queueUrl)
+                                                                      .region(region)
+                                                                      .maxBuffered(prefetch)
+                                                                      .minBuffered(Math.min(prefetch, maxMessages > 0 ? maxMessages : 10));
+                if (waitTime >= 0)prefetchBuilder.waitTimeSeconds(waitTime);//add wait time if present
+                if (messageAttributes != null)prefetchBuilder.messageAttributeNames(Arrays.asList(messageAttributes));//add message attributes if present
+                if (systemAttributes != null)prefetchBuilder.systemAttributeNames(Arrays.asList(systemAttributes));//add system attributes if present
+                prefetchBuffer = prefetchBuilder.build();
+                builder.prefetchBuffer(prefetchBuffer);
+            }
+            ExecutorService messageExecutor = null;//parallel mode processing pool
+            if (parallelMessages > 0){//handle messages in parallel
+                messageExecutor = virtualThreads ? DependencyFactory.virtualThreadExecutor() : Executors.newFixedThreadPool(parallelMessages);
+                builder.messageExecutor(messageExecutor);
+                if (virtualThreads)builder.maxInFlightMessages(parallelMessages);//virtual pool is unbounded. cap each thread instead
+            }
+
+            QueueScheduler queueScheduler = null;//shares the threads between the queues
+            if (multiQueue){
+                QueueScheduler.QueueSchedulerBuilder schedulerBuilder = QueueScheduler.builder()
+                                                                                      .region(region)
+                                                                                      .maxNumberOfMessages(maxMessages > 0 ? maxMessages : 10);
+                for (Map.Entry<String, Integer> queue: queueWeights.entrySet())schedulerBuilder.queue(queue.getKey(), queue.getValue());
+                queueScheduler = schedulerBuilder.build();
+                builder.queueScheduler(queueScheduler);
+            }
+
+            Supplier<SqsDThread> threadFactory = () -> new ExampleSqsDThread(builder);//creates the threads
+            HttpForwarder forwarder = null;//shared worker forwarder
+            if (workerUrl != null){//forward messages to a local worker
+                forwarder = HttpForwarder.builder()
+                                         .workerUrl(workerUrl)
+                                         .queueUrl(queueUrl)
+                                         .region(region)
+                                         .maxConcurrency(workerConnections)
+                                         .requestTimeout(Duration.ofSeconds(workerTimeoutSeconds))
+                                         .errorVisibilityTimeoutSeconds(errorVisibilityTimeout)
+                                         .build();
+                HttpForwarder workerForwarder = forwarder;
+                threadFactory = () -> new HttpForwardingSqsDThread(builder, workerForwarder);
+            }
+
+            for (int i = 0; i < threadCount; i++)threads.add(threadFactory.get());//add as many threads as requested
+
+            boolean autoscale = maxThreads > 0;//autoscaling requested
+            SqsD threadedSqsD = new SqsD(threads, virtualThreads, maxInFlight, autoscale ? maxThreads : threadCount);//create an instance of sqsd with the threads list
+            if (drainSeconds > 0)threadedSqsD.removeDrainTimeout(drainSeconds, TimeUnit.SECONDS);//threads removed by the autoscaler drain as long as a stop would
+            if (eventLog != null)threadedSqsD.closeOnStop(eventLog);//write the last events once everything else, heartbeat included, has stopped
+            if (heartbeat != null)threadedSqsD.closeOnStop(heartbeat);//stop the heartbeat after everything else
+            if (ackJournal != null)threadedSqsD.closeOnStop(ackJournal);//force the journal once the last deletes were recorded
+            if (queueScheduler != null)threadedSqsD.closeOnStop(queueScheduler);//stop reading backlogs
+            if (forwarder != null)threadedSqsD.closeOnStop(forwarder);//close worker connections once nothing is processed
+            if (deleteRetryScheduler != null)threadedSqsD.closeOnStop(deleteRetryScheduler);//last retries once the coalescer has flushed
+            if (deleteCoalescer != null)threadedSqsD.closeOnStop(deleteCoalescer);//flush pending deletes after the threads stop
+            if (microBatcher != null)threadedSqsD.closeOnStop(microBatcher);//hand over the last batches before the coalescer flushes
+            if (prefetchBuffer != null)threadedSqsD.closeOnStop(prefetchBuffer);//release messages no thread took
+            if (messageExecutor != null){//finish in-flight messages before the coalescer flushes
+                ExecutorService pool = messageExecutor;
+                threadedSqsD.closeOnStop(() -> {
+                    pool.shutdown();
+                    if (!pool.awaitTermination(30, TimeUnit.SECONDS))pool.shutdownNow();
+                });
+            }
+            if (autoscale){//grow and shrink the threads with the load
+                PollerAutoscaler autoscaler = PollerAutoscaler.builder()
+                                                              .sqsd(threadedSqsD)
+                                                              .threadFactory(threadFactory)
+                                                              .queueUrl(queueUrl)
+                                                              .region(region)
+                                                              .minThreads(minThreads)
+                                                              .maxThreads(maxThreads)
+                                                              .maxNumberOfMessages(maxMessages > 0 ? maxMessages : 10)
+                                                              .intervalSeconds(scaleIntervalSeconds)
+                                                              .build();
+                threadedSqsD.closeOnStop(autoscaler);
+                autoscaler.start();
+            }
+            if (jmx || metricsPort >= 0){//expose poller metrics
+                SqsDMetrics metrics = SqsDMetrics.builder()
+                                                 .sqsd(threadedSqsD)
+                                                 .jmx(jmx)
+                                                 .httpPort(metricsPort)
+                                                 .build();
+                threadedSqsD.closeOnStop(metrics);
+            }
+            sqsd = threadedSqsD;
+        }
         sqsd.start();//start sqsd
 
         //add shutdown hook to stop sqsd
@@ -1,12 +1,38 @@
 
 package alexhelmacy.sqsd;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.SdkEventLoopGroup;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
 import software.amazon.awssdk.services.sqs.SqsClient;
 
 public class DependencyFactory {
 
+    private static SqsClientSettings settings = SqsClientSettings.DEFAULT;//http settings for new sqs clients
+    private static final Map<Region, SharedSqsClient> SHARED_CLIENTS = new HashMap<>();//shared clients by region
+
+    /**
+     * a shared client and the number of holders
+     */
+    private static final class SharedSqsClient{
+        private final SqsClient client;//the shared client
+        private int references = 0;//how many holders have acquired the client
+
+        private SharedSqsClient(SqsClient client){
+            this.client = client;
+        }
+    }
+
     private DependencyFactory() {}
 
     /**
@@ -133,8 +159,16 @@ public class DependencyFactory {
      * @return an sqs client for the specified region
      */
     public static SqsClient sqsClient(Region region) {
+        SqsClientSettings current = settings();
         return SqsClient.builder()
-                       .httpClientBuilder(ApacheHttpClient.builder())
+                       .httpClientBuilder(ApacheHttpClient.builder()
+                                                          .maxConnections(current.MAX_CONNECTIONS)
+                                                          .connectionTimeToLive(current.CONNECTION_TIME_TO_LIVE)
+                                                          .connectionMaxIdleTime(current.CONNECTION_MAX_IDLE_TIME)
+                                                          .socketTimeout(current.SOCKET_TIMEOUT)
+                                                          .connectionTimeout(current.CONNECTION_TIMEOUT)
+                                                          .connectionAcquisitionTimeout(current.CONNECTION_ACQUISITION_TIMEOUT)
+                                                          .tcpKeepAlive(current.TCP_KEEP_ALIVE))
                        .region(region)
                        .build();
                        
@@ -149,6 +183,69 @@ public class DependencyFactory {
         return sqsClient(resolveRegion(region));
     }
 
+    /**
+     * set the http settings used for sqs clients created after this call
+     * @param clientSettings the client settings
+     */
+    public static synchronized final void configure(SqsClientSettings clientSettings){
+        if (!(clientSettings instanceof SqsClientSettings))throw new NullPointerException("Client settings are null");
+        settings = clientSettings;
+    }
+
+    /**
+     * 
+     * @return the http settings used for new sqs clients
+     */
+    public static synchronized final SqsClientSettings settings(){
+        return settings;
+    }
+
+    /**
+     * acquire the shared sqs client for a region. Every call must be matched with a call to releaseSqsClient.
+     * @param region the aws region
+     * @return the shared sqs client for the region. created on first acquire
+     */
+    public static synchronized final SqsClient acquireSqsClient(Region region){
+        SharedSqsClient shared = SHARED_CLIENTS.get(region);
+        if (shared == null){//first holder for this region
+            shared = new SharedSqsClient(sqsClient(region));
+            SHARED_CLIENTS.put(region, shared);
+        }
+        shared.references++;
+        return shared.client;
+    }
+
+    /**
+     * 
+     * @param region the aws region as a string
+     * @return the shared sqs client for the region after resolving the region to @param region.
+     */
+    public static final SqsClient acquireSqsClient(String region){
+        return acquireSqsClient(resolveRegion(region));
+    }
+
+    /**
+     * release the shared sqs client for a region. The client is closed when the last holder releases it.
+     * @param region the aws region
+     */
+    public static synchronized final void releaseSqsClient(Region region){
+        SharedSqsClient shared = SHARED_CLIENTS.get(region);
+        if (shared == null)return;//nothing to release
+        shared.references--;
+        if (shared.references <= 0){//last holder. close the client and its connection pool
+            SHARED_CLIENTS.remove(region);
+            shared.client.close();
+        }
+    }
+
+    /**
+     * 
+     * @param region the aws region as a string
+     */
+    public static final void releaseSqsClient(String region){
+        releaseSqsClient(resolveRegion(region));
+    }
+
     /**
      * 
      * @return an sqs client with region set to us-east-1
@@ -156,4 +253,64 @@ public class DependencyFactory {
     public static final SqsClient sqsClient(){
         return sqsClient(Region.US_EAST_1);
     }
+
+    /**
+     * 
+     * @param region the aws region to create the SQS client
+     * @param maxConcurrency the maximum number of concurrent requests (open connections) the client allows
+     * @param eventLoopThreads the number of netty event loop threads. 0 uses the netty default
+     * @return a non-blocking sqs client for the specified region
+     */
+    public static SqsAsyncClient sqsAsyncClient(Region region, int maxConcurrency, int eventLoopThreads) {
+        NettyNioAsyncHttpClient.Builder httpClientBuilder = NettyNioAsyncHttpClient.builder()
+                                                                                   .maxConcurrency(maxConcurrency)
+                                                                                   .maxPendingConnectionAcquires(maxConcurrency * 2)
+                                                                                   .readTimeout(Duration.ofSeconds(30))//longer than the 20 second long poll
+                                                                                   .tcpKeepAlive(true);
+        if (eventLoopThreads > 0)httpClientBuilder.eventLoopGroup(SdkEventLoopGroup.builder().numberOfThreads(eventLoopThreads).build());
+        return SqsAsyncClient.builder()
+                             .httpClientBuilder(httpClientBuilder)
+                             .region(region)
+                             .build();
+    }
+
+    /**
+     * 
+     * @param region the aws region as a string
+     * @param maxConcurrency the maximum number of concurrent requests the client allows
+     * @param eventLoopThreads the number of netty event loop threads. 0 uses the netty default
+     * @return a non-blocking sqs client for the specified region after resolving the region to @param region.
+     */
+    public static SqsAsyncClient sqsAsyncClient(String region, int maxConcurrency, int eventLoopThreads){
+        return sqsAsyncClient(resolveRegion(region), maxConcurrency, eventLoopThreads);
+    }
+
+    /**
+     * 
+     * @return if the running JVM supports virtual threads (Java 21+)
+     */
+    public static final boolean virtualThreadsSupported(){
+        try{
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        }catch(NoSuchMethodException nsme){
+            return false;
+        }
+    }
+
+    /**
+     * Looked up reflectively so the project still compiles for Java 8. Build with the java21 profile to target Java 21.
+     * @return an executor that starts a new virtual thread for each task
+     * @throws UnsupportedOperationException if the running JVM does not support virtual threads
+     */
+    public static final ExecutorService virtualThreadExecutor(){
+        try{
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        }catch(NoSuchMethodException nsme){
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later. Running on " + System.getProperty("java.version"));
+        }catch(IllegalAccessException | InvocationTargetException e){
+            throw new UnsupportedOperationException("Failed to create a virtual thread executor", e);
+        }
+    }
 }
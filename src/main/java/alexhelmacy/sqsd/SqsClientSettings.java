@@ -0,0 +1,134 @@
+package alexhelmacy.sqsd;
+
+import java.time.Duration;
+
+/**
+ * HTTP settings for the SQS clients handed out by DependencyFactory. Defaults are sized for long polling.
+ */
+public final class SqsClientSettings {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 50;//default max pooled connections per client
+    public static final SqsClientSettings DEFAULT = builder().build();//default settings
+
+    /**
+     * return a settings builder
+     * @return a new instance of an SqsClientSettingsBuilder
+     */
+    public static final SqsClientSettingsBuilder builder(){
+        return new SqsClientSettingsBuilder();
+    }
+
+    /**
+     * SqsClientSettings builder class
+     */
+    public static final class SqsClientSettingsBuilder{
+        private int maxConnections = DEFAULT_MAX_CONNECTIONS;//max pooled connections per client
+        private Duration connectionTimeToLive = Duration.ofMinutes(5);//how long a pooled connection is reused before it is replaced
+        private Duration connectionMaxIdleTime = Duration.ofSeconds(60);//how long an idle connection is kept
+        private Duration socketTimeout = Duration.ofSeconds(30);//must be longer than the 20 second long poll
+        private Duration connectionTimeout = Duration.ofSeconds(2);//how long to wait to open a connection
+        private Duration connectionAcquisitionTimeout = Duration.ofSeconds(10);//how long to wait for a pooled connection
+        private boolean tcpKeepAlive = true;//send tcp keep-alive on pooled connections
+
+        /**
+         * sets the max connections
+         * @param maxConnections max pooled connections per client
+         * @return itself
+         */
+        public final SqsClientSettingsBuilder maxConnections(int maxConnections){
+            this.maxConnections = maxConnections;
+            return this;
+        }
+
+        /**
+         * sets the connection time to live
+         * @param connectionTimeToLive how long a pooled connection is reused
+         * @return itself
+         */
+        public final SqsClientSettingsBuilder connectionTimeToLive(Duration connectionTimeToLive){
+            this.connectionTimeToLive = connectionTimeToLive;
+            return this;
+        }
+
+        /**
+         * sets the connection max idle time
+         * @param connectionMaxIdleTime how long an idle connection is kept
+         * @return itself
+         */
+        public final SqsClientSettingsBuilder connectionMaxIdleTime(Duration connectionMaxIdleTime){
+            this.connectionMaxIdleTime = connectionMaxIdleTime;
+            return this;
+        }
+
+        /**
+         * sets the socket timeout
+         * @param socketTimeout the socket read timeout. must be longer than the receive wait time
+         * @return itself
+         */
+        public final SqsClientSettingsBuilder socketTimeout(Duration socketTimeout){
+            this.socketTimeout = socketTimeout;
+            return this;
+        }
+
+        /**
+         * sets the connection timeout
+         * @param connectionTimeout how long to wait to open a connection
+         * @return itself
+         */
+        public final SqsClientSettingsBuilder connectionTimeout(Duration connectionTimeout){
+            this.connectionTimeout = connectionTimeout;
+            return this;
+        }
+
+        /**
+         * sets the connection acquisition timeout
+         * @param connectionAcquisitionTimeout how long to wait for a pooled connection
+         * @return itself
+         */
+        public final SqsClientSettingsBuilder connectionAcquisitionTimeout(Duration connectionAcquisitionTimeout){
+            this.connectionAcquisitionTimeout = connectionAcquisitionTimeout;
+            return this;
+        }
+
+        /**
+         * sets tcp keep alive
+         * @param tcpKeepAlive send tcp keep-alive on pooled connections
+         * @return itself
+         */
+        public final SqsClientSettingsBuilder tcpKeepAlive(boolean tcpKeepAlive){
+            this.tcpKeepAlive = tcpKeepAlive;
+            return this;
+        }
+
+        /**
+         * build the settings
+         * @return an instance of SqsClientSettings
+         */
+        public final SqsClientSettings build(){
+            if (maxConnections <= 0)throw new IllegalArgumentException("Max connections must be at least 1");
+            return new SqsClientSettings(this);
+        }
+    }
+
+    public final int MAX_CONNECTIONS;//max pooled connections per client
+    public final Duration CONNECTION_TIME_TO_LIVE;//how long a pooled connection is reused
+    public final Duration CONNECTION_MAX_IDLE_TIME;//how long an idle connection is kept
+    public final Duration SOCKET_TIMEOUT;//socket read timeout
+    public final Duration CONNECTION_TIMEOUT;//how long to wait to open a connection
+    public final Duration CONNECTION_ACQUISITION_TIMEOUT;//how long to wait for a pooled connection
+    public final boolean TCP_KEEP_ALIVE;//send tcp keep-alive
+
+    /**
+     * Constructor
+     * @param builder the settings builder
+     */
+    private SqsClientSettings(SqsClientSettingsBuilder builder){
+        MAX_CONNECTIONS = builder.maxConnections;
+        CONNECTION_TIME_TO_LIVE = builder.connectionTimeToLive;
+        CONNECTION_MAX_IDLE_TIME = builder.connectionMaxIdleTime;
+        SOCKET_TIMEOUT = builder.socketTimeout;
+        CONNECTION_TIMEOUT = builder.connectionTimeout;
+        CONNECTION_ACQUISITION_TIMEOUT = builder.connectionAcquisitionTimeout;
+        TCP_KEEP_ALIVE = builder.tcpKeepAlive;
+    }
+}
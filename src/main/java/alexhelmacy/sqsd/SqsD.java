@@ -6,22 +6,38 @@ import alexhelmacy.sqsd.processor.SqsDThread;
 
 import java.lang.IllegalArgumentException;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 
 import java.util.concurrent.TimeUnit;
 
+import alexhelmacy.sqsd.processor.ISqsDThread.State;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
 public class SqsD implements ISqsD{
   private final ExecutorService SERVICE;//an executor service
+  private final ScheduledExecutorService WATCHDOG;//stops removed threads that do not drain in time. never blocks a SERVICE thread
   private final List<SqsDThread> THREADS;//a list of threads
-  private static final int MAX_THREADS = 16;//the maximum number of threads SQSD can handle
+  private final int CAPACITY;//the most threads that can run at once, including threads added later
+  private boolean started = false;//has SQSD been started
+  private boolean stopped = false;//has SQSD been stopped
+  private final List<AutoCloseable> RESOURCES = new ArrayList<>();//shared resources closed after the threads stop
+  private final List<SqsDThread> REMOVED = new CopyOnWriteArrayList<>();//removed threads still draining their last batch
+  private long removeDrainMillis = DEFAULT_REMOVE_DRAIN_MILLIS;//how long a removed thread may drain
+  private static final int MAX_THREADS = 16;//the maximum number of threads SQSD can handle on platform threads
+  public static final int DEFAULT_MAX_IN_FLIGHT = 1024;//the default maximum number of threads SQSD can handle on virtual threads
+  private static final long DRAIN_GRACE_MILLIS = 5000;//time threads get after the drain deadline to release their leftovers
+  private static final long DEFAULT_REMOVE_DRAIN_MILLIS = 30000;//default time a removed thread gets to finish its batch
   private final Logger LOGGER = LoggerFactory.getLogger(this.getClass().getSimpleName());//logger for logging information
 
 
@@ -54,14 +70,127 @@ public class SqsD implements ISqsD{
    * @param threads a list of SqsDThreads
    */
   public SqsD(List<SqsDThread> threads){
-    this.THREADS = threads;//get the threads
-    if (this.THREADS.size() > MAX_THREADS)throw new IllegalArgumentException("Too Many Threads");//too many threads check
+    this(threads, false, MAX_THREADS);
+  }
+
+  /**
+   * Sqsd constructor
+   * @param threads a list of SqsDThreads
+   * @param virtualThreads run each SqsDThread on its own virtual thread. Requires Java 21
+   * @param maxInFlight the maximum number of SqsDThreads when running on virtual threads. Ignored for platform threads
+   */
+  public SqsD(List<SqsDThread> threads, boolean virtualThreads, int maxInFlight){
+    this(threads, virtualThreads, maxInFlight, threads.size());
+  }
+
+  /**
+   * Sqsd constructor
+   * @param threads a list of SqsDThreads
+   * @param virtualThreads run each SqsDThread on its own virtual thread. Requires Java 21
+   * @param maxInFlight the maximum number of SqsDThreads when running on virtual threads. Ignored for platform threads
+   * @param capacity the most threads that run at once, including threads added later with addThread
+   */
+  public SqsD(List<SqsDThread> threads, boolean virtualThreads, int maxInFlight, int capacity){
+    this.THREADS = new CopyOnWriteArrayList<>(threads);//get the threads. copied so threads can be added and removed while running
+    int maxThreads = virtualThreads ? maxInFlight : MAX_THREADS;//long polls are cheap on virtual threads so the cap is configurable
+    this.CAPACITY = Math.max(capacity, this.THREADS.size());
+    if (this.CAPACITY > maxThreads)throw new IllegalArgumentException("Too Many Threads");//too many threads check
     if (this.THREADS.isEmpty())throw new IllegalArgumentException("Threads must be at least 0");//list is empty
     
-    //create fixed thread pool with threads double the size of the number of threads. 
-    //Fixed thread pool is double the number of threads to enable stopping each thread concurrently at shutdown.
-    this.SERVICE = Executors.newFixedThreadPool(this.THREADS.size() * 2);
-    
+    if (virtualThreads){
+      this.SERVICE = DependencyFactory.virtualThreadExecutor();//one virtual thread per SqsDThread and per stop task
+    }else{
+      //create fixed thread pool with threads double the size of the number of threads. 
+      //Fixed thread pool is double the number of threads to enable stopping each thread concurrently at shutdown.
+      this.SERVICE = Executors.newFixedThreadPool(this.CAPACITY * 2);
+    }
+    this.WATCHDOG = Executors.newSingleThreadScheduledExecutor(runnable -> {//the thread starts with the first removeThread
+      Thread thread = new Thread(runnable, "sqsd-drain-watchdog");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * register a resource shared by the threads, e.g. a delete coalescer. Resources are closed in reverse order after every thread has stopped.
+   * @param resource the resource to close
+   * @return itself
+   */
+  synchronized public SqsD closeOnStop(AutoCloseable resource){
+    RESOURCES.add(resource);
+    return this;
+  }
+
+  /**
+   * sets how long a thread removed with removeThread may drain. It finishes the messages it holds until then and releases the
+   * rest with a visibility timeout of 0
+   * @param timeout how long the drain may take
+   * @param unit the unit of the timeout
+   * @return itself
+   */
+  synchronized public SqsD removeDrainTimeout(long timeout, TimeUnit unit){
+    if (timeout < 0)throw new IllegalArgumentException("Remove drain timeout must not be negative");
+    removeDrainMillis = unit.toMillis(timeout);
+    return this;
+  }
+
+  /**
+   * @return the threads currently owned by SQSD
+   */
+  public List<SqsDThread> threads(){
+    return Collections.unmodifiableList(THREADS);
+  }
+
+  /**
+   * @return the most threads that can run at once
+   */
+  public int capacity(){
+    return CAPACITY;
+  }
+
+  /**
+   * add a thread. The thread is started right away if SQSD is running
+   * @param thread the thread to add
+   * @throws IllegalStateException if SQSD is already at capacity
+   */
+  synchronized public void addThread(SqsDThread thread){
+    if (stopped)throw new IllegalStateException("SQSD is stopped");
+    if (THREADS.size() >= CAPACITY)throw new IllegalStateException("SQSD is at capacity: " + CAPACITY);
+    THREADS.add(thread);
+    if (started){
+      LOGGER.info("Adding Thread - " + thread.THREAD_ID);
+      SERVICE.submit(thread);
+    }
+  }
+
+  /**
+   * remove the most recently added thread. The thread drains: it stops receiving and finishes the messages it holds until the
+   * remove drain timeout, then releases the rest. It is stopped if it is still running once the grace period after that passed.
+   * @return the removed thread, or null if only one thread is left
+   */
+  synchronized public SqsDThread removeThread(){
+    if (stopped || THREADS.size() <= 1)return null;//always keep one thread
+    SqsDThread thread = THREADS.remove(THREADS.size() - 1);
+    LOGGER.info("Removing Thread - " + thread.THREAD_ID);
+    REMOVED.add(thread);
+    long drainMillis = removeDrainMillis;
+    ScheduledFuture<?> watchdog = WATCHDOG.schedule(() -> {
+      if (thread.closed())return;
+      LOGGER.info("Removed Thread did not drain in time. Stopping - " + thread.THREAD_ID);//stuck in a handler or a long poll
+      thread.stop();
+      REMOVED.remove(thread);
+    }, drainMillis + DRAIN_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+    thread.addStateListener((owner, from, to) -> {
+      if (to != State.STOPPED)return;
+      watchdog.cancel(false);
+      REMOVED.remove(thread);
+    });
+    thread.drain(drainMillis, TimeUnit.MILLISECONDS);//no new receives. nothing blocks here
+    if (thread.closed()){//stopped before the listener was added
+      watchdog.cancel(false);
+      REMOVED.remove(thread);
+    }
+    return thread;
   }
 
   /**
@@ -70,6 +199,7 @@ public class SqsD implements ISqsD{
   @Override
   synchronized public void start() {
     LOGGER.info("SQSD STARTED");//log started
+    started = true;
     for (SqsDThread thread: THREADS){//for each thread
       SERVICE.submit(thread);//submit the thread to the SERVICE
     }
@@ -81,10 +211,17 @@ public class SqsD implements ISqsD{
    */
   @Override
   synchronized public void stop(String reason){
+    if (stopped){//stopped or drained already
+      LOGGER.info("Already stopped. ignoring: " + reason);
+      return;
+    }
     LOGGER.info("Stopping: " + reason);//log the reason for stopping
+    stopped = true;
     try{
       LOGGER.info("Stopping Threads");//log stopping all threads
-      for (SqsDThread thread: THREADS){//for each thread in THREADS
+      List<SqsDThread> threads = new ArrayList<>(THREADS);
+      threads.addAll(REMOVED);//removed threads still draining stop too
+      for (SqsDThread thread: threads){//for each thread
         //submit a new Runnable to stop the thread
         SERVICE.submit(new Runnable() {
           @Override
@@ -106,7 +243,57 @@ public class SqsD implements ISqsD{
       LOGGER.info("Threads Interrupted. Forcing Termination.", ie);//log thread interrupted
       SERVICE.shutdownNow();//stop the service
     }finally{
+      WATCHDOG.shutdownNow();//removed threads were stopped or drained with the rest
+      closeResources();
       LOGGER.info("SQSD STOPPED");//log SQSD has stopped
     }
   }
+
+  /**
+   * stop gracefully. Threads stop receiving and finish the messages they hold until the deadline, then release the messages
+   * they could not get to with a visibility timeout of 0 so other consumers receive them right away. Shared resources are
+   * closed afterwards, which flushes pending deletes. Threads still running after the deadline are stopped as in stop.
+   * @param reason the reason for stopping the service
+   * @param timeout how long the drain may take
+   * @param unit the unit of the timeout
+   */
+  synchronized public void drain(String reason, long timeout, TimeUnit unit){
+    if (stopped){//stopped or drained already
+      LOGGER.info("Already stopped. ignoring: " + reason);
+      return;
+    }
+    LOGGER.info("Draining: " + reason);//log the reason for stopping
+    stopped = true;
+    try{
+      for (SqsDThread thread: THREADS)thread.drain(timeout, unit);//no new receives. nothing blocks here
+      for (SqsDThread thread: REMOVED)thread.drain(timeout, unit);//removed threads are draining already. they get the same deadline
+      SERVICE.shutdown();
+      if (!SERVICE.awaitTermination(unit.toMillis(timeout) + DRAIN_GRACE_MILLIS, TimeUnit.MILLISECONDS)){//a thread is stuck in a handler or a long poll
+        LOGGER.info("Drain timed out. Forcing Termination");
+        for (SqsDThread thread: THREADS)thread.stop();
+        for (SqsDThread thread: REMOVED)thread.stop();
+        SERVICE.shutdownNow();
+      }
+    }catch(InterruptedException ie){
+      LOGGER.info("Drain Interrupted. Forcing Termination.", ie);
+      SERVICE.shutdownNow();
+    }finally{
+      WATCHDOG.shutdownNow();//removed threads were stopped or drained with the rest
+      closeResources();
+      LOGGER.info("SQSD DRAINED");
+    }
+  }
+
+  /**
+   * close the shared resources in reverse order of registration
+   */
+  private void closeResources(){
+    for (int i = RESOURCES.size() - 1; i >= 0; i--){
+      try{
+        RESOURCES.get(i).close();
+      }catch(Exception e){
+        LOGGER.warn("Failed to close " + RESOURCES.get(i).getClass().getSimpleName() + ": " + e.getMessage());
+      }
+    }
+  }
 }
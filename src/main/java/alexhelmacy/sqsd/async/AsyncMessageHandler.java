@@ -0,0 +1,40 @@
+package alexhelmacy.sqsd.async;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import alexhelmacy.sqsd.processor.MessageHandler;
+
+import software.amazon.awssdk.services.sqs.model.Message;
+
+/**
+ * Handles a single SQS message without blocking the caller.
+ */
+@FunctionalInterface
+public interface AsyncMessageHandler {
+  /**
+   * handle one message
+   * @param message the message received from the queue
+   * @return a future completing when the message is handled. completing exceptionally leaves the message for redelivery.
+   */
+  CompletableFuture<Void> handle(Message message);
+
+  /**
+   * adapt a blocking message handler by running it on an executor
+   * @param handler the blocking handler
+   * @param executor the executor the handler runs on. must not be the event loop
+   * @return an async message handler
+   */
+  static AsyncMessageHandler of(MessageHandler handler, Executor executor){
+    return (message) -> CompletableFuture.runAsync(() -> {
+      try{
+        handler.handle(message);
+      }catch(RuntimeException re){
+        throw re;
+      }catch(Exception e){
+        throw new CompletionException(e);
+      }
+    }, executor);
+  }
+}
@@ -0,0 +1,196 @@
+package alexhelmacy.sqsd.async;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import alexhelmacy.sqsd.delete.DeleteRetryScheduler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResponse;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageResponse;
+
+/**
+ * One in-flight long poll. Receive, process and delete are chained as CompletableFutures and the
+ * poller re-arms itself when the chain completes, so no thread is held while waiting on SQS.
+ */
+public class AsyncPoller{
+  private static final long ERROR_BACKOFF_MILLIS = 1000;//how long to wait after a failed receive
+  private static final int MAX_DELETE_RETRIES = 3;//how many times failed delete entries are retried
+  private static final long DELETE_RETRY_BASE_MILLIS = 50;//delay cap of the first delete retry
+  private static final long DELETE_RETRY_MAX_MILLIS = 1000;//largest delay cap of a delete retry
+
+  public final String POLLER_ID = UUID.randomUUID().toString();//poller id
+
+  private final SqsAsyncClient sqs;//shared async client
+  private final ReceiveMessageRequest request;//the receive request used on every poll
+  private final AsyncMessageHandler handler;//the message handler
+  private final ScheduledExecutorService scheduler;//schedules re-polls and delete retries after failures
+  private final CompletableFuture<Void> done = new CompletableFuture<>();//completes when the poller stops
+  private final Logger logger;//poller logger
+
+  private volatile boolean running = false;//is the poller running
+
+  /**
+   * Constructor
+   * @param sqs the async sqs client
+   * @param request the receive message request
+   * @param handler the message handler
+   * @param scheduler scheduler used to re-arm the poller
+   */
+  public AsyncPoller(SqsAsyncClient sqs, ReceiveMessageRequest request, AsyncMessageHandler handler, ScheduledExecutorService scheduler){
+    this.sqs = sqs;
+    this.request = request;
+    this.handler = handler;
+    this.scheduler = scheduler;
+    this.logger = LoggerFactory.getLogger(this.getClass().getSimpleName() + "-" + POLLER_ID);
+  }
+
+  /**
+   * start polling
+   */
+  public void start(){
+    running = true;
+    poll();
+  }
+
+  /**
+   * stop polling. The current receive, process and delete chain is allowed to finish.
+   * @return a future completing when the poller has stopped
+   */
+  public CompletableFuture<Void> stop(){
+    running = false;
+    return done;
+  }
+
+  /**
+   * @return if the poller is running
+   */
+  public boolean running(){
+    return running;
+  }
+
+  /**
+   * issue one receive and chain processing and deleting onto it
+   */
+  private void poll(){
+    if (!running){
+      done.complete(null);
+      return;
+    }
+    sqs.receiveMessage(request)
+       .thenCompose(this::process)
+       .thenCompose(this::delete)
+       .whenComplete((ignored, throwable) -> {
+         if (throwable != null){//receive or delete failed. back off before polling again
+           logger.warn("Poll failed: " + throwable.getMessage());
+           scheduler.schedule(this::poll, ERROR_BACKOFF_MILLIS, TimeUnit.MILLISECONDS);
+         }else{
+           scheduler.execute(this::poll);//re-arm off the event loop to keep the stack flat
+         }
+       });
+  }
+
+  /**
+   * process every message in the response concurrently
+   * @param response the receive response
+   * @return a future of the messages that were processed successfully
+   */
+  private CompletableFuture<List<Message>> process(ReceiveMessageResponse response){
+    if (!response.hasMessages() || response.messages().isEmpty())return CompletableFuture.completedFuture(new ArrayList<>());
+    List<Message> messages = response.messages();
+    List<CompletableFuture<Message>> futures = new ArrayList<>(messages.size());
+    for (Message message: messages){
+      CompletableFuture<Void> handled;
+      try{
+        handled = handler.handle(message);
+      }catch(RuntimeException re){//handler threw instead of returning a failed future
+        handled = new CompletableFuture<>();
+        handled.completeExceptionally(re);
+      }
+      futures.add(handled.handle((ignored, throwable) -> {
+        if (throwable != null){//leave the message for redelivery
+          logger.warn("Failed to process message " + message.messageId() + ": " + throwable.getMessage());
+          return null;
+        }
+        return message;
+      }));
+    }
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                            .thenApply((ignored) -> futures.stream()
+                                                           .map(CompletableFuture::join)
+                                                           .filter((message) -> message != null)
+                                                           .collect(Collectors.toList()));
+  }
+
+  /**
+   * delete processed messages with a single DeleteMessageBatch
+   * @param processed the processed messages
+   * @return a future completing when the messages are deleted or retries are exhausted
+   */
+  private CompletableFuture<Void> delete(List<Message> processed){
+    if (processed.isEmpty())return CompletableFuture.completedFuture(null);
+    return delete(processed, 0);
+  }
+
+  /**
+   * delete messages, retrying entries that failed after a jittered backoff
+   * @param messages the messages to delete
+   * @param retry the current retry
+   * @return a future completing when the messages are deleted or retries are exhausted
+   */
+  private CompletableFuture<Void> delete(List<Message> messages, int retry){
+    List<DeleteMessageBatchRequestEntry> entries = messages.stream()
+                                                           .map((message) -> DeleteMessageBatchRequestEntry.builder()
+                                                                                                           .id(message.messageId())
+                                                                                                           .receiptHandle(message.receiptHandle())
+                                                                                                           .build())
+                                                           .collect(Collectors.toList());
+    DeleteMessageBatchRequest deleteRequest = DeleteMessageBatchRequest.builder()
+                                                                       .queueUrl(request.queueUrl())
+                                                                       .entries(entries)
+                                                                       .build();
+    return sqs.deleteMessageBatch(deleteRequest).thenCompose((DeleteMessageBatchResponse response) -> {
+      if (!response.hasFailed() || response.failed().isEmpty())return CompletableFuture.completedFuture(null);
+      List<String> retryable = response.failed()
+                                       .stream()
+                                       .filter((entry) -> !Boolean.TRUE.equals(entry.senderFault()))//sender faults will not succeed on retry
+                                       .map(BatchResultErrorEntry::id)
+                                       .collect(Collectors.toList());
+      List<Message> failed = messages.stream()
+                                     .filter((message) -> retryable.contains(message.messageId()))
+                                     .collect(Collectors.toList());
+      if (failed.isEmpty() || retry >= MAX_DELETE_RETRIES){
+        logger.warn("Failed to delete " + response.failed().size() + " messages. They will be redelivered.");
+        return CompletableFuture.completedFuture(null);
+      }
+      CompletableFuture<Void> retried = new CompletableFuture<>();
+      scheduler.schedule(() -> {
+        try{
+          delete(failed, retry + 1).whenComplete((ignored, throwable) -> {
+            if (throwable != null){
+              retried.completeExceptionally(throwable);
+            }else{
+              retried.complete(null);
+            }
+          });
+        }catch(RuntimeException re){//thrown instead of returning a failed future. the poll chain must still complete
+          retried.completeExceptionally(re);
+        }
+      }, DeleteRetryScheduler.jitteredDelayMillis(retry, DELETE_RETRY_BASE_MILLIS, DELETE_RETRY_MAX_MILLIS), TimeUnit.MILLISECONDS);//a throttled queue gets time to recover
+      return retried;
+    });
+  }
+}
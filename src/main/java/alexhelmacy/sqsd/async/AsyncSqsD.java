@@ -0,0 +1,253 @@
+package alexhelmacy.sqsd.async;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import alexhelmacy.sqsd.DependencyFactory;
+import alexhelmacy.sqsd.ISqsD;
+import alexhelmacy.sqsd.processor.ExampleMessageHandler;
+import alexhelmacy.sqsd.processor.MessageHandler;
+
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+
+/**
+ * Non-blocking SQSD built on SqsAsyncClient. A small number of event loop threads keep many long polls in flight.
+ * Blocking message handlers run on a separate processing pool so they never stall the event loop.
+ */
+public class AsyncSqsD implements ISqsD{
+
+  /**
+   * return an async sqsd builder
+   * @return a new instance of an AsyncSqsDBuilder
+   */
+  public static final AsyncSqsDBuilder builder(){
+    return new AsyncSqsDBuilder();
+  }
+
+  /**
+   * AsyncSqsD builder class
+   */
+  public static final class AsyncSqsDBuilder{
+    private String queueUrl = null;//queue url
+    private String region = "us-east-1";//region
+    private int maxNumberOfMessages = 10;//max messages per receive
+    private int waitTime = 20;//wait time in seconds
+    private Collection<String> messageAttributes = Arrays.asList(new String[]{"All"});//message attributes
+    private Collection<String> systemAttributes = Arrays.asList(new String[]{"All"});//system message attributes
+    private int inFlightPolls = 64;//number of concurrent long polls
+    private int eventLoopThreads = 0;//netty event loop threads. 0 uses the netty default
+    private int processingThreads = 8;//threads running blocking message handlers
+    private MessageHandler handler = new ExampleMessageHandler();//blocking message handler
+    private AsyncMessageHandler asyncHandler = null;//non-blocking message handler. used instead of handler when set
+    private boolean virtualThreads = false;//run on virtual threads. Requires Java 21
+
+    /**
+     * sets the queue url
+     * @param queueUrl the queue url
+     * @return itself
+     */
+    public final AsyncSqsDBuilder queueUrl(String queueUrl){
+      this.queueUrl = queueUrl;
+      return this;
+    }
+
+    /**
+     * sets the region
+     * @param region the region as a string
+     * @return itself
+     */
+    public final AsyncSqsDBuilder region(String region){
+      this.region = region;
+      return this;
+    }
+
+    /**
+     * sets max messages per receive
+     * @param maxMessages the maximum number of messages
+     * @return itself
+     */
+    public final AsyncSqsDBuilder maxNumberOfMessages(int maxMessages){
+      this.maxNumberOfMessages = maxMessages;
+      return this;
+    }
+
+    /**
+     * sets the wait time
+     * @param waitTime the wait time in seconds
+     * @return itself
+     */
+    public final AsyncSqsDBuilder waitTime(int waitTime){
+      this.waitTime = waitTime;
+      return this;
+    }
+
+    /**
+     * sets the message attributes
+     * @param messageAttributes the message attributes
+     * @return itself
+     */
+    public final AsyncSqsDBuilder messageAttributes(Collection<String> messageAttributes){
+      this.messageAttributes = messageAttributes;
+      return this;
+    }
+
+    /**
+     * sets the system attributes
+     * @param systemAttributes the system message attributes
+     * @return itself
+     */
+    public final AsyncSqsDBuilder systemAttributes(Collection<String> systemAttributes){
+      this.systemAttributes = systemAttributes;
+      return this;
+    }
+
+    /**
+     * sets the number of concurrent long polls
+     * @param inFlightPolls number of long polls kept in flight
+     * @return itself
+     */
+    public final AsyncSqsDBuilder inFlightPolls(int inFlightPolls){
+      this.inFlightPolls = inFlightPolls;
+      return this;
+    }
+
+    /**
+     * sets the number of netty event loop threads
+     * @param eventLoopThreads number of event loop threads. 0 uses the netty default
+     * @return itself
+     */
+    public final AsyncSqsDBuilder eventLoopThreads(int eventLoopThreads){
+      this.eventLoopThreads = eventLoopThreads;
+      return this;
+    }
+
+    /**
+     * sets the number of threads running blocking message handlers
+     * @param processingThreads number of processing threads
+     * @return itself
+     */
+    public final AsyncSqsDBuilder processingThreads(int processingThreads){
+      this.processingThreads = processingThreads;
+      return this;
+    }
+
+    /**
+     * sets a blocking message handler. runs on the processing pool
+     * @param handler the message handler
+     * @return itself
+     */
+    public final AsyncSqsDBuilder handler(MessageHandler handler){
+      this.handler = handler;
+      return this;
+    }
+
+    /**
+     * sets a non-blocking message handler. takes precedence over a blocking handler
+     * @param asyncHandler the async message handler
+     * @return itself
+     */
+    public final AsyncSqsDBuilder asyncHandler(AsyncMessageHandler asyncHandler){
+      this.asyncHandler = asyncHandler;
+      return this;
+    }
+
+    /**
+     * run each blocking message handler on its own virtual thread instead of the processing pool. Requires Java 21
+     * @param virtualThreads use virtual threads
+     * @return itself
+     */
+    public final AsyncSqsDBuilder virtualThreads(boolean virtualThreads){
+      this.virtualThreads = virtualThreads;
+      return this;
+    }
+
+    /**
+     * build the async sqsd
+     * @return a new AsyncSqsD
+     */
+    public final AsyncSqsD build(){
+      return new AsyncSqsD(this);
+    }
+  }
+
+  private final SqsAsyncClient SQS;//async sqs client shared by every poller
+  private final ExecutorService PROCESSING;//runs blocking message handlers
+  private final ScheduledExecutorService SCHEDULER;//re-arms pollers
+  private final List<AsyncPoller> POLLERS = new ArrayList<>();//the pollers
+  private final int WAIT_TIME_SECONDS;//the long poll wait time
+  private final Logger LOGGER = LoggerFactory.getLogger(this.getClass().getSimpleName());//logger for logging information
+
+  /**
+   * AsyncSqsD constructor
+   * @param builder the async sqsd builder
+   */
+  AsyncSqsD(AsyncSqsDBuilder builder){
+    if (!(builder.queueUrl instanceof String))throw new IllegalArgumentException("Queue URL must be specified");
+    if (builder.inFlightPolls <= 0)throw new IllegalArgumentException("In flight polls must be at least 1");
+    if (!(builder.asyncHandler instanceof AsyncMessageHandler) && !(builder.handler instanceof MessageHandler))throw new IllegalArgumentException("Message handler must be specified");
+
+    this.WAIT_TIME_SECONDS = builder.waitTime;
+    //every long poll holds a connection. leave room for deletes.
+    this.SQS = DependencyFactory.sqsAsyncClient(builder.region, builder.inFlightPolls * 2, builder.eventLoopThreads);
+    this.PROCESSING = builder.virtualThreads ? DependencyFactory.virtualThreadExecutor() : Executors.newFixedThreadPool(Math.max(1, builder.processingThreads));
+    this.SCHEDULER = Executors.newSingleThreadScheduledExecutor();
+
+    AsyncMessageHandler handler = builder.asyncHandler instanceof AsyncMessageHandler ? builder.asyncHandler : AsyncMessageHandler.of(builder.handler, PROCESSING);
+    ReceiveMessageRequest request = ReceiveMessageRequest.builder()
+                                                         .queueUrl(builder.queueUrl)
+                                                         .maxNumberOfMessages(builder.maxNumberOfMessages)
+                                                         .waitTimeSeconds(builder.waitTime)
+                                                         .messageAttributeNames(builder.messageAttributes)
+                                                         .messageSystemAttributeNamesWithStrings(builder.systemAttributes)
+                                                         .build();
+    for (int i = 0; i < builder.inFlightPolls; i++)POLLERS.add(new AsyncPoller(SQS, request, handler, SCHEDULER));
+  }
+
+  /**
+   * Start every poller
+   */
+  @Override
+  synchronized public void start() {
+    LOGGER.info("ASYNC SQSD STARTED");
+    LOGGER.info("In flight polls: " + POLLERS.size());
+    for (AsyncPoller poller: POLLERS)poller.start();
+  }
+
+  /**
+   * Stop every poller and wait for in-flight receives, processing and deletes to finish
+   * @param reason the reason for stopping
+   */
+  @Override
+  synchronized public void stop(String reason) {
+    LOGGER.info("Stopping: " + reason);
+    List<CompletableFuture<Void>> stopped = new ArrayList<>();
+    for (AsyncPoller poller: POLLERS)stopped.add(poller.stop());
+    try{
+      CompletableFuture.allOf(stopped.toArray(new CompletableFuture<?>[0])).get(WAIT_TIME_SECONDS + 30, TimeUnit.SECONDS);
+    }catch(InterruptedException ie){
+      LOGGER.info("Interrupted while stopping. Forcing Termination.", ie);
+      Thread.currentThread().interrupt();
+    }catch(ExecutionException | TimeoutException e){
+      LOGGER.warn("Pollers did not stop cleanly: " + e.getMessage());
+    }finally{
+      SCHEDULER.shutdownNow();
+      PROCESSING.shutdownNow();
+      SQS.close();
+      LOGGER.info("ASYNC SQSD STOPPED");
+    }
+  }
+}
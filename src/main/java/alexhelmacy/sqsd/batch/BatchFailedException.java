@@ -0,0 +1,39 @@
+package alexhelmacy.sqsd.batch;
+
+import software.amazon.awssdk.services.sqs.model.Message;
+
+/**
+ * A message of a micro-batch was not handled. The message will be redelivered by SQS once its visibility timeout expires.
+ */
+public class BatchFailedException extends RuntimeException{
+  private static final long serialVersionUID = 1L;
+
+  private final transient Message failedMessage;//the message that was not handled
+
+  /**
+   * Constructor for a message the handler marked as failed
+   * @param message the message that was not handled
+   * @param reason the reason the handler gave
+   */
+  public BatchFailedException(Message message, String reason){
+    super("Failed to handle message " + message.messageId() + ": " + reason);
+    this.failedMessage = message;
+  }
+
+  /**
+   * Constructor for a batch that failed as a whole
+   * @param message the message that was not handled
+   * @param cause why the batch failed
+   */
+  public BatchFailedException(Message message, Throwable cause){
+    super("Failed to handle message " + message.messageId() + ": " + cause.getMessage(), cause);
+    this.failedMessage = message;
+  }
+
+  /**
+   * @return the message that was not handled
+   */
+  public Message failedMessage(){
+    return failedMessage;
+  }
+}
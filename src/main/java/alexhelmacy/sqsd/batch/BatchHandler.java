@@ -0,0 +1,20 @@
+package alexhelmacy.sqsd.batch;
+
+import java.util.List;
+
+import software.amazon.awssdk.services.sqs.model.Message;
+
+/**
+ * Handles a micro-batch of messages gathered across receives and threads by a MicroBatcher, e.g. to write them to a sink
+ * in one bulk request.
+ */
+@FunctionalInterface
+public interface BatchHandler{
+  /**
+   * handle a batch of messages
+   * @param messages the messages, in the order they were received. may come from several queues
+   * @return which messages failed. null or BatchResult.success() when every message was handled
+   * @throws Exception if the whole batch failed. no message is deleted and all of them will be redelivered by SQS.
+   */
+  BatchResult handle(List<Message> messages) throws Exception;
+}
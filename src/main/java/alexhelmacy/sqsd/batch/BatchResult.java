@@ -0,0 +1,89 @@
+package alexhelmacy.sqsd.batch;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import software.amazon.awssdk.services.sqs.model.Message;
+
+/**
+ * The outcome of a batch handed to a BatchHandler. Messages not marked as failed were handled and are deleted. Failed
+ * messages are redelivered by SQS once their visibility timeout expires.
+ */
+public final class BatchResult{
+  private static final BatchResult SUCCESS = new BatchResult(Collections.emptyMap());//no failures
+
+  /**
+   * @return the result of a batch whose messages were all handled
+   */
+  public static BatchResult success(){
+    return SUCCESS;
+  }
+
+  /**
+   * return a batch result builder
+   * @return a new instance of a BatchResultBuilder
+   */
+  public static final BatchResultBuilder builder(){
+    return new BatchResultBuilder();
+  }
+
+  /**
+   * BatchResult builder class
+   */
+  public static final class BatchResultBuilder{
+    private final Map<String, String> failures = new HashMap<>();//reason by message id
+
+    /**
+     * mark a message of the batch as failed
+     * @param message the message
+     * @param reason why it failed
+     * @return itself
+     */
+    public final BatchResultBuilder failed(Message message, String reason){
+      this.failures.put(message.messageId(), reason != null ? reason : "Failed");
+      return this;
+    }
+
+    /**
+     * build the result
+     * @return a new BatchResult
+     */
+    public final BatchResult build(){
+      return failures.isEmpty() ? SUCCESS : new BatchResult(new HashMap<>(failures));
+    }
+  }
+
+  private final Map<String, String> FAILURES;//reason by message id
+
+  /**
+   * BatchResult constructor
+   * @param failures reason by message id
+   */
+  private BatchResult(Map<String, String> failures){
+    FAILURES = failures;
+  }
+
+  /**
+   * @param message a message of the batch
+   * @return true if the message failed
+   */
+  public boolean failed(Message message){
+    return FAILURES.containsKey(message.messageId());
+  }
+
+  /**
+   * @param message a message of the batch
+   * @return why the message failed, or null if it was handled
+   */
+  public String reason(Message message){
+    return FAILURES.get(message.messageId());
+  }
+
+  /**
+   * @return how many messages failed
+   */
+  public int failures(){
+    return FAILURES.size();
+  }
+}
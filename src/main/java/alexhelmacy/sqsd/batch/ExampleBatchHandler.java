@@ -0,0 +1,47 @@
+package alexhelmacy.sqsd.batch;
+
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import alexhelmacy.sqsd.processor.MessageHandler;
+
+import software.amazon.awssdk.services.sqs.model.Message;
+
+/**
+ * Example batch handler. Logs the size of each batch, and runs a message handler over its messages when one is set,
+ * marking the messages it fails on.
+ */
+public class ExampleBatchHandler implements BatchHandler{
+  private final Logger logger = LoggerFactory.getLogger(ExampleBatchHandler.class.getSimpleName());//logger for the handler
+  private final MessageHandler handler;//handles each message of the batch. may be null
+
+  /**
+   * Constructor
+   * @param handler handles each message of the batch. may be null
+   */
+  public ExampleBatchHandler(MessageHandler handler){
+    this.handler = handler;
+  }
+
+  /**
+   * log the batch and handle its messages
+   * @param messages the messages
+   * @return the messages the message handler failed on
+   */
+  @Override
+  public BatchResult handle(List<Message> messages){
+    logger.info("Receive Batch: {} messages", messages.size());
+    if (handler == null)return BatchResult.success();
+    BatchResult.BatchResultBuilder result = BatchResult.builder();
+    for (Message message: messages){
+      try{
+        handler.handle(message);
+      }catch(Exception e){
+        result.failed(message, e.getMessage());
+      }
+    }
+    return result.build();
+  }
+}
@@ -0,0 +1,314 @@
+package alexhelmacy.sqsd.batch;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import software.amazon.awssdk.services.sqs.model.Message;
+
+/**
+ * Gathers messages from every thread and every receive into micro-batches for a BatchHandler. A batch is handed over when
+ * it reaches the batch size or when its oldest message has waited the max latency, whichever comes first. While every
+ * handler thread is busy, messages keep gathering, so batches grow with the load.
+ * Each message gets its own future that completes once its batch was handled, or exceptionally with a BatchFailedException.
+ * The number of messages held is bounded: submitting blocks while the batcher is full.
+ */
+public class MicroBatcher implements AutoCloseable{
+  private static final Logger LOGGER = LoggerFactory.getLogger(MicroBatcher.class.getSimpleName());
+
+  /**
+   * return a micro-batcher builder
+   * @return a new instance of a MicroBatcherBuilder
+   */
+  public static final MicroBatcherBuilder builder(){
+    return new MicroBatcherBuilder();
+  }
+
+  /**
+   * MicroBatcher builder class
+   */
+  public static final class MicroBatcherBuilder{
+    private BatchHandler handler = null;//handles each batch
+    private int batchSize = 500;//messages in a full batch
+    private long maxLatencyMillis = 100;//longest a message waits for its batch to fill
+    private int handlerThreads = 1;//batches handled at once
+    private int maxPending = -1;//messages held at most, waiting or being handled. derived from the batch size when not set
+
+    /**
+     * sets the handler of each batch
+     * @param handler the batch handler
+     * @return itself
+     */
+    public final MicroBatcherBuilder handler(BatchHandler handler){
+      this.handler = handler;
+      return this;
+    }
+
+    /**
+     * sets how many messages make a full batch
+     * @param batchSize the number of messages
+     * @return itself
+     */
+    public final MicroBatcherBuilder batchSize(int batchSize){
+      this.batchSize = batchSize;
+      return this;
+    }
+
+    /**
+     * sets how long a message waits for its batch to fill before the batch is handed over anyway
+     * @param maxLatencyMillis the time in milliseconds
+     * @return itself
+     */
+    public final MicroBatcherBuilder maxLatencyMillis(long maxLatencyMillis){
+      this.maxLatencyMillis = maxLatencyMillis;
+      return this;
+    }
+
+    /**
+     * sets how many batches are handled at once
+     * @param handlerThreads the number of handler threads
+     * @return itself
+     */
+    public final MicroBatcherBuilder handlerThreads(int handlerThreads){
+      this.handlerThreads = handlerThreads;
+      return this;
+    }
+
+    /**
+     * sets how many messages are held at most, waiting or being handled. Defaults to two batches per handler thread
+     * @param maxPending the number of messages
+     * @return itself
+     */
+    public final MicroBatcherBuilder maxPending(int maxPending){
+      this.maxPending = maxPending;
+      return this;
+    }
+
+    /**
+     * build the batcher and start gathering
+     * @return a new MicroBatcher
+     */
+    public final MicroBatcher build(){
+      if (handler == null)throw new IllegalArgumentException("Batch handler must be specified");
+      if (batchSize <= 0)throw new IllegalArgumentException("Batch size must be positive");
+      if (maxLatencyMillis < 0)throw new IllegalArgumentException("Max latency must not be negative");
+      if (handlerThreads <= 0)throw new IllegalArgumentException("Handler threads must be at least 1");
+      if (maxPending < 0)maxPending = batchSize * handlerThreads * 2;
+      if (maxPending < Math.max(batchSize, 10))throw new IllegalArgumentException("Max pending must hold at least a batch and a receive");
+      return new MicroBatcher(this);
+    }
+  }
+
+  /**
+   * a message waiting for its batch
+   */
+  private static final class Pending{
+    private final Message message;//the message
+    private final long arrived;//System.nanoTime the message was submitted
+    private final CompletableFuture<Void> future = new CompletableFuture<>();//completes once the batch was handled
+
+    private Pending(Message message, long arrived){
+      this.message = message;
+      this.arrived = arrived;
+    }
+  }
+
+  private final BatchHandler HANDLER;//handles each batch
+  private final int BATCH_SIZE;//messages in a full batch
+  private final long MAX_LATENCY_NANOS;//longest a message waits for its batch to fill
+  private final Semaphore PERMITS;//one per message held
+  private final Semaphore SLOTS;//one per idle handler thread
+  private final ExecutorService HANDLERS;//runs the batch handler
+  private final Thread GATHERER;//cuts batches and hands them to the handler threads
+  private final ReentrantLock lock = new ReentrantLock();//guards pending and closed
+  private final Condition ready = lock.newCondition();//signalled when a batch may be ready
+  private final ArrayDeque<Pending> pending = new ArrayDeque<>();//messages waiting for a batch, oldest first
+  private boolean closed = false;//no more messages are accepted
+  private final LongAdder batches = new LongAdder();//batches handled
+  private final LongAdder messages = new LongAdder();//messages handed to the handler
+  private final LongAdder failures = new LongAdder();//messages that failed
+
+  /**
+   * MicroBatcher constructor
+   * @param builder the micro-batcher builder
+   */
+  MicroBatcher(MicroBatcherBuilder builder){
+    HANDLER = builder.handler;
+    BATCH_SIZE = builder.batchSize;
+    MAX_LATENCY_NANOS = TimeUnit.MILLISECONDS.toNanos(builder.maxLatencyMillis);
+    PERMITS = new Semaphore(builder.maxPending);
+    SLOTS = new Semaphore(builder.handlerThreads);
+    HANDLERS = Executors.newFixedThreadPool(builder.handlerThreads);
+    GATHERER = new Thread(this::gather, "micro-batcher");
+    GATHERER.setDaemon(true);
+    GATHERER.start();
+  }
+
+  /**
+   * add messages to the next batch. Blocks while the batcher holds its max pending messages
+   * @param messages the messages. may come from any queue
+   * @return one future per message in the same order. completes exceptionally with a BatchFailedException if the message failed
+   * @throws InterruptedException if interrupted while waiting for room. none of the messages were added
+   */
+  public List<CompletableFuture<Void>> submit(List<Message> messages) throws InterruptedException{
+    List<CompletableFuture<Void>> futures = new ArrayList<>(messages.size());
+    if (messages.isEmpty())return futures;
+    PERMITS.acquire(messages.size());
+    long now = System.nanoTime();
+    lock.lock();
+    try{
+      if (closed){
+        PERMITS.release(messages.size());
+        for (Message message: messages){
+          CompletableFuture<Void> future = new CompletableFuture<>();
+          future.completeExceptionally(new BatchFailedException(message, new IllegalStateException("Micro-batcher closed")));
+          futures.add(future);
+        }
+        return futures;
+      }
+      boolean wasEmpty = pending.isEmpty();
+      for (Message message: messages){
+        Pending entry = new Pending(message, now);
+        pending.addLast(entry);
+        futures.add(entry.future);
+      }
+      if (wasEmpty || pending.size() >= BATCH_SIZE)ready.signal();//start the latency timer or cut a full batch
+    }finally{
+      lock.unlock();
+    }
+    return futures;
+  }
+
+  /**
+   * @return batches handled
+   */
+  public long batches(){
+    return batches.sum();
+  }
+
+  /**
+   * @return messages handed to the handler
+   */
+  public long messages(){
+    return messages.sum();
+  }
+
+  /**
+   * @return messages that failed, alone or with their whole batch
+   */
+  public long failures(){
+    return failures.sum();
+  }
+
+  /**
+   * stop accepting messages, hand over the ones waiting and wait for the handlers to finish
+   */
+  @Override
+  public void close(){
+    lock.lock();
+    try{
+      closed = true;
+      ready.signal();
+    }finally{
+      lock.unlock();
+    }
+    try{
+      GATHERER.join(TimeUnit.SECONDS.toMillis(30));
+      HANDLERS.shutdown();
+      if (!HANDLERS.awaitTermination(30, TimeUnit.SECONDS))LOGGER.warn("Batches still being handled after the timeout");
+    }catch(InterruptedException ie){
+      Thread.currentThread().interrupt();//preserve the interrupt
+    }
+  }
+
+  /**
+   * gatherer loop. Waits for an idle handler thread, then for a batch, and hands it over. Ends once closed and empty
+   */
+  private void gather(){
+    try{
+      while (true){
+        SLOTS.acquire();
+        List<Pending> batch = take();
+        if (batch == null){
+          SLOTS.release();
+          return;
+        }
+        HANDLERS.execute(() -> handle(batch));
+      }
+    }catch(InterruptedException ie){
+      LOGGER.warn("Micro-batcher interrupted. Waiting messages are redelivered after their visibility timeout");
+    }
+  }
+
+  /**
+   * wait until a batch is full, its oldest message has waited the max latency or the batcher is closed
+   * @return up to a batch size of messages, or null once closed and empty
+   * @throws InterruptedException if interrupted while waiting
+   */
+  private List<Pending> take() throws InterruptedException{
+    lock.lock();
+    try{
+      while (pending.size() < BATCH_SIZE && !closed){
+        if (pending.isEmpty()){
+          ready.await();
+          continue;
+        }
+        long wait = pending.peekFirst().arrived + MAX_LATENCY_NANOS - System.nanoTime();
+        if (wait <= 0)break;
+        ready.awaitNanos(wait);
+      }
+      if (pending.isEmpty())return null;//closed
+      List<Pending> batch = new ArrayList<>(Math.min(pending.size(), BATCH_SIZE));
+      while (batch.size() < BATCH_SIZE && !pending.isEmpty())batch.add(pending.pollFirst());
+      return batch;
+    }finally{
+      lock.unlock();
+    }
+  }
+
+  /**
+   * run the handler over a batch and complete the future of each message
+   * @param batch the batch
+   */
+  private void handle(List<Pending> batch){
+    List<Message> batchMessages = new ArrayList<>(batch.size());
+    for (Pending entry: batch)batchMessages.add(entry.message);
+    BatchResult result = null;
+    Exception failure = null;
+    try{
+      result = HANDLER.handle(batchMessages);
+      if (result == null)result = BatchResult.success();
+    }catch(Exception e){//the whole batch is redelivered
+      failure = e;
+      LOGGER.warn("Batch of {} messages failed: {}", batch.size(), e.getMessage());
+    }
+    batches.increment();
+    messages.add(batch.size());
+    try{
+      for (Pending entry: batch){
+        if (failure != null){
+          entry.future.completeExceptionally(new BatchFailedException(entry.message, failure));
+        }else if (result.failed(entry.message)){
+          entry.future.completeExceptionally(new BatchFailedException(entry.message, result.reason(entry.message)));
+        }else{
+          entry.future.complete(null);
+        }
+      }
+      failures.add(failure != null ? batch.size() : result.failures());
+    }finally{
+      PERMITS.release(batch.size());
+      SLOTS.release();
+    }
+  }
+}
@@ -0,0 +1,275 @@
+package alexhelmacy.sqsd.budget;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageAttributeValue;
+
+/**
+ * A budget of messages and payload bytes shared by every poller of an SqsD.
+ * A poller reserves room for a full receive before calling ReceiveMessage and settles the reservation with what it received.
+ * Each message is then released when it is deleted, fails or is abandoned. Pollers wait while the budget is spent, so the
+ * messages held in memory stay bounded and receives slow down to the speed of processing and deleting.
+ * The size of a message is not known before it is received, so a reservation holds a moving estimate of the message size and
+ * settling charges the real size. The budget can be exceeded by the difference between the estimate and the real size of one
+ * receive per poller.
+ */
+public class InFlightBudget{
+  public static final long MAX_MESSAGE_BYTES = 262144;//SQS limit for a message and its attributes
+  private static final long MIN_ESTIMATE_BYTES = 1024;//smallest per message reservation
+  private static final double ESTIMATE_HEADROOM = 2;//reserve this many times the average message size
+  private static final double ESTIMATE_WEIGHT = 0.1;//weight of each receive in the average message size
+
+  /**
+   * return an in-flight budget builder
+   * @return a new instance of an InFlightBudgetBuilder
+   */
+  public static final InFlightBudgetBuilder builder(){
+    return new InFlightBudgetBuilder();
+  }
+
+  /**
+   * InFlightBudget builder class
+   */
+  public static final class InFlightBudgetBuilder{
+    private int maxMessages = 1000;//most messages in flight
+    private long maxBytes = 64L * 1024 * 1024;//most payload bytes in flight
+    private long initialEstimateBytes = 65536;//per message reservation before any message was received
+
+    /**
+     * sets the most messages in flight
+     * @param maxMessages the number of messages
+     * @return itself
+     */
+    public final InFlightBudgetBuilder maxMessages(int maxMessages){
+      this.maxMessages = maxMessages;
+      return this;
+    }
+
+    /**
+     * sets the most payload bytes in flight
+     * @param maxBytes the number of bytes
+     * @return itself
+     */
+    public final InFlightBudgetBuilder maxBytes(long maxBytes){
+      this.maxBytes = maxBytes;
+      return this;
+    }
+
+    /**
+     * sets the per message reservation used until messages have been received
+     * @param initialEstimateBytes the estimate in bytes
+     * @return itself
+     */
+    public final InFlightBudgetBuilder initialEstimateBytes(long initialEstimateBytes){
+      this.initialEstimateBytes = initialEstimateBytes;
+      return this;
+    }
+
+    /**
+     * build the budget
+     * @return a new InFlightBudget
+     */
+    public final InFlightBudget build(){
+      if (maxMessages <= 0)throw new IllegalArgumentException("Max messages must be at least 1");
+      if (maxBytes <= 0)throw new IllegalArgumentException("Max bytes must be at least 1");
+      if (initialEstimateBytes <= 0 || initialEstimateBytes > MAX_MESSAGE_BYTES)throw new IllegalArgumentException("Initial estimate must be between 1 and " + MAX_MESSAGE_BYTES + " bytes");
+      return new InFlightBudget(this);
+    }
+  }
+
+  /**
+   * room held for one receive until it is settled
+   */
+  public final class Reservation{
+    private final int messages;//messages reserved
+    private final long bytes;//bytes reserved
+    private boolean settled = false;//settled once
+
+    /**
+     * Reservation constructor
+     * @param messages messages reserved
+     * @param bytes bytes reserved
+     */
+    private Reservation(int messages, long bytes){
+      this.messages = messages;
+      this.bytes = bytes;
+    }
+
+    /**
+     * @return messages reserved
+     */
+    public int messages(){
+      return messages;
+    }
+
+    /**
+     * replace the reservation with the messages that were received. Each of them must be released later
+     * @param received the received messages. empty when the receive returned nothing or failed
+     */
+    public void settle(Collection<Message> received){
+      long receivedBytes = 0;
+      for (Message message: received)receivedBytes += sizeOf(message);
+      lock.lock();
+      try{
+        if (settled)return;
+        settled = true;
+        messagesInUse += received.size() - messages;
+        bytesInUse += receivedBytes - bytes;
+        if (!received.isEmpty())averageBytes += ESTIMATE_WEIGHT * ((double)receivedBytes / received.size() - averageBytes);
+        freed.signalAll();
+      }finally{
+        lock.unlock();
+      }
+    }
+  }
+
+  private final int MAX_MESSAGES;//most messages in flight
+  private final long MAX_BYTES;//most payload bytes in flight
+
+  private final ReentrantLock lock = new ReentrantLock();//guards the counts below
+  private final Condition freed = lock.newCondition();//signalled when room is released
+  private long messagesInUse = 0;//messages reserved or in flight
+  private long bytesInUse = 0;//bytes reserved or in flight
+  private double averageBytes;//moving average message size
+  private final LongAdder waits = new LongAdder();//reservations that had to wait
+
+  /**
+   * InFlightBudget constructor
+   * @param builder the in-flight budget builder
+   */
+  InFlightBudget(InFlightBudgetBuilder builder){
+    MAX_MESSAGES = builder.maxMessages;
+    MAX_BYTES = builder.maxBytes;
+    averageBytes = builder.initialEstimateBytes / ESTIMATE_HEADROOM;
+  }
+
+  /**
+   * reserve room for a receive, waiting while the budget is spent. A reservation larger than the whole budget is granted once
+   * nothing else is in flight
+   * @param messages the max number of messages of the receive
+   * @param timeout how long to wait
+   * @param unit the unit of the timeout
+   * @return the reservation. null when the budget stayed spent for the whole timeout
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public Reservation reserve(int messages, long timeout, TimeUnit unit) throws InterruptedException{
+    long remainingNanos = unit.toNanos(timeout);
+    lock.lockInterruptibly();
+    try{
+      long bytes = messages * estimate();
+      boolean waited = false;
+      while ((messagesInUse > 0 && messagesInUse + messages > MAX_MESSAGES) || (bytesInUse > 0 && bytesInUse + bytes > MAX_BYTES)){
+        if (remainingNanos <= 0)return null;
+        waited = true;
+        remainingNanos = freed.awaitNanos(remainingNanos);
+      }
+      if (waited)waits.increment();
+      messagesInUse += messages;
+      bytesInUse += bytes;
+      return new Reservation(messages, bytes);
+    }finally{
+      lock.unlock();
+    }
+  }
+
+  /**
+   * release a message that was deleted, failed or abandoned
+   * @param message the message from a settled reservation
+   */
+  public void release(Message message){
+    long bytes = sizeOf(message);
+    lock.lock();
+    try{
+      messagesInUse--;
+      bytesInUse -= bytes;
+      freed.signalAll();
+    }finally{
+      lock.unlock();
+    }
+  }
+
+  /**
+   * release messages that were deleted, failed or abandoned
+   * @param messages the messages from settled reservations
+   */
+  public void release(Collection<Message> messages){
+    long bytes = 0;
+    for (Message message: messages)bytes += sizeOf(message);
+    lock.lock();
+    try{
+      messagesInUse -= messages.size();
+      bytesInUse -= bytes;
+      freed.signalAll();
+    }finally{
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return messages reserved or in flight
+   */
+  public long messagesInUse(){
+    lock.lock();
+    try{
+      return messagesInUse;
+    }finally{
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return payload bytes reserved or in flight
+   */
+  public long bytesInUse(){
+    lock.lock();
+    try{
+      return bytesInUse;
+    }finally{
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return reservations that had to wait for room
+   */
+  public long waits(){
+    return waits.sum();
+  }
+
+  /**
+   * @return bytes reserved per message. Must hold the lock
+   */
+  private long estimate(){
+    return Math.max(MIN_ESTIMATE_BYTES, Math.min(MAX_MESSAGE_BYTES, (long)(averageBytes * ESTIMATE_HEADROOM)));
+  }
+
+  /**
+   * the payload size of a message: body, message attributes, system attributes and receipt handle, one byte per character
+   * @param message the message
+   * @return the size in bytes. the same message always has the same size
+   */
+  public static long sizeOf(Message message){
+    long size = length(message.body()) + length(message.receiptHandle());
+    for (Map.Entry<String, MessageAttributeValue> attribute: message.messageAttributes().entrySet()){
+      MessageAttributeValue value = attribute.getValue();
+      size += attribute.getKey().length() + length(value.dataType()) + length(value.stringValue());
+      if (value.binaryValue() != null)size += value.binaryValue().asByteBuffer().remaining();
+    }
+    for (String value: message.attributes().values())size += length(value);
+    return size;
+  }
+
+  /**
+   * @param value a string or null
+   * @return the length of the string. 0 for null
+   */
+  private static long length(String value){
+    return value != null ? value.length() : 0;
+  }
+}
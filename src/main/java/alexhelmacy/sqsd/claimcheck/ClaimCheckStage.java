@@ -0,0 +1,116 @@
+package alexhelmacy.sqsd.claimcheck;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import alexhelmacy.sqsd.processor.MessageHandler;
+
+import software.amazon.awssdk.services.sqs.model.Message;
+
+/**
+ * Resolves claim-check messages before they reach a handler. Producers put payloads larger than the SQS limit in a store
+ * and send a pointer instead. The stage recognises pointer messages and hands the handler a stream of the stored payload,
+ * read from the cache when one is set. Other messages are handed over as a stream of their body.
+ */
+public class ClaimCheckStage{
+  /**
+   * return a claim-check stage builder
+   * @return a new instance of a ClaimCheckStageBuilder
+   */
+  public static final ClaimCheckStageBuilder builder(){
+    return new ClaimCheckStageBuilder();
+  }
+
+  /**
+   * ClaimCheckStage builder class
+   */
+  public static final class ClaimCheckStageBuilder{
+    private PayloadStore store = null;//where payloads are read from
+    private PayloadCache cache = null;//recently read payloads. may be null
+
+    /**
+     * sets where payloads are read from
+     * @param store the payload store
+     * @return itself
+     */
+    public final ClaimCheckStageBuilder store(PayloadStore store){
+      this.store = store;
+      return this;
+    }
+
+    /**
+     * sets a cache shared by every message. Payloads are read from the store every time when not set
+     * @param cache the payload cache
+     * @return itself
+     */
+    public final ClaimCheckStageBuilder cache(PayloadCache cache){
+      this.cache = cache;
+      return this;
+    }
+
+    /**
+     * build the stage
+     * @return a new ClaimCheckStage
+     */
+    public final ClaimCheckStage build(){
+      if (store == null)throw new IllegalArgumentException("Payload store must be specified");
+      return new ClaimCheckStage(this);
+    }
+  }
+
+  private final PayloadStore STORE;//where payloads are read from
+  private final PayloadCache CACHE;//recently read payloads. may be null
+
+  /**
+   * ClaimCheckStage constructor
+   * @param builder the claim-check stage builder
+   */
+  ClaimCheckStage(ClaimCheckStageBuilder builder){
+    STORE = builder.store;
+    CACHE = builder.cache;
+  }
+
+  /**
+   * open the payload of a message. Close the result to close its stream
+   * @param message the message
+   * @return the payload
+   * @throws IOException if the pointer is malformed or the payload cannot be read
+   */
+  public Payload open(Message message) throws IOException{
+    PayloadPointer pointer;
+    try{
+      pointer = PayloadPointer.parse(message);
+    }catch(IllegalArgumentException iae){
+      throw new IOException(iae.getMessage(), iae);
+    }
+    if (pointer == null)return new Payload(message, null, new ByteArrayInputStream(message.body().getBytes(StandardCharsets.UTF_8)));
+    try{
+      InputStream stream = CACHE != null ? CACHE.open(pointer, STORE) : STORE.open(pointer);
+      return new Payload(message, pointer, stream);
+    }catch(IOException | RuntimeException e){
+      throw new IOException("Failed to read payload " + pointer + " of message " + message.messageId() + ": " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * wrap a payload handler so it can be used wherever a MessageHandler is expected
+   * @param handler the payload handler
+   * @return a MessageHandler that opens each payload, hands it over and closes it afterwards
+   */
+  public MessageHandler handler(PayloadHandler handler){
+    return message -> {
+      try (Payload payload = open(message)){
+        handler.handle(payload);
+      }
+    };
+  }
+
+  /**
+   * @return the payload cache. null when payloads are not cached
+   */
+  public PayloadCache cache(){
+    return CACHE;
+  }
+}
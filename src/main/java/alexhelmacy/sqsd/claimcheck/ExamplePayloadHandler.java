@@ -0,0 +1,28 @@
+package alexhelmacy.sqsd.claimcheck;
+
+import java.io.InputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Example payload handler. Reads the payload through a small buffer and logs its size.
+ */
+public class ExamplePayloadHandler implements PayloadHandler{
+  private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[8192]);//read buffer of each processing thread
+  private final Logger logger = LoggerFactory.getLogger(ExamplePayloadHandler.class.getSimpleName());//logger for the handler
+
+  /**
+   * read and log the payload
+   * @param payload the payload
+   * @throws Exception if the payload cannot be read
+   */
+  @Override
+  public void handle(Payload payload) throws Exception{
+    byte[] buffer = BUFFER.get();
+    long size = 0;
+    InputStream in = payload.inputStream();
+    for (int read = in.read(buffer); read >= 0; read = in.read(buffer))size += read;
+    logger.info("Receive Message: {} {} bytes{}", payload.message().messageId(), size, payload.claimCheck() ? " from " + payload.pointer() : "");
+  }
+}
@@ -0,0 +1,85 @@
+package alexhelmacy.sqsd.claimcheck;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Reads claim-check payloads from a local directory, such as a mounted share. The payload of bucket b and key k is the file
+ * b/k under the root directory.
+ */
+public class FileSystemPayloadStore implements PayloadStore{
+  /**
+   * return a filesystem payload store builder
+   * @return a new instance of a FileSystemPayloadStoreBuilder
+   */
+  public static final FileSystemPayloadStoreBuilder builder(){
+    return new FileSystemPayloadStoreBuilder();
+  }
+
+  /**
+   * FileSystemPayloadStore builder class
+   */
+  public static final class FileSystemPayloadStoreBuilder{
+    private Path root = null;//directory holding one directory per bucket
+    private int bufferBytes = 64 * 1024;//read buffer of each open payload
+
+    /**
+     * sets the directory holding one directory per bucket
+     * @param root the directory
+     * @return itself
+     */
+    public final FileSystemPayloadStoreBuilder root(Path root){
+      this.root = root;
+      return this;
+    }
+
+    /**
+     * sets the read buffer of each open payload
+     * @param bufferBytes the buffer size in bytes
+     * @return itself
+     */
+    public final FileSystemPayloadStoreBuilder bufferBytes(int bufferBytes){
+      this.bufferBytes = bufferBytes;
+      return this;
+    }
+
+    /**
+     * build the store
+     * @return a new FileSystemPayloadStore
+     */
+    public final FileSystemPayloadStore build(){
+      if (root == null)throw new IllegalArgumentException("Root directory must be specified");
+      if (!Files.isDirectory(root))throw new IllegalArgumentException("Root directory does not exist: " + root);
+      if (bufferBytes <= 0)throw new IllegalArgumentException("Buffer size must be positive");
+      return new FileSystemPayloadStore(this);
+    }
+  }
+
+  private final Path ROOT;//directory holding one directory per bucket
+  private final int BUFFER_BYTES;//read buffer of each open payload
+
+  /**
+   * FileSystemPayloadStore constructor
+   * @param builder the filesystem payload store builder
+   */
+  FileSystemPayloadStore(FileSystemPayloadStoreBuilder builder){
+    ROOT = builder.root.toAbsolutePath().normalize();
+    BUFFER_BYTES = builder.bufferBytes;
+  }
+
+  /**
+   * open the file of a payload
+   * @param pointer where the payload is stored
+   * @return a buffered stream of the file
+   * @throws IOException if the file is missing, unreadable or outside the root directory
+   */
+  @Override
+  public InputStream open(PayloadPointer pointer) throws IOException{
+    Path file = ROOT.resolve(pointer.bucket()).resolve(pointer.key()).normalize();
+    if (!file.startsWith(ROOT) || file.equals(ROOT))throw new IOException("Payload " + pointer + " is outside " + ROOT);//keys must not climb out with ..
+    return new BufferedInputStream(Files.newInputStream(file), BUFFER_BYTES);
+  }
+}
@@ -0,0 +1,66 @@
+package alexhelmacy.sqsd.claimcheck;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import software.amazon.awssdk.services.sqs.model.Message;
+
+/**
+ * The payload of one message, read as a stream. For a claim-check message the stream reads the stored payload, otherwise it
+ * reads the message body. Closing the payload closes the stream.
+ */
+public class Payload implements AutoCloseable{
+  private final Message MESSAGE;//the message the payload belongs to
+  private final PayloadPointer POINTER;//where the payload is stored. null when the body is the payload
+  private final InputStream STREAM;//the payload bytes
+
+  /**
+   * Payload constructor
+   * @param message the message
+   * @param pointer where the payload is stored. null when the body is the payload
+   * @param stream the payload bytes
+   */
+  Payload(Message message, PayloadPointer pointer, InputStream stream){
+    MESSAGE = message;
+    POINTER = pointer;
+    STREAM = stream;
+  }
+
+  /**
+   * @return the message the payload belongs to
+   */
+  public Message message(){
+    return MESSAGE;
+  }
+
+  /**
+   * @return where the payload is stored, or null if the message body is the payload
+   */
+  public PayloadPointer pointer(){
+    return POINTER;
+  }
+
+  /**
+   * @return true if the payload was stored outside the message
+   */
+  public boolean claimCheck(){
+    return POINTER != null;
+  }
+
+  /**
+   * the payload bytes. The same stream is returned on every call, so it can only be read once
+   * @return the stream. Valid until the payload is closed
+   */
+  public InputStream inputStream(){
+    return STREAM;
+  }
+
+  /**
+   * close the stream
+   * @throws IOException if the stream fails to close
+   */
+  @Override
+  public void close() throws IOException{
+    STREAM.close();
+  }
+}
@@ -0,0 +1,211 @@
+package alexhelmacy.sqsd.claimcheck;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps recently read claim-check payloads in memory, for payloads that many messages point to. The cache is bounded by the
+ * total size of the payloads it holds and evicts the least recently used ones first. Payloads larger than the entry limit
+ * are never held: they are streamed from the store, and only the bytes read while finding out their size are buffered.
+ * When several threads miss the same payload at once, one of them reads it and the others wait for its bytes.
+ */
+public class PayloadCache{
+  /**
+   * return a payload cache builder
+   * @return a new instance of a PayloadCacheBuilder
+   */
+  public static final PayloadCacheBuilder builder(){
+    return new PayloadCacheBuilder();
+  }
+
+  /**
+   * PayloadCache builder class
+   */
+  public static final class PayloadCacheBuilder{
+    private long maxBytes = 64L * 1024 * 1024;//total size of the cached payloads
+    private int maxEntryBytes = 1024 * 1024;//largest payload that is cached
+
+    /**
+     * sets the total size of the cached payloads
+     * @param maxBytes the size in bytes
+     * @return itself
+     */
+    public final PayloadCacheBuilder maxBytes(long maxBytes){
+      this.maxBytes = maxBytes;
+      return this;
+    }
+
+    /**
+     * sets the largest payload that is cached. Larger payloads are streamed from the store every time
+     * @param maxEntryBytes the size in bytes
+     * @return itself
+     */
+    public final PayloadCacheBuilder maxEntryBytes(int maxEntryBytes){
+      this.maxEntryBytes = maxEntryBytes;
+      return this;
+    }
+
+    /**
+     * build the cache
+     * @return a new PayloadCache
+     */
+    public final PayloadCache build(){
+      if (maxBytes <= 0)throw new IllegalArgumentException("Max bytes must be positive");
+      if (maxEntryBytes <= 0 || maxEntryBytes > maxBytes)throw new IllegalArgumentException("Max entry bytes must be between 1 and max bytes");
+      return new PayloadCache(this);
+    }
+  }
+
+  private final long MAX_BYTES;//total size of the cached payloads
+  private final int MAX_ENTRY_BYTES;//largest payload that is cached
+  private final LinkedHashMap<PayloadPointer, byte[]> ENTRIES = new LinkedHashMap<>(16, 0.75f, true);//least recently used first. guarded by itself
+  private final Map<PayloadPointer, CompletableFuture<byte[]>> LOADING = new ConcurrentHashMap<>();//payloads being read. completes with null when too large
+  private long bytes = 0;//total size of the cached payloads. guarded by ENTRIES
+  private final LongAdder hits = new LongAdder();//payloads served from memory
+  private final LongAdder misses = new LongAdder();//payloads read from the store
+  private final LongAdder evictions = new LongAdder();//payloads dropped to make room
+
+  /**
+   * PayloadCache constructor
+   * @param builder the payload cache builder
+   */
+  PayloadCache(PayloadCacheBuilder builder){
+    MAX_BYTES = builder.maxBytes;
+    MAX_ENTRY_BYTES = builder.maxEntryBytes;
+  }
+
+  /**
+   * open a payload from memory, or from the store when it is not cached
+   * @param pointer where the payload is stored
+   * @param store the store to read a missing payload from
+   * @return a stream of the payload. The caller closes it
+   * @throws IOException if the store cannot read the payload
+   */
+  public InputStream open(PayloadPointer pointer, PayloadStore store) throws IOException{
+    byte[] cached;
+    synchronized (ENTRIES){
+      cached = ENTRIES.get(pointer);
+    }
+    if (cached != null){
+      hits.increment();
+      return new ByteArrayInputStream(cached);
+    }
+    misses.increment();
+    if (pointer.size() > MAX_ENTRY_BYTES)return store.open(pointer);//known to be too large. stream it
+    CompletableFuture<byte[]> load = new CompletableFuture<>();
+    CompletableFuture<byte[]> running = LOADING.putIfAbsent(pointer, load);
+    if (running != null){//another thread is reading it
+      byte[] loaded = await(running, pointer);
+      return loaded != null ? new ByteArrayInputStream(loaded) : store.open(pointer);
+    }
+    InputStream in = null;
+    try{
+      in = store.open(pointer);
+      int capacity = pointer.size() >= 0 ? (int)pointer.size() + 1 : 8192;//one more byte tells whether the size was right
+      byte[] buffer = new byte[capacity];
+      int length = 0;
+      while (true){
+        if (length == buffer.length){
+          if (buffer.length > MAX_ENTRY_BYTES)break;//too large to cache
+          buffer = Arrays.copyOf(buffer, Math.min(buffer.length * 2, MAX_ENTRY_BYTES + 1));
+        }
+        int read = in.read(buffer, length, buffer.length - length);
+        if (read < 0)break;
+        length += read;
+      }
+      if (length > MAX_ENTRY_BYTES){//hand over what was read followed by the rest of the stream
+        load.complete(null);
+        InputStream rest = in;
+        in = null;
+        return new SequenceInputStream(new ByteArrayInputStream(buffer, 0, length), rest);
+      }
+      byte[] payload = length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+      put(pointer, payload);
+      load.complete(payload);
+      return new ByteArrayInputStream(payload);
+    }catch(IOException | RuntimeException e){
+      load.completeExceptionally(e);
+      throw e;
+    }finally{
+      LOADING.remove(pointer, load);
+      if (in != null)in.close();
+    }
+  }
+
+  /**
+   * @return payloads served from memory
+   */
+  public long hits(){
+    return hits.sum();
+  }
+
+  /**
+   * @return payloads read from the store
+   */
+  public long misses(){
+    return misses.sum();
+  }
+
+  /**
+   * @return payloads dropped to make room
+   */
+  public long evictions(){
+    return evictions.sum();
+  }
+
+  /**
+   * @return total size of the cached payloads in bytes
+   */
+  public long bytes(){
+    synchronized (ENTRIES){
+      return bytes;
+    }
+  }
+
+  /**
+   * add a payload and evict the least recently used ones until the total fits
+   * @param pointer where the payload is stored
+   * @param payload the payload
+   */
+  private void put(PayloadPointer pointer, byte[] payload){
+    synchronized (ENTRIES){
+      byte[] previous = ENTRIES.put(pointer, payload);
+      bytes += payload.length - (previous != null ? previous.length : 0);
+      Iterator<byte[]> eldest = ENTRIES.values().iterator();
+      while (bytes > MAX_BYTES && eldest.hasNext()){
+        byte[] evicted = eldest.next();
+        if (evicted == payload)continue;//the newest entry is last. only reached when everything else is gone
+        eldest.remove();
+        bytes -= evicted.length;
+        evictions.increment();
+      }
+    }
+  }
+
+  /**
+   * wait for another thread to read a payload
+   * @param running the read
+   * @param pointer where the payload is stored
+   * @return the payload, or null if it is too large to cache
+   * @throws IOException if the read failed
+   */
+  private static byte[] await(CompletableFuture<byte[]> running, PayloadPointer pointer) throws IOException{
+    try{
+      return running.join();
+    }catch(CompletionException ce){
+      Throwable cause = ce.getCause();
+      if (cause instanceof IOException)throw new IOException("Failed to read payload " + pointer + ": " + cause.getMessage(), cause);
+      throw new IOException("Failed to read payload " + pointer, cause);
+    }
+  }
+}
@@ -0,0 +1,14 @@
+package alexhelmacy.sqsd.claimcheck;
+
+/**
+ * Handles the payload of a message after a ClaimCheckStage resolved it.
+ */
+@FunctionalInterface
+public interface PayloadHandler{
+  /**
+   * handle one payload. The stream is only valid during the call
+   * @param payload the payload and its message
+   * @throws Exception if the message could not be handled. the message is not deleted and will be redelivered by SQS.
+   */
+  void handle(Payload payload) throws Exception;
+}
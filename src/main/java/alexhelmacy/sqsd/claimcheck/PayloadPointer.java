@@ -0,0 +1,127 @@
+package alexhelmacy.sqsd.claimcheck;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import software.amazon.awssdk.protocols.jsoncore.JsonNode;
+import software.amazon.awssdk.protocols.jsoncore.JsonNodeParser;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageAttributeValue;
+
+/**
+ * Where the payload of a claim-check message is stored. Pointer messages use the format of the Amazon SQS Extended Client:
+ * the body is ["software.amazon.payloadoffloading.PayloadS3Pointer",{"s3BucketName":"...","s3Key":"..."}] and the
+ * ExtendedPayloadSize attribute, when requested, holds the payload size.
+ */
+public final class PayloadPointer{
+  public static final String POINTER_CLASS = "software.amazon.payloadoffloading.PayloadS3Pointer";//first element of a pointer body
+  public static final String SIZE_ATTRIBUTE = "ExtendedPayloadSize";//message attribute with the payload size
+  public static final String LEGACY_SIZE_ATTRIBUTE = "SQSLargePayloadSize";//the same attribute in older extended clients
+  private static final String BODY_PREFIX = "[\"" + POINTER_CLASS + "\"";//pointer bodies start with this
+
+  private final String bucket;//bucket, or top level directory, of the payload
+  private final String key;//key of the payload in its bucket
+  private final long size;//payload size in bytes. -1 when unknown
+
+  /**
+   * Constructor
+   * @param bucket bucket of the payload
+   * @param key key of the payload in its bucket
+   * @param size payload size in bytes. -1 when unknown
+   */
+  public PayloadPointer(String bucket, String key, long size){
+    if (bucket == null || bucket.isEmpty())throw new IllegalArgumentException("Bucket must be specified");
+    if (key == null || key.isEmpty())throw new IllegalArgumentException("Key must be specified");
+    this.bucket = bucket;
+    this.key = key;
+    this.size = size;
+  }
+
+  /**
+   * read the pointer of a claim-check message
+   * @param message the message
+   * @return the pointer, or null if the body is the payload itself
+   * @throws IllegalArgumentException if the body looks like a pointer but is malformed
+   */
+  public static PayloadPointer parse(Message message){
+    String body = message.body();
+    if (body == null || !body.startsWith(BODY_PREFIX))return null;//checked before parsing so plain bodies cost one comparison
+    JsonNode pointer;
+    try{
+      List<JsonNode> parts = JsonNodeParser.create().parse(body).asArray();
+      pointer = parts.size() == 2 ? parts.get(1) : null;
+    }catch(RuntimeException e){
+      throw new IllegalArgumentException("Malformed payload pointer in message " + message.messageId() + ": " + e.getMessage(), e);
+    }
+    if (pointer == null || !pointer.isObject())throw new IllegalArgumentException("Malformed payload pointer in message " + message.messageId());
+    return new PayloadPointer(text(pointer, "s3BucketName"), text(pointer, "s3Key"), size(message));
+  }
+
+  /**
+   * @param object a JSON object
+   * @param field the field name
+   * @return the string value of the field, or null if missing
+   */
+  private static String text(JsonNode object, String field){
+    return object.field(field).filter(JsonNode::isString).map(JsonNode::asString).orElse(null);
+  }
+
+  /**
+   * @param message the message
+   * @return the payload size from the message attributes. -1 when they were not requested
+   */
+  private static long size(Message message){
+    if (!message.hasMessageAttributes())return -1;
+    Map<String, MessageAttributeValue> attributes = message.messageAttributes();
+    MessageAttributeValue size = attributes.containsKey(SIZE_ATTRIBUTE) ? attributes.get(SIZE_ATTRIBUTE) : attributes.get(LEGACY_SIZE_ATTRIBUTE);
+    if (size == null || size.stringValue() == null)return -1;
+    try{
+      return Long.parseLong(size.stringValue());
+    }catch(NumberFormatException nfe){
+      return -1;
+    }
+  }
+
+  /**
+   * @return bucket, or top level directory, of the payload
+   */
+  public String bucket(){
+    return bucket;
+  }
+
+  /**
+   * @return key of the payload in its bucket
+   */
+  public String key(){
+    return key;
+  }
+
+  /**
+   * @return payload size in bytes. -1 when unknown
+   */
+  public long size(){
+    return size;
+  }
+
+  /**
+   * pointers to the same bucket and key are equal whatever size they report
+   */
+  @Override
+  public boolean equals(Object other){
+    if (this == other)return true;
+    if (!(other instanceof PayloadPointer))return false;
+    PayloadPointer pointer = (PayloadPointer)other;
+    return bucket.equals(pointer.bucket) && key.equals(pointer.key);
+  }
+
+  @Override
+  public int hashCode(){
+    return Objects.hash(bucket, key);
+  }
+
+  @Override
+  public String toString(){
+    return bucket + "/" + key;
+  }
+}
@@ -0,0 +1,19 @@
+package alexhelmacy.sqsd.claimcheck;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Where claim-check payloads are read from. Implement this for an object store such as S3. FileSystemPayloadStore reads
+ * them from a local directory.
+ */
+@FunctionalInterface
+public interface PayloadStore{
+  /**
+   * open a payload for reading. Called from many processing threads at once
+   * @param pointer where the payload is stored
+   * @return a stream of the payload. The caller closes it
+   * @throws IOException if the payload cannot be read. the message is not deleted and will be redelivered by SQS.
+   */
+  InputStream open(PayloadPointer pointer) throws IOException;
+}
@@ -0,0 +1,19 @@
+package alexhelmacy.sqsd.decode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * One step of decoding a message body, such as base64 or gzip. Steps run in order on the bytes of the previous step.
+ */
+@FunctionalInterface
+public interface BodyDecoder{
+  /**
+   * decode the bytes between position and limit
+   * @param encoded the encoded bytes. Owned by the caller
+   * @param buffers pool the decoded bytes should be written to
+   * @return the decoded bytes between position and limit. A buffer from the pool, or encoded itself when nothing changed
+   * @throws IOException if the bytes are not valid for this encoding
+   */
+  ByteBuffer decode(ByteBuffer encoded, BufferPool buffers) throws IOException;
+}
@@ -0,0 +1,91 @@
+package alexhelmacy.sqsd.decode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The body decoders built into SqsD. Each one streams the encoded bytes straight into a pooled buffer, so a body is decoded
+ * without intermediate byte arrays or Strings.
+ */
+public final class BodyDecoders{
+  private BodyDecoders(){}
+
+  /**
+   * @return a decoder for base64 bodies. Line breaks and other characters outside the base64 alphabet are skipped
+   */
+  public static BodyDecoder base64(){
+    return (encoded, buffers) -> {
+      try (InputStream in = Base64.getMimeDecoder().wrap(new ByteBufferInputStream(encoded))){
+        return readFully(in, encoded.remaining() / 4 * 3, buffers);
+      }
+    };
+  }
+
+  /**
+   * @return a decoder for gzip bodies
+   */
+  public static BodyDecoder gzip(){
+    return (encoded, buffers) -> {
+      try (InputStream in = new GZIPInputStream(new ByteBufferInputStream(encoded))){
+        return readFully(in, encoded.remaining() * 4, buffers);
+      }
+    };
+  }
+
+  /**
+   * @return a decoder for zlib deflate bodies
+   */
+  public static BodyDecoder deflate(){
+    return (encoded, buffers) -> {
+      try (InputStream in = new InflaterInputStream(new ByteBufferInputStream(encoded))){
+        return readFully(in, encoded.remaining() * 4, buffers);
+      }
+    };
+  }
+
+  /**
+   * look up a built in decoder
+   * @param name base64, gzip or deflate
+   * @return the decoder
+   * @throws IllegalArgumentException if there is no decoder with that name
+   */
+  public static BodyDecoder forName(String name){
+    switch (name.trim().toLowerCase(Locale.ROOT)){
+      case "base64": return base64();
+      case "gzip": return gzip();
+      case "deflate": return deflate();
+      default: throw new IllegalArgumentException("Unknown body decoder: " + name);
+    }
+  }
+
+  /**
+   * read a stream to its end into a pooled buffer
+   * @param in the stream
+   * @param sizeHint the expected number of bytes
+   * @param buffers the pool
+   * @return the bytes read between position and limit
+   * @throws IOException if the stream fails
+   */
+  static ByteBuffer readFully(InputStream in, int sizeHint, BufferPool buffers) throws IOException{
+    ByteBuffer out = buffers.acquire(Math.max(sizeHint, 1));
+    try{
+      while (true){
+        out = buffers.ensureRemaining(out, 1);
+        int read = in.read(out.array(), out.arrayOffset() + out.position(), out.remaining());
+        if (read < 0)break;
+        ((Buffer)out).position(out.position() + read);//Buffer keeps the call Java 8 compatible when built on a newer JDK
+      }
+    }catch(IOException | RuntimeException e){
+      buffers.release(out);
+      throw e;
+    }
+    ((Buffer)out).flip();
+    return out;
+  }
+}
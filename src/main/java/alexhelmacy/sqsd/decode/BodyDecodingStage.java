@@ -0,0 +1,149 @@
+package alexhelmacy.sqsd.decode;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import alexhelmacy.sqsd.processor.MessageHandler;
+
+import software.amazon.awssdk.services.sqs.model.Message;
+
+/**
+ * Decodes message bodies before they reach a handler, for example base64 then gzip. The SDK hands over each body as a String,
+ * so the stage encodes it once into a pooled buffer and runs every decoder buffer to buffer. Handlers then read the result
+ * through views of that buffer, and the buffers are reused by the next message on the same thread.
+ */
+public class BodyDecodingStage{
+  private static final ThreadLocal<CharsetEncoder> UTF8 = ThreadLocal.withInitial(StandardCharsets.UTF_8::newEncoder);//encoders are not thread safe
+
+  /**
+   * return a body decoding stage builder
+   * @return a new instance of a BodyDecodingStageBuilder
+   */
+  public static final BodyDecodingStageBuilder builder(){
+    return new BodyDecodingStageBuilder();
+  }
+
+  /**
+   * BodyDecodingStage builder class
+   */
+  public static final class BodyDecodingStageBuilder{
+    private final List<BodyDecoder> decoders = new ArrayList<>();//decoders in the order they run
+    private BufferPool bufferPool = null;//pool the decoded bytes are written to
+
+    /**
+     * add a decoder after the ones added so far
+     * @param decoder the decoder
+     * @return itself
+     */
+    public final BodyDecodingStageBuilder decoder(BodyDecoder decoder){
+      this.decoders.add(decoder);
+      return this;
+    }
+
+    /**
+     * sets the pool the decoded bytes are written to. A pool with default settings is used when not set
+     * @param bufferPool the pool
+     * @return itself
+     */
+    public final BodyDecodingStageBuilder bufferPool(BufferPool bufferPool){
+      this.bufferPool = bufferPool;
+      return this;
+    }
+
+    /**
+     * build the stage
+     * @return a new BodyDecodingStage
+     */
+    public final BodyDecodingStage build(){
+      if (decoders.contains(null))throw new IllegalArgumentException("Body decoders must not be null");
+      return new BodyDecodingStage(this);
+    }
+  }
+
+  private final List<BodyDecoder> DECODERS;//decoders in the order they run
+  private final BufferPool BUFFERS;//pool the decoded bytes are written to
+
+  /**
+   * BodyDecodingStage constructor
+   * @param builder the body decoding stage builder
+   */
+  BodyDecodingStage(BodyDecodingStageBuilder builder){
+    DECODERS = Collections.unmodifiableList(new ArrayList<>(builder.decoders));
+    BUFFERS = builder.bufferPool != null ? builder.bufferPool : BufferPool.builder().build();
+  }
+
+  /**
+   * decode the body of a message. Close the result to hand its buffer back
+   * @param message the message
+   * @return the decoded body
+   * @throws IOException if a decoder rejects the body
+   */
+  public DecodedBody decode(Message message) throws IOException{
+    if (DECODERS.isEmpty())return new DecodedBody(message, null, BUFFERS);
+    ByteBuffer bytes = null;
+    try{
+      bytes = encode(message.body(), BUFFERS);
+      for (BodyDecoder decoder: DECODERS){
+        ByteBuffer decoded = decoder.decode(bytes, BUFFERS);
+        if (decoded != bytes)BUFFERS.release(bytes);
+        bytes = decoded;
+      }
+    }catch(IOException | RuntimeException e){
+      BUFFERS.release(bytes);
+      throw new IOException("Failed to decode message " + message.messageId() + ": " + e.getMessage(), e);
+    }
+    return new DecodedBody(message, bytes, BUFFERS);
+  }
+
+  /**
+   * wrap a handler of decoded bodies so it can be used wherever a MessageHandler is expected
+   * @param handler the handler of decoded bodies
+   * @return a MessageHandler that decodes each body, hands it over and releases it afterwards
+   */
+  public MessageHandler handler(DecodedMessageHandler handler){
+    return message -> {
+      try (DecodedBody body = decode(message)){
+        handler.handle(body);
+      }
+    };
+  }
+
+  /**
+   * @return the pool the decoded bytes are written to
+   */
+  public BufferPool bufferPool(){
+    return BUFFERS;
+  }
+
+  /**
+   * encode a body as UTF-8 into a pooled buffer
+   * @param body the body
+   * @param buffers the pool
+   * @return the bytes between position and limit
+   */
+  static ByteBuffer encode(String body, BufferPool buffers){
+    CharsetEncoder encoder = UTF8.get().reset();
+    CharBuffer chars = CharBuffer.wrap(body);
+    ByteBuffer bytes = buffers.acquire(body.length() + 16);//exact for ASCII bodies such as base64
+    while (true){
+      CoderResult result = encoder.encode(chars, bytes, true);
+      if (result.isUnderflow())result = encoder.flush(bytes);
+      if (result.isUnderflow())break;
+      if (!result.isOverflow()){//unpaired surrogates
+        buffers.release(bytes);
+        throw new IllegalStateException("Cannot encode message body: " + result);
+      }
+      bytes = buffers.ensureRemaining(bytes, Math.max(16, chars.remaining() * 3));
+    }
+    ((Buffer)bytes).flip();
+    return bytes;
+  }
+}
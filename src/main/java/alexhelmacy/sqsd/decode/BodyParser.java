@@ -0,0 +1,18 @@
+package alexhelmacy.sqsd.decode;
+
+import java.io.IOException;
+
+/**
+ * Turns a decoded body into a typed value. The value is cached on the body, so each parser runs at most once per message.
+ * @param <T> the type of the value
+ */
+@FunctionalInterface
+public interface BodyParser<T>{
+  /**
+   * parse the body
+   * @param body the decoded body
+   * @return the value
+   * @throws IOException if the body cannot be parsed
+   */
+  T parse(DecodedBody body) throws IOException;
+}
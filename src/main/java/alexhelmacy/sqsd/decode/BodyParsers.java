@@ -0,0 +1,29 @@
+package alexhelmacy.sqsd.decode;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import software.amazon.awssdk.protocols.jsoncore.JsonNode;
+import software.amazon.awssdk.protocols.jsoncore.JsonNodeParser;
+
+/**
+ * The body parsers built into SqsD.
+ */
+public final class BodyParsers{
+  private static final BodyParser<JsonNode> JSON = body -> {//one instance so the parsed value is shared by every caller
+    try (InputStream in = body.inputStream()){
+      return JsonNodeParser.create().parse(in);
+    }catch(RuntimeException e){//the parser reports malformed JSON unchecked
+      throw new IOException("Body of message " + body.message().messageId() + " is not JSON: " + e.getMessage(), e);
+    }
+  };
+
+  private BodyParsers(){}
+
+  /**
+   * @return a parser that streams the decoded bytes into the SDK's JSON tree
+   */
+  public static BodyParser<JsonNode> json(){
+    return JSON;
+  }
+}
@@ -0,0 +1,146 @@
+package alexhelmacy.sqsd.decode;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Scratch byte buffers reused by the threads that decode message bodies.
+ * Each thread keeps a few released buffers and hands them out again before allocating. Capacities are rounded up to a power of
+ * two so buffers fit many body sizes, and buffers above the max size are left to the garbage collector.
+ */
+public class BufferPool{
+  private static final int MIN_CAPACITY = 4096;//smallest buffer allocated
+
+  /**
+   * return a buffer pool builder
+   * @return a new instance of a BufferPoolBuilder
+   */
+  public static final BufferPoolBuilder builder(){
+    return new BufferPoolBuilder();
+  }
+
+  /**
+   * BufferPool builder class
+   */
+  public static final class BufferPoolBuilder{
+    private int maxBufferBytes = 1024 * 1024;//larger buffers are not kept
+    private int buffersPerThread = 4;//released buffers each thread keeps
+
+    /**
+     * sets the largest buffer kept for reuse
+     * @param maxBufferBytes the capacity in bytes
+     * @return itself
+     */
+    public final BufferPoolBuilder maxBufferBytes(int maxBufferBytes){
+      this.maxBufferBytes = maxBufferBytes;
+      return this;
+    }
+
+    /**
+     * sets how many released buffers each thread keeps
+     * @param buffersPerThread the number of buffers
+     * @return itself
+     */
+    public final BufferPoolBuilder buffersPerThread(int buffersPerThread){
+      this.buffersPerThread = buffersPerThread;
+      return this;
+    }
+
+    /**
+     * build the pool
+     * @return a new BufferPool
+     */
+    public final BufferPool build(){
+      if (maxBufferBytes < MIN_CAPACITY)throw new IllegalArgumentException("Max buffer size must be at least " + MIN_CAPACITY + " bytes");
+      if (buffersPerThread < 0)throw new IllegalArgumentException("Buffers per thread must not be negative");
+      return new BufferPool(this);
+    }
+  }
+
+  private final int MAX_BUFFER_BYTES;//larger buffers are not kept
+  private final int BUFFERS_PER_THREAD;//released buffers each thread keeps
+  private final ThreadLocal<ArrayDeque<ByteBuffer>> FREE = ThreadLocal.withInitial(ArrayDeque::new);//released buffers of each thread
+  private final LongAdder allocated = new LongAdder();//buffers allocated
+  private final LongAdder reused = new LongAdder();//buffers handed out again
+
+  /**
+   * BufferPool constructor
+   * @param builder the buffer pool builder
+   */
+  BufferPool(BufferPoolBuilder builder){
+    MAX_BUFFER_BYTES = builder.maxBufferBytes;
+    BUFFERS_PER_THREAD = builder.buffersPerThread;
+  }
+
+  /**
+   * take a cleared buffer
+   * @param minCapacity the least capacity needed
+   * @return a buffer with at least minCapacity bytes. Release it when done
+   */
+  public ByteBuffer acquire(int minCapacity){
+    ArrayDeque<ByteBuffer> free = FREE.get();
+    for (Iterator<ByteBuffer> buffers = free.iterator(); buffers.hasNext();){
+      ByteBuffer buffer = buffers.next();
+      if (buffer.capacity() >= minCapacity){
+        buffers.remove();
+        reused.increment();
+        ((Buffer)buffer).clear();
+        return buffer;
+      }
+    }
+    allocated.increment();
+    return ByteBuffer.allocate(capacityFor(minCapacity));
+  }
+
+  /**
+   * give a buffer back. The buffer must not be used afterwards
+   * @param buffer the buffer. may be null
+   */
+  public void release(ByteBuffer buffer){
+    if (buffer == null || buffer.isReadOnly() || buffer.capacity() > MAX_BUFFER_BYTES)return;
+    ArrayDeque<ByteBuffer> free = FREE.get();
+    if (free.size() < BUFFERS_PER_THREAD)free.push(buffer);
+  }
+
+  /**
+   * make room for more bytes. The content written so far is kept
+   * @param buffer a buffer in write mode from this pool
+   * @param more bytes about to be written
+   * @return the same buffer, or a larger one holding its content. The smaller buffer is released
+   */
+  public ByteBuffer ensureRemaining(ByteBuffer buffer, int more){
+    if (buffer.remaining() >= more)return buffer;
+    ByteBuffer larger = acquire(Math.max(buffer.position() + more, buffer.capacity() * 2));
+    ((Buffer)buffer).flip();
+    larger.put(buffer);
+    release(buffer);
+    return larger;
+  }
+
+  /**
+   * @return buffers allocated
+   */
+  public long allocated(){
+    return allocated.sum();
+  }
+
+  /**
+   * @return buffers handed out again instead of allocated
+   */
+  public long reused(){
+    return reused.sum();
+  }
+
+  /**
+   * @param minCapacity the least capacity needed
+   * @return the next power of two, at least MIN_CAPACITY
+   */
+  private static int capacityFor(int minCapacity){
+    if (minCapacity <= MIN_CAPACITY)return MIN_CAPACITY;
+    int capacity = Integer.highestOneBit(minCapacity - 1) << 1;
+    return capacity > 0 ? capacity : Integer.MAX_VALUE - 8;//past 1GB. no power of two fits
+  }
+}
@@ -0,0 +1,46 @@
+package alexhelmacy.sqsd.decode;
+
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the bytes between position and limit of a buffer without copying them out first.
+ */
+class ByteBufferInputStream extends InputStream{
+  private final ByteBuffer buffer;//a view of the bytes left to read
+
+  /**
+   * Constructor
+   * @param buffer the bytes to read. Its position is not changed
+   */
+  ByteBufferInputStream(ByteBuffer buffer){
+    this.buffer = buffer.duplicate();
+  }
+
+  @Override
+  public int read(){
+    return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+  }
+
+  @Override
+  public int read(byte[] bytes, int offset, int length){
+    if (length == 0)return 0;
+    if (!buffer.hasRemaining())return -1;
+    int count = Math.min(length, buffer.remaining());
+    buffer.get(bytes, offset, count);
+    return count;
+  }
+
+  @Override
+  public long skip(long count){
+    int skipped = (int)Math.max(0, Math.min(count, buffer.remaining()));
+    ((Buffer)buffer).position(buffer.position() + skipped);
+    return skipped;
+  }
+
+  @Override
+  public int available(){
+    return buffer.remaining();
+  }
+}
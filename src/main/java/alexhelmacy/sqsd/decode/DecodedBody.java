@@ -0,0 +1,110 @@
+package alexhelmacy.sqsd.decode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import software.amazon.awssdk.services.sqs.model.Message;
+
+/**
+ * The decoded body of one message. The bytes live in a pooled buffer that is handed back when the body is closed, and every
+ * view of the body reads that buffer instead of copying it. Views and parsed values are built on first use only.
+ */
+public class DecodedBody implements AutoCloseable{
+  private final Message MESSAGE;//the message the body belongs to
+  private final BufferPool BUFFERS;//pool the bytes came from
+  private final boolean DECODED;//false when the body is the message body unchanged
+  private ByteBuffer bytes;//the decoded bytes between position and limit. built on first use when not decoded
+  private CharSequence text = null;//the body as text. built on first use
+  private Map<BodyParser<?>, Object> parsed = null;//values of the parsers used so far
+  private boolean closed = false;//the bytes were handed back to the pool
+
+  /**
+   * DecodedBody constructor
+   * @param message the message
+   * @param bytes the decoded bytes. null when the body was not decoded
+   * @param buffers pool the bytes came from
+   */
+  DecodedBody(Message message, ByteBuffer bytes, BufferPool buffers){
+    MESSAGE = message;
+    BUFFERS = buffers;
+    DECODED = bytes != null;
+    this.bytes = bytes;
+  }
+
+  /**
+   * @return the message the body belongs to
+   */
+  public Message message(){
+    return MESSAGE;
+  }
+
+  /**
+   * @return a read only view of the decoded bytes. Valid until the body is closed
+   */
+  public ByteBuffer bytes(){
+    checkOpen();
+    if (bytes == null)bytes = BodyDecodingStage.encode(MESSAGE.body(), BUFFERS);
+    return bytes.asReadOnlyBuffer();
+  }
+
+  /**
+   * the body as UTF-8 text. This is the message body itself when no decoder ran
+   * @return the text. Valid until the body is closed
+   * @throws CharacterCodingException if the decoded bytes are not UTF-8
+   */
+  public CharSequence text() throws CharacterCodingException{
+    if (!DECODED)return MESSAGE.body();
+    checkOpen();
+    if (text == null)text = StandardCharsets.UTF_8.newDecoder().decode(bytes.duplicate());
+    return text;
+  }
+
+  /**
+   * @return a stream over the decoded bytes. Valid until the body is closed
+   */
+  public InputStream inputStream(){
+    return new ByteBufferInputStream(bytes());
+  }
+
+  /**
+   * parse the body. Each parser runs once per body and its value is reused
+   * @param <T> the type of the value
+   * @param parser the parser
+   * @return the parsed value
+   * @throws IOException if the body cannot be parsed
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T as(BodyParser<T> parser) throws IOException{
+    checkOpen();
+    if (parsed == null)parsed = new IdentityHashMap<>(2);
+    if (parsed.containsKey(parser))return (T)parsed.get(parser);
+    T value = parser.parse(this);
+    parsed.put(parser, value);
+    return value;
+  }
+
+  /**
+   * hand the bytes back to the pool. Views of the body must not be used afterwards
+   */
+  @Override
+  public void close(){
+    if (closed)return;
+    closed = true;
+    BUFFERS.release(bytes);
+    bytes = null;
+    text = null;
+    parsed = null;
+  }
+
+  /**
+   * @throws IllegalStateException if the body is closed
+   */
+  private void checkOpen(){
+    if (closed)throw new IllegalStateException("Body of message " + MESSAGE.messageId() + " is closed");
+  }
+}
@@ -0,0 +1,14 @@
+package alexhelmacy.sqsd.decode;
+
+/**
+ * Handles a message whose body went through a BodyDecodingStage.
+ */
+@FunctionalInterface
+public interface DecodedMessageHandler{
+  /**
+   * handle one decoded message. The body and its views are only valid during the call
+   * @param body the decoded body and its message
+   * @throws Exception if the message could not be handled. the message is not deleted and will be redelivered by SQS.
+   */
+  void handle(DecodedBody body) throws Exception;
+}
@@ -0,0 +1,31 @@
+package alexhelmacy.sqsd.decode;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Example decoded message handler. Logs the decoded body, or the parsed value when a parser is set.
+ */
+public class ExampleDecodedMessageHandler implements DecodedMessageHandler{
+  private final Logger logger;//logger for the handler
+  private final BodyParser<?> parser;//parses the body before it is logged. may be null
+
+  /**
+   * Constructor
+   * @param parser parses the body before it is logged. the text is logged when null
+   */
+  public ExampleDecodedMessageHandler(BodyParser<?> parser){
+    this.logger = LoggerFactory.getLogger(ExampleDecodedMessageHandler.class.getSimpleName());
+    this.parser = parser;
+  }
+
+  /**
+   * log the decoded body
+   * @param body the decoded body
+   * @throws Exception if the body cannot be parsed
+   */
+  @Override
+  public void handle(DecodedBody body) throws Exception{
+    logger.info("Receive Message: {} {}", body.message().messageId(), parser != null ? body.as(parser) : body.text());
+  }
+}
@@ -0,0 +1,273 @@
+package alexhelmacy.sqsd.dedup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import alexhelmacy.sqsd.processor.MessageHandler;
+
+import software.amazon.awssdk.services.sqs.model.Message;
+
+/**
+ * Remembers messages that were already handled so a redelivery can be deleted without handling it again. Standard queues
+ * deliver at least once. A message whose delete failed, or whose visibility expired after it was handled, comes back and
+ * would otherwise run through the handler a second time.
+ * Keys are kept as 64 bit fingerprints with an expiry time in a fixed table of primitive slots, on or off heap. The table is
+ * set associative: a key can only live in the 8 slots of its set, so a lookup never probes further. Expired slots are reused,
+ * and a full set evicts its entry closest to expiry, which keeps the memory bounded whatever the rate.
+ */
+public class DedupCache{
+  private static final int WAYS = 8;//slots per set
+  private static final int MAX_STRIPES = 256;//locks guarding the sets
+  private static final long BODY_SALT = 0x9e3779b97f4a7c15L;//keeps body fingerprints apart from message id fingerprints
+
+  /**
+   * what identifies a message as already handled
+   */
+  public enum Key{
+    MESSAGE_ID,//the same message redelivered by SQS
+    BODY_MD5//any message with the same body, such as a producer retrying a send
+  }
+
+  /**
+   * return a dedup cache builder
+   * @return a new instance of a DedupCacheBuilder
+   */
+  public static final DedupCacheBuilder builder(){
+    return new DedupCacheBuilder();
+  }
+
+  /**
+   * DedupCache builder class
+   */
+  public static final class DedupCacheBuilder{
+    private int maxEntries = 100_000;//keys remembered at most
+    private long ttlMillis = TimeUnit.HOURS.toMillis(1);//how long a key is remembered
+    private Set<Key> keys = EnumSet.of(Key.MESSAGE_ID);//what identifies a message
+    private boolean offHeap = false;//keep the table outside the java heap
+
+    /**
+     * sets how many keys are remembered at most. Rounded up to a power of two
+     * @param maxEntries the number of keys
+     * @return itself
+     */
+    public final DedupCacheBuilder maxEntries(int maxEntries){
+      this.maxEntries = maxEntries;
+      return this;
+    }
+
+    /**
+     * sets how long a handled message is remembered
+     * @param ttlMillis the time in milliseconds
+     * @return itself
+     */
+    public final DedupCacheBuilder ttlMillis(long ttlMillis){
+      this.ttlMillis = ttlMillis;
+      return this;
+    }
+
+    /**
+     * sets what identifies a message. A message is a duplicate when any of its keys was seen
+     * @param keys the keys
+     * @return itself
+     */
+    public final DedupCacheBuilder keys(Key... keys){
+      this.keys = keys.length > 0 ? EnumSet.copyOf(Arrays.asList(keys)) : EnumSet.noneOf(Key.class);
+      return this;
+    }
+
+    /**
+     * sets whether the table lives in a direct buffer outside the java heap. Useful for windows of millions of messages
+     * @param offHeap true for a direct buffer
+     * @return itself
+     */
+    public final DedupCacheBuilder offHeap(boolean offHeap){
+      this.offHeap = offHeap;
+      return this;
+    }
+
+    /**
+     * build the cache
+     * @return a new DedupCache
+     */
+    public final DedupCache build(){
+      if (maxEntries < WAYS || maxEntries > 1 << 26)throw new IllegalArgumentException("Max entries must be between " + WAYS + " and " + (1 << 26));
+      if (ttlMillis <= 0)throw new IllegalArgumentException("TTL must be positive");
+      if (keys.isEmpty())throw new IllegalArgumentException("At least one key must be specified");
+      return new DedupCache(this);
+    }
+  }
+
+  private final LongBuffer SLOTS;//fingerprint and expiry of each slot. 0 marks an empty slot
+  private final int SET_MASK;//sets - 1
+  private final Object[] STRIPES;//lock of each group of sets
+  private final long TTL_MILLIS;//how long a key is remembered
+  private final boolean MESSAGE_ID;//key on the message id
+  private final boolean BODY_MD5;//key on the md5 of the body
+  private final LongAdder duplicates = new LongAdder();//messages found already handled
+  private final LongAdder evictions = new LongAdder();//live keys pushed out by a full set
+
+  /**
+   * DedupCache constructor
+   * @param builder the dedup cache builder
+   */
+  DedupCache(DedupCacheBuilder builder){
+    int capacity = Integer.highestOneBit(builder.maxEntries - 1) << 1;
+    SLOTS = builder.offHeap ? ByteBuffer.allocateDirect(capacity * 2 * Long.BYTES).order(ByteOrder.nativeOrder()).asLongBuffer() : LongBuffer.allocate(capacity * 2);
+    int sets = capacity / WAYS;
+    SET_MASK = sets - 1;
+    STRIPES = new Object[Math.min(sets, MAX_STRIPES)];
+    for (int i = 0; i < STRIPES.length; i++)STRIPES[i] = new Object();
+    TTL_MILLIS = builder.ttlMillis;
+    MESSAGE_ID = builder.keys.contains(Key.MESSAGE_ID);
+    BODY_MD5 = builder.keys.contains(Key.BODY_MD5);
+  }
+
+  /**
+   * check whether a message was already handled. Counts a duplicate when it was
+   * @param message the message
+   * @return true if any key of the message is remembered
+   */
+  public boolean completed(Message message){
+    long now = System.currentTimeMillis();
+    boolean found = (MESSAGE_ID && contains(fingerprint(message.messageId(), 0), now)) || (BODY_MD5 && contains(fingerprint(message.md5OfBody(), BODY_SALT), now));
+    if (found)duplicates.increment();
+    return found;
+  }
+
+  /**
+   * remember that a message was handled
+   * @param message the message
+   */
+  public void complete(Message message){
+    long expiry = System.currentTimeMillis() + TTL_MILLIS;
+    if (MESSAGE_ID)put(fingerprint(message.messageId(), 0), expiry);
+    if (BODY_MD5)put(fingerprint(message.md5OfBody(), BODY_SALT), expiry);
+  }
+
+  /**
+   * remember every message of a list
+   * @param messages the handled messages
+   */
+  public void complete(List<Message> messages){
+    for (Message message: messages)complete(message);
+  }
+
+  /**
+   * split off the messages that were already handled
+   * @param messages the received messages
+   * @return the messages already handled. empty when there are none
+   */
+  public List<Message> duplicates(List<Message> messages){
+    List<Message> found = null;
+    for (Message message: messages){
+      if (!completed(message))continue;
+      if (found == null)found = new ArrayList<>();
+      found.add(message);
+    }
+    return found != null ? found : Collections.emptyList();
+  }
+
+  /**
+   * wrap a handler so every message it handles is remembered
+   * @param handler the handler
+   * @return a handler that remembers each message it handled successfully
+   */
+  public MessageHandler completing(MessageHandler handler){
+    return message -> {
+      handler.handle(message);
+      complete(message);
+    };
+  }
+
+  /**
+   * @return messages found already handled
+   */
+  public long duplicates(){
+    return duplicates.sum();
+  }
+
+  /**
+   * @return live keys pushed out because their set was full. Grow max entries when this keeps rising
+   */
+  public long evictions(){
+    return evictions.sum();
+  }
+
+  /**
+   * @param fingerprint the key fingerprint. 0 when the key is missing
+   * @param now the current time in milliseconds
+   * @return true if the key is in the table and not expired
+   */
+  private boolean contains(long fingerprint, long now){
+    if (fingerprint == 0)return false;
+    int set = (int)fingerprint & SET_MASK;
+    synchronized (STRIPES[set & (STRIPES.length - 1)]){
+      int base = set * WAYS * 2;
+      for (int way = 0; way < WAYS; way++){
+        int slot = base + way * 2;
+        if (SLOTS.get(slot) == fingerprint)return SLOTS.get(slot + 1) > now;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * add or refresh a key. Takes the key's slot, an empty or expired slot, or the slot closest to expiry in that order
+   * @param fingerprint the key fingerprint. 0 when the key is missing
+   * @param expiry when the key expires in epoch milliseconds
+   */
+  private void put(long fingerprint, long expiry){
+    if (fingerprint == 0)return;
+    long now = expiry - TTL_MILLIS;
+    int set = (int)fingerprint & SET_MASK;
+    synchronized (STRIPES[set & (STRIPES.length - 1)]){
+      int base = set * WAYS * 2;
+      int victim = -1;//slot to take when the key is not there
+      long victimExpiry = Long.MAX_VALUE;
+      for (int way = 0; way < WAYS; way++){
+        int slot = base + way * 2;
+        long stored = SLOTS.get(slot);
+        if (stored == fingerprint){
+          SLOTS.put(slot + 1, expiry);
+          return;
+        }
+        long storedExpiry = stored == 0 ? Long.MIN_VALUE : SLOTS.get(slot + 1);
+        if (storedExpiry < victimExpiry){
+          victim = slot;
+          victimExpiry = storedExpiry;
+        }
+      }
+      if (victimExpiry > now)evictions.increment();//the set is full of live keys
+      SLOTS.put(victim, fingerprint);
+      SLOTS.put(victim + 1, expiry);
+    }
+  }
+
+  /**
+   * 64 bit FNV-1a of the key followed by a mixing step so the low bits pick sets evenly
+   * @param key the key. may be null
+   * @param salt separates the kinds of keys
+   * @return the fingerprint, never 0 unless the key is null
+   */
+  private static long fingerprint(String key, long salt){
+    if (key == null)return 0;
+    long hash = 0xcbf29ce484222325L ^ salt;
+    for (int i = 0; i < key.length(); i++){
+      hash ^= key.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    return hash != 0 ? hash : 1;
+  }
+}
@@ -0,0 +1,369 @@
+package alexhelmacy.sqsd.delete;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import alexhelmacy.sqsd.DependencyFactory;
+
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResponse;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResultEntry;
+import software.amazon.awssdk.services.sqs.model.Message;
+
+/**
+ * Collects deletes from every worker and sends them as full DeleteMessageBatch requests.
+ * A queue's pending deletes are flushed when 10 are waiting or when the oldest has waited the max delay, whichever comes first.
+ * Each delete gets its own future that completes with the batch result entry, or exceptionally with a DeleteFailedException.
+ */
+public class DeleteCoalescer implements AutoCloseable{
+  public static final int MAX_BATCH_SIZE = 10;//SQS limit for DeleteMessageBatch
+
+  /**
+   * return a coalescer builder
+   * @return a new instance of a DeleteCoalescerBuilder
+   */
+  public static final DeleteCoalescerBuilder builder(){
+    return new DeleteCoalescerBuilder();
+  }
+
+  /**
+   * DeleteCoalescer builder class
+   */
+  public static final class DeleteCoalescerBuilder{
+    private SqsClient sqs = null;//sqs client. the shared client for the region is used when not set
+    private String region = "us-east-1";//region of the shared client
+    private int maxBatchSize = MAX_BATCH_SIZE;//flush when this many deletes are pending
+    private long maxDelayMillis = 50;//flush when the oldest pending delete has waited this long
+    private int maxRetries = 3;//how many times a failed entry is retried before its future fails
+    private int flushThreads = 2;//threads sending DeleteMessageBatch requests
+    private DeleteRetryScheduler retryScheduler = null;//failed deletes are retried with backoff by it. requeued immediately when not set
+
+    /**
+     * sets the sqs client. The client is not closed by the coalescer
+     * @param sqs the sqs client
+     * @return itself
+     */
+    public final DeleteCoalescerBuilder sqsClient(SqsClient sqs){
+      this.sqs = sqs;
+      return this;
+    }
+
+    /**
+     * sets the region of the shared sqs client. Ignored when an sqs client is set
+     * @param region the region as a string
+     * @return itself
+     */
+    public final DeleteCoalescerBuilder region(String region){
+      this.region = region;
+      return this;
+    }
+
+    /**
+     * sets the batch size that triggers a flush
+     * @param maxBatchSize between 1 and 10
+     * @return itself
+     */
+    public final DeleteCoalescerBuilder maxBatchSize(int maxBatchSize){
+      this.maxBatchSize = maxBatchSize;
+      return this;
+    }
+
+    /**
+     * sets how long a delete can wait for its batch to fill
+     * @param maxDelayMillis the delay in milliseconds
+     * @return itself
+     */
+    public final DeleteCoalescerBuilder maxDelayMillis(long maxDelayMillis){
+      this.maxDelayMillis = maxDelayMillis;
+      return this;
+    }
+
+    /**
+     * sets how many times a failed entry is retried
+     * @param maxRetries the max retries
+     * @return itself
+     */
+    public final DeleteCoalescerBuilder maxRetries(int maxRetries){
+      this.maxRetries = maxRetries;
+      return this;
+    }
+
+    /**
+     * sets the number of threads sending batches
+     * @param flushThreads the number of flush threads
+     * @return itself
+     */
+    public final DeleteCoalescerBuilder flushThreads(int flushThreads){
+      this.flushThreads = flushThreads;
+      return this;
+    }
+
+    /**
+     * sets a retry scheduler. Failed deletes are handed to it instead of being requeued right away. The scheduler is not closed
+     * by the coalescer
+     * @param retryScheduler the shared retry scheduler
+     * @return itself
+     */
+    public final DeleteCoalescerBuilder retryScheduler(DeleteRetryScheduler retryScheduler){
+      this.retryScheduler = retryScheduler;
+      return this;
+    }
+
+    /**
+     * build the coalescer
+     * @return a new DeleteCoalescer
+     */
+    public final DeleteCoalescer build(){
+      if (maxBatchSize <= 0 || maxBatchSize > MAX_BATCH_SIZE)throw new IllegalArgumentException("Max batch size must be between 1 and " + MAX_BATCH_SIZE);
+      if (maxDelayMillis < 0)throw new IllegalArgumentException("Max delay must not be negative");
+      if (flushThreads <= 0)throw new IllegalArgumentException("Flush threads must be at least 1");
+      return new DeleteCoalescer(this);
+    }
+  }
+
+  /**
+   * a delete waiting to be flushed
+   */
+  private static final class PendingDelete{
+    private final Message message;//the message to delete
+    private final CompletableFuture<DeleteMessageBatchResultEntry> future;//completed when the delete finishes
+    private int attempts = 0;//how many times the delete has been sent
+
+    private PendingDelete(Message message){
+      this.message = message;
+      this.future = new CompletableFuture<>();
+    }
+  }
+
+  /**
+   * pending deletes for a single queue
+   */
+  private final class QueueBuffer{
+    private final String queueUrl;//the queue url
+    private List<PendingDelete> pending = new ArrayList<>(MAX_BATCH_SIZE);//deletes waiting for a flush
+    private ScheduledFuture<?> deadline = null;//flushes the buffer when the oldest delete has waited long enough
+
+    private QueueBuffer(String queueUrl){
+      this.queueUrl = queueUrl;
+    }
+
+    /**
+     * add a delete. sends the batch when it is full and arms the deadline when it is the first delete. Checks closed under the
+     * buffer lock, so nothing is added once close flushed the buffer
+     * @param delete the pending delete
+     * @return false if the coalescer is closed. the caller completes the future
+     */
+    private synchronized boolean add(PendingDelete delete){
+      if (closed)return false;
+      pending.add(delete);
+      if (pending.size() >= MAX_BATCH){
+        flushNow();
+      }else if (deadline == null){
+        deadline = SCHEDULER.schedule(this::flushDeadline, MAX_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+      }
+      return true;
+    }
+
+    /**
+     * flush when the deadline passes
+     */
+    private synchronized void flushDeadline(){
+      deadline = null;
+      if (!pending.isEmpty())flushNow();
+    }
+
+    /**
+     * hand the pending deletes to a flush thread
+     */
+    private synchronized void flushNow(){
+      if (deadline != null){
+        deadline.cancel(false);
+        deadline = null;
+      }
+      List<PendingDelete> batch = pending;
+      pending = new ArrayList<>(MAX_BATCH_SIZE);
+      FLUSHERS.execute(() -> send(queueUrl, batch));
+    }
+  }
+
+  private final SqsClient SQS;//sqs client
+  private final String REGION;//region of the shared client. null when the client was provided
+  private final int MAX_BATCH;//flush when this many deletes are pending
+  private final long MAX_DELAY_MILLIS;//flush when the oldest delete has waited this long
+  private final int MAX_RETRIES;//how many times a failed entry is retried
+  private final ScheduledExecutorService SCHEDULER;//runs flush deadlines
+  private final ExecutorService FLUSHERS;//sends DeleteMessageBatch requests
+  private final DeleteRetryScheduler RETRY_SCHEDULER;//retries failed deletes with backoff. may be null
+  private final Map<String, QueueBuffer> BUFFERS = new HashMap<>();//pending deletes by queue url
+  private final Logger LOGGER = LoggerFactory.getLogger(this.getClass().getSimpleName());//logger
+
+  private volatile boolean closed = false;//is the coalescer closed
+
+  /**
+   * DeleteCoalescer constructor
+   * @param builder the coalescer builder
+   */
+  DeleteCoalescer(DeleteCoalescerBuilder builder){
+    if (builder.sqs instanceof SqsClient){
+      this.SQS = builder.sqs;
+      this.REGION = null;
+    }else{
+      this.SQS = DependencyFactory.acquireSqsClient(builder.region);
+      this.REGION = builder.region;
+    }
+    this.MAX_BATCH = builder.maxBatchSize;
+    this.MAX_DELAY_MILLIS = builder.maxDelayMillis;
+    this.MAX_RETRIES = builder.maxRetries;
+    this.SCHEDULER = Executors.newSingleThreadScheduledExecutor();
+    this.FLUSHERS = Executors.newFixedThreadPool(builder.flushThreads);
+    this.RETRY_SCHEDULER = builder.retryScheduler;
+  }
+
+  /**
+   * queue a message for deletion
+   * @param queueUrl the queue the message was received from
+   * @param message the message
+   * @return a future completing with the batch result entry, or exceptionally with a DeleteFailedException
+   */
+  public CompletableFuture<DeleteMessageBatchResultEntry> delete(String queueUrl, Message message){
+    PendingDelete delete = new PendingDelete(message);
+    if (!buffer(queueUrl).add(delete))delete.future.completeExceptionally(new DeleteFailedException(message, new IllegalStateException("Delete coalescer closed")));
+    return delete.future;
+  }
+
+  /**
+   * queue messages for deletion
+   * @param queueUrl the queue the messages were received from
+   * @param messages the messages
+   * @return one future per message in the same order
+   */
+  public List<CompletableFuture<DeleteMessageBatchResultEntry>> delete(String queueUrl, List<Message> messages){
+    List<CompletableFuture<DeleteMessageBatchResultEntry>> futures = new ArrayList<>(messages.size());
+    for (Message message: messages)futures.add(delete(queueUrl, message));
+    return futures;
+  }
+
+  /**
+   * flush every pending delete now
+   */
+  public void flush(){
+    List<QueueBuffer> buffers;
+    synchronized(BUFFERS){
+      buffers = new ArrayList<>(BUFFERS.values());
+    }
+    for (QueueBuffer buffer: buffers){
+      synchronized(buffer){
+        if (!buffer.pending.isEmpty())buffer.flushNow();
+      }
+    }
+  }
+
+  /**
+   * flush pending deletes, wait for them to finish and release the sqs client
+   */
+  @Override
+  public void close(){
+    closed = true;//set before the flush takes each buffer lock, so a delete either makes the flush or is refused
+    flush();
+    SCHEDULER.shutdownNow();
+    FLUSHERS.shutdown();
+    try{
+      if (!FLUSHERS.awaitTermination(30, TimeUnit.SECONDS))LOGGER.warn("Pending deletes did not finish before the timeout");
+    }catch(InterruptedException ie){
+      Thread.currentThread().interrupt();
+    }finally{
+      if (REGION != null)DependencyFactory.releaseSqsClient(REGION);
+    }
+  }
+
+  /**
+   * get or create the buffer of a queue
+   * @param queueUrl the queue url
+   * @return the queue's buffer
+   */
+  private QueueBuffer buffer(String queueUrl){
+    synchronized(BUFFERS){
+      QueueBuffer buffer = BUFFERS.get(queueUrl);
+      if (buffer == null){
+        buffer = new QueueBuffer(queueUrl);
+        BUFFERS.put(queueUrl, buffer);
+      }
+      return buffer;
+    }
+  }
+
+  /**
+   * send one DeleteMessageBatch and complete or retry each entry
+   * @param queueUrl the queue url
+   * @param batch at most 10 pending deletes
+   */
+  private void send(String queueUrl, List<PendingDelete> batch){
+    //entry ids only need to be unique within the request. indexes avoid collisions when the same message is deleted twice
+    List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>(batch.size());
+    for (int i = 0; i < batch.size(); i++){
+      PendingDelete delete = batch.get(i);
+      delete.attempts++;
+      entries.add(DeleteMessageBatchRequestEntry.builder()
+                                                .id(Integer.toString(i))
+                                                .receiptHandle(delete.message.receiptHandle())
+                                                .build());
+    }
+    DeleteMessageBatchResponse response;
+    try{
+      response = SQS.deleteMessageBatch(DeleteMessageBatchRequest.builder()
+                                                                 .queueUrl(queueUrl)
+                                                                 .entries(entries)
+                                                                 .build());
+    }catch(SdkException se){//the whole request failed
+      LOGGER.warn("DeleteMessageBatch failed: " + se.getMessage());
+      for (PendingDelete delete: batch)retryOrFail(queueUrl, delete, new DeleteFailedException(delete.message, se), true);
+      return;
+    }
+    for (DeleteMessageBatchResultEntry successful: response.successful()){
+      batch.get(Integer.parseInt(successful.id())).future.complete(successful);
+    }
+    for (BatchResultErrorEntry failed: response.failed()){
+      PendingDelete delete = batch.get(Integer.parseInt(failed.id()));
+      DeleteFailedException exception = new DeleteFailedException(delete.message, failed);
+      retryOrFail(queueUrl, delete, exception, !exception.senderFault());
+    }
+  }
+
+  /**
+   * requeue a failed delete, hand it to the retry scheduler or fail its future
+   * @param queueUrl the queue url
+   * @param delete the failed delete
+   * @param exception why it failed
+   * @param retryable if the failure can succeed on retry
+   */
+  private void retryOrFail(String queueUrl, PendingDelete delete, DeleteFailedException exception, boolean retryable){
+    if (retryable && RETRY_SCHEDULER != null){//the scheduler backs off and owns the remaining attempts
+      RETRY_SCHEDULER.retry(queueUrl, delete.message).whenComplete((entry, throwable) -> {
+        if (throwable != null){
+          delete.future.completeExceptionally(throwable);
+        }else{
+          delete.future.complete(entry);
+        }
+      });
+      return;
+    }
+    if (retryable && delete.attempts <= MAX_RETRIES && buffer(queueUrl).add(delete))return;//coalesced with other pending deletes
+    delete.future.completeExceptionally(exception);
+  }
+}
@@ -0,0 +1,57 @@
+package alexhelmacy.sqsd.delete;
+
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.Message;
+
+/**
+ * A message could not be deleted. The message will be redelivered by SQS once its visibility timeout expires.
+ */
+public class DeleteFailedException extends RuntimeException{
+  private static final long serialVersionUID = 1L;
+
+  private final transient Message failedMessage;//the message that was not deleted
+  private final transient BatchResultErrorEntry errorEntry;//the batch error entry. null if the whole request failed
+
+  /**
+   * Constructor for a failed batch entry
+   * @param message the message that was not deleted
+   * @param errorEntry the error entry returned by DeleteMessageBatch
+   */
+  public DeleteFailedException(Message message, BatchResultErrorEntry errorEntry){
+    super("Failed to delete message " + message.messageId() + ": " + errorEntry.code() + " " + errorEntry.message());
+    this.failedMessage = message;
+    this.errorEntry = errorEntry;
+  }
+
+  /**
+   * Constructor for a failed request
+   * @param message the message that was not deleted
+   * @param cause why the request failed
+   */
+  public DeleteFailedException(Message message, Throwable cause){
+    super("Failed to delete message " + message.messageId() + ": " + cause.getMessage(), cause);
+    this.failedMessage = message;
+    this.errorEntry = null;
+  }
+
+  /**
+   * @return the message that was not deleted
+   */
+  public Message failedMessage(){
+    return failedMessage;
+  }
+
+  /**
+   * @return the batch error entry. null if the whole request failed
+   */
+  public BatchResultErrorEntry errorEntry(){
+    return errorEntry;
+  }
+
+  /**
+   * @return if the failure was caused by the sender, e.g. an expired receipt handle. These will not succeed on retry.
+   */
+  public boolean senderFault(){
+    return errorEntry != null && Boolean.TRUE.equals(errorEntry.senderFault());
+  }
+}
@@ -0,0 +1,392 @@
+package alexhelmacy.sqsd.delete;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import alexhelmacy.sqsd.DependencyFactory;
+
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResponse;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResultEntry;
+import software.amazon.awssdk.services.sqs.model.Message;
+
+/**
+ * Retries failed deletes from every worker in the background so a worker can go back to receiving right away.
+ * Each retry waits a random delay between 0 and min(max delay, base delay * 2^attempt), i.e. capped exponential backoff with full
+ * jitter. Retries from every worker wait in one schedule. When the earliest is due, everything due within the coalesce window is
+ * sent together as DeleteMessageBatch requests of up to 10 entries per queue.
+ * Each retried message gets a future that completes with the batch result entry, or exceptionally with a DeleteFailedException
+ * once the failure is the sender's fault or the attempts run out.
+ */
+public class DeleteRetryScheduler implements AutoCloseable{
+  public static final int MAX_BATCH_SIZE = 10;//SQS limit for DeleteMessageBatch
+
+  /**
+   * return a retry scheduler builder
+   * @return a new instance of a DeleteRetrySchedulerBuilder
+   */
+  public static final DeleteRetrySchedulerBuilder builder(){
+    return new DeleteRetrySchedulerBuilder();
+  }
+
+  /**
+   * DeleteRetryScheduler builder class
+   */
+  public static final class DeleteRetrySchedulerBuilder{
+    private SqsClient sqs = null;//sqs client. the shared client for the region is used when not set
+    private String region = "us-east-1";//region of the shared client
+    private long baseDelayMillis = 50;//delay cap of the first retry
+    private long maxDelayMillis = 5000;//largest delay cap
+    private int maxAttempts = 10;//retries before a delete fails
+    private long coalesceMillis = 20;//retries due this soon are sent with the earliest
+    private int senderThreads = 2;//threads sending DeleteMessageBatch requests
+
+    /**
+     * sets the sqs client. The client is not closed by the scheduler
+     * @param sqs the sqs client
+     * @return itself
+     */
+    public final DeleteRetrySchedulerBuilder sqsClient(SqsClient sqs){
+      this.sqs = sqs;
+      return this;
+    }
+
+    /**
+     * sets the region of the shared sqs client. Ignored when an sqs client is set
+     * @param region the region as a string
+     * @return itself
+     */
+    public final DeleteRetrySchedulerBuilder region(String region){
+      this.region = region;
+      return this;
+    }
+
+    /**
+     * sets the delay cap of the first retry. Doubles every attempt
+     * @param baseDelayMillis the delay in milliseconds
+     * @return itself
+     */
+    public final DeleteRetrySchedulerBuilder baseDelayMillis(long baseDelayMillis){
+      this.baseDelayMillis = baseDelayMillis;
+      return this;
+    }
+
+    /**
+     * sets the largest delay cap
+     * @param maxDelayMillis the delay in milliseconds
+     * @return itself
+     */
+    public final DeleteRetrySchedulerBuilder maxDelayMillis(long maxDelayMillis){
+      this.maxDelayMillis = maxDelayMillis;
+      return this;
+    }
+
+    /**
+     * sets how many times a delete is retried before its future fails
+     * @param maxAttempts the max attempts
+     * @return itself
+     */
+    public final DeleteRetrySchedulerBuilder maxAttempts(int maxAttempts){
+      this.maxAttempts = maxAttempts;
+      return this;
+    }
+
+    /**
+     * sets how early a retry can be sent to share a batch with the retry that is due
+     * @param coalesceMillis the window in milliseconds
+     * @return itself
+     */
+    public final DeleteRetrySchedulerBuilder coalesceMillis(long coalesceMillis){
+      this.coalesceMillis = coalesceMillis;
+      return this;
+    }
+
+    /**
+     * sets the number of threads sending batches
+     * @param senderThreads the number of threads
+     * @return itself
+     */
+    public final DeleteRetrySchedulerBuilder senderThreads(int senderThreads){
+      this.senderThreads = senderThreads;
+      return this;
+    }
+
+    /**
+     * build and start the scheduler
+     * @return a new DeleteRetryScheduler
+     */
+    public final DeleteRetryScheduler build(){
+      if (baseDelayMillis <= 0)throw new IllegalArgumentException("Base delay must be at least 1 millisecond");
+      if (maxDelayMillis < baseDelayMillis)throw new IllegalArgumentException("Max delay must be at least the base delay");
+      if (maxAttempts <= 0)throw new IllegalArgumentException("Max attempts must be at least 1");
+      if (coalesceMillis < 0)throw new IllegalArgumentException("Coalesce window must not be negative");
+      if (senderThreads <= 0)throw new IllegalArgumentException("Sender threads must be at least 1");
+      return new DeleteRetryScheduler(this);
+    }
+  }
+
+  /**
+   * a delete waiting for its next attempt
+   */
+  private static final class Retry implements Comparable<Retry>{
+    private final String queueUrl;//the queue the message was received from
+    private final Message message;//the message to delete
+    private final CompletableFuture<DeleteMessageBatchResultEntry> future;//completed when the delete finishes
+    private int attempts = 0;//how many times the delete has been retried
+    private long dueNanos;//System.nanoTime() of the next attempt
+
+    private Retry(String queueUrl, Message message){
+      this.queueUrl = queueUrl;
+      this.message = message;
+      this.future = new CompletableFuture<>();
+    }
+
+    @Override
+    public int compareTo(Retry other){
+      return Long.compare(dueNanos - other.dueNanos, 0);//overflow safe for nanoTime
+    }
+  }
+
+  private final SqsClient SQS;//sqs client
+  private final String REGION;//region of the shared client. null when the client was provided
+  private final long BASE_DELAY_MILLIS;//delay cap of the first retry
+  private final long MAX_DELAY_MILLIS;//largest delay cap
+  private final int MAX_ATTEMPTS;//retries before a delete fails
+  private final long COALESCE_NANOS;//retries due this soon are sent with the earliest
+  private final Thread DISPATCHER;//waits for due retries and hands them to the senders
+  private final ExecutorService SENDERS;//sends DeleteMessageBatch requests
+  private final Logger LOGGER = LoggerFactory.getLogger(this.getClass().getSimpleName());//logger
+
+  private final ReentrantLock lock = new ReentrantLock();//guards the schedule
+  private final Condition changed = lock.newCondition();//signalled when an earlier retry is scheduled or on close
+  private final PriorityQueue<Retry> schedule = new PriorityQueue<>();//retries by due time
+  private volatile boolean closed = false;//is the scheduler closed
+
+  /**
+   * DeleteRetryScheduler constructor
+   * @param builder the retry scheduler builder
+   */
+  DeleteRetryScheduler(DeleteRetrySchedulerBuilder builder){
+    if (builder.sqs instanceof SqsClient){
+      SQS = builder.sqs;
+      REGION = null;
+    }else{
+      SQS = DependencyFactory.acquireSqsClient(builder.region);
+      REGION = builder.region;
+    }
+    BASE_DELAY_MILLIS = builder.baseDelayMillis;
+    MAX_DELAY_MILLIS = builder.maxDelayMillis;
+    MAX_ATTEMPTS = builder.maxAttempts;
+    COALESCE_NANOS = TimeUnit.MILLISECONDS.toNanos(builder.coalesceMillis);
+    SENDERS = Executors.newFixedThreadPool(builder.senderThreads);
+    DISPATCHER = new Thread(this::dispatch, "sqsd-delete-retry");
+    DISPATCHER.setDaemon(true);
+    DISPATCHER.start();
+  }
+
+  /**
+   * schedule the first retry of a failed delete
+   * @param queueUrl the queue the message was received from
+   * @param message the message
+   * @return a future completing with the batch result entry, or exceptionally with a DeleteFailedException
+   */
+  public CompletableFuture<DeleteMessageBatchResultEntry> retry(String queueUrl, Message message){
+    Retry retry = new Retry(queueUrl, message);
+    if (!schedule(retry))retry.future.completeExceptionally(new DeleteFailedException(message, new IllegalStateException("Delete retry scheduler closed")));
+    return retry.future;
+  }
+
+  /**
+   * schedule the first retry of failed deletes
+   * @param queueUrl the queue the messages were received from
+   * @param messages the messages
+   * @return one future per message in the same order
+   */
+  public List<CompletableFuture<DeleteMessageBatchResultEntry>> retry(String queueUrl, List<Message> messages){
+    List<CompletableFuture<DeleteMessageBatchResultEntry>> futures = new ArrayList<>(messages.size());
+    for (Message message: messages)futures.add(retry(queueUrl, message));
+    return futures;
+  }
+
+  /**
+   * @return deletes waiting for their next attempt
+   */
+  public int scheduled(){
+    lock.lock();
+    try{
+      return schedule.size();
+    }finally{
+      lock.unlock();
+    }
+  }
+
+  /**
+   * the full jitter delay of an attempt
+   * @param attempt the attempt starting at 0
+   * @param baseDelayMillis delay cap of the first attempt
+   * @param maxDelayMillis largest delay cap
+   * @return a random delay between 0 and min(maxDelayMillis, baseDelayMillis * 2^attempt) in milliseconds
+   */
+  public static long jitteredDelayMillis(int attempt, long baseDelayMillis, long maxDelayMillis){
+    long cap = maxDelayMillis;
+    if (attempt < Long.numberOfLeadingZeros(baseDelayMillis) - 1)cap = Math.min(maxDelayMillis, baseDelayMillis << attempt);//shift cannot overflow
+    return ThreadLocalRandom.current().nextLong(cap + 1);
+  }
+
+  /**
+   * send every scheduled retry once, wait for them to finish and release the sqs client
+   */
+  @Override
+  public void close(){
+    List<Retry> remaining;
+    lock.lock();
+    try{
+      closed = true;
+      remaining = new ArrayList<>(schedule);
+      schedule.clear();
+      changed.signalAll();
+    }finally{
+      lock.unlock();
+    }
+    DISPATCHER.interrupt();
+    send(remaining);//last attempt without waiting
+    SENDERS.shutdown();
+    try{
+      if (!SENDERS.awaitTermination(30, TimeUnit.SECONDS))LOGGER.warn("Delete retries did not finish before the timeout");
+    }catch(InterruptedException ie){
+      Thread.currentThread().interrupt();
+    }finally{
+      if (REGION != null)DependencyFactory.releaseSqsClient(REGION);
+    }
+  }
+
+  /**
+   * put a retry in the schedule after its jittered delay. Checked under the lock so nothing is added after close took the schedule
+   * @param retry the retry
+   * @return false if the scheduler is closed. the caller completes the future
+   */
+  private boolean schedule(Retry retry){
+    retry.dueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(jitteredDelayMillis(retry.attempts, BASE_DELAY_MILLIS, MAX_DELAY_MILLIS));
+    lock.lock();
+    try{
+      if (closed)return false;
+      schedule.add(retry);
+      if (schedule.peek() == retry)changed.signalAll();//the dispatcher waits for an earlier due time now
+      return true;
+    }finally{
+      lock.unlock();
+    }
+  }
+
+  /**
+   * dispatcher loop. Waits for the earliest retry and sends it with every retry due within the coalesce window
+   */
+  private void dispatch(){
+    while (!closed){
+      List<Retry> due = new ArrayList<>();
+      lock.lock();
+      try{
+        while (!closed){
+          Retry first = schedule.peek();
+          long waitNanos = first == null ? TimeUnit.SECONDS.toNanos(1) : first.dueNanos - System.nanoTime();
+          if (first != null && waitNanos <= 0)break;
+          changed.awaitNanos(waitNanos);
+        }
+        if (closed)return;
+        long horizon = System.nanoTime() + COALESCE_NANOS;
+        while (!schedule.isEmpty() && schedule.peek().dueNanos - horizon <= 0)due.add(schedule.poll());
+      }catch(InterruptedException ie){
+        return;
+      }finally{
+        lock.unlock();
+      }
+      send(due);
+    }
+  }
+
+  /**
+   * group retries by queue and hand them to the senders in batches of up to 10
+   * @param retries the retries to send
+   */
+  private void send(List<Retry> retries){
+    Map<String, List<Retry>> byQueue = new HashMap<>();
+    for (Retry retry: retries)byQueue.computeIfAbsent(retry.queueUrl, queueUrl -> new ArrayList<>()).add(retry);
+    for (Map.Entry<String, List<Retry>> queue: byQueue.entrySet()){
+      List<Retry> queueRetries = queue.getValue();
+      for (int start = 0; start < queueRetries.size(); start += MAX_BATCH_SIZE){
+        List<Retry> batch = new ArrayList<>(queueRetries.subList(start, Math.min(start + MAX_BATCH_SIZE, queueRetries.size())));
+        try{
+          SENDERS.execute(() -> send(queue.getKey(), batch));
+        }catch(RejectedExecutionException ree){//closed while the dispatcher was handing over. send on this thread
+          send(queue.getKey(), batch);
+        }
+      }
+    }
+  }
+
+  /**
+   * send one DeleteMessageBatch and complete or reschedule each entry
+   * @param queueUrl the queue url
+   * @param batch at most 10 retries
+   */
+  private void send(String queueUrl, List<Retry> batch){
+    List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>(batch.size());
+    for (int i = 0; i < batch.size(); i++){
+      Retry retry = batch.get(i);
+      retry.attempts++;
+      entries.add(DeleteMessageBatchRequestEntry.builder()
+                                                .id(Integer.toString(i))
+                                                .receiptHandle(retry.message.receiptHandle())
+                                                .build());
+    }
+    DeleteMessageBatchResponse response;
+    try{
+      response = SQS.deleteMessageBatch(DeleteMessageBatchRequest.builder()
+                                                                 .queueUrl(queueUrl)
+                                                                 .entries(entries)
+                                                                 .build());
+    }catch(SdkException se){//the whole request failed
+      LOGGER.warn("DeleteMessageBatch retry failed: " + se.getMessage());
+      for (Retry retry: batch)retryOrFail(retry, new DeleteFailedException(retry.message, se), true);
+      return;
+    }
+    for (DeleteMessageBatchResultEntry successful: response.successful()){
+      batch.get(Integer.parseInt(successful.id())).future.complete(successful);
+    }
+    for (BatchResultErrorEntry failed: response.failed()){
+      Retry retry = batch.get(Integer.parseInt(failed.id()));
+      DeleteFailedException exception = new DeleteFailedException(retry.message, failed);
+      retryOrFail(retry, exception, !exception.senderFault());
+    }
+  }
+
+  /**
+   * reschedule a failed retry or fail its future
+   * @param retry the failed retry
+   * @param exception why it failed
+   * @param retryable if the failure can succeed on retry
+   */
+  private void retryOrFail(Retry retry, DeleteFailedException exception, boolean retryable){
+    if (retryable && retry.attempts < MAX_ATTEMPTS && schedule(retry))return;
+    retry.future.completeExceptionally(exception);
+  }
+}
@@ -0,0 +1,305 @@
+package alexhelmacy.sqsd.events;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Asynchronous structured event log for the poll loop. Threads record events into a fixed ring of preallocated slots without
+ * taking a lock or building a String. A single writer thread formats them as JSON lines and hands them to the sink.
+ * When the ring is full, events are dropped instead of slowing the pollers, and the writer reports how many were lost.
+ * Each event type has its own sample rate, so per-message events can be kept to a fraction while rare events are all kept.
+ */
+public class EventLog implements AutoCloseable{
+  private static final Logger LOGGER = LoggerFactory.getLogger(EventLog.class.getSimpleName());
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);//writer pause when the ring is empty
+
+  /**
+   * return an event log builder
+   * @return a new instance of an EventLogBuilder
+   */
+  public static final EventLogBuilder builder(){
+    return new EventLogBuilder();
+  }
+
+  /**
+   * EventLog builder class
+   */
+  public static final class EventLogBuilder{
+    private int capacity = 8192;//events the ring holds
+    private final int[] sampleEvery = new int[EventType.values().length];//keep 1 in n events of each type. 0 turns a type off
+    private Consumer<String> sink = LOGGER::info;//receives each formatted line
+
+    private EventLogBuilder(){
+      Arrays.fill(sampleEvery, 1);
+    }
+
+    /**
+     * sets how many events the ring holds. Rounded up to a power of two
+     * @param capacity the number of events
+     * @return itself
+     */
+    public final EventLogBuilder capacity(int capacity){
+      this.capacity = capacity;
+      return this;
+    }
+
+    /**
+     * keep about 1 in every n events of a type
+     * @param type the event type
+     * @param every n. 1 keeps every event and 0 keeps none
+     * @return itself
+     */
+    public final EventLogBuilder sample(EventType type, int every){
+      this.sampleEvery[type.ordinal()] = every;
+      return this;
+    }
+
+    /**
+     * sets where formatted lines go. Called on the writer thread only. Lines are logged at INFO by default
+     * @param sink the sink
+     * @return itself
+     */
+    public final EventLogBuilder sink(Consumer<String> sink){
+      this.sink = sink;
+      return this;
+    }
+
+    /**
+     * build the event log and start its writer
+     * @return a new EventLog
+     */
+    public final EventLog build(){
+      if (capacity <= 0 || capacity > 1 << 24)throw new IllegalArgumentException("Capacity must be between 1 and " + (1 << 24));
+      for (int every: sampleEvery)if (every < 0)throw new IllegalArgumentException("Sample rate must not be negative");
+      if (sink == null)throw new IllegalArgumentException("Sink must be specified");
+      return new EventLog(this);
+    }
+  }
+
+  /**
+   * a preallocated slot of the ring. Written by the producer that claimed it and read by the writer once published
+   */
+  private static final class Event{
+    private EventType type;//the event type
+    private long time;//epoch milliseconds
+    private String thread;//name of the recording thread
+    private String queueUrl;//the queue. may be null
+    private String messageId;//the message. may be null
+    private long value;//a count or duration. meaning depends on the type
+    private Object detail;//formatted on the writer thread. may be null
+  }
+
+  private final Event[] SLOTS;//the ring
+  private final AtomicLongArray SEQUENCES;//per slot. equal to the position when free and position + 1 when published
+  private final int MASK;//capacity - 1
+  private final int[] SAMPLE_EVERY;//keep 1 in n events of each type
+  private final Consumer<String> SINK;//receives each formatted line
+  private final Thread WRITER;//formats and writes events
+  private final AtomicLong tail = new AtomicLong();//next position to claim
+  private long head = 0;//next position to read. only used by the writer
+  private final LongAdder dropped = new LongAdder();//events lost because the ring was full
+  private final LongAdder sampledOut = new LongAdder();//events skipped by sampling
+  private final LongAdder written = new LongAdder();//events handed to the sink
+  private long droppedReported = 0;//drops already reported. only used by the writer
+  private volatile boolean closed = false;//no more events are accepted
+
+  /**
+   * EventLog constructor
+   * @param builder the event log builder
+   */
+  EventLog(EventLogBuilder builder){
+    int capacity = Integer.highestOneBit(builder.capacity - 1) << 1;
+    if (capacity <= 0)capacity = 1;
+    SLOTS = new Event[capacity];
+    SEQUENCES = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++){
+      SLOTS[i] = new Event();
+      SEQUENCES.set(i, i);
+    }
+    MASK = capacity - 1;
+    SAMPLE_EVERY = builder.sampleEvery.clone();
+    SINK = builder.sink;
+    WRITER = new Thread(this::write, "event-log");
+    WRITER.setDaemon(true);
+    WRITER.start();
+  }
+
+  /**
+   * @param type the event type
+   * @return false if the type is turned off. Lets callers skip work for events that are never kept
+   */
+  public boolean enabled(EventType type){
+    return SAMPLE_EVERY[type.ordinal()] > 0;
+  }
+
+  /**
+   * record an event. Never blocks
+   * @param type the event type
+   * @param queueUrl the queue. may be null
+   * @param messageId the message. may be null
+   * @param value a count or duration. 0 when unused
+   * @param detail extra information, such as an error message. toString is called on the writer thread. may be null
+   * @return true if the event was kept, false if it was sampled out, dropped or the log is closed
+   */
+  public boolean record(EventType type, String queueUrl, String messageId, long value, Object detail){
+    int every = SAMPLE_EVERY[type.ordinal()];
+    if (every != 1){
+      if (every == 0 || ThreadLocalRandom.current().nextInt(every) != 0){
+        sampledOut.increment();
+        return false;
+      }
+    }
+    if (closed)return false;
+    long position;
+    while (true){
+      position = tail.get();
+      long sequence = SEQUENCES.get((int)position & MASK);
+      if (sequence == position){
+        if (tail.compareAndSet(position, position + 1))break;
+      }else if (sequence < position){//the writer has not freed the slot. the ring is full
+        dropped.increment();
+        return false;
+      }
+    }
+    Event event = SLOTS[(int)position & MASK];
+    event.type = type;
+    event.time = System.currentTimeMillis();
+    event.thread = Thread.currentThread().getName();
+    event.queueUrl = queueUrl;
+    event.messageId = messageId;
+    event.value = value;
+    event.detail = detail;
+    SEQUENCES.lazySet((int)position & MASK, position + 1);//publish
+    return true;
+  }
+
+  /**
+   * @return events lost because the ring was full
+   */
+  public long dropped(){
+    return dropped.sum();
+  }
+
+  /**
+   * @return events skipped by sampling
+   */
+  public long sampledOut(){
+    return sampledOut.sum();
+  }
+
+  /**
+   * @return events handed to the sink
+   */
+  public long written(){
+    return written.sum();
+  }
+
+  /**
+   * stop accepting events, write the ones in the ring and stop the writer
+   */
+  @Override
+  public void close(){
+    closed = true;
+    LockSupport.unpark(WRITER);
+    try{
+      WRITER.join(TimeUnit.SECONDS.toMillis(5));
+    }catch(InterruptedException ie){
+      Thread.currentThread().interrupt();//preserve the interrupt
+    }
+  }
+
+  /**
+   * writer loop. Drains the ring until the log is closed and empty
+   */
+  private void write(){
+    StringBuilder line = new StringBuilder(256);
+    while (true){
+      boolean wasClosed = closed;//read before draining so events published before close are written
+      int drained = 0;
+      while (true){
+        int index = (int)head & MASK;
+        if (SEQUENCES.get(index) != head + 1)break;//not published yet
+        Event event = SLOTS[index];
+        format(line, event.type, event.time, event.thread, event.queueUrl, event.messageId, event.value, event.detail);
+        event.queueUrl = null;//let the strings go before the slot is reused
+        event.messageId = null;
+        event.detail = null;
+        SEQUENCES.lazySet(index, head + MASK + 1);//free the slot
+        head++;
+        drained++;
+        emit(line);
+      }
+      long lost = dropped.sum();
+      if (lost > droppedReported){
+        format(line, EventType.DROPPED, System.currentTimeMillis(), WRITER.getName(), null, null, lost - droppedReported, null);
+        droppedReported = lost;
+        emit(line);
+      }
+      if (drained > 0)continue;
+      if (wasClosed)return;
+      LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+    }
+  }
+
+  /**
+   * hand a line to the sink. A failing sink must not stop the writer
+   * @param line the formatted line
+   */
+  private void emit(StringBuilder line){
+    try{
+      SINK.accept(line.toString());
+      written.increment();
+    }catch(RuntimeException e){
+      LOGGER.warn("Event sink failed: {}", e.getMessage());
+    }
+  }
+
+  /**
+   * format an event as one JSON object
+   */
+  private static void format(StringBuilder line, EventType type, long time, String thread, String queueUrl, String messageId, long value, Object detail){
+    line.setLength(0);
+    line.append("{\"time\":\"").append(Instant.ofEpochMilli(time)).append("\",\"type\":\"").append(type.name()).append('"');
+    field(line, "thread", thread);
+    field(line, "queue", queueUrl);
+    field(line, "messageId", messageId);
+    if (value != 0)line.append(",\"value\":").append(value);
+    if (detail != null)field(line, "detail", String.valueOf(detail));
+    line.append('}');
+  }
+
+  /**
+   * append a string field with JSON escaping. Skipped when the value is null
+   */
+  private static void field(StringBuilder line, String name, String value){
+    if (value == null)return;
+    line.append(",\"").append(name).append("\":\"");
+    for (int i = 0; i < value.length(); i++){
+      char c = value.charAt(i);
+      switch (c){
+        case '"': line.append("\\\""); break;
+        case '\\': line.append("\\\\"); break;
+        case '\n': line.append("\\n"); break;
+        case '\r': line.append("\\r"); break;
+        case '\t': line.append("\\t"); break;
+        default:
+          if (c < 0x20){
+            line.append(String.format("\\u%04x", (int)c));
+          }else{
+            line.append(c);
+          }
+      }
+    }
+    line.append('"');
+  }
+}
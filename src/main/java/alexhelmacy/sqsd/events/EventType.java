@@ -0,0 +1,17 @@
+package alexhelmacy.sqsd.events;
+
+/**
+ * The kinds of events the poll loop records. Each type can be sampled on its own.
+ */
+public enum EventType{
+  POLL,//a receive returned. value is the number of messages
+  RECEIVED,//a message was received
+  PROCESSED,//a message was handled
+  PROCESS_FAILED,//a handler failed. the message is redelivered
+  DUPLICATE,//a message was already handled and is deleted without handling it again
+  DELETED,//a message was deleted
+  DELETE_FAILED,//a delete failed or was given up. the message is redelivered
+  BACKOFF,//a thread backed off before retrying. value is the delay in milliseconds
+  POLL_FAILED,//an SQS call of the poll loop failed
+  DROPPED//written by the event log itself. value is the number of events dropped because the buffer was full
+}
@@ -0,0 +1,415 @@
+package alexhelmacy.sqsd.forward;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import alexhelmacy.sqsd.DependencyFactory;
+import alexhelmacy.sqsd.metrics.LatencyHistogram;
+import alexhelmacy.sqsd.processor.MessageHandler;
+
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.http.HttpExecuteRequest;
+import software.amazon.awssdk.http.HttpExecuteResponse;
+import software.amazon.awssdk.http.SdkHttpClient;
+import software.amazon.awssdk.http.SdkHttpFullRequest;
+import software.amazon.awssdk.http.SdkHttpMethod;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityRequest;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageAttributeValue;
+import software.amazon.awssdk.services.sqs.model.MessageSystemAttributeName;
+
+/**
+ * POSTs messages to a local worker the way the Elastic Beanstalk worker daemon does. The body of the request is the message body.
+ * Message metadata is sent as X-Aws-Sqsd-* headers, and every String or Number message attribute is sent as X-Aws-Sqsd-Attr-&lt;name&gt;.
+ * A 2xx response means the message was handled. Any other response, a timeout or a connection error leaves the message for
+ * redelivery, optionally after changing its visibility timeout.
+ * Requests go through one pooled keep-alive client, and at most maxConcurrency requests are open to the worker at once.
+ */
+public class HttpForwarder implements MessageHandler, AutoCloseable{
+  public static final String ATTRIBUTE_HEADER_PREFIX = "X-Aws-Sqsd-Attr-";//prefix of message attribute headers
+
+  /**
+   * return a forwarder builder
+   * @return a new instance of an HttpForwarderBuilder
+   */
+  public static final HttpForwarderBuilder builder(){
+    return new HttpForwarderBuilder();
+  }
+
+  /**
+   * HttpForwarder builder class
+   */
+  public static final class HttpForwarderBuilder{
+    private String workerUrl = null;//url messages are posted to
+    private String queueUrl = null;//queue the messages come from
+    private SqsClient sqs = null;//sqs client. the shared client for the region is used when not set
+    private String region = "us-east-1";//region of the shared client
+    private int maxConcurrency = 50;//most requests open to the worker at once
+    private Duration connectionTimeout = Duration.ofSeconds(2);//how long to wait to connect to the worker
+    private Duration requestTimeout = Duration.ofSeconds(60);//how long the worker can take to respond
+    private Duration connectionTimeToLive = Duration.ofMinutes(5);//how long a pooled connection is reused
+    private String contentType = "application/json";//content type of every request
+    private int errorVisibilityTimeoutSeconds = -1;//visibility timeout set when the worker fails. left unchanged when negative
+
+    /**
+     * sets the url messages are posted to
+     * @param workerUrl the worker url, e.g. http://localhost:8080/
+     * @return itself
+     */
+    public final HttpForwarderBuilder workerUrl(String workerUrl){
+      this.workerUrl = workerUrl;
+      return this;
+    }
+
+    /**
+     * sets the queue the messages come from
+     * @param queueUrl the queue url
+     * @return itself
+     */
+    public final HttpForwarderBuilder queueUrl(String queueUrl){
+      this.queueUrl = queueUrl;
+      return this;
+    }
+
+    /**
+     * sets the sqs client used to change the visibility of failed messages. The client is not closed by the forwarder
+     * @param sqs the sqs client
+     * @return itself
+     */
+    public final HttpForwarderBuilder sqsClient(SqsClient sqs){
+      this.sqs = sqs;
+      return this;
+    }
+
+    /**
+     * sets the region of the shared client
+     * @param region the region
+     * @return itself
+     */
+    public final HttpForwarderBuilder region(String region){
+      this.region = region;
+      return this;
+    }
+
+    /**
+     * sets the most requests open to the worker at once. Also the size of the connection pool
+     * @param maxConcurrency the number of requests
+     * @return itself
+     */
+    public final HttpForwarderBuilder maxConcurrency(int maxConcurrency){
+      this.maxConcurrency = maxConcurrency;
+      return this;
+    }
+
+    /**
+     * sets how long to wait to connect to the worker
+     * @param connectionTimeout the timeout
+     * @return itself
+     */
+    public final HttpForwarderBuilder connectionTimeout(Duration connectionTimeout){
+      this.connectionTimeout = connectionTimeout;
+      return this;
+    }
+
+    /**
+     * sets how long the worker can take to respond
+     * @param requestTimeout the timeout
+     * @return itself
+     */
+    public final HttpForwarderBuilder requestTimeout(Duration requestTimeout){
+      this.requestTimeout = requestTimeout;
+      return this;
+    }
+
+    /**
+     * sets how long a pooled connection is reused
+     * @param connectionTimeToLive the time to live
+     * @return itself
+     */
+    public final HttpForwarderBuilder connectionTimeToLive(Duration connectionTimeToLive){
+      this.connectionTimeToLive = connectionTimeToLive;
+      return this;
+    }
+
+    /**
+     * sets the content type of every request
+     * @param contentType the content type
+     * @return itself
+     */
+    public final HttpForwarderBuilder contentType(String contentType){
+      this.contentType = contentType;
+      return this;
+    }
+
+    /**
+     * sets the visibility timeout of a message the worker failed. The message is left unchanged when negative
+     * @param errorVisibilityTimeoutSeconds the visibility timeout in seconds
+     * @return itself
+     */
+    public final HttpForwarderBuilder errorVisibilityTimeoutSeconds(int errorVisibilityTimeoutSeconds){
+      this.errorVisibilityTimeoutSeconds = errorVisibilityTimeoutSeconds;
+      return this;
+    }
+
+    /**
+     * build the forwarder
+     * @return a new HttpForwarder
+     */
+    public final HttpForwarder build(){
+      if (!(workerUrl instanceof String))throw new IllegalArgumentException("Worker URL must be specified");
+      if (!(queueUrl instanceof String))throw new IllegalArgumentException("Queue URL must be specified");
+      if (maxConcurrency <= 0)throw new IllegalArgumentException("Max concurrency must be at least 1");
+      if (errorVisibilityTimeoutSeconds > 43200)throw new IllegalArgumentException("Error visibility timeout must be at most 43200 seconds");
+      URI uri = URI.create(workerUrl);
+      if (!"http".equalsIgnoreCase(uri.getScheme()) && !"https".equalsIgnoreCase(uri.getScheme()))throw new IllegalArgumentException("Worker URL must be http or https");
+      return new HttpForwarder(this, uri);
+    }
+  }
+
+  private final URI WORKER_URI;//url messages are posted to
+  private final String QUEUE_URL;//queue the messages come from
+  private final String QUEUE_NAME;//sent in X-Aws-Sqsd-Queue
+  private final String CONTENT_TYPE;//content type of every request
+  private final int ERROR_VISIBILITY_TIMEOUT_SECONDS;//visibility timeout of failed messages. unchanged when negative
+  private final SqsClient SQS;//sqs client
+  private final String REGION;//region of the shared client. null when the client was provided
+  private final SdkHttpClient HTTP;//pooled keep-alive client
+  private final Semaphore CONCURRENCY;//requests open to the worker
+  private final ExecutorService POOL;//forwards the messages of a batch concurrently
+  private final Logger LOGGER = LoggerFactory.getLogger(this.getClass().getSimpleName());//logger
+
+  private final LongAdder forwarded = new LongAdder();//messages the worker handled
+  private final LongAdder failed = new LongAdder();//messages the worker failed or could not be reached for
+  private final LatencyHistogram latency = new LatencyHistogram();//time of each request
+
+  /**
+   * HttpForwarder constructor
+   * @param builder the forwarder builder
+   * @param workerUri the parsed worker url
+   */
+  HttpForwarder(HttpForwarderBuilder builder, URI workerUri){
+    WORKER_URI = workerUri;
+    QUEUE_URL = builder.queueUrl;
+    QUEUE_NAME = QUEUE_URL.substring(QUEUE_URL.lastIndexOf('/') + 1);
+    CONTENT_TYPE = builder.contentType;
+    ERROR_VISIBILITY_TIMEOUT_SECONDS = builder.errorVisibilityTimeoutSeconds;
+    if (builder.sqs instanceof SqsClient){
+      SQS = builder.sqs;
+      REGION = null;
+    }else{
+      SQS = DependencyFactory.acquireSqsClient(builder.region);
+      REGION = builder.region;
+    }
+    HTTP = ApacheHttpClient.builder()
+                           .maxConnections(builder.maxConcurrency)
+                           .connectionTimeout(builder.connectionTimeout)
+                           .socketTimeout(builder.requestTimeout)
+                           .connectionAcquisitionTimeout(builder.requestTimeout)
+                           .connectionTimeToLive(builder.connectionTimeToLive)
+                           .tcpKeepAlive(true)
+                           .build();
+    CONCURRENCY = new Semaphore(builder.maxConcurrency);
+    POOL = Executors.newFixedThreadPool(builder.maxConcurrency, runnable -> {
+      Thread thread = new Thread(runnable, "sqsd-forwarder");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * forward one message. Parallel mode handler
+   * @param message the message
+   * @throws Exception if the worker did not respond with a 2xx. the message is left for redelivery
+   */
+  @Override
+  public void handle(Message message) throws Exception{
+    int status = forward(message);
+    if (status / 100 != 2)throw new IOException("Worker responded " + (status < 0 ? "with an error" : Integer.toString(status)) + " for message " + message.messageId());
+  }
+
+  /**
+   * forward the messages of a batch concurrently
+   * @param messages the messages
+   * @return the messages the worker handled
+   * @throws InterruptedException if interrupted while waiting for the worker
+   */
+  public List<Message> forward(List<Message> messages) throws InterruptedException{
+    List<CompletableFuture<Integer>> statuses = new ArrayList<>(messages.size());
+    for (Message message: messages)statuses.add(CompletableFuture.supplyAsync(() -> forward(message), POOL));
+    List<Message> handled = new ArrayList<>(messages.size());
+    for (int i = 0; i < messages.size(); i++){
+      try{
+        if (statuses.get(i).get() / 100 == 2)handled.add(messages.get(i));
+      }catch(ExecutionException ee){//forward does not throw. the pool may have rejected the task
+        LOGGER.warn("Failed to forward message " + messages.get(i).messageId() + ": " + ee.getCause());
+      }
+    }
+    return handled;
+  }
+
+  /**
+   * POST one message to the worker and change its visibility if the worker failed
+   * @param message the message
+   * @return the status code. -1 when the worker could not be reached or did not respond in time
+   */
+  public int forward(Message message){
+    int status = -1;
+    long start = System.nanoTime();
+    try{
+      CONCURRENCY.acquire();
+    }catch(InterruptedException ie){
+      Thread.currentThread().interrupt();
+      return status;
+    }
+    try{
+      byte[] body = message.body() != null ? message.body().getBytes(StandardCharsets.UTF_8) : new byte[0];
+      HttpExecuteResponse response = HTTP.prepareRequest(HttpExecuteRequest.builder()
+                                                                           .request(request(message, body.length))
+                                                                           .contentStreamProvider(() -> new ByteArrayInputStream(body))
+                                                                           .build())
+                                         .call();
+      status = response.httpResponse().statusCode();
+      if (response.responseBody().isPresent()){//read the response to the end so the connection goes back to the pool
+        try (InputStream in = response.responseBody().get()){
+          byte[] discard = new byte[4096];
+          while (in.read(discard) != -1){}
+        }
+      }
+    }catch(IOException | SdkException e){
+      LOGGER.warn("Failed to forward message " + message.messageId() + ": " + e.getMessage());
+    }finally{
+      CONCURRENCY.release();
+      latency.recordSince(start);
+    }
+    if (status / 100 == 2){
+      forwarded.increment();
+    }else{
+      failed.increment();
+      if (status > 0)LOGGER.warn("Worker responded " + status + " for message " + message.messageId());
+      changeVisibility(message);
+    }
+    return status;
+  }
+
+  /**
+   * @return messages the worker handled
+   */
+  public long forwarded(){
+    return forwarded.sum();
+  }
+
+  /**
+   * @return messages the worker failed or could not be reached for
+   */
+  public long failed(){
+    return failed.sum();
+  }
+
+  /**
+   * @return time of each request to the worker
+   */
+  public LatencyHistogram latency(){
+    return latency;
+  }
+
+  /**
+   * close the connection pool and release the sqs client
+   */
+  @Override
+  public void close(){
+    POOL.shutdownNow();
+    HTTP.close();
+    if (REGION != null)DependencyFactory.releaseSqsClient(REGION);
+  }
+
+  /**
+   * build the request for a message
+   * @param message the message
+   * @param contentLength the length of the body in bytes
+   * @return the request
+   */
+  private SdkHttpFullRequest request(Message message, int contentLength){
+    SdkHttpFullRequest.Builder request = SdkHttpFullRequest.builder()
+                                                           .method(SdkHttpMethod.POST)
+                                                           .uri(WORKER_URI)
+                                                           .putHeader("Content-Type", CONTENT_TYPE)
+                                                           .putHeader("Content-Length", Integer.toString(contentLength))
+                                                           .putHeader("User-Agent", "aws-sqsd")
+                                                           .putHeader("X-Aws-Sqsd-Msgid", headerValue(message.messageId()))
+                                                           .putHeader("X-Aws-Sqsd-Queue", headerValue(QUEUE_NAME));
+    Map<MessageSystemAttributeName, String> attributes = message.attributes();
+    String firstReceived = attributes.get(MessageSystemAttributeName.APPROXIMATE_FIRST_RECEIVE_TIMESTAMP);
+    if (firstReceived != null){
+      try{
+        request.putHeader("X-Aws-Sqsd-First-Received-At", Instant.ofEpochMilli(Long.parseLong(firstReceived)).toString());
+      }catch(NumberFormatException nfe){
+        LOGGER.debug("Unexpected first receive timestamp: " + firstReceived);
+      }
+    }
+    String receiveCount = attributes.get(MessageSystemAttributeName.APPROXIMATE_RECEIVE_COUNT);
+    if (receiveCount != null)request.putHeader("X-Aws-Sqsd-Receive-Count", headerValue(receiveCount));
+    String senderId = attributes.get(MessageSystemAttributeName.SENDER_ID);
+    if (senderId != null)request.putHeader("X-Aws-Sqsd-Sender-Id", headerValue(senderId));
+    for (Map.Entry<String, MessageAttributeValue> attribute: message.messageAttributes().entrySet()){
+      String value = attribute.getValue().stringValue();
+      if (value != null)request.putHeader(ATTRIBUTE_HEADER_PREFIX + headerValue(attribute.getKey()), headerValue(value));//String and Number attributes. Binary attributes are not sent
+    }
+    return request.build();
+  }
+
+  /**
+   * change the visibility of a message the worker failed, when configured
+   * @param message the message
+   */
+  private void changeVisibility(Message message){
+    if (ERROR_VISIBILITY_TIMEOUT_SECONDS < 0)return;
+    try{
+      SQS.changeMessageVisibility(ChangeMessageVisibilityRequest.builder()
+                                                                .queueUrl(QUEUE_URL)
+                                                                .receiptHandle(message.receiptHandle())
+                                                                .visibilityTimeout(ERROR_VISIBILITY_TIMEOUT_SECONDS)
+                                                                .build());
+    }catch(SdkException se){
+      LOGGER.warn("Failed to change visibility of message " + message.messageId() + ": " + se.getMessage());
+    }
+  }
+
+  /**
+   * @param value a header value from the message
+   * @return the value without control characters, so a message cannot add headers of its own
+   */
+  private static String headerValue(String value){
+    if (value == null)return "";
+    StringBuilder clean = null;
+    for (int i = 0; i < value.length(); i++){
+      char c = value.charAt(i);
+      if (c < 0x20 || c == 0x7f){
+        if (clean == null)clean = new StringBuilder(value.substring(0, i));
+        clean.append(' ');
+      }else if (clean != null){
+        clean.append(c);
+      }
+    }
+    return clean != null ? clean.toString() : value;
+  }
+}
@@ -0,0 +1,60 @@
+package alexhelmacy.sqsd.forward;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import alexhelmacy.sqsd.processor.ExampleSqsDThread;
+import alexhelmacy.sqsd.processor.ExampleSqsDThread.ExampleSqsDThreadBuilder;
+
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageSystemAttributeName;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageResponse;
+
+/**
+ * SqsD thread that POSTs every received message to a local worker and deletes the messages the worker answered with a 2xx.
+ * Receiving, deleting, prefetching, heartbeats and the in-flight budget work as in ExampleSqsDThread. In parallel mode the
+ * forwarder is the message handler, so each message is deleted as soon as the worker handled it.
+ * In FIFO batch mode the batch is forwarded one message at a time. After a failure the rest of that message group is left for
+ * redelivery so it cannot overtake the failed message.
+ */
+public class HttpForwardingSqsDThread extends ExampleSqsDThread{
+  private final HttpForwarder forwarder;//shared forwarder for the worker
+
+  /**
+   * Constructor
+   * @param builder the thread builder. its message handler is replaced with the forwarder
+   * @param forwarder the shared forwarder
+   */
+  public HttpForwardingSqsDThread(ExampleSqsDThreadBuilder builder, HttpForwarder forwarder){
+    super(builder.messageHandler(forwarder));
+    this.forwarder = forwarder;
+  }
+
+  /**
+   * forward the batch to the worker concurrently
+   * @param response the ReceiveMessageResponse from receiveMessages
+   * @return the messages the worker handled
+   * @throws InterruptedException if the thread is interrupted or the thread is closed.
+   */
+  @Override
+  protected List<Message> processMessages(ReceiveMessageResponse response) throws InterruptedException{
+    if (Thread.currentThread().isInterrupted())throw new InterruptedException("Thread Interrupted");
+    if (closed()) throw new InterruptedException("thread should stop");
+    if (!response.hasMessages())return new ArrayList<>();
+    if (!fifo())return forwarder.forward(response.messages());
+    List<Message> handled = new ArrayList<>();
+    Set<String> failedGroups = new HashSet<>();//groups that must not go further in this batch
+    for (Message message: response.messages()){
+      String group = message.attributes().get(MessageSystemAttributeName.MESSAGE_GROUP_ID);
+      if (group != null && failedGroups.contains(group))continue;
+      if (forwarder.forward(message) / 100 == 2){
+        handled.add(message);
+      }else if (group != null){
+        failedGroups.add(group);
+      }
+    }
+    return handled;
+  }
+}
@@ -0,0 +1,529 @@
+package alexhelmacy.sqsd.journal;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import alexhelmacy.sqsd.DependencyFactory;
+import alexhelmacy.sqsd.dedup.DedupCache;
+
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResponse;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResultEntry;
+import software.amazon.awssdk.services.sqs.model.Message;
+
+/**
+ * Append-only journal of handled messages and their deletes, kept in a memory-mapped file. A message is recorded once it is
+ * handled and again once it is deleted. If the JVM dies in between, the next start replays the journal, deletes the messages
+ * that were handled but not deleted, and hands them to the dedup cache so a redelivery is not handled again.
+ * Records go straight into the mapped file, so they survive the JVM dying without a flush. A background thread forces the
+ * file to disk every commit interval, one fsync for every record appended since the last, which bounds what a machine crash
+ * can lose. When the file is full it is compacted to the messages still waiting for their delete.
+ */
+public class AckJournal implements AutoCloseable{
+  private static final int MAGIC = 0x53514a31;//"SQJ1" at the start of the file
+  private static final int HEADER_BYTES = 8;//magic and version
+  private static final byte PROCESSED = 1;//record of a handled message
+  private static final byte DELETED = 2;//record of a deleted message
+  private static final int RECORD_OVERHEAD = 4 + 4;//length and crc around each payload
+  private static final int MAX_BATCH_SIZE = 10;//SQS limit for DeleteMessageBatch
+  private static final long MAX_RECEIPT_AGE_MILLIS = TimeUnit.HOURS.toMillis(12);//longest visibility timeout. older receipt handles cannot delete
+
+  /**
+   * return an ack journal builder
+   * @return a new instance of an AckJournalBuilder
+   */
+  public static final AckJournalBuilder builder(){
+    return new AckJournalBuilder();
+  }
+
+  /**
+   * AckJournal builder class
+   */
+  public static final class AckJournalBuilder{
+    private Path path = Paths.get("sqsd-acks.journal");//the journal file
+    private int sizeBytes = 64 * 1024 * 1024;//size of the mapped file
+    private long commitMillis = 10;//time between forces to disk
+    private SqsClient sqs = null;//sqs client. the shared client for the region is used when not set
+    private String region = "us-east-1";//region of the shared client
+
+    /**
+     * sets the journal file. An existing journal is replayed by recover
+     * @param path the file
+     * @return itself
+     */
+    public final AckJournalBuilder path(Path path){
+      this.path = path;
+      return this;
+    }
+
+    /**
+     * sets the size of the mapped file. The journal is compacted when it is full and grows when compacting is not enough
+     * @param sizeBytes the size in bytes
+     * @return itself
+     */
+    public final AckJournalBuilder sizeBytes(int sizeBytes){
+      this.sizeBytes = sizeBytes;
+      return this;
+    }
+
+    /**
+     * sets how often the journal is forced to disk. Every record appended in the interval shares one force
+     * @param commitMillis the interval in milliseconds
+     * @return itself
+     */
+    public final AckJournalBuilder commitMillis(long commitMillis){
+      this.commitMillis = commitMillis;
+      return this;
+    }
+
+    /**
+     * sets the sqs client used to finish deletes on recovery. The client is not closed by the journal
+     * @param sqs the sqs client
+     * @return itself
+     */
+    public final AckJournalBuilder sqsClient(SqsClient sqs){
+      this.sqs = sqs;
+      return this;
+    }
+
+    /**
+     * sets the region of the shared sqs client. Ignored when an sqs client is set
+     * @param region the region as a string
+     * @return itself
+     */
+    public final AckJournalBuilder region(String region){
+      this.region = region;
+      return this;
+    }
+
+    /**
+     * build the journal. Opens the file and reads the messages an earlier run left pending
+     * @return a new AckJournal
+     * @throws UncheckedIOException if the file cannot be opened
+     */
+    public final AckJournal build(){
+      if (path == null)throw new IllegalArgumentException("Journal path must be specified");
+      if (sizeBytes < 4096)throw new IllegalArgumentException("Journal size must be at least 4096 bytes");
+      if (commitMillis <= 0)throw new IllegalArgumentException("Commit interval must be positive");
+      return new AckJournal(this);
+    }
+  }
+
+  /**
+   * a handled message waiting for its delete
+   */
+  private static final class Pending{
+    private final long time;//when the message was handled
+    private final String queueUrl;//the queue
+    private final String messageId;//the message id
+    private final String receiptHandle;//handle of the receive it was handled in
+    private final String md5OfBody;//md5 of the body. may be null
+
+    private Pending(long time, String queueUrl, String messageId, String receiptHandle, String md5OfBody){
+      this.time = time;
+      this.queueUrl = queueUrl;
+      this.messageId = messageId;
+      this.receiptHandle = receiptHandle;
+      this.md5OfBody = md5OfBody;
+    }
+  }
+
+  private final Path PATH;//the journal file
+  private final long COMMIT_MILLIS;//time between forces to disk
+  private final SqsClient SQS;//the sqs client
+  private final String REGION;//region of the shared client. null when the client was supplied
+  private final Thread COMMITTER;//forces appended records to disk
+  private final Logger LOGGER = LoggerFactory.getLogger(this.getClass().getSimpleName());//logger
+
+  private final ReentrantLock lock = new ReentrantLock();//guards the file, the buffer and its position
+  private final CRC32 crc = new CRC32();//checksum of each record. guarded by the lock
+  private FileChannel channel;//the open journal file
+  private volatile MappedByteBuffer buffer;//the mapped file. position is where the next record goes
+  private Map<String, Pending> recovered;//messages an earlier run left pending. taken by recover
+  private volatile long appended = 0;//records appended
+  private long committed = 0;//records forced to disk. only used by the committer
+  private volatile boolean closed = false;//is the journal closed
+
+  /**
+   * AckJournal constructor
+   * @param builder the ack journal builder
+   */
+  AckJournal(AckJournalBuilder builder){
+    PATH = builder.path;
+    COMMIT_MILLIS = builder.commitMillis;
+    try{
+      boolean existing = Files.exists(PATH) && Files.size(PATH) >= HEADER_BYTES;
+      channel = FileChannel.open(PATH, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(builder.sizeBytes, channel.size()));
+      if (existing && buffer.getInt(0) == MAGIC){
+        recovered = scan(buffer);//leaves the position after the last whole record
+      }else{
+        if (existing)LOGGER.warn("{} is not an ack journal. Starting a new one", PATH);
+        recovered = new LinkedHashMap<>();
+        writeHeader(buffer);
+      }
+    }catch(IOException ioe){
+      throw new UncheckedIOException("Failed to open ack journal " + PATH, ioe);
+    }
+    if (builder.sqs instanceof SqsClient){
+      SQS = builder.sqs;
+      REGION = null;
+    }else{
+      SQS = DependencyFactory.acquireSqsClient(builder.region);
+      REGION = builder.region;
+    }
+    COMMITTER = new Thread(this::commit, "sqsd-ack-journal");
+    COMMITTER.setDaemon(true);
+    COMMITTER.start();
+  }
+
+  /**
+   * record handled messages. Call before deleting them
+   * @param queueUrl the queue the messages were received from
+   * @param messages the handled messages
+   */
+  public void processed(String queueUrl, List<Message> messages){
+    if (messages.isEmpty())return;
+    byte[] queue = utf8(queueUrl);
+    List<byte[][]> records = new ArrayList<>(messages.size());
+    int bytes = 0;
+    for (Message message: messages){
+      byte[][] fields = {utf8(message.messageId()), utf8(message.receiptHandle()), utf8(message.md5OfBody())};
+      records.add(fields);
+      bytes += RECORD_OVERHEAD + processedPayloadBytes(queue, fields);
+    }
+    long now = System.currentTimeMillis();
+    lock.lock();
+    try{
+      if (closed)return;
+      ensureRoom(bytes);
+      for (byte[][] fields: records)appendProcessed(buffer, now, queue, fields[0], fields[1], fields[2]);
+      appended += records.size();
+    }finally{
+      lock.unlock();
+    }
+  }
+
+  /**
+   * record a handled message. Call before deleting it
+   * @param queueUrl the queue the message was received from
+   * @param message the handled message
+   */
+  public void processed(String queueUrl, Message message){
+    processed(queueUrl, Collections.singletonList(message));
+  }
+
+  /**
+   * record that a message was deleted
+   * @param messageId the message id
+   */
+  public void deleted(String messageId){
+    byte[] id = utf8(messageId);
+    lock.lock();
+    try{
+      if (closed)return;
+      ensureRoom(RECORD_OVERHEAD + 1 + string(id));
+      appendDeleted(buffer, id);
+      appended++;
+    }finally{
+      lock.unlock();
+    }
+  }
+
+  /**
+   * finish the deletes an earlier run left pending. Each message is also added to the dedup cache, so a message whose receipt
+   * handle expired is deleted without being handled again when SQS redelivers it. Call once before the threads start
+   * @param dedupCache cache the pending messages are added to. may be null
+   * @return how many pending deletes were finished
+   */
+  public int recover(DedupCache dedupCache){
+    Map<String, Pending> pending;
+    lock.lock();
+    try{
+      pending = recovered;
+      recovered = new LinkedHashMap<>();
+    }finally{
+      lock.unlock();
+    }
+    if (pending.isEmpty())return 0;
+    Map<String, List<Pending>> queues = new LinkedHashMap<>();
+    long expired = System.currentTimeMillis() - MAX_RECEIPT_AGE_MILLIS;
+    for (Pending message: pending.values()){
+      if (dedupCache != null)dedupCache.complete(Message.builder().messageId(message.messageId).md5OfBody(message.md5OfBody).build());
+      if (message.time < expired){//the handle cannot delete anymore. forget the message instead of trying on every start
+        deleted(message.messageId);
+        continue;
+      }
+      queues.computeIfAbsent(message.queueUrl, (queueUrl) -> new ArrayList<>()).add(message);
+    }
+    int finished = 0;
+    for (Map.Entry<String, List<Pending>> queue: queues.entrySet()){
+      List<Pending> messages = queue.getValue();
+      for (int from = 0; from < messages.size(); from += MAX_BATCH_SIZE){
+        finished += deletePending(queue.getKey(), messages.subList(from, Math.min(from + MAX_BATCH_SIZE, messages.size())));
+      }
+    }
+    LOGGER.info("Recovered {} pending deletes from {}. {} are left for redelivery", finished, PATH, pending.size() - finished);
+    return finished;
+  }
+
+  /**
+   * @return how many messages an earlier run left pending and recover has not taken yet
+   */
+  public int pending(){
+    lock.lock();
+    try{
+      return recovered.size();
+    }finally{
+      lock.unlock();
+    }
+  }
+
+  /**
+   * force every appended record to disk now
+   */
+  public void sync(){
+    MappedByteBuffer mapped = buffer;
+    if (!closed)mapped.force();
+  }
+
+  /**
+   * force the journal to disk and close the file. Records of later calls are ignored
+   */
+  @Override
+  public void close(){
+    lock.lock();
+    try{
+      if (closed)return;
+      closed = true;
+    }finally{
+      lock.unlock();
+    }
+    COMMITTER.interrupt();
+    try{
+      COMMITTER.join(TimeUnit.SECONDS.toMillis(5));
+    }catch(InterruptedException ie){
+      Thread.currentThread().interrupt();//preserve the interrupt
+    }
+    lock.lock();
+    try{
+      buffer.force();
+      channel.close();
+    }catch(IOException ioe){
+      LOGGER.warn("Failed to close ack journal {}: {}", PATH, ioe.getMessage());
+    }finally{
+      lock.unlock();
+      if (REGION != null)DependencyFactory.releaseSqsClient(REGION);
+    }
+  }
+
+  /**
+   * committer loop. Forces the file once per interval when records were appended
+   */
+  private void commit(){
+    while (!closed){
+      try{
+        Thread.sleep(COMMIT_MILLIS);
+      }catch(InterruptedException ie){
+        return;//closing. close forces the rest
+      }
+      long target = appended;
+      if (target == committed)continue;
+      buffer.force();
+      committed = target;
+    }
+  }
+
+  /**
+   * delete up to 10 pending messages of a queue and record the ones deleted
+   * @param queueUrl the queue
+   * @param messages the pending messages
+   * @return how many were deleted
+   */
+  private int deletePending(String queueUrl, List<Pending> messages){
+    List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>(messages.size());
+    for (int i = 0; i < messages.size(); i++){
+      entries.add(DeleteMessageBatchRequestEntry.builder().id(Integer.toString(i)).receiptHandle(messages.get(i).receiptHandle).build());
+    }
+    DeleteMessageBatchResponse response;
+    try{
+      response = SQS.deleteMessageBatch(DeleteMessageBatchRequest.builder().queueUrl(queueUrl).entries(entries).build());
+    }catch(SdkException se){//left for redelivery. the dedup cache skips the redelivered messages
+      LOGGER.warn("Failed to finish pending deletes on {}: {}", queueUrl, se.getMessage());
+      return 0;
+    }
+    if (!response.hasSuccessful())return 0;
+    for (DeleteMessageBatchResultEntry successful: response.successful())deleted(messages.get(Integer.parseInt(successful.id())).messageId);
+    return response.successful().size();
+  }
+
+  /**
+   * make room for more records. Compacts the journal to its pending messages when it is full, and doubles the file when
+   * that is not enough. Called with the lock held
+   * @param bytes the bytes about to be appended
+   */
+  private void ensureRoom(int bytes){
+    if (buffer.remaining() >= bytes)return;
+    Map<String, Pending> pending = scan(((ByteBuffer)buffer).duplicate());
+    int needed = HEADER_BYTES + bytes;
+    for (Pending message: pending.values())needed += RECORD_OVERHEAD + processedPayloadBytes(utf8(message.queueUrl), new byte[][]{utf8(message.messageId), utf8(message.receiptHandle), utf8(message.md5OfBody)});
+    long size = buffer.capacity();
+    while (size < (long)needed * 2)size *= 2;//keep half the file free so compactions stay rare
+    if (size > Integer.MAX_VALUE)throw new IllegalStateException("Ack journal " + PATH + " cannot hold " + pending.size() + " pending messages");
+    Path compacted = PATH.resolveSibling(PATH.getFileName() + ".compact");
+    try{
+      FileChannel compactedChannel = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      MappedByteBuffer compactedBuffer = compactedChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      writeHeader(compactedBuffer);
+      for (Pending message: pending.values()){
+        appendProcessed(compactedBuffer, message.time, utf8(message.queueUrl), utf8(message.messageId), utf8(message.receiptHandle), utf8(message.md5OfBody));
+      }
+      compactedBuffer.force();
+      Files.move(compacted, PATH, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      channel.close();
+      channel = compactedChannel;
+      buffer = compactedBuffer;
+    }catch(IOException ioe){
+      throw new UncheckedIOException("Failed to compact ack journal " + PATH, ioe);
+    }
+    LOGGER.info("Compacted ack journal {} to {} pending messages in {} bytes", PATH, pending.size(), size);
+  }
+
+  /**
+   * read the records of a journal
+   * @param journal the mapped journal. its position is left after the last whole record
+   * @return the handled messages without a delete record, in the order they were handled
+   */
+  private static Map<String, Pending> scan(ByteBuffer journal){
+    Map<String, Pending> pending = new LinkedHashMap<>();
+    CRC32 check = new CRC32();
+    int position = HEADER_BYTES;
+    while (position + RECORD_OVERHEAD < journal.capacity()){
+      int length = journal.getInt(position);
+      if (length <= 0 || position + RECORD_OVERHEAD + length > journal.capacity())break;//end of the journal or a torn record
+      ByteBuffer payload = journal.duplicate();
+      ((Buffer)payload).limit(position + 4 + length).position(position + 4);//through Buffer so a newer JDK does not bind the ByteBuffer overrides Java 8 lacks
+      check.reset();
+      check.update(payload.duplicate());
+      if ((int)check.getValue() != journal.getInt(position + 4 + length))break;//torn record
+      byte type = payload.get();
+      if (type == PROCESSED){
+        long time = payload.getLong();
+        String queueUrl = readString(payload);
+        String messageId = readString(payload);
+        pending.put(messageId, new Pending(time, queueUrl, messageId, readString(payload), readString(payload)));
+      }else if (type == DELETED){
+        pending.remove(readString(payload));
+      }
+      position += RECORD_OVERHEAD + length;
+    }
+    ((Buffer)journal).limit(journal.capacity()).position(position);
+    return pending;
+  }
+
+  /**
+   * @param journal a new mapped journal. its position is left after the header
+   */
+  private static void writeHeader(MappedByteBuffer journal){
+    ((Buffer)journal).clear();
+    journal.putInt(MAGIC).putInt(1);
+    journal.putInt(HEADER_BYTES, 0);//no records yet, even over an old file
+  }
+
+  /**
+   * append a handled message record. The length goes in last so a torn record reads as the end of the journal
+   */
+  private void appendProcessed(MappedByteBuffer journal, long time, byte[] queueUrl, byte[] messageId, byte[] receiptHandle, byte[] md5OfBody){
+    int start = journal.position();
+    ((Buffer)journal).position(start + 4);
+    journal.put(PROCESSED).putLong(time);
+    putString(journal, queueUrl);
+    putString(journal, messageId);
+    putString(journal, receiptHandle);
+    putString(journal, md5OfBody);
+    finishRecord(journal, start);
+  }
+
+  /**
+   * append a deleted message record
+   */
+  private void appendDeleted(MappedByteBuffer journal, byte[] messageId){
+    int start = journal.position();
+    ((Buffer)journal).position(start + 4);
+    journal.put(DELETED);
+    putString(journal, messageId);
+    finishRecord(journal, start);
+  }
+
+  /**
+   * write the checksum and then the length of the record that starts at start
+   */
+  private void finishRecord(MappedByteBuffer journal, int start){
+    int end = journal.position();
+    ByteBuffer payload = ((ByteBuffer)journal).duplicate();
+    ((Buffer)payload).limit(end).position(start + 4);
+    crc.reset();
+    crc.update(payload);
+    journal.putInt((int)crc.getValue());
+    if (journal.remaining() >= 4)journal.putInt(journal.position(), 0);//the next record starts empty even in a reused file
+    journal.putInt(start, end - start - 4);
+  }
+
+  /**
+   * @return the payload bytes of a handled message record
+   */
+  private static int processedPayloadBytes(byte[] queueUrl, byte[][] fields){
+    return 1 + 8 + string(queueUrl) + string(fields[0]) + string(fields[1]) + string(fields[2]);
+  }
+
+  /**
+   * @return the bytes a string field takes
+   */
+  private static int string(byte[] value){
+    return 2 + (value != null ? value.length : 0);
+  }
+
+  private static byte[] utf8(String value){
+    return value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+  }
+
+  private static void putString(ByteBuffer journal, byte[] value){
+    if (value == null){
+      journal.putShort((short)-1);
+      return;
+    }
+    journal.putShort((short)value.length).put(value);
+  }
+
+  private static String readString(ByteBuffer journal){
+    short length = journal.getShort();
+    if (length < 0)return null;
+    byte[] value = new byte[length];
+    journal.get(value);
+    return new String(value, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,175 @@
+package alexhelmacy.sqsd.local;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import alexhelmacy.sqsd.SqsD;
+import alexhelmacy.sqsd.delete.DeleteCoalescer;
+import alexhelmacy.sqsd.metrics.LatencyHistogram;
+import alexhelmacy.sqsd.processor.ExampleSqsDThread;
+import alexhelmacy.sqsd.processor.ExampleSqsDThread.ExampleSqsDThreadBuilder;
+import alexhelmacy.sqsd.processor.PollerStatistics;
+import alexhelmacy.sqsd.processor.SqsDThread;
+
+/**
+ * Load test for SqsD against a LocalSqsClient. Feeds a local queue, runs SqsD until every message is deleted or the duration runs out,
+ * then reports the sustained msgs/sec and the send to delete latency.
+ * Usage: java -cp target/sqsd-1.0.0.jar alexhelmacy.sqsd.local.LoadTest -t 8 -n 100000 -l 5
+ */
+public class LoadTest{
+  private static final String QUEUE_NAME = "sqsd-load-test";//name of the local queue
+
+  /**
+   * @return the load test options
+   */
+  private static Options options(){
+    Options options = new Options();
+    options.addOption("t", "threads", true, "Number of SqsD threads. Default of 4");
+    options.addOption("m", "max-messages", true, "Max number of messages per receive. Default of 10");
+    options.addOption("w", "wait-time", true, "Receive wait time in seconds. Default of 1");
+    options.addOption("n", "messages", true, "Number of messages to consume. Default of 100000");
+    options.addOption("b", "body-bytes", true, "Size of each message body. Default of 256");
+    options.addOption("r", "rate", true, "Messages sent per second. All messages are sent up front when not set");
+    options.addOption("l", "latency", true, "Milliseconds added to every SQS call. Default of 0");
+    options.addOption("j", "jitter", true, "Most random milliseconds added on top of the latency. Default of 0");
+    options.addOption("e", "error-rate", true, "Fraction of SQS calls failing with an InternalError. Default of 0");
+    options.addOption("f", "entry-failure-rate", true, "Fraction of batch entries failing on their own. Default of 0");
+    options.addOption("v", "visibility-timeout", true, "Visibility timeout of the queue in seconds. Default of 30");
+    options.addOption("cd", "coalesce-deletes", true, "Share deletes across threads. Batches are sent when full or after this many milliseconds");
+    options.addOption("pm", "parallel-messages", true, "Handle each message on a shared pool of this many threads. Turns on --coalesce-deletes");
+    options.addOption("d", "duration", true, "Most seconds to run. Default of 300");
+    options.addOption("h", "help", false, "Prints this help message");
+    return options;
+  }
+
+  public static void main(String[] args) throws Exception{
+    if (System.getProperty("org.slf4j.simpleLogger.defaultLogLevel") == null){//per message info logging would dominate the test
+      System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+    }
+    Options options = options();
+    CommandLine cmd;
+    try{
+      cmd = new DefaultParser().parse(options, args);
+    }catch(ParseException pe){
+      new HelpFormatter().printHelp("LoadTest", null, options, pe.getMessage(), true);
+      return;
+    }
+    if (cmd.hasOption("h")){
+      new HelpFormatter().printHelp("LoadTest", options, true);
+      return;
+    }
+    int threadCount = Integer.parseInt(cmd.getOptionValue("t", "4"));
+    int maxMessages = Integer.parseInt(cmd.getOptionValue("m", "10"));
+    int waitTime = Integer.parseInt(cmd.getOptionValue("w", "1"));
+    int messages = Integer.parseInt(cmd.getOptionValue("n", "100000"));
+    int bodyBytes = Integer.parseInt(cmd.getOptionValue("b", "256"));
+    int rate = Integer.parseInt(cmd.getOptionValue("r", "0"));
+    long coalesceDeletesMillis = Long.parseLong(cmd.getOptionValue("cd", "-1"));
+    int parallelMessages = Integer.parseInt(cmd.getOptionValue("pm", "-1"));
+    if (parallelMessages > 0 && coalesceDeletesMillis < 0)coalesceDeletesMillis = 20;//parallel mode deletes through the coalescer
+    long durationSeconds = Long.parseLong(cmd.getOptionValue("d", "300"));
+
+    LatencyHistogram endToEnd = new LatencyHistogram();//send to delete latency
+    LocalSqsClient sqs = LocalSqsClient.builder()
+                                       .visibilityTimeoutSeconds(Integer.parseInt(cmd.getOptionValue("v", "30")))
+                                       .latencyMillis(Long.parseLong(cmd.getOptionValue("l", "0")))
+                                       .latencyJitterMillis(Long.parseLong(cmd.getOptionValue("j", "0")))
+                                       .errorRate(Double.parseDouble(cmd.getOptionValue("e", "0")))
+                                       .batchEntryFailureRate(Double.parseDouble(cmd.getOptionValue("f", "0")))
+                                       .deleteListener(endToEnd::record)
+                                       .build();
+    String queueUrl = sqs.createQueue(QUEUE_NAME);
+    StringBuilder bodyBuilder = new StringBuilder(bodyBytes);
+    for (int i = 0; i < Math.max(bodyBytes, 1); i++)bodyBuilder.append('x');
+    String body = bodyBuilder.toString();
+
+    ExampleSqsDThreadBuilder builder = ExampleSqsDThread.builder()
+                                                        .queueUrl(queueUrl)
+                                                        .sqsClient(sqs)
+                                                        .maxNumberOfMessages(maxMessages)
+                                                        .waitTime(waitTime);
+    DeleteCoalescer deleteCoalescer = null;
+    if (coalesceDeletesMillis >= 0){
+      deleteCoalescer = DeleteCoalescer.builder().sqsClient(sqs).maxDelayMillis(coalesceDeletesMillis).build();
+      builder.deleteCoalescer(deleteCoalescer);
+    }
+    ExecutorService messageExecutor = null;
+    if (parallelMessages > 0){
+      messageExecutor = Executors.newFixedThreadPool(parallelMessages);
+      builder.messageExecutor(messageExecutor);
+    }
+    List<SqsDThread> threads = new ArrayList<>();
+    for (int i = 0; i < threadCount; i++)threads.add(new ExampleSqsDThread(builder));
+    SqsD sqsd = new SqsD(threads);
+    if (deleteCoalescer != null)sqsd.closeOnStop(deleteCoalescer);
+    if (messageExecutor != null){
+      ExecutorService pool = messageExecutor;
+      sqsd.closeOnStop(() -> {
+        pool.shutdown();
+        if (!pool.awaitTermination(30, TimeUnit.SECONDS))pool.shutdownNow();
+      });
+    }
+
+    Thread producer = null;
+    if (rate > 0){//send at a steady rate in 10ms slices
+      producer = new Thread(() -> {
+        long start = System.nanoTime();
+        int sent = 0;
+        while (sent < messages && !Thread.currentThread().isInterrupted()){
+          long due = Math.min(messages, (System.nanoTime() - start) * rate / TimeUnit.SECONDS.toNanos(1));
+          if (due > sent){
+            sqs.enqueue(queueUrl, body, (int)(due - sent));
+            sent = (int)due;
+          }
+          try{
+            Thread.sleep(10);
+          }catch(InterruptedException ie){
+            Thread.currentThread().interrupt();
+          }
+        }
+      }, "load-test-producer");
+      producer.setDaemon(true);
+    }else{
+      sqs.enqueue(queueUrl, body, messages);
+    }
+
+    System.out.println("Load test: " + messages + " messages, " + threadCount + " threads, " + maxMessages + " per receive" + (rate > 0 ? ", " + rate + " msgs/sec offered" : ""));
+    long start = System.nanoTime();
+    long deadline = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+    sqsd.start();
+    if (producer != null)producer.start();
+    long lastReport = start;
+    while (sqs.deleted() < messages && System.nanoTime() < deadline){
+      Thread.sleep(10);
+      if (System.nanoTime() - lastReport >= TimeUnit.SECONDS.toNanos(5)){
+        lastReport = System.nanoTime();
+        System.out.println("  deleted " + sqs.deleted() + "/" + messages);
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+    if (producer != null)producer.interrupt();
+    sqsd.stop("Load test finished");
+
+    PollerStatistics.Snapshot totals = PollerStatistics.EMPTY;
+    for (SqsDThread thread: threads)totals = totals.plus(thread.statistics().snapshot());
+    double seconds = elapsed / 1e9;
+    System.out.println(String.format("Deleted:        %d of %d in %.2fs%s", sqs.deleted(), messages, seconds, sqs.deleted() < messages ? " (duration ran out)" : ""));
+    System.out.println(String.format("Throughput:     %.0f msgs/sec", sqs.deleted() / seconds));
+    System.out.println(String.format("End to end:     p50 %.2fms, p99 %.2fms, p99.9 %.2fms, max %.2fms",
+                                     endToEnd.percentile(50, TimeUnit.MILLISECONDS), endToEnd.percentile(99, TimeUnit.MILLISECONDS),
+                                     endToEnd.percentile(99.9, TimeUnit.MILLISECONDS), endToEnd.max() / 1e6));
+    System.out.println(String.format("Receives:       %d (%d empty), %.1f messages per receive",
+                                     totals.RECEIVES, totals.EMPTY_RECEIVES, totals.RECEIVES == 0 ? 0 : (double)totals.MESSAGES / totals.RECEIVES));
+    System.out.println(String.format("Redelivered:    %d", sqs.redelivered()));
+    System.out.println(String.format("Injected fails: %d", sqs.injectedErrors()));
+  }
+}
@@ -0,0 +1,859 @@
+package alexhelmacy.sqsd.local;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.BatchEntryIdsNotDistinctException;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchResponse;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchResultEntry;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityRequest;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityResponse;
+import software.amazon.awssdk.services.sqs.model.CreateQueueRequest;
+import software.amazon.awssdk.services.sqs.model.CreateQueueResponse;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResponse;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResultEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageResponse;
+import software.amazon.awssdk.services.sqs.model.EmptyBatchRequestException;
+import software.amazon.awssdk.services.sqs.model.GetQueueAttributesRequest;
+import software.amazon.awssdk.services.sqs.model.GetQueueAttributesResponse;
+import software.amazon.awssdk.services.sqs.model.GetQueueUrlRequest;
+import software.amazon.awssdk.services.sqs.model.GetQueueUrlResponse;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageAttributeValue;
+import software.amazon.awssdk.services.sqs.model.MessageSystemAttributeName;
+import software.amazon.awssdk.services.sqs.model.QueueAttributeName;
+import software.amazon.awssdk.services.sqs.model.QueueDoesNotExistException;
+import software.amazon.awssdk.services.sqs.model.ReceiptHandleIsInvalidException;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageResponse;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResponse;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResultEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageResponse;
+import software.amazon.awssdk.services.sqs.model.SqsException;
+import software.amazon.awssdk.services.sqs.model.TooManyEntriesInBatchRequestException;
+
+/**
+ * In-process stand-in for SQS so SqsD can be load tested without an AWS queue. Queues keep real semantics: visibility timeouts,
+ * receive counts, long polling, delays, new receipt handles per receive and the 10 entry batch limit.
+ * Queues whose name ends in .fifo keep FIFO semantics: messages need a MessageGroupId, a group with messages in flight is not
+ * received from, messages return to their place in the group and a repeated ReceiveRequestAttemptId returns the same messages.
+ * Every call can be slowed by an injected latency and failed at an injected error rate, and batch entries can fail on their own.
+ * Only the calls SQSD makes are implemented. The rest throw UnsupportedOperationException.
+ */
+public class LocalSqsClient implements SqsClient{
+  public static final int MAX_BATCH_SIZE = 10;//SQS limit for batch requests and received messages
+  public static final int MAX_WAIT_TIME_SECONDS = 20;//SQS limit for long polling
+  public static final String ACCOUNT_ID = "000000000000";//account id in local queue urls
+  private static final int MAX_RECEIVE_ATTEMPTS = 1000;//receive attempt ids remembered per FIFO queue
+
+  /**
+   * return a local client builder
+   * @return a new instance of a LocalSqsClientBuilder
+   */
+  public static final LocalSqsClientBuilder builder(){
+    return new LocalSqsClientBuilder();
+  }
+
+  /**
+   * LocalSqsClient builder class
+   */
+  public static final class LocalSqsClientBuilder{
+    private int visibilityTimeoutSeconds = 30;//default visibility timeout of new queues
+    private long latencyMillis = 0;//added to every call
+    private long latencyJitterMillis = 0;//random extra latency up to this much
+    private double errorRate = 0;//fraction of calls failing with a 500
+    private double batchEntryFailureRate = 0;//fraction of batch entries failing on their own
+    private Long seed = null;//seed of the injected failures. random when not set
+    private LongConsumer deleteListener = null;//notified with the send to delete time of every deleted message
+
+    /**
+     * sets the default visibility timeout of new queues
+     * @param visibilityTimeoutSeconds the timeout in seconds
+     * @return itself
+     */
+    public final LocalSqsClientBuilder visibilityTimeoutSeconds(int visibilityTimeoutSeconds){
+      this.visibilityTimeoutSeconds = visibilityTimeoutSeconds;
+      return this;
+    }
+
+    /**
+     * sets the latency added to every call
+     * @param latencyMillis the latency in milliseconds
+     * @return itself
+     */
+    public final LocalSqsClientBuilder latencyMillis(long latencyMillis){
+      this.latencyMillis = latencyMillis;
+      return this;
+    }
+
+    /**
+     * sets the most random latency added on top of the fixed latency
+     * @param latencyJitterMillis the jitter in milliseconds
+     * @return itself
+     */
+    public final LocalSqsClientBuilder latencyJitterMillis(long latencyJitterMillis){
+      this.latencyJitterMillis = latencyJitterMillis;
+      return this;
+    }
+
+    /**
+     * sets the fraction of calls that fail with an InternalError
+     * @param errorRate between 0 and 1
+     * @return itself
+     */
+    public final LocalSqsClientBuilder errorRate(double errorRate){
+      this.errorRate = errorRate;
+      return this;
+    }
+
+    /**
+     * sets the fraction of batch entries that fail while the rest of the batch succeeds
+     * @param batchEntryFailureRate between 0 and 1
+     * @return itself
+     */
+    public final LocalSqsClientBuilder batchEntryFailureRate(double batchEntryFailureRate){
+      this.batchEntryFailureRate = batchEntryFailureRate;
+      return this;
+    }
+
+    /**
+     * sets the seed of the injected latency and failures so runs can be repeated
+     * @param seed the seed
+     * @return itself
+     */
+    public final LocalSqsClientBuilder seed(long seed){
+      this.seed = seed;
+      return this;
+    }
+
+    /**
+     * sets a listener called with the nanoseconds between send and delete of every deleted message
+     * @param deleteListener the listener. must not block
+     * @return itself
+     */
+    public final LocalSqsClientBuilder deleteListener(LongConsumer deleteListener){
+      this.deleteListener = deleteListener;
+      return this;
+    }
+
+    /**
+     * build the client
+     * @return a new LocalSqsClient
+     */
+    public final LocalSqsClient build(){
+      if (visibilityTimeoutSeconds < 0)throw new IllegalArgumentException("Visibility timeout must not be negative");
+      if (latencyMillis < 0 || latencyJitterMillis < 0)throw new IllegalArgumentException("Latency must not be negative");
+      if (errorRate < 0 || errorRate > 1)throw new IllegalArgumentException("Error rate must be between 0 and 1");
+      if (batchEntryFailureRate < 0 || batchEntryFailureRate > 1)throw new IllegalArgumentException("Batch entry failure rate must be between 0 and 1");
+      return new LocalSqsClient(this);
+    }
+  }
+
+  /**
+   * a message stored in a local queue
+   */
+  private static final class StoredMessage{
+    private final String messageId;//the message id
+    private final String body;//the body
+    private final String md5OfBody;//md5 of the body
+    private final Map<String, MessageAttributeValue> messageAttributes;//the message attributes
+    private final String messageGroupId;//the message group of a FIFO message. may be null
+    private final long sequenceNumber;//order of the message in its queue
+    private final long sentMillis;//wall clock send time
+    private final long sentNanos;//monotonic send time
+    private long firstReceiveMillis = 0;//wall clock time of the first receive
+    private int receiveCount = 0;//how many times the message was received
+    private String receiptHandle = null;//receipt handle of the latest receive
+    private long visibleAtNanos;//when the message can be received again
+
+    private StoredMessage(String body, Map<String, MessageAttributeValue> messageAttributes, String messageGroupId, long sequenceNumber, long visibleAtNanos){
+      this.messageId = UUID.randomUUID().toString();
+      this.body = body;
+      this.md5OfBody = md5(body);
+      this.messageAttributes = messageAttributes;
+      this.messageGroupId = messageGroupId;
+      this.sequenceNumber = sequenceNumber;
+      this.sentMillis = System.currentTimeMillis();
+      this.sentNanos = System.nanoTime();
+      this.visibleAtNanos = visibleAtNanos;
+    }
+  }
+
+  /**
+   * a local queue. Visible messages wait in a deque. Delayed and in-flight messages wait in a heap ordered by when they become visible
+   */
+  private static final class LocalQueue{
+    private final String url;//the queue url
+    private final int visibilityTimeoutSeconds;//default visibility timeout
+    private final ReentrantLock lock = new ReentrantLock();//guards the queue
+    private final Condition arrived = lock.newCondition();//signalled when a message becomes visible
+    private final ArrayDeque<StoredMessage> visible = new ArrayDeque<>();//messages that can be received
+    private final PriorityQueue<StoredMessage> invisible = new PriorityQueue<>((a, b) -> Long.compare(a.visibleAtNanos, b.visibleAtNanos));//delayed and in-flight messages
+    private final Map<String, StoredMessage> inFlight = new HashMap<>();//in-flight messages by receipt handle
+    private final boolean fifo;//FIFO queue
+    private final Map<String, Integer> groupsInFlight = new HashMap<>();//in-flight messages of each FIFO group
+    private final Map<String, List<Message>> attempts = new LinkedHashMap<String, List<Message>>(){//FIFO receives by attempt id
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, List<Message>> eldest){
+        return size() > MAX_RECEIVE_ATTEMPTS;
+      }
+    };
+    private long sequence = 0;//sequence number of the last message sent
+
+    private LocalQueue(String url, int visibilityTimeoutSeconds){
+      this.url = url;
+      this.visibilityTimeoutSeconds = visibilityTimeoutSeconds;
+      this.fifo = url.endsWith(".fifo");
+    }
+
+    /**
+     * count a message as in flight in its group. Caller holds the lock
+     * @param message the received message
+     */
+    private void lockGroup(StoredMessage message){
+      if (fifo)groupsInFlight.merge(message.messageGroupId, 1, Integer::sum);
+    }
+
+    /**
+     * a message left flight by being deleted or becoming visible. Caller holds the lock
+     * @param message the message
+     */
+    private void unlockGroup(StoredMessage message){
+      if (fifo)groupsInFlight.computeIfPresent(message.messageGroupId, (group, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * make a message visible. FIFO messages return to their place in the queue. Caller holds the lock
+     * @param message the message
+     * @param first received next on a standard queue
+     */
+    private void makeVisible(StoredMessage message, boolean first){
+      if (!fifo){
+        if (first){
+          visible.addFirst(message);
+        }else{
+          visible.addLast(message);
+        }
+        return;
+      }
+      List<StoredMessage> later = new ArrayList<>();//few messages are returned at once. a stand-in does not need an ordered index
+      while (!visible.isEmpty() && visible.peekLast().sequenceNumber > message.sequenceNumber)later.add(visible.pollLast());
+      visible.addLast(message);
+      for (int i = later.size() - 1; i >= 0; i--)visible.addLast(later.get(i));
+    }
+
+    /**
+     * move messages whose delay or visibility timeout has run out to the visible deque. Caller holds the lock
+     * @param nowNanos the current time
+     */
+    private void promote(long nowNanos){
+      while (!invisible.isEmpty() && invisible.peek().visibleAtNanos <= nowNanos){
+        StoredMessage message = invisible.poll();
+        if (message.receiptHandle != null && inFlight.remove(message.receiptHandle) != null)unlockGroup(message);//the receipt handle expires with the timeout
+        message.receiptHandle = null;
+        makeVisible(message, false);
+      }
+    }
+
+    /**
+     * make an in-flight message visible again. Caller holds the lock
+     * @param message the message
+     * @param visibilityTimeoutSeconds seconds until it is visible
+     */
+    private void changeVisibility(StoredMessage message, int visibilityTimeoutSeconds){
+      invisible.remove(message);
+      message.visibleAtNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(visibilityTimeoutSeconds);
+      if (visibilityTimeoutSeconds == 0){
+        inFlight.remove(message.receiptHandle);
+        unlockGroup(message);
+        message.receiptHandle = null;
+        makeVisible(message, true);//released messages are received next
+        arrived.signalAll();
+      }else{
+        invisible.add(message);
+      }
+    }
+  }
+
+  private final int VISIBILITY_TIMEOUT_SECONDS;//default visibility timeout of new queues
+  private final long LATENCY_MILLIS;//added to every call
+  private final long LATENCY_JITTER_MILLIS;//random extra latency
+  private final double ERROR_RATE;//fraction of failing calls
+  private final double BATCH_ENTRY_FAILURE_RATE;//fraction of failing batch entries
+  private final Random RANDOM;//injected latency and failures
+  private final LongConsumer DELETE_LISTENER;//notified of send to delete times. may be null
+  private final Map<String, LocalQueue> QUEUES = new ConcurrentHashMap<>();//queues by url
+  private final AtomicLong RECEIPTS = new AtomicLong();//receipt handle sequence
+  private final LongAdder SENT = new LongAdder();//messages sent
+  private final LongAdder RECEIVED = new LongAdder();//messages received, counting redeliveries
+  private final LongAdder REDELIVERED = new LongAdder();//receives of messages that were received before
+  private final LongAdder DELETED = new LongAdder();//messages deleted
+  private final LongAdder INJECTED_ERRORS = new LongAdder();//calls and entries failed on purpose
+
+  /**
+   * LocalSqsClient constructor
+   * @param builder the client builder
+   */
+  LocalSqsClient(LocalSqsClientBuilder builder){
+    this.VISIBILITY_TIMEOUT_SECONDS = builder.visibilityTimeoutSeconds;
+    this.LATENCY_MILLIS = builder.latencyMillis;
+    this.LATENCY_JITTER_MILLIS = builder.latencyJitterMillis;
+    this.ERROR_RATE = builder.errorRate;
+    this.BATCH_ENTRY_FAILURE_RATE = builder.batchEntryFailureRate;
+    this.RANDOM = builder.seed != null ? new Random(builder.seed) : new Random();
+    this.DELETE_LISTENER = builder.deleteListener;
+  }
+
+  /**
+   * create a queue with the client's default visibility timeout
+   * @param queueName the queue name
+   * @return the queue url
+   */
+  public String createQueue(String queueName){
+    return createQueue(CreateQueueRequest.builder().queueName(queueName).build()).queueUrl();
+  }
+
+  /**
+   * put messages on a queue without the injected latency and errors. Lets a load test feed the queue without testing the producer
+   * @param queueUrl the queue url
+   * @param body the body of every message
+   * @param count how many messages
+   */
+  public void enqueue(String queueUrl, String body, int count){
+    LocalQueue queue = queue(queueUrl);
+    for (int i = 0; i < count; i++)send(queue, body, null, null, null);
+  }
+
+  /**
+   * put messages on a FIFO queue round robin over message groups named group-0 to group-(groups - 1)
+   * @param queueUrl the queue url
+   * @param body the body of every message
+   * @param count how many messages
+   * @param groups how many message groups
+   */
+  public void enqueue(String queueUrl, String body, int count, int groups){
+    LocalQueue queue = queue(queueUrl);
+    for (int i = 0; i < count; i++)send(queue, body, null, null, "group-" + (i % groups));
+  }
+
+  /**
+   * @return messages sent
+   */
+  public long sent(){
+    return SENT.sum();
+  }
+
+  /**
+   * @return messages received, counting redeliveries
+   */
+  public long received(){
+    return RECEIVED.sum();
+  }
+
+  /**
+   * @return receives of messages that had been received before
+   */
+  public long redelivered(){
+    return REDELIVERED.sum();
+  }
+
+  /**
+   * @return messages deleted
+   */
+  public long deleted(){
+    return DELETED.sum();
+  }
+
+  /**
+   * @return calls and batch entries that failed on purpose
+   */
+  public long injectedErrors(){
+    return INJECTED_ERRORS.sum();
+  }
+
+  @Override
+  public String serviceName(){
+    return SERVICE_NAME;
+  }
+
+  @Override
+  public void close(){}
+
+  @Override
+  public CreateQueueResponse createQueue(CreateQueueRequest request){
+    String url = "http://localhost/" + ACCOUNT_ID + "/" + request.queueName();
+    int visibilityTimeoutSeconds = VISIBILITY_TIMEOUT_SECONDS;
+    if (request.hasAttributes() && request.attributes().containsKey(QueueAttributeName.VISIBILITY_TIMEOUT)){
+      visibilityTimeoutSeconds = Integer.parseInt(request.attributes().get(QueueAttributeName.VISIBILITY_TIMEOUT));
+    }
+    QUEUES.putIfAbsent(url, new LocalQueue(url, visibilityTimeoutSeconds));
+    return CreateQueueResponse.builder().queueUrl(url).build();
+  }
+
+  @Override
+  public GetQueueUrlResponse getQueueUrl(GetQueueUrlRequest request){
+    simulate();
+    String url = "http://localhost/" + ACCOUNT_ID + "/" + request.queueName();
+    if (!QUEUES.containsKey(url))throw (QueueDoesNotExistException)QueueDoesNotExistException.builder().message("Queue does not exist: " + request.queueName()).build();
+    return GetQueueUrlResponse.builder().queueUrl(url).build();
+  }
+
+  @Override
+  public GetQueueAttributesResponse getQueueAttributes(GetQueueAttributesRequest request){
+    simulate();
+    LocalQueue queue = queue(request.queueUrl());
+    Map<QueueAttributeName, String> attributes = new EnumMap<>(QueueAttributeName.class);
+    queue.lock.lock();
+    try{
+      queue.promote(System.nanoTime());
+      attributes.put(QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES, Integer.toString(queue.visible.size()));
+      attributes.put(QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES_NOT_VISIBLE, Integer.toString(queue.inFlight.size()));
+      attributes.put(QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES_DELAYED, Integer.toString(queue.invisible.size() - queue.inFlight.size()));
+      attributes.put(QueueAttributeName.VISIBILITY_TIMEOUT, Integer.toString(queue.visibilityTimeoutSeconds));
+    }finally{
+      queue.lock.unlock();
+    }
+    return GetQueueAttributesResponse.builder().attributes(attributes).build();
+  }
+
+  @Override
+  public SendMessageResponse sendMessage(SendMessageRequest request){
+    simulate();
+    LocalQueue queue = queue(request.queueUrl());
+    StoredMessage message = send(queue, request.messageBody(), request.messageAttributes(), request.delaySeconds(), request.messageGroupId());
+    return SendMessageResponse.builder().messageId(message.messageId).md5OfMessageBody(message.md5OfBody).build();
+  }
+
+  @Override
+  public SendMessageBatchResponse sendMessageBatch(SendMessageBatchRequest request){
+    simulate();
+    LocalQueue queue = queue(request.queueUrl());
+    List<SendMessageBatchRequestEntry> entries = request.entries();
+    validateBatch(entries.size(), ids(entries, SendMessageBatchRequestEntry::id));
+    List<SendMessageBatchResultEntry> successful = new ArrayList<>(entries.size());
+    List<BatchResultErrorEntry> failed = new ArrayList<>();
+    for (SendMessageBatchRequestEntry entry: entries){
+      if (failEntry()){
+        failed.add(injectedFailure(entry.id()));
+        continue;
+      }
+      StoredMessage message = send(queue, entry.messageBody(), entry.messageAttributes(), entry.delaySeconds(), entry.messageGroupId());
+      successful.add(SendMessageBatchResultEntry.builder().id(entry.id()).messageId(message.messageId).md5OfMessageBody(message.md5OfBody).build());
+    }
+    SendMessageBatchResponse.Builder response = SendMessageBatchResponse.builder().successful(successful);
+    if (!failed.isEmpty())response.failed(failed);//SQS leaves the field out when nothing failed
+    return response.build();
+  }
+
+  @Override
+  public ReceiveMessageResponse receiveMessage(ReceiveMessageRequest request){
+    simulate();
+    LocalQueue queue = queue(request.queueUrl());
+    int maxNumberOfMessages = request.maxNumberOfMessages() != null ? request.maxNumberOfMessages() : 1;
+    int waitTimeSeconds = request.waitTimeSeconds() != null ? request.waitTimeSeconds() : 0;
+    if (maxNumberOfMessages < 1 || maxNumberOfMessages > MAX_BATCH_SIZE)throw invalidParameter("MaxNumberOfMessages must be between 1 and " + MAX_BATCH_SIZE);
+    if (waitTimeSeconds < 0 || waitTimeSeconds > MAX_WAIT_TIME_SECONDS)throw invalidParameter("WaitTimeSeconds must be between 0 and " + MAX_WAIT_TIME_SECONDS);
+    int visibilityTimeoutSeconds = request.visibilityTimeout() != null ? request.visibilityTimeout() : queue.visibilityTimeoutSeconds;
+    Set<String> systemAttributes = systemAttributeNames(request);
+
+    List<Message> messages = new ArrayList<>(maxNumberOfMessages);
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(waitTimeSeconds);
+    queue.lock.lock();
+    try{
+      String attemptId = queue.fifo ? request.receiveRequestAttemptId() : null;
+      List<Message> attempted = attemptId != null ? queue.attempts.get(attemptId) : null;
+      if (attempted != null && inFlight(queue, attempted))return ReceiveMessageResponse.builder().messages(attempted).build();//retried attempt. same messages
+      while (true){
+        long now = System.nanoTime();
+        queue.promote(now);
+        if (queue.fifo){
+          Set<String> locked = new HashSet<>(queue.groupsInFlight.keySet());//groups held by other receives
+          for (Iterator<StoredMessage> visible = queue.visible.iterator(); visible.hasNext() && messages.size() < maxNumberOfMessages;){
+            StoredMessage stored = visible.next();
+            if (locked.contains(stored.messageGroupId))continue;
+            visible.remove();
+            messages.add(receive(queue, stored, visibilityTimeoutSeconds, systemAttributes, request.messageAttributeNames()));
+          }
+        }else{
+          while (messages.size() < maxNumberOfMessages && !queue.visible.isEmpty()){
+            messages.add(receive(queue, queue.visible.pollFirst(), visibilityTimeoutSeconds, systemAttributes, request.messageAttributeNames()));
+          }
+        }
+        if (attemptId != null && !messages.isEmpty())queue.attempts.put(attemptId, messages);
+        if (!messages.isEmpty() || now >= deadline)break;
+        long waitNanos = deadline - now;//wake for the deadline or the next message becoming visible
+        if (!queue.invisible.isEmpty())waitNanos = Math.min(waitNanos, queue.invisible.peek().visibleAtNanos - now);
+        try{
+          queue.arrived.awaitNanos(Math.max(waitNanos, 1));
+        }catch(InterruptedException ie){//return what we have like an aborted poll
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    }finally{
+      queue.lock.unlock();
+    }
+    ReceiveMessageResponse.Builder response = ReceiveMessageResponse.builder();
+    if (!messages.isEmpty())response.messages(messages);//SQS leaves the field out of empty receives. hasMessages() is false
+    return response.build();
+  }
+
+  @Override
+  public DeleteMessageResponse deleteMessage(DeleteMessageRequest request){
+    simulate();
+    LocalQueue queue = queue(request.queueUrl());
+    if (!delete(queue, request.receiptHandle())){
+      throw (ReceiptHandleIsInvalidException)ReceiptHandleIsInvalidException.builder().message("The receipt handle is not valid: " + request.receiptHandle()).build();
+    }
+    return DeleteMessageResponse.builder().build();
+  }
+
+  @Override
+  public DeleteMessageBatchResponse deleteMessageBatch(DeleteMessageBatchRequest request){
+    simulate();
+    LocalQueue queue = queue(request.queueUrl());
+    List<DeleteMessageBatchRequestEntry> entries = request.entries();
+    validateBatch(entries.size(), ids(entries, DeleteMessageBatchRequestEntry::id));
+    List<DeleteMessageBatchResultEntry> successful = new ArrayList<>(entries.size());
+    List<BatchResultErrorEntry> failed = new ArrayList<>();
+    for (DeleteMessageBatchRequestEntry entry: entries){
+      if (failEntry()){
+        failed.add(injectedFailure(entry.id()));
+      }else if (delete(queue, entry.receiptHandle())){
+        successful.add(DeleteMessageBatchResultEntry.builder().id(entry.id()).build());
+      }else{
+        failed.add(invalidReceiptHandle(entry.id()));
+      }
+    }
+    DeleteMessageBatchResponse.Builder response = DeleteMessageBatchResponse.builder().successful(successful);
+    if (!failed.isEmpty())response.failed(failed);//SQS leaves the field out when nothing failed
+    return response.build();
+  }
+
+  @Override
+  public ChangeMessageVisibilityResponse changeMessageVisibility(ChangeMessageVisibilityRequest request){
+    simulate();
+    LocalQueue queue = queue(request.queueUrl());
+    if (!changeVisibility(queue, request.receiptHandle(), request.visibilityTimeout())){
+      throw (ReceiptHandleIsInvalidException)ReceiptHandleIsInvalidException.builder().message("The receipt handle is not valid: " + request.receiptHandle()).build();
+    }
+    return ChangeMessageVisibilityResponse.builder().build();
+  }
+
+  @Override
+  public ChangeMessageVisibilityBatchResponse changeMessageVisibilityBatch(ChangeMessageVisibilityBatchRequest request){
+    simulate();
+    LocalQueue queue = queue(request.queueUrl());
+    List<ChangeMessageVisibilityBatchRequestEntry> entries = request.entries();
+    validateBatch(entries.size(), ids(entries, ChangeMessageVisibilityBatchRequestEntry::id));
+    List<ChangeMessageVisibilityBatchResultEntry> successful = new ArrayList<>(entries.size());
+    List<BatchResultErrorEntry> failed = new ArrayList<>();
+    for (ChangeMessageVisibilityBatchRequestEntry entry: entries){
+      if (failEntry()){
+        failed.add(injectedFailure(entry.id()));
+      }else if (changeVisibility(queue, entry.receiptHandle(), entry.visibilityTimeout())){
+        successful.add(ChangeMessageVisibilityBatchResultEntry.builder().id(entry.id()).build());
+      }else{
+        failed.add(invalidReceiptHandle(entry.id()));
+      }
+    }
+    ChangeMessageVisibilityBatchResponse.Builder response = ChangeMessageVisibilityBatchResponse.builder().successful(successful);
+    if (!failed.isEmpty())response.failed(failed);//SQS leaves the field out when nothing failed
+    return response.build();
+  }
+
+  /**
+   * store a message
+   * @param queue the queue
+   * @param body the body
+   * @param messageAttributes the message attributes. may be null
+   * @param delaySeconds the delay. may be null
+   * @return the stored message
+   */
+  private StoredMessage send(LocalQueue queue, String body, Map<String, MessageAttributeValue> messageAttributes, Integer delaySeconds, String messageGroupId){
+    if (body == null || body.isEmpty())throw invalidParameter("The message body must not be empty");
+    if (queue.fifo && (messageGroupId == null || messageGroupId.isEmpty()))throw invalidParameter("The request must contain the parameter MessageGroupId");
+    int delay = delaySeconds != null ? delaySeconds : 0;
+    StoredMessage message;
+    queue.lock.lock();
+    try{
+      message = new StoredMessage(body, messageAttributes, queue.fifo ? messageGroupId : null, ++queue.sequence, System.nanoTime() + TimeUnit.SECONDS.toNanos(delay));
+      if (delay > 0){
+        queue.invisible.add(message);
+      }else{
+        queue.visible.addLast(message);
+      }
+      queue.arrived.signal();
+    }finally{
+      queue.lock.unlock();
+    }
+    SENT.increment();
+    return message;
+  }
+
+  /**
+   * hand a visible message to a receiver and start its visibility timeout. Caller holds the lock
+   * @param queue the queue
+   * @param stored the message
+   * @param visibilityTimeoutSeconds the visibility timeout
+   * @param systemAttributes the requested system attributes
+   * @param messageAttributeNames the requested message attributes. may be null
+   * @return the received message
+   */
+  private Message receive(LocalQueue queue, StoredMessage stored, int visibilityTimeoutSeconds, Set<String> systemAttributes, List<String> messageAttributeNames){
+    long now = System.currentTimeMillis();
+    if (stored.receiveCount > 0)REDELIVERED.increment();
+    stored.receiveCount++;
+    if (stored.firstReceiveMillis == 0)stored.firstReceiveMillis = now;
+    stored.receiptHandle = stored.messageId + "#" + RECEIPTS.incrementAndGet();//every receive gets a new receipt handle
+    stored.visibleAtNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(visibilityTimeoutSeconds);
+    queue.invisible.add(stored);
+    queue.inFlight.put(stored.receiptHandle, stored);
+    queue.lockGroup(stored);
+    RECEIVED.increment();
+
+    Map<MessageSystemAttributeName, String> attributes = new EnumMap<>(MessageSystemAttributeName.class);
+    boolean all = systemAttributes.contains(MessageSystemAttributeName.ALL.toString());
+    if (all || systemAttributes.contains(MessageSystemAttributeName.APPROXIMATE_RECEIVE_COUNT.toString()))attributes.put(MessageSystemAttributeName.APPROXIMATE_RECEIVE_COUNT, Integer.toString(stored.receiveCount));
+    if (all || systemAttributes.contains(MessageSystemAttributeName.SENT_TIMESTAMP.toString()))attributes.put(MessageSystemAttributeName.SENT_TIMESTAMP, Long.toString(stored.sentMillis));
+    if (all || systemAttributes.contains(MessageSystemAttributeName.APPROXIMATE_FIRST_RECEIVE_TIMESTAMP.toString()))attributes.put(MessageSystemAttributeName.APPROXIMATE_FIRST_RECEIVE_TIMESTAMP, Long.toString(stored.firstReceiveMillis));
+    if (queue.fifo && (all || systemAttributes.contains(MessageSystemAttributeName.MESSAGE_GROUP_ID.toString())))attributes.put(MessageSystemAttributeName.MESSAGE_GROUP_ID, stored.messageGroupId);
+    if (queue.fifo && (all || systemAttributes.contains(MessageSystemAttributeName.SEQUENCE_NUMBER.toString())))attributes.put(MessageSystemAttributeName.SEQUENCE_NUMBER, Long.toString(stored.sequenceNumber));
+
+    Message.Builder message = Message.builder()
+                                     .messageId(stored.messageId)
+                                     .receiptHandle(stored.receiptHandle)
+                                     .body(stored.body)
+                                     .md5OfBody(stored.md5OfBody)
+                                     .attributes(attributes);
+    if (stored.messageAttributes != null && messageAttributeNames != null && !messageAttributeNames.isEmpty()){
+      boolean allMessageAttributes = messageAttributeNames.contains("All") || messageAttributeNames.contains(".*");
+      Map<String, MessageAttributeValue> messageAttributes = new HashMap<>();
+      for (Map.Entry<String, MessageAttributeValue> attribute: stored.messageAttributes.entrySet()){
+        if (allMessageAttributes || messageAttributeNames.contains(attribute.getKey()))messageAttributes.put(attribute.getKey(), attribute.getValue());
+      }
+      message.messageAttributes(messageAttributes);
+    }
+    return message.build();
+  }
+
+  /**
+   * delete an in-flight message
+   * @param queue the queue
+   * @param receiptHandle the receipt handle of the latest receive
+   * @return false if the receipt handle is unknown or expired
+   */
+  private boolean delete(LocalQueue queue, String receiptHandle){
+    StoredMessage message;
+    queue.lock.lock();
+    try{
+      queue.promote(System.nanoTime());
+      message = queue.inFlight.remove(receiptHandle);
+      if (message == null)return false;
+      queue.invisible.remove(message);
+      queue.unlockGroup(message);
+      if (queue.fifo)queue.arrived.signalAll();//the rest of the group can be received
+    }finally{
+      queue.lock.unlock();
+    }
+    DELETED.increment();
+    if (DELETE_LISTENER != null)DELETE_LISTENER.accept(System.nanoTime() - message.sentNanos);
+    return true;
+  }
+
+  /**
+   * @param queue the queue. Caller holds the lock
+   * @param messages messages of an earlier receive
+   * @return true if every message is still in flight under the receipt handle it was received with
+   */
+  private static boolean inFlight(LocalQueue queue, List<Message> messages){
+    for (Message message: messages){
+      if (!queue.inFlight.containsKey(message.receiptHandle()))return false;
+    }
+    return true;
+  }
+
+  /**
+   * change the visibility timeout of an in-flight message
+   * @param queue the queue
+   * @param receiptHandle the receipt handle of the latest receive
+   * @param visibilityTimeoutSeconds the new timeout from now
+   * @return false if the receipt handle is unknown or expired
+   */
+  private boolean changeVisibility(LocalQueue queue, String receiptHandle, Integer visibilityTimeoutSeconds){
+    queue.lock.lock();
+    try{
+      queue.promote(System.nanoTime());
+      StoredMessage message = queue.inFlight.get(receiptHandle);
+      if (message == null)return false;
+      queue.changeVisibility(message, visibilityTimeoutSeconds != null ? visibilityTimeoutSeconds : 0);
+      return true;
+    }finally{
+      queue.lock.unlock();
+    }
+  }
+
+  /**
+   * sleep for the injected latency and fail the call at the injected error rate
+   */
+  private void simulate(){
+    long latency = LATENCY_MILLIS;
+    if (LATENCY_JITTER_MILLIS > 0)latency += (long)(RANDOM.nextDouble() * LATENCY_JITTER_MILLIS);
+    if (latency > 0){
+      try{
+        Thread.sleep(latency);
+      }catch(InterruptedException ie){
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (ERROR_RATE > 0 && RANDOM.nextDouble() < ERROR_RATE){
+      INJECTED_ERRORS.increment();
+      throw (SqsException)SqsException.builder()
+                                      .message("Injected error")
+                                      .statusCode(500)
+                                      .awsErrorDetails(AwsErrorDetails.builder()
+                                                                      .errorCode("InternalError")
+                                                                      .errorMessage("Injected error")
+                                                                      .serviceName("Sqs")
+                                                                      .build())
+                                      .build();
+    }
+  }
+
+  /**
+   * @return true if a batch entry should fail on purpose
+   */
+  private boolean failEntry(){
+    if (BATCH_ENTRY_FAILURE_RATE <= 0 || RANDOM.nextDouble() >= BATCH_ENTRY_FAILURE_RATE)return false;
+    INJECTED_ERRORS.increment();
+    return true;
+  }
+
+  /**
+   * @param id the entry id
+   * @return a retryable failure for an entry failed on purpose
+   */
+  private static BatchResultErrorEntry injectedFailure(String id){
+    return BatchResultErrorEntry.builder().id(id).senderFault(false).code("InternalError").message("Injected entry failure").build();
+  }
+
+  /**
+   * @param id the entry id
+   * @return the failure SQS returns for an unknown or expired receipt handle
+   */
+  private static BatchResultErrorEntry invalidReceiptHandle(String id){
+    return BatchResultErrorEntry.builder().id(id).senderFault(true).code("ReceiptHandleIsInvalid").message("The receipt handle is not valid").build();
+  }
+
+  /**
+   * @param message the error message
+   * @return the exception SQS throws for an invalid parameter
+   */
+  private static SqsException invalidParameter(String message){
+    return (SqsException)SqsException.builder()
+                                     .message(message)
+                                     .statusCode(400)
+                                     .awsErrorDetails(AwsErrorDetails.builder()
+                                                                     .errorCode("InvalidParameterValue")
+                                                                     .errorMessage(message)
+                                                                     .serviceName("Sqs")
+                                                                     .build())
+                                     .build();
+  }
+
+  /**
+   * check the batch limits SQS enforces
+   * @param size the number of entries
+   * @param ids the entry ids
+   */
+  private static void validateBatch(int size, Collection<String> ids){
+    if (size == 0)throw (EmptyBatchRequestException)EmptyBatchRequestException.builder().message("There should be at least one entry in the request").build();
+    if (size > MAX_BATCH_SIZE)throw (TooManyEntriesInBatchRequestException)TooManyEntriesInBatchRequestException.builder().message("Maximum number of entries per request are " + MAX_BATCH_SIZE).build();
+    if (ids.size() != size)throw (BatchEntryIdsNotDistinctException)BatchEntryIdsNotDistinctException.builder().message("Two or more batch entries in the request have the same Id").build();
+  }
+
+  /**
+   * collect the distinct ids of a batch
+   * @param entries the entries
+   * @param id gets the id of an entry
+   * @return the distinct ids
+   */
+  private static <T> Set<String> ids(List<T> entries, java.util.function.Function<T, String> id){
+    Set<String> ids = new HashSet<>();
+    for (T entry: entries)ids.add(id.apply(entry));
+    return ids;
+  }
+
+  /**
+   * @param request the receive request
+   * @return the requested system attribute names as strings
+   */
+  private static Set<String> systemAttributeNames(ReceiveMessageRequest request){
+    Set<String> names = new HashSet<>();
+    if (request.hasMessageSystemAttributeNames()){
+      for (MessageSystemAttributeName name: request.messageSystemAttributeNames())names.add(name.toString());
+    }
+    return names;
+  }
+
+  /**
+   * @param queueUrl the queue url
+   * @return the queue
+   * @throws QueueDoesNotExistException if the queue was not created
+   */
+  private LocalQueue queue(String queueUrl){
+    LocalQueue queue = QUEUES.get(queueUrl);
+    if (queue == null)throw (QueueDoesNotExistException)QueueDoesNotExistException.builder().message("Queue does not exist: " + queueUrl).build();
+    return queue;
+  }
+
+  /**
+   * @param body the message body
+   * @return the hex md5 of the body, like SQS returns
+   */
+  private static String md5(String body){
+    try{
+      byte[] digest = MessageDigest.getInstance("MD5").digest(body.getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder(digest.length * 2);
+      for (byte b: digest)hex.append(String.format("%02x", b));
+      return hex.toString();
+    }catch(NoSuchAlgorithmException nsae){//every JVM ships MD5
+      throw new IllegalStateException(nsae);
+    }
+  }
+}
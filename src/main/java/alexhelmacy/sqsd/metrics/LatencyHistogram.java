@@ -0,0 +1,146 @@
+package alexhelmacy.sqsd.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free log-linear histogram of durations in nanoseconds. Each power of two is split into 16 buckets, so a percentile is
+ * within about 6% of the recorded value. Recording is a few atomic increments and never allocates.
+ */
+public class LatencyHistogram{
+  private static final int SUB_BUCKET_BITS = 4;//16 buckets per power of two
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS + SUB_BUCKETS;//covers every positive long
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);//values per bucket
+  private final LongAdder count = new LongAdder();//values recorded
+  private final LongAdder sum = new LongAdder();//sum of recorded values
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);//largest recorded value
+
+  /**
+   * record a duration
+   * @param nanos the duration in nanoseconds. negative values are recorded as 0
+   */
+  public void record(long nanos){
+    if (nanos < 0)nanos = 0;
+    counts.incrementAndGet(bucket(nanos));
+    count.increment();
+    sum.add(nanos);
+    max.accumulate(nanos);
+  }
+
+  /**
+   * record the time since a start
+   * @param startNanos the start from System.nanoTime()
+   */
+  public void recordSince(long startNanos){
+    record(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * @return how many values were recorded
+   */
+  public long count(){
+    return count.sum();
+  }
+
+  /**
+   * @return the sum of every recorded value in nanoseconds
+   */
+  public long sum(){
+    return sum.sum();
+  }
+
+  /**
+   * @return the mean in nanoseconds. 0 when nothing was recorded
+   */
+  public double mean(){
+    long recorded = count.sum();
+    return recorded == 0 ? 0 : (double)sum.sum() / recorded;
+  }
+
+  /**
+   * @return the largest recorded value in nanoseconds
+   */
+  public long max(){
+    return max.get();
+  }
+
+  /**
+   * the value at a percentile. Reads are not atomic with concurrent records, which only matters for the last few values
+   * @param percentile between 0 and 100
+   * @return the upper bound of the bucket holding the percentile in nanoseconds. 0 when nothing was recorded
+   */
+  public long percentile(double percentile){
+    if (percentile < 0 || percentile > 100)throw new IllegalArgumentException("Percentile must be between 0 and 100");
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++)total += counts.get(i);
+    if (total == 0)return 0;
+    long rank = Math.max(1, (long)Math.ceil(total * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++){
+      seen += counts.get(i);
+      if (seen >= rank)return Math.min(upperBound(i), max.get());
+    }
+    return max.get();
+  }
+
+  /**
+   * the value at a percentile in another unit
+   * @param percentile between 0 and 100
+   * @param unit the unit
+   * @return the value in the unit
+   */
+  public double percentile(double percentile, TimeUnit unit){
+    return (double)percentile(percentile) / unit.toNanos(1);
+  }
+
+  /**
+   * add every value recorded by another histogram, e.g. to total the histograms of several threads
+   * @param other the histogram to add
+   */
+  public void add(LatencyHistogram other){
+    for (int i = 0; i < BUCKETS; i++){
+      long bucketCount = other.counts.get(i);
+      if (bucketCount > 0)counts.addAndGet(i, bucketCount);
+    }
+    count.add(other.count.sum());
+    sum.add(other.sum.sum());
+    max.accumulate(other.max.get());
+  }
+
+  /**
+   * clear every recorded value. Not atomic with concurrent records
+   */
+  public void reset(){
+    for (int i = 0; i < BUCKETS; i++)counts.set(i, 0);
+    count.reset();
+    sum.reset();
+    max.reset();
+  }
+
+  /**
+   * @param value a non-negative value
+   * @return the bucket of the value
+   */
+  private static int bucket(long value){
+    if (value < SUB_BUCKETS)return (int)value;//exact below 16
+    int exponent = 63 - Long.numberOfLeadingZeros(value);//position of the highest bit. at least 4
+    int subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  /**
+   * @param bucket a bucket
+   * @return the largest value in the bucket
+   */
+  private static long upperBound(int bucket){
+    if (bucket < SUB_BUCKETS)return bucket;
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    long subBucket = bucket % SUB_BUCKETS;
+    long lower = (1L << exponent) | (subBucket << (exponent - SUB_BUCKET_BITS));
+    return lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+  }
+}
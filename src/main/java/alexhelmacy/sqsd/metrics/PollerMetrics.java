@@ -0,0 +1,93 @@
+package alexhelmacy.sqsd.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import alexhelmacy.sqsd.processor.PollerStatistics;
+
+/**
+ * PollerMetricsMXBean over a supplier of statistics. The supplier is read on every attribute so the values are always current.
+ */
+public class PollerMetrics implements PollerMetricsMXBean{
+  private final Supplier<PollerStatistics> statistics;//the statistics to expose
+
+  /**
+   * PollerMetrics constructor
+   * @param statistics the statistics to expose. called on every attribute read
+   */
+  public PollerMetrics(Supplier<PollerStatistics> statistics){
+    this.statistics = statistics;
+  }
+
+  @Override
+  public long getReceives(){
+    return statistics.get().snapshot().RECEIVES;
+  }
+
+  @Override
+  public long getEmptyReceives(){
+    return statistics.get().snapshot().EMPTY_RECEIVES;
+  }
+
+  @Override
+  public long getMessages(){
+    return statistics.get().snapshot().MESSAGES;
+  }
+
+  @Override
+  public double getAverageBatchFill(){
+    PollerStatistics.Snapshot snapshot = statistics.get().snapshot();
+    long nonEmpty = snapshot.RECEIVES - snapshot.EMPTY_RECEIVES;
+    return nonEmpty == 0 ? 0 : (double)snapshot.MESSAGES / nonEmpty;
+  }
+
+  @Override
+  public long getDeletes(){
+    return statistics.get().snapshot().DELETES;
+  }
+
+  @Override
+  public long getDeleteFailures(){
+    return statistics.get().snapshot().DELETE_FAILURES;
+  }
+
+  @Override
+  public long getDeleteRetries(){
+    return statistics.get().snapshot().DELETE_RETRIES;
+  }
+
+  @Override
+  public long getInFlight(){
+    return statistics.get().inFlight();
+  }
+
+  @Override
+  public double getReceiveLatencyP50Millis(){
+    return statistics.get().receiveLatency().percentile(50, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public double getReceiveLatencyP99Millis(){
+    return statistics.get().receiveLatency().percentile(99, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public double getProcessingTimeP50Millis(){
+    return statistics.get().processingTime().percentile(50, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public double getProcessingTimeP99Millis(){
+    return statistics.get().processingTime().percentile(99, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public double getDeleteLatencyP50Millis(){
+    return statistics.get().deleteLatency().percentile(50, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public double getDeleteLatencyP99Millis(){
+    return statistics.get().deleteLatency().percentile(99, TimeUnit.MILLISECONDS);
+  }
+}
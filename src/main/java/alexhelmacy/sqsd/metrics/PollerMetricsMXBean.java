@@ -0,0 +1,21 @@
+package alexhelmacy.sqsd.metrics;
+
+/**
+ * JMX view of the statistics of one poller thread or of every thread in an SqsD. Latencies are in milliseconds.
+ */
+public interface PollerMetricsMXBean{
+  long getReceives();//receive calls made
+  long getEmptyReceives();//receive calls that returned no messages
+  long getMessages();//messages received
+  double getAverageBatchFill();//messages per non empty receive
+  long getDeletes();//delete requests made
+  long getDeleteFailures();//messages that failed to be deleted
+  long getDeleteRetries();//delete requests retrying failed messages
+  long getInFlight();//messages received and not yet deleted or abandoned
+  double getReceiveLatencyP50Millis();
+  double getReceiveLatencyP99Millis();
+  double getProcessingTimeP50Millis();
+  double getProcessingTimeP99Millis();
+  double getDeleteLatencyP50Millis();
+  double getDeleteLatencyP99Millis();
+}
@@ -0,0 +1,392 @@
+package alexhelmacy.sqsd.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import alexhelmacy.sqsd.SqsD;
+import alexhelmacy.sqsd.processor.PollerStatistics;
+import alexhelmacy.sqsd.processor.SqsDThread;
+
+/**
+ * Exposes the statistics of every poller in an SqsD, per thread and in total:
+ * <ul>
+ *   <li>as JMX MXBeans named alexhelmacy.sqsd:type=Poller,id=&lt;thread id&gt; and alexhelmacy.sqsd:type=Poller,id=all</li>
+ *   <li>in the Prometheus text format on a local /metrics endpoint, labelled with thread="&lt;thread id&gt;" and thread="all"</li>
+ * </ul>
+ * Threads added or removed by the autoscaler are picked up every refresh interval. A removed thread is read live until it has
+ * stopped draining, then its totals are kept in the aggregate.
+ */
+public class SqsDMetrics implements AutoCloseable{
+
+  /**
+   * return a metrics builder
+   * @return a new instance of a SqsDMetricsBuilder
+   */
+  public static final SqsDMetricsBuilder builder(){
+    return new SqsDMetricsBuilder();
+  }
+
+  /**
+   * SqsDMetrics builder class
+   */
+  public static final class SqsDMetricsBuilder{
+    private SqsD sqsd = null;//the sqsd to expose
+    private boolean jmx = false;//register MXBeans
+    private int httpPort = -1;//port of the /metrics endpoint. disabled when negative
+    private String httpHost = "127.0.0.1";//address the endpoint binds to
+    private long refreshSeconds = 5;//how often thread registrations are refreshed
+
+    /**
+     * sets the sqsd to expose
+     * @param sqsd the sqsd
+     * @return itself
+     */
+    public final SqsDMetricsBuilder sqsd(SqsD sqsd){
+      this.sqsd = sqsd;
+      return this;
+    }
+
+    /**
+     * sets if MXBeans are registered with the platform MBean server
+     * @param jmx true to register
+     * @return itself
+     */
+    public final SqsDMetricsBuilder jmx(boolean jmx){
+      this.jmx = jmx;
+      return this;
+    }
+
+    /**
+     * sets the port of the /metrics endpoint. 0 picks a free port
+     * @param httpPort the port
+     * @return itself
+     */
+    public final SqsDMetricsBuilder httpPort(int httpPort){
+      this.httpPort = httpPort;
+      return this;
+    }
+
+    /**
+     * sets the address the /metrics endpoint binds to. Defaults to the loopback address
+     * @param httpHost the host
+     * @return itself
+     */
+    public final SqsDMetricsBuilder httpHost(String httpHost){
+      this.httpHost = httpHost;
+      return this;
+    }
+
+    /**
+     * sets how often thread registrations are refreshed
+     * @param refreshSeconds the interval in seconds
+     * @return itself
+     */
+    public final SqsDMetricsBuilder refreshSeconds(long refreshSeconds){
+      this.refreshSeconds = refreshSeconds;
+      return this;
+    }
+
+    /**
+     * build and start the metrics
+     * @return a new SqsDMetrics
+     * @throws IOException if the endpoint cannot bind its port
+     */
+    public final SqsDMetrics build() throws IOException{
+      if (!(sqsd instanceof SqsD))throw new IllegalArgumentException("SqsD must be specified");
+      if (!jmx && httpPort < 0)throw new IllegalArgumentException("JMX or an HTTP port must be enabled");
+      if (httpPort > 65535)throw new IllegalArgumentException("HTTP port must be at most 65535");
+      if (refreshSeconds <= 0)throw new IllegalArgumentException("Refresh interval must be at least 1 second");
+      return new SqsDMetrics(this);
+    }
+  }
+
+  private static final String DOMAIN = "alexhelmacy.sqsd";//JMX domain
+  private static final String AGGREGATE = "all";//id and label of the totals
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};//summary quantiles
+
+  private final SqsD SQSD;//the sqsd to expose
+  private final MBeanServer MBEAN_SERVER;//platform server. null when jmx is disabled
+  private final HttpServer HTTP_SERVER;//the /metrics endpoint. null when disabled
+  private final ExecutorService HTTP_EXECUTOR;//serves requests
+  private final ScheduledExecutorService SCHEDULER;//refreshes thread registrations
+  private final Map<String, SqsDThread> THREADS = new HashMap<>();//threads owned by the sqsd by thread id
+  private final Map<String, SqsDThread> DRAINING = new HashMap<>();//removed threads that have not stopped yet. read live until they do
+  private final PollerStatistics RETIRED = new PollerStatistics();//totals of removed threads that stopped
+  private final Logger LOGGER = LoggerFactory.getLogger(this.getClass().getSimpleName());//logger
+
+  /**
+   * SqsDMetrics constructor
+   * @param builder the metrics builder
+   * @throws IOException if the endpoint cannot bind its port
+   */
+  SqsDMetrics(SqsDMetricsBuilder builder) throws IOException{
+    SQSD = builder.sqsd;
+    MBEAN_SERVER = builder.jmx ? ManagementFactory.getPlatformMBeanServer() : null;
+    refresh();
+    register(AGGREGATE, new PollerMetrics(this::aggregate));
+    if (builder.httpPort >= 0){
+      HTTP_SERVER = HttpServer.create(new InetSocketAddress(builder.httpHost, builder.httpPort), 0);
+      HTTP_EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "sqsd-metrics-http");
+        thread.setDaemon(true);
+        return thread;
+      });
+      HTTP_SERVER.setExecutor(HTTP_EXECUTOR);
+      HTTP_SERVER.createContext("/metrics", this::serve);
+      HTTP_SERVER.start();
+      LOGGER.info("Serving metrics on http://" + builder.httpHost + ":" + httpPort() + "/metrics");
+    }else{
+      HTTP_SERVER = null;
+      HTTP_EXECUTOR = null;
+    }
+    SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "sqsd-metrics-refresh");
+      thread.setDaemon(true);
+      return thread;
+    });
+    SCHEDULER.scheduleWithFixedDelay(this::refreshSafely, builder.refreshSeconds, builder.refreshSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * @return the port of the /metrics endpoint. -1 when disabled
+   */
+  public int httpPort(){
+    return HTTP_SERVER != null ? HTTP_SERVER.getAddress().getPort() : -1;
+  }
+
+  /**
+   * @return the totals of every current and removed thread
+   */
+  public synchronized PollerStatistics aggregate(){
+    PollerStatistics total = new PollerStatistics();
+    total.add(RETIRED);
+    for (SqsDThread thread: THREADS.values())total.add(thread.statistics());
+    for (SqsDThread thread: DRAINING.values())total.add(thread.statistics());
+    return total;
+  }
+
+  /**
+   * register threads the sqsd gained and retire threads it lost once they have stopped. A removed thread keeps deleting
+   * the messages it holds while it drains, so its statistics are read live until then
+   */
+  synchronized void refresh(){
+    Map<String, SqsDThread> current = new HashMap<>();
+    for (SqsDThread thread: SQSD.threads())current.put(thread.THREAD_ID, thread);
+    for (Map.Entry<String, SqsDThread> known: THREADS.entrySet()){
+      if (!current.containsKey(known.getKey()))DRAINING.put(known.getKey(), known.getValue());
+    }
+    for (Iterator<SqsDThread> draining = DRAINING.values().iterator(); draining.hasNext();){
+      SqsDThread thread = draining.next();
+      if (!thread.closed())continue;
+      RETIRED.add(thread.statistics());//keep the totals of the stopped thread
+      RETIRED.recordInFlight((int)-thread.statistics().inFlight());//but not its messages in flight. they finish without the thread
+      unregister(thread.THREAD_ID);
+      draining.remove();
+    }
+    for (Map.Entry<String, SqsDThread> thread: current.entrySet()){
+      if (THREADS.containsKey(thread.getKey()))continue;
+      PollerStatistics statistics = thread.getValue().statistics();
+      register(thread.getKey(), new PollerMetrics(() -> statistics));
+    }
+    THREADS.clear();
+    THREADS.putAll(current);
+  }
+
+  /**
+   * stop the endpoint and unregister every MXBean
+   */
+  @Override
+  public synchronized void close(){
+    SCHEDULER.shutdownNow();
+    if (HTTP_SERVER != null){
+      HTTP_SERVER.stop(0);
+      HTTP_EXECUTOR.shutdownNow();
+    }
+    for (String id: THREADS.keySet())unregister(id);
+    for (String id: DRAINING.keySet())unregister(id);
+    unregister(AGGREGATE);
+  }
+
+  /**
+   * refresh without letting an exception cancel the schedule
+   */
+  private void refreshSafely(){
+    try{
+      refresh();
+    }catch(RuntimeException re){
+      LOGGER.warn("Metrics refresh failed: " + re.getMessage());
+    }
+  }
+
+  /**
+   * register an MXBean when jmx is enabled
+   * @param id the thread id or the aggregate id
+   * @param metrics the MXBean
+   */
+  private void register(String id, PollerMetricsMXBean metrics){
+    if (MBEAN_SERVER == null)return;
+    try{
+      MBEAN_SERVER.registerMBean(metrics, objectName(id));
+    }catch(JMException jme){
+      LOGGER.warn("Failed to register metrics for " + id + ": " + jme.getMessage());
+    }
+  }
+
+  /**
+   * unregister an MXBean when jmx is enabled
+   * @param id the thread id or the aggregate id
+   */
+  private void unregister(String id){
+    if (MBEAN_SERVER == null)return;
+    try{
+      ObjectName name = objectName(id);
+      if (MBEAN_SERVER.isRegistered(name))MBEAN_SERVER.unregisterMBean(name);
+    }catch(JMException jme){
+      LOGGER.warn("Failed to unregister metrics for " + id + ": " + jme.getMessage());
+    }
+  }
+
+  /**
+   * @param id the thread id or the aggregate id
+   * @return the object name of the MXBean
+   * @throws JMException if the name is malformed
+   */
+  private static ObjectName objectName(String id) throws JMException{
+    return new ObjectName(DOMAIN + ":type=Poller,id=" + id);
+  }
+
+  /**
+   * answer a /metrics request
+   * @param exchange the request
+   * @throws IOException if the response cannot be written
+   */
+  private void serve(HttpExchange exchange) throws IOException{
+    try{
+      if (!"GET".equals(exchange.getRequestMethod())){
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      byte[] body = render().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()){
+        out.write(body);
+      }
+    }finally{
+      exchange.close();
+    }
+  }
+
+  /**
+   * @return every poller and the totals in the Prometheus text format
+   */
+  String render(){
+    Map<String, PollerStatistics> pollers = new HashMap<>();
+    PollerStatistics total;
+    synchronized (this){
+      refresh();
+      for (SqsDThread thread: THREADS.values())pollers.put(thread.THREAD_ID, thread.statistics());
+      for (SqsDThread thread: DRAINING.values())pollers.put(thread.THREAD_ID, thread.statistics());
+      total = aggregate();
+    }
+    pollers.put(AGGREGATE, total);
+    Map<String, PollerStatistics.Snapshot> snapshots = new HashMap<>();
+    for (Map.Entry<String, PollerStatistics> poller: pollers.entrySet())snapshots.put(poller.getKey(), poller.getValue().snapshot());
+
+    StringBuilder out = new StringBuilder();
+    counter(out, "sqsd_receives_total", "Receive calls made", snapshots, snapshot -> snapshot.RECEIVES);
+    counter(out, "sqsd_empty_receives_total", "Receive calls that returned no messages", snapshots, snapshot -> snapshot.EMPTY_RECEIVES);
+    counter(out, "sqsd_messages_received_total", "Messages received", snapshots, snapshot -> snapshot.MESSAGES);
+    counter(out, "sqsd_deletes_total", "Delete requests made", snapshots, snapshot -> snapshot.DELETES);
+    counter(out, "sqsd_delete_failures_total", "Messages that failed to be deleted", snapshots, snapshot -> snapshot.DELETE_FAILURES);
+    counter(out, "sqsd_delete_retries_total", "Delete requests retrying failed messages", snapshots, snapshot -> snapshot.DELETE_RETRIES);
+
+    out.append("# HELP sqsd_in_flight_messages Messages received and not yet deleted or abandoned\n");
+    out.append("# TYPE sqsd_in_flight_messages gauge\n");
+    for (Map.Entry<String, PollerStatistics> poller: pollers.entrySet()){
+      out.append("sqsd_in_flight_messages{thread=\"").append(poller.getKey()).append("\"} ").append(poller.getValue().inFlight()).append('\n');
+    }
+
+    out.append("# HELP sqsd_receive_batch_size Messages returned per receive\n");
+    out.append("# TYPE sqsd_receive_batch_size histogram\n");
+    for (Map.Entry<String, PollerStatistics> poller: pollers.entrySet()){
+      long[] fill = poller.getValue().batchFill();
+      long cumulative = 0;
+      long sum = 0;
+      for (int size = 0; size < fill.length; size++){
+        cumulative += fill[size];
+        sum += size * fill[size];
+        out.append("sqsd_receive_batch_size_bucket{thread=\"").append(poller.getKey()).append("\",le=\"").append(size).append("\"} ").append(cumulative).append('\n');
+      }
+      out.append("sqsd_receive_batch_size_bucket{thread=\"").append(poller.getKey()).append("\",le=\"+Inf\"} ").append(cumulative).append('\n');
+      out.append("sqsd_receive_batch_size_sum{thread=\"").append(poller.getKey()).append("\"} ").append(sum).append('\n');
+      out.append("sqsd_receive_batch_size_count{thread=\"").append(poller.getKey()).append("\"} ").append(cumulative).append('\n');
+    }
+
+    summary(out, "sqsd_receive_latency_seconds", "Time of each receive call", pollers, PollerStatistics::receiveLatency);
+    summary(out, "sqsd_processing_seconds", "Time to process or dispatch each batch", pollers, PollerStatistics::processingTime);
+    summary(out, "sqsd_delete_latency_seconds", "Time of each delete request", pollers, PollerStatistics::deleteLatency);
+    return out.toString();
+  }
+
+  /**
+   * write a counter family
+   * @param out the output
+   * @param name the metric name
+   * @param help the help text
+   * @param snapshots snapshots by thread label
+   * @param value reads the counter from a snapshot
+   */
+  private static void counter(StringBuilder out, String name, String help, Map<String, PollerStatistics.Snapshot> snapshots, ToLongFunction<PollerStatistics.Snapshot> value){
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(" counter\n");
+    for (Map.Entry<String, PollerStatistics.Snapshot> snapshot: snapshots.entrySet()){
+      out.append(name).append("{thread=\"").append(snapshot.getKey()).append("\"} ").append(value.applyAsLong(snapshot.getValue())).append('\n');
+    }
+  }
+
+  /**
+   * write a summary family from latency histograms
+   * @param out the output
+   * @param name the metric name
+   * @param help the help text
+   * @param pollers statistics by thread label
+   * @param histogram reads the histogram from the statistics
+   */
+  private static void summary(StringBuilder out, String name, String help, Map<String, PollerStatistics> pollers, Function<PollerStatistics, LatencyHistogram> histogram){
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(" summary\n");
+    for (Map.Entry<String, PollerStatistics> poller: pollers.entrySet()){
+      LatencyHistogram latency = histogram.apply(poller.getValue());
+      String thread = poller.getKey();
+      for (double quantile: QUANTILES){
+        out.append(name).append("{thread=\"").append(thread).append("\",quantile=\"").append(quantile).append("\"} ")
+           .append(latency.percentile(quantile * 100, TimeUnit.SECONDS)).append('\n');
+      }
+      out.append(name).append("_sum{thread=\"").append(thread).append("\"} ").append(latency.sum() / 1e9).append('\n');
+      out.append(name).append("_count{thread=\"").append(thread).append("\"} ").append(latency.count()).append('\n');
+    }
+  }
+}
@@ -0,0 +1,310 @@
+package alexhelmacy.sqsd.multiqueue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import alexhelmacy.sqsd.DependencyFactory;
+
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.GetQueueAttributesRequest;
+import software.amazon.awssdk.services.sqs.model.QueueAttributeName;
+
+/**
+ * Shares the pollers of an SqsD between several queues.
+ * A poller asks the scheduler for a queue before each cycle and gives it back with the number of messages it received. Pollers
+ * are given to queues in proportion to their weights, and a queue never gets more pollers than its backlog can keep busy:
+ * <ul>
+ *   <li>a queue whose last receive was empty gets a single poller, which long polls until messages arrive</li>
+ *   <li>otherwise a queue gets at most one poller per full receive of its approximate backlog</li>
+ * </ul>
+ * Capacity a queue cannot use goes to the other queues by weight. When every queue is at its limit the extra pollers are shared
+ * by weight anyway, so no poller sits idle.
+ */
+public class QueueScheduler implements AutoCloseable{
+
+  /**
+   * return a queue scheduler builder
+   * @return a new instance of a QueueSchedulerBuilder
+   */
+  public static final QueueSchedulerBuilder builder(){
+    return new QueueSchedulerBuilder();
+  }
+
+  /**
+   * QueueScheduler builder class
+   */
+  public static final class QueueSchedulerBuilder{
+    private final Map<String, Integer> weights = new LinkedHashMap<>();//weight of each queue url in the order added
+    private SqsClient sqs = null;//sqs client. the shared client for the region is used when not set
+    private String region = "us-east-1";//region of the shared client
+    private int maxNumberOfMessages = 10;//max messages per receive. one poller is allowed per this many backlog messages
+    private long refreshSeconds = 10;//how often the backlog of every queue is read
+
+    /**
+     * add a queue
+     * @param queueUrl the queue url
+     * @param weight the share of pollers relative to the other queues
+     * @return itself
+     */
+    public final QueueSchedulerBuilder queue(String queueUrl, int weight){
+      this.weights.put(queueUrl, weight);
+      return this;
+    }
+
+    /**
+     * sets the sqs client. The client is not closed by the scheduler
+     * @param sqs the sqs client
+     * @return itself
+     */
+    public final QueueSchedulerBuilder sqsClient(SqsClient sqs){
+      this.sqs = sqs;
+      return this;
+    }
+
+    /**
+     * sets the region of the shared sqs client. Ignored when an sqs client is set
+     * @param region the region as a string
+     * @return itself
+     */
+    public final QueueSchedulerBuilder region(String region){
+      this.region = region;
+      return this;
+    }
+
+    /**
+     * sets the max messages per receive of the pollers
+     * @param maxNumberOfMessages the max number of messages
+     * @return itself
+     */
+    public final QueueSchedulerBuilder maxNumberOfMessages(int maxNumberOfMessages){
+      this.maxNumberOfMessages = maxNumberOfMessages;
+      return this;
+    }
+
+    /**
+     * sets how often the backlog of every queue is read
+     * @param refreshSeconds the interval in seconds
+     * @return itself
+     */
+    public final QueueSchedulerBuilder refreshSeconds(long refreshSeconds){
+      this.refreshSeconds = refreshSeconds;
+      return this;
+    }
+
+    /**
+     * build the scheduler and start reading backlogs
+     * @return a new QueueScheduler
+     */
+    public final QueueScheduler build(){
+      if (weights.isEmpty())throw new IllegalArgumentException("At least one queue must be specified");
+      for (Map.Entry<String, Integer> queue: weights.entrySet()){
+        if (!(queue.getKey() instanceof String))throw new IllegalArgumentException("Queue URL must be specified");
+        if (queue.getValue() <= 0)throw new IllegalArgumentException("Weight of " + queue.getKey() + " must be at least 1");
+      }
+      if (maxNumberOfMessages <= 0)throw new IllegalArgumentException("Max number of messages must be at least 1");
+      if (refreshSeconds <= 0)throw new IllegalArgumentException("Refresh interval must be at least 1 second");
+      return new QueueScheduler(this);
+    }
+  }
+
+  /**
+   * scheduling state of one queue. Guarded by the scheduler
+   */
+  private static final class QueueState{
+    private final String queueUrl;//the queue url
+    private final int weight;//share of pollers
+    private int active = 0;//pollers working on the queue
+    private long backlog = -1;//approximate visible messages. -1 until read
+    private boolean empty = false;//last receive returned nothing
+    private long cycles = 0;//cycles given to the queue
+    private long messages = 0;//messages received from the queue
+
+    private QueueState(String queueUrl, int weight){
+      this.queueUrl = queueUrl;
+      this.weight = weight;
+    }
+  }
+
+  private final List<QueueState> QUEUES;//every queue in the order added
+  private final Map<String, QueueState> BY_URL = new LinkedHashMap<>();//queues by url
+  private final SqsClient SQS;//sqs client
+  private final String REGION;//region of the shared client. null when the client was provided
+  private final int MAX_NUMBER_OF_MESSAGES;//max messages per receive
+  private final ScheduledExecutorService REFRESHER = Executors.newSingleThreadScheduledExecutor();//reads backlogs
+  private final Logger LOGGER = LoggerFactory.getLogger(this.getClass().getSimpleName());//logger
+
+  /**
+   * QueueScheduler constructor
+   * @param builder the queue scheduler builder
+   */
+  QueueScheduler(QueueSchedulerBuilder builder){
+    List<QueueState> queues = new ArrayList<>();
+    for (Map.Entry<String, Integer> queue: builder.weights.entrySet()){
+      QueueState state = new QueueState(queue.getKey(), queue.getValue());
+      queues.add(state);
+      BY_URL.put(state.queueUrl, state);
+    }
+    QUEUES = Collections.unmodifiableList(queues);
+    if (builder.sqs instanceof SqsClient){
+      SQS = builder.sqs;
+      REGION = null;
+    }else{
+      SQS = DependencyFactory.acquireSqsClient(builder.region);
+      REGION = builder.region;
+    }
+    MAX_NUMBER_OF_MESSAGES = builder.maxNumberOfMessages;
+    REFRESHER.scheduleWithFixedDelay(this::refresh, 0, builder.refreshSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * @return the queue urls in the order they were added
+   */
+  public List<String> queueUrls(){
+    List<String> queueUrls = new ArrayList<>(QUEUES.size());
+    for (QueueState queue: QUEUES)queueUrls.add(queue.queueUrl);
+    return queueUrls;
+  }
+
+  /**
+   * pick the queue for the next cycle of a poller. Must be followed by release
+   * @return the queue url
+   */
+  public synchronized String acquire(){
+    QueueState chosen = null;
+    for (QueueState queue: QUEUES){//fewest pollers for its weight among the queues that can use another poller
+      if (queue.active < limit(queue) && (chosen == null || before(queue, chosen)))chosen = queue;
+    }
+    if (chosen == null){//every queue is at its limit. share the extra pollers by weight, queues with messages first
+      for (QueueState queue: QUEUES){
+        if (chosen == null || (queue.empty == chosen.empty ? before(queue, chosen) : !queue.empty))chosen = queue;
+      }
+    }
+    chosen.active++;
+    chosen.cycles++;
+    return chosen.queueUrl;
+  }
+
+  /**
+   * give a queue back after a cycle
+   * @param queueUrl the queue url from acquire
+   * @param received the number of messages received. negative when the receive did not complete
+   */
+  public synchronized void release(String queueUrl, int received){
+    QueueState queue = BY_URL.get(queueUrl);
+    if (queue == null)return;
+    queue.active--;
+    if (received < 0)return;
+    queue.messages += received;
+    queue.empty = received == 0;
+    if (queue.empty){
+      queue.backlog = 0;
+    }else if (queue.backlog >= 0){//estimate until the next refresh. a full receive means more are likely waiting
+      queue.backlog = received >= MAX_NUMBER_OF_MESSAGES ? Math.max(queue.backlog - received, MAX_NUMBER_OF_MESSAGES) : Math.max(queue.backlog - received, 0);
+    }
+  }
+
+  /**
+   * @param queueUrl the queue url
+   * @return pollers working on the queue
+   */
+  public synchronized int active(String queueUrl){
+    QueueState queue = BY_URL.get(queueUrl);
+    return queue != null ? queue.active : 0;
+  }
+
+  /**
+   * @param queueUrl the queue url
+   * @return the approximate visible messages of the queue. -1 until read
+   */
+  public synchronized long backlog(String queueUrl){
+    QueueState queue = BY_URL.get(queueUrl);
+    return queue != null ? queue.backlog : -1;
+  }
+
+  /**
+   * @param queueUrl the queue url
+   * @return cycles given to the queue
+   */
+  public synchronized long cycles(String queueUrl){
+    QueueState queue = BY_URL.get(queueUrl);
+    return queue != null ? queue.cycles : 0;
+  }
+
+  /**
+   * @param queueUrl the queue url
+   * @return messages received from the queue
+   */
+  public synchronized long messages(String queueUrl){
+    QueueState queue = BY_URL.get(queueUrl);
+    return queue != null ? queue.messages : 0;
+  }
+
+  /**
+   * stop reading backlogs and release the sqs client
+   */
+  @Override
+  public void close(){
+    REFRESHER.shutdownNow();
+    if (REGION != null)DependencyFactory.releaseSqsClient(REGION);
+  }
+
+  /**
+   * most pollers a queue can keep busy. Must hold the lock
+   * @param queue the queue
+   * @return the poller limit
+   */
+  private int limit(QueueState queue){
+    if (queue.empty && queue.backlog <= 0)return 1;//one long poll waits for new messages
+    if (queue.backlog < 0)return Integer.MAX_VALUE;//not read yet
+    return (int) Math.max(1, Math.min(Integer.MAX_VALUE, (queue.backlog + MAX_NUMBER_OF_MESSAGES - 1) / MAX_NUMBER_OF_MESSAGES));
+  }
+
+  /**
+   * compare queues by pollers per weight once one more is added, then by pollers per weight now. Must hold the lock
+   * @param queue a queue
+   * @param other another queue
+   * @return if queue should get the next poller before other
+   */
+  private static boolean before(QueueState queue, QueueState other){
+    double share = (queue.active + 1) / (double) queue.weight;
+    double otherShare = (other.active + 1) / (double) other.weight;
+    if (share != otherShare)return share < otherShare;
+    return queue.active * (long) other.weight < other.active * (long) queue.weight;
+  }
+
+  /**
+   * read the backlog of every queue
+   */
+  private void refresh(){
+    for (QueueState queue: QUEUES){
+      long backlog;
+      try{
+        String value = SQS.getQueueAttributes(GetQueueAttributesRequest.builder()
+                                                                       .queueUrl(queue.queueUrl)
+                                                                       .attributeNames(QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES)
+                                                                       .build())
+                          .attributes()
+                          .get(QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES);
+        if (value == null)continue;
+        backlog = Long.parseLong(value);
+      }catch(SdkException | NumberFormatException e){//keep the estimate
+        LOGGER.warn("Failed to read the backlog of " + queue.queueUrl + ": " + e.getMessage());
+        continue;
+      }
+      synchronized (this){
+        queue.backlog = backlog;
+        if (backlog > 0)queue.empty = false;//messages arrived since the last empty receive
+      }
+    }
+  }
+}
@@ -0,0 +1,122 @@
+package alexhelmacy.sqsd.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResponse;
+import software.amazon.awssdk.services.sqs.model.Message;
+
+/**
+ * Deletes processed messages in batches of up to 10.
+ */
+public class DeleterStage extends PipelineStage{
+  public static final int MAX_BATCH_SIZE = 10;//SQS limit for DeleteMessageBatch
+  private static final long POLL_MILLIS = 500;//how long to wait for the first message of a batch
+  private static final int MAX_RETRIES = 10;//how many times failed entries are retried
+  private static final long MAX_BACKOFF_MILLIS = 500;//max backoff between retries
+
+  private final SqsClient sqs;//shared sqs client
+  private final String queueUrl;//the queue url
+  private final BlockingQueue<Message> processed;//processed messages to delete
+  private final long maxBatchDelayMillis;//how long to wait for a batch to fill
+
+  /**
+   * Constructor
+   * @param sqs the sqs client
+   * @param queueUrl the queue url
+   * @param processed the queue of processed messages
+   * @param maxBatchDelayMillis how long to wait for more messages once the first message of a batch arrives
+   */
+  public DeleterStage(SqsClient sqs, String queueUrl, BlockingQueue<Message> processed, long maxBatchDelayMillis){
+    this.sqs = sqs;
+    this.queueUrl = queueUrl;
+    this.processed = processed;
+    this.maxBatchDelayMillis = maxBatchDelayMillis;
+  }
+
+  /**
+   * collect a batch of processed messages and delete it
+   * @throws InterruptedException if interrupted while waiting on the queue or backing off
+   */
+  @Override
+  protected void work() throws InterruptedException {
+    Message first = processed.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+    if (first == null)return;//nothing to delete
+    List<Message> batch = new ArrayList<>(MAX_BATCH_SIZE);
+    batch.add(first);
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxBatchDelayMillis);
+    while (batch.size() < MAX_BATCH_SIZE){//fill the batch until it is full or the deadline passes
+      processed.drainTo(batch, MAX_BATCH_SIZE - batch.size());
+      long remaining = deadline - System.nanoTime();
+      if (batch.size() >= MAX_BATCH_SIZE || remaining <= 0)break;
+      Message next = processed.poll(remaining, TimeUnit.NANOSECONDS);
+      if (next == null)break;
+      batch.add(next);
+    }
+    delete(batch);
+  }
+
+  /**
+   * delete whatever is left in the processed queue when the stage stops
+   */
+  @Override
+  protected void finish(){
+    List<Message> batch = new ArrayList<>(MAX_BATCH_SIZE);
+    try{
+      while (processed.drainTo(batch, MAX_BATCH_SIZE) > 0){
+        delete(batch);
+        batch.clear();
+      }
+    }catch(InterruptedException ie){
+      logger.warn("Interrupted while flushing processed messages. " + processed.size() + " messages will be redelivered.");
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * delete a batch of messages, retrying failed entries
+   * @param batch at most 10 messages
+   * @throws InterruptedException if interrupted while backing off
+   */
+  private void delete(List<Message> batch) throws InterruptedException{
+    Map<String, Message> pending = new HashMap<>();//messages not yet deleted keyed by message id
+    for (Message message: batch)pending.put(message.messageId(), message);
+    for (int retry = 0; !pending.isEmpty() && retry <= MAX_RETRIES; retry++){
+      if (retry > 0)Thread.sleep(Math.min(retry * 50, MAX_BACKOFF_MILLIS));//back off before retrying
+      List<DeleteMessageBatchRequestEntry> entries = pending.values()
+                                                            .stream()
+                                                            .map((message) -> DeleteMessageBatchRequestEntry.builder()
+                                                                                                            .id(message.messageId())
+                                                                                                            .receiptHandle(message.receiptHandle())
+                                                                                                            .build())
+                                                            .collect(Collectors.toList());
+      DeleteMessageBatchResponse response;
+      try{
+        response = sqs.deleteMessageBatch(DeleteMessageBatchRequest.builder()
+                                                                   .queueUrl(queueUrl)
+                                                                   .entries(entries)
+                                                                   .build());
+      }catch(SdkException se){//whole request failed. retry all entries
+        logger.warn("Failed to delete messages: " + se.getMessage());
+        continue;
+      }
+      response.successful().forEach((entry) -> pending.remove(entry.id()));
+      for (BatchResultErrorEntry failed: response.failed()){
+        logger.debug("Failed Batch Entry: " + failed);
+        if (Boolean.TRUE.equals(failed.senderFault()))pending.remove(failed.id());//sender faults (e.g. expired receipt handle) will not succeed on retry
+      }
+    }
+    if (!pending.isEmpty())logger.warn("Failed to delete " + pending.size() + " messages. They will be redelivered.");
+    logger.debug("Deleted " + (batch.size() - pending.size()) + " messages");
+  }
+}
@@ -0,0 +1,319 @@
+package alexhelmacy.sqsd.pipeline;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import alexhelmacy.sqsd.DependencyFactory;
+import alexhelmacy.sqsd.ISqsD;
+import alexhelmacy.sqsd.processor.ExampleMessageHandler;
+import alexhelmacy.sqsd.processor.MessageHandler;
+
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+
+/**
+ * Pipelined SQSD. Pollers, processors and deleters run as separate stages connected by bounded hand-off queues
+ * so the long poll of the next batch overlaps processing and deleting of the previous one.
+ */
+public class PipelineSqsD implements ISqsD{
+
+  /**
+   * return a pipeline builder
+   * @return a new instance of a PipelineSqsDBuilder
+   */
+  public static final PipelineSqsDBuilder builder(){
+    return new PipelineSqsDBuilder();
+  }
+
+  /**
+   * PipelineSqsD builder class
+   */
+  public static final class PipelineSqsDBuilder{
+    private String queueUrl = null;//queue url
+    private String region = "us-east-1";//region of the shared client
+    private SqsClient sqs = null;//sqs client. the shared client for the region is used when not set
+    private int maxNumberOfMessages = 10;//max messages per receive
+    private int waitTime = 20;//wait time in seconds
+    private Collection<String> messageAttributes = Arrays.asList(new String[]{"All"});//message attributes
+    private Collection<String> systemAttributes = Arrays.asList(new String[]{"All"});//system message attributes
+    private int pollers = 2;//number of poller stages
+    private int processors = 4;//number of processor stages
+    private int deleters = 1;//number of deleter stages
+    private int queueCapacity = -1;//capacity of each hand-off queue. defaults to two full receives per poller
+    private long maxBatchDelayMillis = 100;//how long a deleter waits for a batch to fill
+    private MessageHandler handler = new ExampleMessageHandler();//message handler
+    private boolean virtualThreads = false;//run on virtual threads. Requires Java 21
+
+    /**
+     * sets the queue url
+     * @param queueUrl the queue url
+     * @return itself
+     */
+    public final PipelineSqsDBuilder queueUrl(String queueUrl){
+      this.queueUrl = queueUrl;
+      return this;
+    }
+
+    /**
+     * sets the region of the shared sqs client. Ignored when an sqs client is set
+     * @param region the region as a string
+     * @return itself
+     */
+    public final PipelineSqsDBuilder region(String region){
+      this.region = region;
+      return this;
+    }
+
+    /**
+     * sets the sqs client of the pollers and deleters. The client is not closed by the pipeline
+     * @param sqs the sqs client
+     * @return itself
+     */
+    public final PipelineSqsDBuilder sqsClient(SqsClient sqs){
+      this.sqs = sqs;
+      return this;
+    }
+
+    /**
+     * sets max messages per receive
+     * @param maxMessages the maximum number of messages
+     * @return itself
+     */
+    public final PipelineSqsDBuilder maxNumberOfMessages(int maxMessages){
+      this.maxNumberOfMessages = maxMessages;
+      return this;
+    }
+
+    /**
+     * sets the wait time
+     * @param waitTime the wait time in seconds
+     * @return itself
+     */
+    public final PipelineSqsDBuilder waitTime(int waitTime){
+      this.waitTime = waitTime;
+      return this;
+    }
+
+    /**
+     * sets the message attributes
+     * @param messageAttributes the message attributes
+     * @return itself
+     */
+    public final PipelineSqsDBuilder messageAttributes(Collection<String> messageAttributes){
+      this.messageAttributes = messageAttributes;
+      return this;
+    }
+
+    /**
+     * sets the system attributes
+     * @param systemAttributes the system message attributes
+     * @return itself
+     */
+    public final PipelineSqsDBuilder systemAttributes(Collection<String> systemAttributes){
+      this.systemAttributes = systemAttributes;
+      return this;
+    }
+
+    /**
+     * sets the number of poller stages
+     * @param pollers number of pollers
+     * @return itself
+     */
+    public final PipelineSqsDBuilder pollers(int pollers){
+      this.pollers = pollers;
+      return this;
+    }
+
+    /**
+     * sets the number of processor stages
+     * @param processors number of processors
+     * @return itself
+     */
+    public final PipelineSqsDBuilder processors(int processors){
+      this.processors = processors;
+      return this;
+    }
+
+    /**
+     * sets the number of deleter stages
+     * @param deleters number of deleters
+     * @return itself
+     */
+    public final PipelineSqsDBuilder deleters(int deleters){
+      this.deleters = deleters;
+      return this;
+    }
+
+    /**
+     * sets the capacity of the hand-off queues
+     * @param queueCapacity max messages waiting between two stages
+     * @return itself
+     */
+    public final PipelineSqsDBuilder queueCapacity(int queueCapacity){
+      this.queueCapacity = queueCapacity;
+      return this;
+    }
+
+    /**
+     * sets how long a deleter waits for a batch to fill
+     * @param maxBatchDelayMillis the delay in milliseconds
+     * @return itself
+     */
+    public final PipelineSqsDBuilder maxBatchDelayMillis(long maxBatchDelayMillis){
+      this.maxBatchDelayMillis = maxBatchDelayMillis;
+      return this;
+    }
+
+    /**
+     * sets the message handler
+     * @param handler the message handler used by the processors
+     * @return itself
+     */
+    public final PipelineSqsDBuilder handler(MessageHandler handler){
+      this.handler = handler;
+      return this;
+    }
+
+    /**
+     * run every stage on its own virtual thread. Processors can then be sized to the number of messages handled concurrently. Requires Java 21
+     * @param virtualThreads use virtual threads
+     * @return itself
+     */
+    public final PipelineSqsDBuilder virtualThreads(boolean virtualThreads){
+      this.virtualThreads = virtualThreads;
+      return this;
+    }
+
+    /**
+     * build the pipeline
+     * @return a new PipelineSqsD
+     */
+    public final PipelineSqsD build(){
+      return new PipelineSqsD(this);
+    }
+  }
+
+  private static final long PROCESSOR_STOP_SECONDS = 30;//how long a processor may take to finish its last message on stop
+  private final ExecutorService SERVICE;//executor running every stage
+  private final SqsClient SQS;//sqs client shared by the pollers and deleters
+  private final List<PollerStage> POLLERS = new ArrayList<>();//poller stages
+  private final List<ProcessorStage> PROCESSORS = new ArrayList<>();//processor stages
+  private final List<DeleterStage> DELETERS = new ArrayList<>();//deleter stages
+  private final List<Future<?>> POLLER_FUTURES = new ArrayList<>();//futures of the submitted pollers
+  private final List<Future<?>> PROCESSOR_FUTURES = new ArrayList<>();//futures of the submitted processors
+  private final BlockingQueue<Message> RECEIVED;//received messages waiting to be processed
+  private final BlockingQueue<Message> PROCESSED;//processed messages waiting to be deleted
+  private final int WAIT_TIME_SECONDS;//the long poll wait time
+  private final String REGION;//the region of the shared sqs client. null when the client was provided
+  private final Logger LOGGER = LoggerFactory.getLogger(this.getClass().getSimpleName());//logger for logging information
+
+  /**
+   * PipelineSqsD constructor
+   * @param builder the pipeline builder
+   */
+  PipelineSqsD(PipelineSqsDBuilder builder){
+    if (!(builder.queueUrl instanceof String))throw new IllegalArgumentException("Queue URL must be specified");
+    if (builder.pollers <= 0 || builder.processors <= 0 || builder.deleters <= 0)throw new IllegalArgumentException("Each stage needs at least 1 thread");
+    if (!(builder.handler instanceof MessageHandler))throw new IllegalArgumentException("Message handler must be specified");
+
+    int capacity = builder.queueCapacity > 0 ? builder.queueCapacity : builder.pollers * builder.maxNumberOfMessages * 2;
+    this.RECEIVED = new ArrayBlockingQueue<>(capacity);
+    this.PROCESSED = new ArrayBlockingQueue<>(capacity);
+    this.WAIT_TIME_SECONDS = builder.waitTime;
+    if (builder.sqs instanceof SqsClient){
+      this.SQS = builder.sqs;
+      this.REGION = null;
+    }else{
+      this.SQS = DependencyFactory.acquireSqsClient(builder.region);
+      this.REGION = builder.region;
+    }
+
+    ReceiveMessageRequest request = ReceiveMessageRequest.builder()
+                                                         .queueUrl(builder.queueUrl)
+                                                         .maxNumberOfMessages(builder.maxNumberOfMessages)
+                                                         .waitTimeSeconds(builder.waitTime)
+                                                         .messageAttributeNames(builder.messageAttributes)
+                                                         .messageSystemAttributeNamesWithStrings(builder.systemAttributes)
+                                                         .build();
+    for (int i = 0; i < builder.pollers; i++)POLLERS.add(new PollerStage(SQS, request, RECEIVED));
+    for (int i = 0; i < builder.processors; i++)PROCESSORS.add(new ProcessorStage(RECEIVED, PROCESSED, builder.handler));
+    for (int i = 0; i < builder.deleters; i++)DELETERS.add(new DeleterStage(SQS, builder.queueUrl, PROCESSED, builder.maxBatchDelayMillis));
+
+    this.SERVICE = builder.virtualThreads ? DependencyFactory.virtualThreadExecutor() : Executors.newFixedThreadPool(builder.pollers + builder.processors + builder.deleters);
+  }
+
+  /**
+   * Start the pipeline. Deleters and processors start before the pollers so received messages always have somewhere to go.
+   */
+  @Override
+  synchronized public void start() {
+    LOGGER.info("SQSD PIPELINE STARTED");
+    LOGGER.info("Pollers: " + POLLERS.size() + " Processors: " + PROCESSORS.size() + " Deleters: " + DELETERS.size());
+    for (DeleterStage deleter: DELETERS)SERVICE.submit(deleter);
+    for (ProcessorStage processor: PROCESSORS)PROCESSOR_FUTURES.add(SERVICE.submit(processor));
+    for (PollerStage poller: POLLERS)POLLER_FUTURES.add(SERVICE.submit(poller));
+  }
+
+  /**
+   * Stop the pipeline. Pollers stop first and processors then work off the received queue. Deleters are only stopped once
+   * every processor has exited, so the last message a processor hands over is still deleted when the deleters flush.
+   * @param reason the reason for stopping
+   */
+  @Override
+  synchronized public void stop(String reason) {
+    LOGGER.info("Stopping: " + reason);
+    try{
+      for (PollerStage poller: POLLERS)poller.stop();//no new receives
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(WAIT_TIME_SECONDS + 5);
+      for (Future<?> future: POLLER_FUTURES)awaitStage(future, deadline, "Poller");//let in-flight receives land
+      while (!RECEIVED.isEmpty() && System.nanoTime() < deadline)Thread.sleep(50);//let the processors catch up
+      for (ProcessorStage processor: PROCESSORS)processor.stop();
+      deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(PROCESSOR_STOP_SECONDS);
+      for (Future<?> future: PROCESSOR_FUTURES)awaitStage(future, deadline, "Processor");//a processor may still hand over the message it holds
+      for (DeleterStage deleter: DELETERS)deleter.stop();//deleters flush what is left on exit
+      SERVICE.shutdown();
+      if (!SERVICE.awaitTermination(30, TimeUnit.SECONDS)){
+        LOGGER.info("Forcing Termination");
+        SERVICE.shutdownNow();
+      }
+    }catch(InterruptedException ie){
+      LOGGER.info("Threads Interrupted. Forcing Termination.", ie);
+      SERVICE.shutdownNow();
+    }finally{
+      if (REGION != null)DependencyFactory.releaseSqsClient(REGION);
+      LOGGER.info("SQSD PIPELINE STOPPED");
+    }
+  }
+
+  /**
+   * wait for a stage to finish its current unit of work and exit
+   * @param future the stage future
+   * @param deadline deadline in System.nanoTime()
+   * @param stage the kind of stage, for logging
+   * @throws InterruptedException if interrupted while waiting
+   */
+  private void awaitStage(Future<?> future, long deadline, String stage) throws InterruptedException{
+    try{
+      future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }catch(ExecutionException ee){
+      LOGGER.warn(stage + " failed: " + ee.getCause());
+    }catch(TimeoutException te){
+      LOGGER.warn(stage + " did not stop before the deadline");
+    }
+  }
+}
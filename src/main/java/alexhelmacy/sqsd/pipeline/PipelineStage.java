@@ -0,0 +1,111 @@
+package alexhelmacy.sqsd.pipeline;
+
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import alexhelmacy.sqsd.processor.ISqsDThread;
+import alexhelmacy.sqsd.processor.Lifecycle;
+
+/**
+ * A single stage worker in the SQSD pipeline. Stages loop on {@link #work()} until stopped.
+ */
+public abstract class PipelineStage implements ISqsDThread{
+  public final String STAGE_ID = UUID.randomUUID().toString();//stage id
+
+  protected final Lifecycle lifecycle = new Lifecycle(this);//lock-free lifecycle state
+
+  protected final Logger logger;//stage logger
+
+  /**
+   * PipelineStage constructor
+   */
+  protected PipelineStage(){
+    this.logger = LoggerFactory.getLogger(this.getClass().getSimpleName() + "-" + STAGE_ID);//assign a logger with the stage id
+  }
+
+  /**
+   * one unit of work for the stage. Called in a loop until the stage is stopped.
+   * @throws InterruptedException if the stage is interrupted
+   */
+  abstract protected void work() throws InterruptedException;
+
+  /**
+   * called once after the loop exits. Stages holding messages can use it to flush them.
+   */
+  protected void finish(){}
+
+  /**
+   * loop on work until stopped or interrupted
+   */
+  @Override
+  public void run(){
+    if (!lifecycle.start()){//only one caller moves the stage from NEW to RUNNING
+      logger.warn(closed() ? "Stage Already Stopped" : "Already Running");
+      return;
+    }
+    logger.info("Starting Stage");
+    try{
+      while (running()){//while running
+        work();//do some work
+      }
+    }catch(InterruptedException ie){//stage interrupted
+      logger.info("Stage Interrupted: " + ie.getMessage());
+      Thread.currentThread().interrupt();//preserve the interrupt
+    }finally{
+      stop();//make sure the stage is marked as stopped
+      finish();//flush anything the stage holds
+      logger.info("Stage Stopped!");
+    }
+  }
+
+  /**
+   * stop the stage. The current unit of work is allowed to finish.
+   */
+  @Override
+  public void stop(){
+    lifecycle.stop();
+  }
+
+  /**
+   * stages hand work downstream as they go, so draining a stage stops it after the current unit of work
+   */
+  @Override
+  public void drain(){
+    if (!lifecycle.drain())lifecycle.transition(State.NEW, State.STOPPED);
+  }
+
+  /**
+   * @return the current lifecycle state
+   */
+  @Override
+  public final State state(){
+    return lifecycle.state();
+  }
+
+  /**
+   * add a state listener
+   * @param listener the listener
+   */
+  @Override
+  public final void addStateListener(StateListener listener){
+    lifecycle.addListener(listener);
+  }
+
+  /**
+   * @return if the stage is running
+   */
+  @Override
+  public final boolean running(){
+    return lifecycle.state() == State.RUNNING;
+  }
+
+  /**
+   * @return if the stage is closed
+   */
+  @Override
+  public final boolean closed(){
+    return lifecycle.state() == State.STOPPED;
+  }
+}
@@ -0,0 +1,56 @@
+package alexhelmacy.sqsd.pipeline;
+
+import java.util.concurrent.BlockingQueue;
+
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageResponse;
+
+/**
+ * Receives messages from SQS and hands them to the processor stages.
+ * Blocks when the hand-off queue is full so polling never runs ahead of processing.
+ */
+public class PollerStage extends PipelineStage{
+  private static final long ERROR_BACKOFF_MILLIS = 1000;//how long to wait after a failed receive
+
+  private final SqsClient sqs;//shared sqs client
+  private final ReceiveMessageRequest request;//the receive request used on every poll
+  private final BlockingQueue<Message> received;//hand-off queue to the processors
+
+  /**
+   * Constructor
+   * @param sqs the sqs client
+   * @param request the receive message request
+   * @param received the queue received messages are put on
+   */
+  public PollerStage(SqsClient sqs, ReceiveMessageRequest request, BlockingQueue<Message> received){
+    this.sqs = sqs;
+    this.request = request;
+    this.received = received;
+  }
+
+  /**
+   * receive a batch of messages and put them on the hand-off queue
+   * @throws InterruptedException if interrupted while receiving or waiting for space in the hand-off queue
+   */
+  @Override
+  protected void work() throws InterruptedException {
+    if (Thread.currentThread().isInterrupted())throw new InterruptedException("Thread Interrupted");
+    ReceiveMessageResponse response;
+    try{
+      response = sqs.receiveMessage(request);//long poll
+    }catch(SdkException se){//failed to receive. back off and try again
+      if (!running())return;//client closed while stopping
+      logger.warn("Failed to receive messages: " + se.getMessage());
+      Thread.sleep(ERROR_BACKOFF_MILLIS);
+      return;
+    }
+    if (!response.hasMessages())return;//empty receive
+    logger.debug("Received " + response.messages().size() + " messages");
+    for (Message message: response.messages()){
+      received.put(message);//blocks while the processors are behind
+    }
+  }
+}
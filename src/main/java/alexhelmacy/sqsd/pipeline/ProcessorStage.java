@@ -0,0 +1,51 @@
+package alexhelmacy.sqsd.pipeline;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import alexhelmacy.sqsd.processor.MessageHandler;
+
+import software.amazon.awssdk.services.sqs.model.Message;
+
+/**
+ * Takes received messages, runs the message handler and hands successfully processed messages to the deleter stages.
+ * Messages the handler fails are not deleted and will be redelivered by SQS.
+ */
+public class ProcessorStage extends PipelineStage{
+  private static final long POLL_MILLIS = 500;//how long to wait for a message before checking if the stage is still running
+
+  private final BlockingQueue<Message> received;//messages to process
+  private final BlockingQueue<Message> processed;//messages to delete
+  private final MessageHandler handler;//the message handler
+
+  /**
+   * Constructor
+   * @param received the queue of received messages
+   * @param processed the queue processed messages are put on
+   * @param handler the message handler
+   */
+  public ProcessorStage(BlockingQueue<Message> received, BlockingQueue<Message> processed, MessageHandler handler){
+    this.received = received;
+    this.processed = processed;
+    this.handler = handler;
+  }
+
+  /**
+   * process one message
+   * @throws InterruptedException if interrupted while waiting on a queue
+   */
+  @Override
+  protected void work() throws InterruptedException {
+    Message message = received.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+    if (message == null)return;//nothing to process
+    try{
+      handler.handle(message);//process the message
+    }catch(InterruptedException ie){
+      throw ie;
+    }catch(Exception e){//processing failed. leave the message for redelivery
+      logger.warn("Failed to process message " + message.messageId() + ": " + e.getMessage());
+      return;
+    }
+    processed.put(message);//blocks while the deleters are behind
+  }
+}
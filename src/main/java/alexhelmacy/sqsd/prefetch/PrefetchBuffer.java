@@ -0,0 +1,575 @@
+package alexhelmacy.sqsd.prefetch;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import alexhelmacy.sqsd.DependencyFactory;
+
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchResponse;
+import software.amazon.awssdk.services.sqs.model.GetQueueAttributesRequest;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.QueueAttributeName;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageResponse;
+
+/**
+ * Receives ahead of the workers so the next message is already local when a worker asks for it.
+ * Fetcher threads keep the buffer at the number of messages the workers take in a few seconds, measured as a moving rate and
+ * kept between a minimum and a maximum. Every buffered message remembers when its visibility timeout runs out. A message that
+ * would reach a worker with less than the minimum remaining time is released with a visibility timeout of 0 so another consumer
+ * can receive it right away instead of waiting for the timeout.
+ * The buffer only refills past its minimum while workers are taking messages, so an idle buffer does not cycle messages through
+ * receive and release. Released messages still count towards ApproximateReceiveCount.
+ */
+public class PrefetchBuffer implements AutoCloseable{
+  public static final int MAX_BATCH_SIZE = 10;//SQS limit for ReceiveMessage and ChangeMessageVisibilityBatch
+  private static final double RATE_WINDOW_SECONDS = 5;//time constant of the moving consumption rate
+  private static final long ERROR_PAUSE_MILLIS = 100;//pause after a failed receive
+  private static final int FALLBACK_VISIBILITY_SECONDS = 30;//requested on every receive when the queue's visibility timeout cannot be read
+
+  /**
+   * return a prefetch buffer builder
+   * @return a new instance of a PrefetchBufferBuilder
+   */
+  public static final PrefetchBufferBuilder builder(){
+    return new PrefetchBufferBuilder();
+  }
+
+  /**
+   * PrefetchBuffer builder class
+   */
+  public static final class PrefetchBufferBuilder{
+    private SqsClient sqs = null;//sqs client. the shared client for the region is used when not set
+    private String region = "us-east-1";//region of the shared client
+    private String queueUrl = null;//queue to receive from
+    private int waitTimeSeconds = 20;//long poll time of each receive
+    private int visibilityTimeoutSeconds = -1;//visibility timeout requested on every receive. the queue's own timeout is kept when not set
+    private Collection<String> messageAttributeNames = Arrays.asList(new String[]{"All"});//message attributes to receive
+    private Collection<String> systemAttributeNames = Arrays.asList(new String[]{"All"});//system attributes to receive
+    private int minBuffered = 10;//messages kept while workers are waiting
+    private int maxBuffered = 100;//most messages buffered
+    private double bufferSeconds = 2;//buffer this many seconds of consumption
+    private int minRemainingSeconds = 10;//release a message once it has less visibility left than this
+    private int fetchers = 1;//threads receiving into the buffer
+    private long sweepMillis = 250;//how often expiring messages are released and the rate is updated
+
+    /**
+     * sets the sqs client. The client is not closed by the buffer
+     * @param sqs the sqs client
+     * @return itself
+     */
+    public final PrefetchBufferBuilder sqsClient(SqsClient sqs){
+      this.sqs = sqs;
+      return this;
+    }
+
+    /**
+     * sets the region of the shared client
+     * @param region the region
+     * @return itself
+     */
+    public final PrefetchBufferBuilder region(String region){
+      this.region = region;
+      return this;
+    }
+
+    /**
+     * sets the queue to receive from
+     * @param queueUrl the queue url
+     * @return itself
+     */
+    public final PrefetchBufferBuilder queueUrl(String queueUrl){
+      this.queueUrl = queueUrl;
+      return this;
+    }
+
+    /**
+     * sets the long poll time of each receive
+     * @param waitTimeSeconds the wait time in seconds
+     * @return itself
+     */
+    public final PrefetchBufferBuilder waitTimeSeconds(int waitTimeSeconds){
+      this.waitTimeSeconds = waitTimeSeconds;
+      return this;
+    }
+
+    /**
+     * sets the visibility timeout requested on every receive, overriding the queue's. When not set, the queue's VisibilityTimeout
+     * attribute is read once and receives keep it. The remaining time of a message is measured from it
+     * @param visibilityTimeoutSeconds the visibility timeout in seconds
+     * @return itself
+     */
+    public final PrefetchBufferBuilder visibilityTimeoutSeconds(int visibilityTimeoutSeconds){
+      this.visibilityTimeoutSeconds = visibilityTimeoutSeconds;
+      return this;
+    }
+
+    /**
+     * sets the message attributes to receive
+     * @param messageAttributeNames the message attribute names
+     * @return itself
+     */
+    public final PrefetchBufferBuilder messageAttributeNames(Collection<String> messageAttributeNames){
+      this.messageAttributeNames = messageAttributeNames;
+      return this;
+    }
+
+    /**
+     * sets the system attributes to receive
+     * @param systemAttributeNames the system attribute names
+     * @return itself
+     */
+    public final PrefetchBufferBuilder systemAttributeNames(Collection<String> systemAttributeNames){
+      this.systemAttributeNames = systemAttributeNames;
+      return this;
+    }
+
+    /**
+     * sets how many messages are kept while workers are waiting
+     * @param minBuffered the minimum
+     * @return itself
+     */
+    public final PrefetchBufferBuilder minBuffered(int minBuffered){
+      this.minBuffered = minBuffered;
+      return this;
+    }
+
+    /**
+     * sets the most messages buffered
+     * @param maxBuffered the maximum
+     * @return itself
+     */
+    public final PrefetchBufferBuilder maxBuffered(int maxBuffered){
+      this.maxBuffered = maxBuffered;
+      return this;
+    }
+
+    /**
+     * sets how many seconds of consumption are buffered
+     * @param bufferSeconds the seconds
+     * @return itself
+     */
+    public final PrefetchBufferBuilder bufferSeconds(double bufferSeconds){
+      this.bufferSeconds = bufferSeconds;
+      return this;
+    }
+
+    /**
+     * sets the visibility a message must have left to be handed to a worker. Should cover processing or the first heartbeat
+     * @param minRemainingSeconds the seconds
+     * @return itself
+     */
+    public final PrefetchBufferBuilder minRemainingSeconds(int minRemainingSeconds){
+      this.minRemainingSeconds = minRemainingSeconds;
+      return this;
+    }
+
+    /**
+     * sets how many threads receive into the buffer
+     * @param fetchers the number of threads
+     * @return itself
+     */
+    public final PrefetchBufferBuilder fetchers(int fetchers){
+      this.fetchers = fetchers;
+      return this;
+    }
+
+    /**
+     * sets how often expiring messages are released and the rate is updated
+     * @param sweepMillis the interval in milliseconds
+     * @return itself
+     */
+    public final PrefetchBufferBuilder sweepMillis(long sweepMillis){
+      this.sweepMillis = sweepMillis;
+      return this;
+    }
+
+    /**
+     * build and start the buffer
+     * @return a new PrefetchBuffer
+     */
+    public final PrefetchBuffer build(){
+      if (!(queueUrl instanceof String))throw new IllegalArgumentException("Queue URL must be specified");
+      if (waitTimeSeconds < 0 || waitTimeSeconds > 20)throw new IllegalArgumentException("Wait time must be between 0 and 20 seconds");
+      if (minRemainingSeconds < 0)throw new IllegalArgumentException("Min remaining seconds must not be negative");
+      if (visibilityTimeoutSeconds >= 0 && visibilityTimeoutSeconds <= minRemainingSeconds)throw new IllegalArgumentException("Visibility timeout must be longer than the min remaining seconds");
+      if (maxBuffered <= 0)throw new IllegalArgumentException("Max buffered must be at least 1");
+      if (minBuffered < 0 || minBuffered > maxBuffered)throw new IllegalArgumentException("Min buffered must be between 0 and max buffered");
+      if (bufferSeconds <= 0)throw new IllegalArgumentException("Buffer seconds must be positive");
+      if (fetchers <= 0)throw new IllegalArgumentException("Fetchers must be at least 1");
+      if (sweepMillis <= 0)throw new IllegalArgumentException("Sweep interval must be at least 1 millisecond");
+      return new PrefetchBuffer(this);
+    }
+  }
+
+  /**
+   * a received message and when its visibility timeout runs out
+   */
+  private static final class Buffered{
+    private final Message message;//the message
+    private final long expiresNanos;//System.nanoTime() when the message becomes visible again
+
+    private Buffered(Message message, long expiresNanos){
+      this.message = message;
+      this.expiresNanos = expiresNanos;
+    }
+  }
+
+  private final SqsClient SQS;//sqs client
+  private final String REGION;//region of the shared client. null when the client was provided
+  private final String QUEUE_URL;//queue to receive from
+  private final ReceiveMessageRequest[] REQUESTS;//receive request by max number of messages. built once
+  private final long VISIBILITY_NANOS;//visibility timeout of every receive
+  private final long MIN_REMAINING_NANOS;//release a message once it has less visibility left than this
+  private final int MIN_BUFFERED;//messages kept while workers are waiting
+  private final int MAX_BUFFERED;//most messages buffered
+  private final double BUFFER_SECONDS;//seconds of consumption to buffer
+  private final int FETCHERS;//threads receiving into the buffer
+  private final ExecutorService FETCHER_POOL;//runs the fetchers
+  private final ScheduledExecutorService SWEEPER;//releases expiring messages and updates the rate
+  private final Logger LOGGER = LoggerFactory.getLogger(this.getClass().getSimpleName());//logger
+
+  private final ReentrantLock lock = new ReentrantLock();//guards the buffer and the counts below
+  private final Condition available = lock.newCondition();//signalled when messages are added
+  private final Condition wanted = lock.newCondition();//signalled when messages are taken or workers start waiting
+  private final ArrayDeque<Buffered> buffer = new ArrayDeque<>();//messages in receive order
+  private int receiving = 0;//messages requested by receives that have not returned
+  private int waiting = 0;//workers waiting for a message
+  private boolean closed = false;//set once on close
+
+  private final LongAdder taken = new LongAdder();//messages handed to workers since the last sweep
+  private final LongAdder released = new LongAdder();//messages released before their visibility ran out
+  private volatile double rate = 0;//moving messages per second taken by workers
+  private long lastSweepNanos = System.nanoTime();//only read by the sweeper
+
+  /**
+   * PrefetchBuffer constructor
+   * @param builder the prefetch buffer builder
+   */
+  PrefetchBuffer(PrefetchBufferBuilder builder){
+    if (builder.sqs instanceof SqsClient){
+      SQS = builder.sqs;
+      REGION = null;
+    }else{
+      SQS = DependencyFactory.acquireSqsClient(builder.region);
+      REGION = builder.region;
+    }
+    QUEUE_URL = builder.queueUrl;
+    Integer requestedVisibility = null;//sent with every receive. null keeps the queue's visibility timeout
+    int visibilitySeconds = builder.visibilityTimeoutSeconds;
+    if (visibilitySeconds < 0){
+      visibilitySeconds = queueVisibilityTimeout();
+      if (visibilitySeconds < 0){//unknown. request one so the remaining time is measured from a known timeout
+        visibilitySeconds = FALLBACK_VISIBILITY_SECONDS;
+        requestedVisibility = visibilitySeconds;
+      }
+    }else{
+      requestedVisibility = visibilitySeconds;
+    }
+    if (visibilitySeconds <= builder.minRemainingSeconds){
+      if (REGION != null)DependencyFactory.releaseSqsClient(REGION);
+      throw new IllegalArgumentException("Visibility timeout of " + visibilitySeconds + " seconds must be longer than the min remaining seconds");
+    }
+    REQUESTS = new ReceiveMessageRequest[MAX_BATCH_SIZE + 1];
+    for (int max = 1; max <= MAX_BATCH_SIZE; max++){
+      REQUESTS[max] = ReceiveMessageRequest.builder()
+                                           .queueUrl(QUEUE_URL)
+                                           .maxNumberOfMessages(max)
+                                           .waitTimeSeconds(builder.waitTimeSeconds)
+                                           .visibilityTimeout(requestedVisibility)
+                                           .messageAttributeNames(builder.messageAttributeNames)
+                                           .messageSystemAttributeNamesWithStrings(builder.systemAttributeNames)
+                                           .build();
+    }
+    VISIBILITY_NANOS = TimeUnit.SECONDS.toNanos(visibilitySeconds);
+    MIN_REMAINING_NANOS = TimeUnit.SECONDS.toNanos(builder.minRemainingSeconds);
+    MIN_BUFFERED = builder.minBuffered;
+    MAX_BUFFERED = builder.maxBuffered;
+    BUFFER_SECONDS = builder.bufferSeconds;
+    FETCHERS = builder.fetchers;
+    FETCHER_POOL = Executors.newFixedThreadPool(FETCHERS, runnable -> {
+      Thread thread = new Thread(runnable, "sqsd-prefetch");
+      thread.setDaemon(true);
+      return thread;
+    });
+    SWEEPER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "sqsd-prefetch-sweeper");
+      thread.setDaemon(true);
+      return thread;
+    });
+    for (int i = 0; i < FETCHERS; i++)FETCHER_POOL.execute(this::fetch);
+    SWEEPER.scheduleWithFixedDelay(this::sweepSafely, builder.sweepMillis, builder.sweepMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * take buffered messages, waiting for the first one if the buffer is empty. Messages that no longer have enough visibility left
+   * are released instead of returned
+   * @param maxNumberOfMessages the most messages to take
+   * @param waitTimeSeconds how long to wait for the first message
+   * @return a response with the messages. messages are not set when none arrived in time, like an empty receive
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public ReceiveMessageResponse receive(int maxNumberOfMessages, int waitTimeSeconds) throws InterruptedException{
+    List<Message> messages = new ArrayList<>(maxNumberOfMessages);
+    List<Message> expired = new ArrayList<>();
+    long remainingNanos = TimeUnit.SECONDS.toNanos(waitTimeSeconds);
+    lock.lockInterruptibly();
+    try{
+      waiting++;
+      wanted.signalAll();//an idle buffer refills once a worker waits
+      try{
+        while (messages.isEmpty() && !closed){
+          long now = System.nanoTime();
+          while (messages.size() < maxNumberOfMessages && !buffer.isEmpty()){
+            Buffered next = buffer.poll();
+            if (next.expiresNanos - now < MIN_REMAINING_NANOS)expired.add(next.message);
+            else messages.add(next.message);
+          }
+          if (!messages.isEmpty() || remainingNanos <= 0)break;
+          remainingNanos = available.awaitNanos(remainingNanos);
+        }
+      }finally{
+        waiting--;
+      }
+      if (!messages.isEmpty() || !expired.isEmpty())wanted.signalAll();
+    }finally{
+      lock.unlock();
+    }
+    taken.add(messages.size());
+    release(expired);
+    return messages.isEmpty() ? ReceiveMessageResponse.builder().build() : ReceiveMessageResponse.builder().messages(messages).build();
+  }
+
+  /**
+   * @return messages currently buffered
+   */
+  public int buffered(){
+    lock.lock();
+    try{
+      return buffer.size();
+    }finally{
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return messages released before their visibility ran out
+   */
+  public long released(){
+    return released.sum();
+  }
+
+  /**
+   * @return the moving number of messages per second taken by workers
+   */
+  public double rate(){
+    return rate;
+  }
+
+  /**
+   * stop receiving and release every buffered message so it can be received right away
+   */
+  @Override
+  public void close(){
+    List<Message> leftovers = new ArrayList<>();
+    lock.lock();
+    try{
+      if (closed)return;
+      closed = true;
+      available.signalAll();
+      wanted.signalAll();
+    }finally{
+      lock.unlock();
+    }
+    SWEEPER.shutdownNow();
+    FETCHER_POOL.shutdown();
+    try{
+      if (!FETCHER_POOL.awaitTermination(REQUESTS[1].waitTimeSeconds() + 5, TimeUnit.SECONDS))FETCHER_POOL.shutdownNow();
+    }catch(InterruptedException ie){
+      FETCHER_POOL.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+    lock.lock();
+    try{
+      for (Buffered buffered: buffer)leftovers.add(buffered.message);
+      buffer.clear();
+    }finally{
+      lock.unlock();
+    }
+    release(leftovers);
+    if (REGION != null)DependencyFactory.releaseSqsClient(REGION);
+  }
+
+  /**
+   * read the VisibilityTimeout attribute of the queue
+   * @return the timeout in seconds, or -1 if it could not be read
+   */
+  private int queueVisibilityTimeout(){
+    try{
+      String value = SQS.getQueueAttributes(GetQueueAttributesRequest.builder()
+                                                                     .queueUrl(QUEUE_URL)
+                                                                     .attributeNames(QueueAttributeName.VISIBILITY_TIMEOUT)
+                                                                     .build())
+                        .attributes()
+                        .get(QueueAttributeName.VISIBILITY_TIMEOUT);
+      return value != null ? Integer.parseInt(value) : -1;
+    }catch(SdkException | NumberFormatException e){
+      LOGGER.warn("Failed to read the queue visibility timeout. Requesting " + FALLBACK_VISIBILITY_SECONDS + " seconds: " + e.getMessage());
+      return -1;
+    }
+  }
+
+  /**
+   * @return how many messages the buffer should hold. Must hold the lock
+   */
+  private int target(){
+    int target = (int)Math.round(rate * BUFFER_SECONDS);//rounded so a decayed idle rate stops fetching
+    if (waiting > 0)target = Math.max(target, MIN_BUFFERED);
+    return Math.min(target, MAX_BUFFERED);
+  }
+
+  /**
+   * fetcher loop. Receives whenever the buffer and the receives in progress are below the target
+   */
+  private void fetch(){
+    while (true){
+      int request;
+      lock.lock();
+      try{
+        while (!closed && buffer.size() + receiving >= target()){
+          wanted.await(100, TimeUnit.MILLISECONDS);//the target moves with the rate
+        }
+        if (closed)return;
+        request = Math.min(MAX_BATCH_SIZE, Math.max(1, target() - buffer.size() - receiving));
+        receiving += request;
+      }catch(InterruptedException ie){
+        return;
+      }finally{
+        lock.unlock();
+      }
+
+      long sentNanos = System.nanoTime();//visibility starts no earlier than the request is sent
+      List<Message> received = null;
+      try{
+        ReceiveMessageResponse response = SQS.receiveMessage(REQUESTS[request]);
+        if (response.hasMessages())received = response.messages();
+      }catch(SdkException se){
+        if (!closed)LOGGER.warn("Prefetch receive failed: " + se.getMessage());
+      }
+
+      boolean release = false;
+      lock.lock();
+      try{
+        receiving -= request;
+        if (received != null){
+          if (closed){
+            release = true;
+          }else{
+            long expiresNanos = sentNanos + VISIBILITY_NANOS;
+            for (Message message: received)buffer.add(new Buffered(message, expiresNanos));
+            available.signalAll();
+          }
+        }
+      }finally{
+        lock.unlock();
+      }
+      if (release)release(received);
+      if (received == null && !closed){
+        try{
+          Thread.sleep(ERROR_PAUSE_MILLIS);//empty or failed receive. long polling already waited when the queue was empty
+        }catch(InterruptedException ie){
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * sweep without letting an exception cancel the schedule
+   */
+  private void sweepSafely(){
+    try{
+      sweep();
+    }catch(RuntimeException re){
+      LOGGER.warn("Prefetch sweep failed: " + re.getMessage());
+    }
+  }
+
+  /**
+   * update the moving rate and release buffered messages that no longer have enough visibility left
+   */
+  private void sweep(){
+    long now = System.nanoTime();
+    double elapsedSeconds = (now - lastSweepNanos) / 1e9;
+    lastSweepNanos = now;
+    if (elapsedSeconds > 0){
+      double alpha = 1 - Math.exp(-elapsedSeconds / RATE_WINDOW_SECONDS);
+      rate += alpha * (taken.sumThenReset() / elapsedSeconds - rate);
+    }
+
+    List<Message> expired = new ArrayList<>();
+    lock.lock();
+    try{
+      Iterator<Buffered> iterator = buffer.iterator();
+      while (iterator.hasNext()){//fetchers interleave so receive order is only roughly expiry order
+        Buffered buffered = iterator.next();
+        if (buffered.expiresNanos - now < MIN_REMAINING_NANOS){
+          expired.add(buffered.message);
+          iterator.remove();
+        }
+      }
+      if (!expired.isEmpty())wanted.signalAll();
+    }finally{
+      lock.unlock();
+    }
+    release(expired);
+  }
+
+  /**
+   * set the visibility timeout of messages to 0 in batches of up to 10
+   * @param messages the messages to release
+   */
+  private void release(List<Message> messages){
+    for (int start = 0; start < messages.size(); start += MAX_BATCH_SIZE){
+      List<Message> batch = messages.subList(start, Math.min(start + MAX_BATCH_SIZE, messages.size()));
+      List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<>(batch.size());
+      for (int i = 0; i < batch.size(); i++){
+        entries.add(ChangeMessageVisibilityBatchRequestEntry.builder()
+                                                            .id(Integer.toString(i))
+                                                            .receiptHandle(batch.get(i).receiptHandle())
+                                                            .visibilityTimeout(0)
+                                                            .build());
+      }
+      try{
+        ChangeMessageVisibilityBatchResponse response = SQS.changeMessageVisibilityBatch(ChangeMessageVisibilityBatchRequest.builder()
+                                                                                                                          .queueUrl(QUEUE_URL)
+                                                                                                                          .entries(entries)
+                                                                                                                          .build());
+        int failed = response.hasFailed() ? response.failed().size() : 0;
+        released.add(batch.size() - failed);
+        if (failed > 0)LOGGER.debug(failed + " messages could not be released and will become visible when their timeout runs out");
+      }catch(SdkException se){
+        LOGGER.warn("Failed to release prefetched messages: " + se.getMessage());
+      }
+    }
+  }
+}
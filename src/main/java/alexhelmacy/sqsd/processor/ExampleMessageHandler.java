@@ -0,0 +1,37 @@
+package alexhelmacy.sqsd.processor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import software.amazon.awssdk.services.sqs.model.Message;
+
+/**
+ * Example message handler. Logs the message the same way ExampleSqsDThread does.
+ */
+public class ExampleMessageHandler implements MessageHandler{
+  private final Logger logger;//logger for the handler
+
+  /**
+   * Constructor
+   * @param logger the logger to log messages to
+   */
+  public ExampleMessageHandler(Logger logger){
+    this.logger = logger;
+  }
+
+  /**
+   * Constructor with a default logger
+   */
+  public ExampleMessageHandler(){
+    this(LoggerFactory.getLogger(ExampleMessageHandler.class.getSimpleName()));
+  }
+
+  /**
+   * log the message
+   * @param message the message to log
+   */
+  @Override
+  public void handle(Message message) {
+    logger.info("Receive Message: {}", message);
+  }
+}
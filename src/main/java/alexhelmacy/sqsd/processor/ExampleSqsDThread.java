@@ -2,11 +2,32 @@ package alexhelmacy.sqsd.processor;
 
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import alexhelmacy.sqsd.batch.MicroBatcher;
+import alexhelmacy.sqsd.budget.InFlightBudget;
+import alexhelmacy.sqsd.dedup.DedupCache;
+import alexhelmacy.sqsd.delete.DeleteCoalescer;
+import alexhelmacy.sqsd.delete.DeleteFailedException;
+import alexhelmacy.sqsd.delete.DeleteRetryScheduler;
+import alexhelmacy.sqsd.events.EventLog;
+import alexhelmacy.sqsd.events.EventType;
+import alexhelmacy.sqsd.journal.AckJournal;
+import alexhelmacy.sqsd.multiqueue.QueueScheduler;
+import alexhelmacy.sqsd.prefetch.PrefetchBuffer;
+import alexhelmacy.sqsd.visibility.VisibilityHeartbeat;
+
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.SqsClient;
 import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequest;
 import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequestEntry;
 import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResponse;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResultEntry;
 import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageSystemAttributeName;
 import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
 import software.amazon.awssdk.services.sqs.model.ReceiveMessageResponse;
 
@@ -37,6 +58,21 @@ public class ExampleSqsDThread extends SqsDThread{
     private int waitTime = 20;//wait time
     private Collection<String> messageAttributes = Arrays.asList(new String[]{"All"});//message attributes
     private Collection<String> systemAttributes = Arrays.asList(new String[]{"All"});//system message attributes
+    private DeleteCoalescer deleteCoalescer = null;//shared delete coalescer. deletes are sent by the thread when not set
+    private ExecutorService messageExecutor = null;//pool messages are handled on in parallel mode. batches are processed by the thread when not set
+    private MessageHandler messageHandler = null;//handles each message. logs the message when not set
+    private int maxInFlightMessages = -1;//messages a thread can have in flight in parallel mode. defaults to two receives
+    private VisibilityHeartbeat visibilityHeartbeat = null;//shared heartbeat extending visibility while messages are processed. may be null
+    private SqsClient sqsClient = null;//sqs client. the shared client for the region is used when not set
+    private PrefetchBuffer prefetchBuffer = null;//shared buffer messages are taken from instead of receiving. may be null
+    private InFlightBudget inFlightBudget = null;//shared budget reserved before every receive. may be null
+    private DeleteRetryScheduler deleteRetryScheduler = null;//shared scheduler failed deletes are retried on. retried by the thread when not set
+    private QueueScheduler queueScheduler = null;//shared scheduler picking the queue of every cycle. the queue url is polled when not set
+    private boolean fifo = false;//keep the order of each message group and reuse receive attempt ids
+    private EventLog eventLog = null;//shared event log per-message and per-cycle logging goes to. logged by the thread's logger when not set
+    private DedupCache dedupCache = null;//shared cache of handled messages. redeliveries are handled again when not set
+    private AckJournal ackJournal = null;//shared journal of handled and deleted messages. may be null
+    private MicroBatcher microBatcher = null;//shared micro-batcher. messages are handled by the thread when not set
 
     /**
      * sets the queue url
@@ -98,12 +134,170 @@ public class ExampleSqsDThread extends SqsDThread{
       return this;
     }
 
+    /**
+     * sets a delete coalescer shared by every thread. Processed messages are handed to it instead of being deleted by the thread
+     * @param deleteCoalescer the delete coalescer
+     * @return itself
+     */
+    public final ExampleSqsDThreadBuilder deleteCoalescer(DeleteCoalescer deleteCoalescer){
+      this.deleteCoalescer = deleteCoalescer;
+      return this;
+    }
+
+    /**
+     * enables parallel mode. Each received message is handled on the pool and deleted through the delete coalescer as soon as it succeeds.
+     * Requires a delete coalescer.
+     * @param messageExecutor the processing pool. may be shared by every thread
+     * @return itself
+     */
+    public final ExampleSqsDThreadBuilder messageExecutor(ExecutorService messageExecutor){
+      this.messageExecutor = messageExecutor;
+      return this;
+    }
+
+    /**
+     * sets the message handler. Used for each message of a batch, or on the processing pool in parallel mode
+     * @param messageHandler the message handler
+     * @return itself
+     */
+    public final ExampleSqsDThreadBuilder messageHandler(MessageHandler messageHandler){
+      this.messageHandler = messageHandler;
+      return this;
+    }
+
+    /**
+     * sets how many messages a thread can have in flight in parallel mode
+     * @param maxInFlightMessages the limit
+     * @return itself
+     */
+    public final ExampleSqsDThreadBuilder maxInFlightMessages(int maxInFlightMessages){
+      this.maxInFlightMessages = maxInFlightMessages;
+      return this;
+    }
+
+    /**
+     * sets a visibility heartbeat shared by every thread. Messages are kept invisible until they are processed
+     * @param visibilityHeartbeat the heartbeat
+     * @return itself
+     */
+    public final ExampleSqsDThreadBuilder visibilityHeartbeat(VisibilityHeartbeat visibilityHeartbeat){
+      this.visibilityHeartbeat = visibilityHeartbeat;
+      return this;
+    }
+
+    /**
+     * sets the sqs client used instead of the shared client for the region. The client is not closed by the thread
+     * @param sqsClient the sqs client
+     * @return itself
+     */
+    public final ExampleSqsDThreadBuilder sqsClient(SqsClient sqsClient){
+      this.sqsClient = sqsClient;
+      return this;
+    }
+
+    /**
+     * sets the shared prefetch buffer. Threads take messages from the buffer instead of receiving them
+     * @param prefetchBuffer the prefetch buffer for the same queue
+     * @return itself
+     */
+    public final ExampleSqsDThreadBuilder prefetchBuffer(PrefetchBuffer prefetchBuffer){
+      this.prefetchBuffer = prefetchBuffer;
+      return this;
+    }
+
+    /**
+     * sets the shared in-flight budget. Threads wait for room in the budget before receiving
+     * @param inFlightBudget the in-flight budget
+     * @return itself
+     */
+    public final ExampleSqsDThreadBuilder inFlightBudget(InFlightBudget inFlightBudget){
+      this.inFlightBudget = inFlightBudget;
+      return this;
+    }
+
+    /**
+     * sets a retry scheduler shared by every thread. Failed deletes are handed to it and the thread goes back to receiving
+     * @param deleteRetryScheduler the delete retry scheduler
+     * @return itself
+     */
+    public final ExampleSqsDThreadBuilder deleteRetryScheduler(DeleteRetryScheduler deleteRetryScheduler){
+      this.deleteRetryScheduler = deleteRetryScheduler;
+      return this;
+    }
+
+    /**
+     * sets a queue scheduler shared by every thread. Each cycle polls the queue the scheduler picks instead of the queue url.
+     * Cannot be combined with a prefetch buffer
+     * @param queueScheduler the queue scheduler
+     * @return itself
+     */
+    public final ExampleSqsDThreadBuilder queueScheduler(QueueScheduler queueScheduler){
+      this.queueScheduler = queueScheduler;
+      return this;
+    }
+
+    /**
+     * sets FIFO mode. In parallel mode messages of the same MessageGroupId are handled in order and groups run in parallel.
+     * A receive that failed is retried with the same ReceiveRequestAttemptId so SQS returns the same messages.
+     * Cannot be combined with a prefetch buffer
+     * @param fifo true for FIFO queues
+     * @return itself
+     */
+    public final ExampleSqsDThreadBuilder fifo(boolean fifo){
+      this.fifo = fifo;
+      return this;
+    }
+
+    /**
+     * sets an event log shared by every thread. Per-message and per-cycle logging is recorded as sampled events instead of
+     * being formatted on the poll loop
+     * @param eventLog the event log
+     * @return itself
+     */
+    public final ExampleSqsDThreadBuilder eventLog(EventLog eventLog){
+      this.eventLog = eventLog;
+      return this;
+    }
+
+    /**
+     * sets a dedup cache shared by every thread. Received messages it already knows as handled are deleted without being
+     * handled again, and every message handled successfully is added to it
+     * @param dedupCache the dedup cache
+     * @return itself
+     */
+    public final ExampleSqsDThreadBuilder dedupCache(DedupCache dedupCache){
+      this.dedupCache = dedupCache;
+      return this;
+    }
+
+    /**
+     * sets an ack journal shared by every thread. Each message is recorded once handled and once deleted, so a restart can
+     * finish the deletes a crash interrupted
+     * @param ackJournal the ack journal
+     * @return itself
+     */
+    public final ExampleSqsDThreadBuilder ackJournal(AckJournal ackJournal){
+      this.ackJournal = ackJournal;
+      return this;
+    }
+
+    /**
+     * sets a micro-batcher shared by every thread. Received messages are handed to it instead of being handled by the thread,
+     * and each message is deleted through the delete coalescer once its batch succeeds. Requires a delete coalescer
+     * @param microBatcher the micro-batcher
+     * @return itself
+     */
+    public final ExampleSqsDThreadBuilder microBatcher(MicroBatcher microBatcher){
+      this.microBatcher = microBatcher;
+      return this;
+    }
+
     /**
      * builds an instance of the Example SQSD thread data
      * @return an instance of ExampleSqsDThreadData
      */
     public final ExampleSqsDThreadData build(){
-      return new ExampleSqsDThreadData(queueUrl, region, maxNumberOfMessages, waitTime, messageAttributes, systemAttributes);
+      return new ExampleSqsDThreadData(this);
     }
   }
 
@@ -117,6 +311,52 @@ public class ExampleSqsDThread extends SqsDThread{
     public final int WAIT_TIME_SECONDS;//the wait time in seconds
     public final Collection<String> MESSAGE_ATTRIBUTE_NAMES;//the message attributes
     public final Collection<String> MESSAGE_SYSTEM_ATTRIBUTE_NAMES;//the system attributes
+    public final DeleteCoalescer DELETE_COALESCER;//the shared delete coalescer. may be null
+    public final ExecutorService MESSAGE_EXECUTOR;//the parallel mode processing pool. may be null
+    public final MessageHandler MESSAGE_HANDLER;//the message handler. may be null
+    public final int MAX_IN_FLIGHT_MESSAGES;//messages a thread can have in flight in parallel mode
+    public final VisibilityHeartbeat VISIBILITY_HEARTBEAT;//the shared visibility heartbeat. may be null
+    public final SqsClient SQS_CLIENT;//the sqs client. the shared client for the region is used when null
+    public final PrefetchBuffer PREFETCH_BUFFER;//the shared prefetch buffer. may be null
+    public final InFlightBudget IN_FLIGHT_BUDGET;//the shared in-flight budget. may be null
+    public final DeleteRetryScheduler DELETE_RETRY_SCHEDULER;//the shared delete retry scheduler. may be null
+    public final QueueScheduler QUEUE_SCHEDULER;//the shared queue scheduler. may be null
+    public final boolean FIFO;//keep the order of each message group
+    public final EventLog EVENT_LOG;//the shared event log. may be null
+    public final DedupCache DEDUP_CACHE;//the shared dedup cache. may be null
+    public final AckJournal ACK_JOURNAL;//the shared ack journal. may be null
+    public final MicroBatcher MICRO_BATCHER;//the shared micro-batcher. may be null
+
+    /**
+     * Constructor from a builder
+     * @param builder the builder
+     */
+    ExampleSqsDThreadData(ExampleSqsDThreadBuilder builder){
+      QUEUE_URL = builder.queueUrl == null && builder.queueScheduler != null ? builder.queueScheduler.queueUrls().get(0) : builder.queueUrl;//the first queue names a multi-queue thread
+      REGION = builder.region;
+      MAX_NUMBER_OF_MESSAGES = builder.maxNumberOfMessages;
+      WAIT_TIME_SECONDS = builder.waitTime;
+      MESSAGE_ATTRIBUTE_NAMES = builder.messageAttributes;
+      MESSAGE_SYSTEM_ATTRIBUTE_NAMES = builder.systemAttributes;
+      DELETE_COALESCER = builder.deleteCoalescer;
+      MESSAGE_EXECUTOR = builder.messageExecutor;
+      MESSAGE_HANDLER = builder.messageHandler;
+      MAX_IN_FLIGHT_MESSAGES = builder.maxInFlightMessages > 0 ? builder.maxInFlightMessages : builder.maxNumberOfMessages * 2;
+      VISIBILITY_HEARTBEAT = builder.visibilityHeartbeat;
+      SQS_CLIENT = builder.sqsClient;
+      PREFETCH_BUFFER = builder.prefetchBuffer;
+      IN_FLIGHT_BUDGET = builder.inFlightBudget;
+      DELETE_RETRY_SCHEDULER = builder.deleteRetryScheduler;
+      QUEUE_SCHEDULER = builder.queueScheduler;
+      FIFO = builder.fifo;
+      EVENT_LOG = builder.eventLog;
+      DEDUP_CACHE = builder.dedupCache;
+      ACK_JOURNAL = builder.ackJournal;
+      MICRO_BATCHER = builder.microBatcher;
+      if (FIFO && PREFETCH_BUFFER != null)throw new IllegalArgumentException("A prefetch buffer does not keep message groups in order and cannot be used with FIFO mode");
+      if (QUEUE_SCHEDULER != null && PREFETCH_BUFFER != null)throw new IllegalArgumentException("A prefetch buffer reads a single queue and cannot be used with a queue scheduler");
+      if (MESSAGE_EXECUTOR != null && DELETE_COALESCER == null)throw new IllegalArgumentException("Parallel mode requires a delete coalescer");
+    }
 
     /**
      * Constructor
@@ -134,6 +374,21 @@ public class ExampleSqsDThread extends SqsDThread{
       WAIT_TIME_SECONDS = waitTime;
       MESSAGE_ATTRIBUTE_NAMES = messageAttributes;
       MESSAGE_SYSTEM_ATTRIBUTE_NAMES = systemAttributes;
+      DELETE_COALESCER = null;
+      MESSAGE_EXECUTOR = null;
+      MESSAGE_HANDLER = null;
+      MAX_IN_FLIGHT_MESSAGES = maxMessages * 2;
+      VISIBILITY_HEARTBEAT = null;
+      SQS_CLIENT = null;
+      PREFETCH_BUFFER = null;
+      IN_FLIGHT_BUDGET = null;
+      DELETE_RETRY_SCHEDULER = null;
+      QUEUE_SCHEDULER = null;
+      FIFO = false;
+      EVENT_LOG = null;
+      DEDUP_CACHE = null;
+      ACK_JOURNAL = null;
+      MICRO_BATCHER = null;
     }
 
     /**
@@ -157,10 +412,32 @@ public class ExampleSqsDThread extends SqsDThread{
     }
   }
   
+  private static final long ERROR_PAUSE_MILLIS = 100;//pause after a failed SQS call
+  private static final long BUDGET_WAIT_MILLIS = 1000;//longest wait for the in-flight budget before checking the thread state again
+
   private final int maxNumberOfMessages;//the maximum number of messages
   private final int waitTimeSeconds;//the wait time in seconds
   private final Collection<String> messageAttributeNames;//the message attributes
   private final Collection<String> messageSystemAttributeNames;//the system attributes
+  private final DeleteCoalescer deleteCoalescer;//shared delete coalescer. may be null
+  private final ParallelMessageDispatcher dispatcher;//parallel mode dispatcher. may be null
+  private final MessageHandler messageHandler;//handles each message of a batch. may be null
+  private final ReceiveMessageRequest defaultRequest;//built once. requests are immutable
+  private final VisibilityHeartbeat visibilityHeartbeat;//shared visibility heartbeat. may be null
+  private final PrefetchBuffer prefetchBuffer;//shared prefetch buffer. may be null
+  private final InFlightBudget inFlightBudget;//shared in-flight budget. may be null
+  private final DeleteRetryScheduler deleteRetryScheduler;//shared delete retry scheduler. may be null
+  private final QueueScheduler queueScheduler;//shared queue scheduler. may be null
+  private final Map<String, ReceiveMessageRequest> queueRequests = new HashMap<>();//receive request of every scheduled queue
+  private String activeQueueUrl;//queue of the current cycle. only used by the thread itself
+  private int cycleReceived;//messages received in the current cycle. -1 until the receive completes
+  private final boolean fifo;//keep the order of each message group and reuse receive attempt ids
+  private String receiveAttemptId = null;//attempt id of a receive that has not returned yet. reused after a failure
+  private String receiveAttemptQueueUrl = null;//queue of the pending receive attempt
+  private final EventLog eventLog;//shared event log. may be null
+  private final DedupCache dedupCache;//shared dedup cache. may be null
+  private final AckJournal ackJournal;//shared ack journal. may be null
+  private final MicroBatcher microBatcher;//shared micro-batcher. may be null
 
   /**
    * Constructor of an example sqsd thread
@@ -172,19 +449,68 @@ public class ExampleSqsDThread extends SqsDThread{
    * @param messageSystemAttributeNames the system attributes
    */
   public ExampleSqsDThread(String queueUrl, String region,int maxMessages, int waitTime, Collection<String> messageAttributeNames, Collection<String> messageSystemAttributeNames){
-    super(queueUrl, region);//queue url and region are in SqsDThread
-    maxNumberOfMessages = maxMessages;
-    waitTimeSeconds = waitTime;
-    this.messageAttributeNames = messageAttributeNames;
-    this.messageSystemAttributeNames = messageAttributeNames;
+    this(new ExampleSqsDThreadData(queueUrl, region, maxMessages, waitTime, messageAttributeNames, messageSystemAttributeNames));
   }
 
   /**
-   * Constructor with ExampleSqsDThreadData callse constructor with all parameters
+   * Constructor with ExampleSqsDThreadData
    * @param data the data used to make the sqsd thread
    */
   public ExampleSqsDThread(ExampleSqsDThreadData data){
-    this(data.QUEUE_URL, data.REGION, data.MAX_NUMBER_OF_MESSAGES, data.WAIT_TIME_SECONDS, data.MESSAGE_ATTRIBUTE_NAMES, data.MESSAGE_SYSTEM_ATTRIBUTE_NAMES);
+    super(data.QUEUE_URL, data.REGION, data.SQS_CLIENT);//queue url, region and client are in SqsDThread
+    maxNumberOfMessages = data.MAX_NUMBER_OF_MESSAGES;
+    waitTimeSeconds = data.WAIT_TIME_SECONDS;
+    messageAttributeNames = data.MESSAGE_ATTRIBUTE_NAMES;
+    fifo = data.FIFO;
+    if (fifo && !data.MESSAGE_SYSTEM_ATTRIBUTE_NAMES.contains("All") && !data.MESSAGE_SYSTEM_ATTRIBUTE_NAMES.contains(MessageSystemAttributeName.MESSAGE_GROUP_ID.toString())){
+      List<String> systemAttributeNames = new ArrayList<>(data.MESSAGE_SYSTEM_ATTRIBUTE_NAMES);//lanes are keyed by the group id
+      systemAttributeNames.add(MessageSystemAttributeName.MESSAGE_GROUP_ID.toString());
+      messageSystemAttributeNames = systemAttributeNames;
+    }else{
+      messageSystemAttributeNames = data.MESSAGE_SYSTEM_ATTRIBUTE_NAMES;
+    }
+    deleteCoalescer = data.DELETE_COALESCER;
+    visibilityHeartbeat = data.VISIBILITY_HEARTBEAT;
+    prefetchBuffer = data.PREFETCH_BUFFER;
+    inFlightBudget = data.IN_FLIGHT_BUDGET;
+    deleteRetryScheduler = data.DELETE_RETRY_SCHEDULER;
+    queueScheduler = data.QUEUE_SCHEDULER;
+    activeQueueUrl = queueUrl;
+    messageHandler = data.MESSAGE_HANDLER;
+    eventLog = data.EVENT_LOG;
+    dedupCache = data.DEDUP_CACHE;
+    ackJournal = data.ACK_JOURNAL;
+    microBatcher = data.MICRO_BATCHER;
+    if (microBatcher != null && deleteCoalescer == null)throw new IllegalArgumentException("Micro-batching requires a delete coalescer");
+    if (data.MESSAGE_EXECUTOR != null){//parallel mode
+      MessageHandler handler = data.MESSAGE_HANDLER != null ? data.MESSAGE_HANDLER : new ExampleMessageHandler(logger);
+      if (dedupCache != null)handler = dedupCache.completing(handler);//remember each message as soon as it is handled
+      dispatcher = ParallelMessageDispatcher.builder()
+                                            .executor(data.MESSAGE_EXECUTOR)
+                                            .handler(handler)
+                                            .deleteCoalescer(deleteCoalescer)
+                                            .maxInFlight(data.MAX_IN_FLIGHT_MESSAGES)
+                                            .logger(logger)
+                                            .heartbeat(visibilityHeartbeat)
+                                            .statistics(statistics)
+                                            .budget(inFlightBudget)
+                                            .ordered(fifo)
+                                            .eventLog(eventLog)
+                                            .ackJournal(ackJournal)
+                                            .build();
+    }else{
+      dispatcher = null;
+    }
+    defaultRequest = ReceiveMessageRequest.builder()
+                                          .queueUrl(queueUrl)
+                                          .maxNumberOfMessages(maxNumberOfMessages())
+                                          .waitTimeSeconds(waitTimeSeconds())
+                                          .messageAttributeNames(messageAttributeNames())
+                                          .messageSystemAttributeNamesWithStrings(messageSystemAttributeNames())
+                                          .build();
+    if (queueScheduler != null){
+      for (String scheduledQueueUrl: queueScheduler.queueUrls())queueRequests.put(scheduledQueueUrl, defaultRequest.toBuilder().queueUrl(scheduledQueueUrl).build());
+    }
   }
 
   /**
@@ -207,7 +533,7 @@ public class ExampleSqsDThread extends SqsDThread{
    * 
    * @return max number of messages
    */
-  synchronized private final int maxNumberOfMessages(){
+  private final int maxNumberOfMessages(){
     return maxNumberOfMessages;
   }
 
@@ -215,7 +541,7 @@ public class ExampleSqsDThread extends SqsDThread{
    * 
    * @return wait time in seconds
    */
-  synchronized private final int waitTimeSeconds(){
+  private final int waitTimeSeconds(){
     return waitTimeSeconds;
   }
 
@@ -223,7 +549,7 @@ public class ExampleSqsDThread extends SqsDThread{
    * 
    * @return the message attributes
    */
-  synchronized private final Collection<String> messageAttributeNames(){
+  private final Collection<String> messageAttributeNames(){
     return messageAttributeNames;
   }
 
@@ -231,7 +557,7 @@ public class ExampleSqsDThread extends SqsDThread{
    * 
    * @return system attributes
    */
-  synchronized private final Collection<String> messageSystemAttributeNames(){
+  private final Collection<String> messageSystemAttributeNames(){
     return messageSystemAttributeNames;
   }
 
@@ -240,14 +566,28 @@ public class ExampleSqsDThread extends SqsDThread{
    * @return the default ReceiveMessageRequest
    */
   @Override
-  synchronized protected ReceiveMessageRequest defaultRequest() {
-    return ReceiveMessageRequest.builder()
-                                .queueUrl(queueUrl)
-                                .maxNumberOfMessages(maxNumberOfMessages())
-                                .waitTimeSeconds(waitTimeSeconds())
-                                .messageAttributeNames(messageAttributeNames())
-                                .messageSystemAttributeNamesWithStrings(messageSystemAttributeNames())
-                                .build();
+  protected ReceiveMessageRequest defaultRequest() {
+    ReceiveMessageRequest request = queueScheduler != null ? queueRequests.get(activeQueueUrl) : defaultRequest;
+    if (!fifo)return request;
+    if (receiveAttemptId == null || !activeQueueUrl.equals(receiveAttemptQueueUrl)){//new attempt. kept until a receive returns
+      receiveAttemptId = UUID.randomUUID().toString();
+      receiveAttemptQueueUrl = activeQueueUrl;
+    }
+    return request.toBuilder().receiveRequestAttemptId(receiveAttemptId).build();
+  }
+
+  /**
+   * @return true in FIFO mode
+   */
+  protected final boolean fifo(){
+    return fifo;
+  }
+
+  /**
+   * @return the queue of the current cycle. the queue url unless a queue scheduler is set
+   */
+  protected final String activeQueueUrl(){
+    return activeQueueUrl;
   }
 
   /**
@@ -257,29 +597,54 @@ public class ExampleSqsDThread extends SqsDThread{
    * @throws InterruptedException if the thread is interrupted or the thread is closed
    */
   @Override
-  synchronized protected ReceiveMessageResponse receiveMessages(ReceiveMessageRequest request) throws InterruptedException {
+  protected ReceiveMessageResponse receiveMessages(ReceiveMessageRequest request) throws InterruptedException {
     if (Thread.currentThread().isInterrupted())throw new InterruptedException("Thread Interrupted");
     if (closed()) throw new InterruptedException("sqs client closed");
+    if (prefetchBuffer != null)return prefetchBuffer.receive(request.maxNumberOfMessages(), request.waitTimeSeconds());//already received ahead
     return sqs.receiveMessage(request);
   }
 
   /**
-   * process the messages. In this example, just print the message
+   * process the messages. In this example, just print the message unless a message handler is set.
+   * Messages the handler fails on are left out so SQS redelivers them. In FIFO mode the rest of a failed message's group is left out too
    * @param response the ReceiveMessageResponse from receiveMessages
    * @return a list of processed messages
    * @throws InterruptedException if the thread is interrupted or the thread is closed.
    */
   @Override
-  synchronized protected List<Message> processMessages(ReceiveMessageResponse response) throws InterruptedException {
+  protected List<Message> processMessages(ReceiveMessageResponse response) throws InterruptedException {
     if (Thread.currentThread().isInterrupted())throw new InterruptedException("Thread Interrupted");
     if (closed()) throw new InterruptedException("thread should stop");
     List<Message> processedMessages = new ArrayList<>();
+    Set<String> failedGroups = new HashSet<>();//groups that must not go further in this batch
     if (response.hasMessages()){
       response.messages()
               .stream()
               .forEach((message) -> {
-                logger.info("Receive Message: " + message);
-                processedMessages.add(message);
+                if (drainExpired())return;//out of drain time. released once the batch returns
+                String group = fifo ? message.attributes().get(MessageSystemAttributeName.MESSAGE_GROUP_ID) : null;
+                if (group != null && failedGroups.contains(group))return;//must not overtake the failed message. redelivered after it
+                if (messageHandler == null){
+                  if (eventLog != null){
+                    eventLog.record(EventType.RECEIVED, activeQueueUrl, message.messageId(), 0, null);
+                  }else{
+                    logger.info("Receive Message: {}", message);
+                  }
+                  processedMessages.add(message);
+                  return;
+                }
+                try{
+                  messageHandler.handle(message);
+                  processedMessages.add(message);
+                  if (eventLog != null)eventLog.record(EventType.PROCESSED, activeQueueUrl, message.messageId(), 0, null);
+                }catch(Exception e){//left for redelivery
+                  if (group != null)failedGroups.add(group);
+                  if (eventLog != null){
+                    eventLog.record(EventType.PROCESS_FAILED, activeQueueUrl, message.messageId(), 0, e.getMessage());
+                  }else{
+                    logger.warn("Failed to process message {}: {}", message.messageId(), e.getMessage());
+                  }
+                }
               });
     }
 
@@ -293,7 +658,7 @@ public class ExampleSqsDThread extends SqsDThread{
    * @throws InterruptedException if the thread is interrupted or closed.
    */
   @Override
-  synchronized protected DeleteMessageBatchResponse deleteMessages(List<Message> messages) throws InterruptedException {
+  protected DeleteMessageBatchResponse deleteMessages(List<Message> messages) throws InterruptedException {
     if (Thread.currentThread().isInterrupted())throw new InterruptedException("Thread Interrupted");
     if (closed()) throw new InterruptedException("sqs client closed");
     List<DeleteMessageBatchRequestEntry> entries = messages.stream()
@@ -307,35 +672,384 @@ public class ExampleSqsDThread extends SqsDThread{
     
     DeleteMessageBatchRequest deleteMessageBatchRequest = DeleteMessageBatchRequest.builder()
                                                                                    .entries(entries)
-                                                                                   .queueUrl(queueUrl)
+                                                                                   .queueUrl(activeQueueUrl)
                                                                                    .build();
     return sqs.deleteMessageBatch(deleteMessageBatchRequest);
   }
 
   /**
-   * stop the sqsd thread.
+   * back off method in case of failure. Sleeps a random time up to the capped exponential delay so threads retrying together spread out
+   * @param retry the current retry represented by a long
+   * @param maxBackoffMillis the maximum back of in milliseconds. Prevents the thread from stopping for eternity
+   * @throws InterruptedException when thread is interrupted.
+   */
+  protected final void backoff(long retry, long maxBackoffMillis) throws InterruptedException{
+    long backoffMillis = DeleteRetryScheduler.jitteredDelayMillis((int)Math.min(retry, Integer.MAX_VALUE), 50, maxBackoffMillis);
+    if (eventLog != null){
+      eventLog.record(EventType.BACKOFF, activeQueueUrl, null, backoffMillis, null);
+    }else{
+      logger.info("Backoff: {}", backoffMillis);
+    }
+    Thread.sleep(backoffMillis);
+  }
+
+  /**
+   * hand the failed entries of a delete to the shared retry scheduler. The messages that were deleted or cannot be deleted are
+   * released right away, the others once their retries finish.
+   * @param processedMessages the messages of the delete
+   * @param deleteMessageBatchResponse the response of the first delete
    */
-  @Override
-  synchronized public final void stop() {
-    running = false;
-    closed = true;
-    sqs.close();
+  protected void scheduleDeleteRetries(List<Message> processedMessages, DeleteMessageBatchResponse deleteMessageBatchResponse){
+    Map<String, BatchResultErrorEntry> failedEntries = new HashMap<>();
+    for (BatchResultErrorEntry failed: deleteMessageBatchResponse.failed())failedEntries.put(failed.id(), failed);
+    List<Message> finished = new ArrayList<>();
+    for (Message message: processedMessages){
+      BatchResultErrorEntry failed = failedEntries.get(message.messageId());
+      if (failed == null || Boolean.TRUE.equals(failed.senderFault())){//deleted, or redelivered by SQS after the visibility timeout
+        if (failed != null)logDeleteFailed(activeQueueUrl, message, new DeleteFailedException(message, failed).getMessage());
+        finished.add(message);
+        continue;
+      }
+      long retryStart = System.nanoTime();
+      String queueUrl = activeQueueUrl;//the callback runs after the thread moved on
+      deleteRetryScheduler.retry(queueUrl, message).whenComplete((deleted, throwable) -> {
+        statistics.recordDelete(System.nanoTime() - retryStart, throwable != null ? 1 : 0, true);
+        statistics.recordInFlight(-1);
+        if (inFlightBudget != null)inFlightBudget.release(message);
+        if (throwable != null){
+          logDeleteFailed(queueUrl, message, throwable.getMessage());
+        }else{
+          recordDeleted(queueUrl, message.messageId(), deleted);
+        }
+      });
+    }
+    statistics.recordInFlight(-finished.size());
+    if (inFlightBudget != null)inFlightBudget.release(finished);
   }
 
   /**
-   * back off method in case of failure
-   * @param retry the current retry represented by a long
-   * @param maxBackoffMillis the maximum back of in milliseconds. Prevents the thread from stopping for eternity
-   * @throws InterruptedException when thread is interrupted.
+   * hand processed messages to the shared delete coalescer. Failed deletes are logged and redelivered by SQS.
+   * @param processedMessages the processed messages
+   */
+  protected void coalesceDeletes(List<Message> processedMessages){
+    coalesceDeletes(activeQueueUrl, processedMessages);//the callbacks run after the thread moved on
+  }
+
+  /**
+   * hand processed messages of a queue to the shared delete coalescer. Failed deletes are logged and redelivered by SQS.
+   * @param queueUrl the queue the messages were received from
+   * @param processedMessages the processed messages
+   */
+  protected void coalesceDeletes(String queueUrl, List<Message> processedMessages){
+    for (Message message: processedMessages){
+      long deleteStart = System.nanoTime();
+      deleteCoalescer.delete(queueUrl, message).whenComplete((deleted, throwable) -> {
+        statistics.recordDelete(System.nanoTime() - deleteStart, throwable != null ? 1 : 0, false);
+        statistics.recordInFlight(-1);
+        if (inFlightBudget != null)inFlightBudget.release(message);
+        if (throwable != null){
+          logDeleteFailed(queueUrl, message, throwable.getMessage());
+        }else{
+          recordDeleted(queueUrl, message.messageId(), deleted);
+        }
+      });
+    }
+  }
+
+  /**
+   * hand received messages to the shared micro-batcher. Each message is deleted once its batch succeeds, and left for
+   * redelivery when it fails. Blocks while the batcher is full
+   * @param messages the received messages
+   * @throws InterruptedException if interrupted while waiting for room in the batcher
+   */
+  private void batchMessages(List<Message> messages) throws InterruptedException{
+    String queueUrl = activeQueueUrl;//the callbacks run after the thread moved on
+    List<VisibilityHeartbeat.Lease> leases = visibilityHeartbeat != null ? visibilityHeartbeat.track(queueUrl, messages) : null;//waiting for the batch counts as processing
+    statistics.recordInFlight(messages.size());
+    List<CompletableFuture<Void>> results;
+    long submitStart = System.nanoTime();
+    try{
+      results = microBatcher.submit(messages);
+    }catch(InterruptedException ie){//left for redelivery
+      if (leases != null)VisibilityHeartbeat.complete(leases);
+      statistics.recordInFlight(-messages.size());
+      if (inFlightBudget != null)inFlightBudget.release(messages);
+      throw ie;
+    }
+    statistics.recordProcessing(System.nanoTime() - submitStart);
+    for (int i = 0; i < messages.size(); i++){
+      Message message = messages.get(i);
+      VisibilityHeartbeat.Lease lease = leases != null ? leases.get(i) : null;
+      results.get(i).whenComplete((handled, throwable) -> {
+        if (lease != null)lease.complete();
+        if (throwable != null){
+          if (eventLog != null){
+            eventLog.record(EventType.PROCESS_FAILED, queueUrl, message.messageId(), 0, throwable.getMessage());
+          }else{
+            logger.warn(throwable.getMessage());
+          }
+          statistics.recordInFlight(-1);
+          if (inFlightBudget != null)inFlightBudget.release(message);
+          return;
+        }
+        if (eventLog != null)eventLog.record(EventType.PROCESSED, queueUrl, message.messageId(), 0, null);
+        if (dedupCache != null)dedupCache.complete(message);
+        if (ackJournal != null)ackJournal.processed(queueUrl, message);
+        coalesceDeletes(queueUrl, Collections.singletonList(message));
+      });
+    }
+  }
+
+  /**
+   * delete messages the dedup cache knows as handled. Deletes that fail are redelivered and skipped again
+   * @param duplicates the messages
+   * @throws InterruptedException if the thread is interrupted or closed.
+   */
+  private void deleteDuplicates(List<Message> duplicates) throws InterruptedException{
+    for (Message duplicate: duplicates){
+      if (eventLog != null){
+        eventLog.record(EventType.DUPLICATE, activeQueueUrl, duplicate.messageId(), 0, null);
+      }else{
+        logger.info("Skipping Message Already Processed: {}", duplicate.messageId());
+      }
+    }
+    statistics.recordInFlight(duplicates.size());
+    if (deleteCoalescer != null){//released by the coalescer callbacks
+      coalesceDeletes(duplicates);
+      return;
+    }
+    try{
+      long deleteStart = System.nanoTime();
+      DeleteMessageBatchResponse deleteMessageBatchResponse = deleteMessages(duplicates);
+      statistics.recordDelete(System.nanoTime() - deleteStart, deleteMessageBatchResponse.hasFailed() ? deleteMessageBatchResponse.failed().size() : 0, false);
+      if (deleteMessageBatchResponse.hasSuccessful())deleteMessageBatchResponse.successful().forEach((entry) -> recordDeleted(activeQueueUrl, entry.id(), entry));
+    }catch(SdkException se){//the rest of the batch still has to be processed
+      logger.warn("Failed to delete {} duplicates: {}", duplicates.size(), se.getMessage());
+    }finally{
+      statistics.recordInFlight(-duplicates.size());
+      if (inFlightBudget != null)inFlightBudget.release(duplicates);
+    }
+  }
+
+  /**
+   * log a step of the poll cycle. The event log records POLL events instead
+   * @param step the step
+   */
+  private void logStep(String step){
+    if (eventLog == null)logger.info(step);
+  }
+
+  /**
+   * record a deleted message in the ack journal and log it
+   * @param queueUrl the queue the message was deleted from
+   * @param messageId the message id. batch entry ids are not message ids when the delete was coalesced or retried
+   * @param deleted the delete result entry
+   */
+  private void recordDeleted(String queueUrl, String messageId, DeleteMessageBatchResultEntry deleted){
+    if (ackJournal != null)ackJournal.deleted(messageId);
+    if (eventLog != null){
+      eventLog.record(EventType.DELETED, queueUrl, messageId, 0, null);
+    }else{
+      logger.info("Messages Processed: {}", deleted);
+    }
+  }
+
+  /**
+   * log a delete that failed for good. The message is redelivered after its visibility timeout
+   * @param queueUrl the queue the message was received from
+   * @param message the message
+   * @param reason why the delete failed
    */
-  synchronized protected final void backoff(long retry, long maxBackoffMillis) throws InterruptedException{
-    long backoffMillis = Math.min(retry * 50, maxBackoffMillis);
-    if (backoffMillis < 0){
-      logger.warn("Back off millis overflowed");
-      backoffMillis = maxBackoffMillis;
-    }
-    logger.info("Backoff: " + backoffMillis);
-    Thread.sleep(retry * 50);
+  private void logDeleteFailed(String queueUrl, Message message, String reason){
+    if (eventLog != null){
+      eventLog.record(EventType.DELETE_FAILED, queueUrl, message.messageId(), 0, reason);
+    }else{
+      logger.warn(reason);
+    }
+  }
+
+  /**
+   * one cycle of the run loop. Polls the queue the queue scheduler picks, or the queue url without one
+   * @throws InterruptedException if the thread is interrupted or no longer running
+   */
+  protected final void pollOnce() throws InterruptedException{
+    if (queueScheduler == null){
+      pollQueue();
+      return;
+    }
+    activeQueueUrl = queueScheduler.acquire();
+    cycleReceived = -1;
+    try{
+      pollQueue();
+    }finally{
+      queueScheduler.release(activeQueueUrl, cycleReceived);
+    }
+  }
+
+  /**
+   * one cycle on the active queue. Receives a batch, processes it and deletes it, or hands it to the dispatcher or delete coalescer.
+   * @throws InterruptedException if the thread is interrupted or no longer running
+   */
+  private void pollQueue() throws InterruptedException{
+    logStep("Receiving messages");
+
+    //wait for room in the shared budget before receiving
+    InFlightBudget.Reservation reservation = null;
+    if (inFlightBudget != null){
+      reservation = inFlightBudget.reserve(maxNumberOfMessages(), BUDGET_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+      if (reservation == null)return;//still spent. check the thread state and try again
+    }
+
+    //receive messages
+    long receiveStart = System.nanoTime();
+    ReceiveMessageResponse receiveMessageResponse = null;
+    try{
+      receiveMessageResponse = receiveMessages();//not synchronized so virtual threads do not pin during the long poll
+    }finally{
+      if (reservation != null)reservation.settle(receiveMessageResponse != null && receiveMessageResponse.hasMessages() ? receiveMessageResponse.messages() : Collections.emptyList());
+    }
+    receiveAttemptId = null;//returned. the next receive is a new attempt
+    cycleReceived = receiveMessageResponse.hasMessages() ? receiveMessageResponse.messages().size() : 0;
+    statistics.recordReceive(cycleReceived, System.nanoTime() - receiveStart);
+    if (eventLog != null)eventLog.record(EventType.POLL, activeQueueUrl, null, cycleReceived, null);
+
+    //delete redeliveries of messages that were already handled without handling them again
+    if (dedupCache != null && receiveMessageResponse.hasMessages()){
+      List<Message> duplicates = dedupCache.duplicates(receiveMessageResponse.messages());
+      if (!duplicates.isEmpty()){
+        List<Message> fresh = new ArrayList<>(receiveMessageResponse.messages());
+        fresh.removeAll(duplicates);
+        receiveMessageResponse = receiveMessageResponse.toBuilder().messages(fresh).build();
+        try{
+          deleteDuplicates(duplicates);
+        }catch(InterruptedException ie){//stopping. the fresh messages are redelivered
+          if (inFlightBudget != null)inFlightBudget.release(fresh);
+          throw ie;
+        }
+      }
+    }
+
+    //micro-batch mode. hand the messages to the shared batcher and go back to receiving
+    if (microBatcher != null && receiveMessageResponse.hasMessages()){
+      batchMessages(receiveMessageResponse.messages());
+      return;
+    }
+
+    //parallel mode. hand each message to the pool and go back to receiving
+    if (dispatcher != null && receiveMessageResponse.hasMessages()){
+      long dispatchStart = System.nanoTime();
+      List<Message> undispatched = dispatcher.dispatch(activeQueueUrl, receiveMessageResponse.messages(), this::drainExpired);//blocks while the thread is at its in-flight limit
+      statistics.recordProcessing(System.nanoTime() - dispatchStart);
+      if (!undispatched.isEmpty())releaseMessages(activeQueueUrl, undispatched);//the drain ran out of time. let other consumers have them
+      return;
+    }
+
+    //check if there are messages in the response
+    if (receiveMessageResponse.hasMessages()){
+      logger.debug("Received Messages: {}", receiveMessageResponse);
+      logStep("Processing Messages");
+      int received = receiveMessageResponse.messages().size();
+      statistics.recordInFlight(received);
+      boolean handedOff = false;//in flight messages are released by the coalescer callbacks once handed off
+      try{
+        //process messages. the heartbeat keeps the batch invisible until it is processed
+        List<VisibilityHeartbeat.Lease> leases = visibilityHeartbeat != null ? visibilityHeartbeat.track(activeQueueUrl, receiveMessageResponse.messages()) : null;
+        List<Message> processedMessages;
+        long processingStart = System.nanoTime();
+        try{
+          processedMessages = processMessages(receiveMessageResponse);
+        }finally{
+          if (leases != null)VisibilityHeartbeat.complete(leases);
+        }
+        statistics.recordProcessing(System.nanoTime() - processingStart);
+        if (dedupCache != null)dedupCache.complete(processedMessages);//a redelivery after a failed delete is not handled again
+        if (ackJournal != null)ackJournal.processed(activeQueueUrl, processedMessages);//finished on restart if the JVM dies before the delete
+
+        logger.debug("Processed messages: {}", processedMessages);
+        if (processedMessages.size() < received && drainExpired()){//the drain ran out of time. let other consumers have the rest now
+          List<Message> unprocessed = new ArrayList<>(receiveMessageResponse.messages());
+          unprocessed.removeAll(processedMessages);
+          releaseMessages(activeQueueUrl, unprocessed);
+        }
+        if (processedMessages.isEmpty())return;//nothing to delete. unprocessed messages are redelivered
+        logStep("Deleting messages");
+        if (deleteCoalescer != null){//hand the deletes to the shared coalescer and go back to receiving
+          statistics.recordInFlight(processedMessages.size() - received);//unprocessed messages are abandoned
+          if (inFlightBudget != null && processedMessages.size() < received){
+            List<Message> abandoned = new ArrayList<>(receiveMessageResponse.messages());
+            abandoned.removeAll(processedMessages);
+            inFlightBudget.release(abandoned);
+          }
+          handedOff = true;
+          coalesceDeletes(processedMessages);
+          return;
+        }
+        //delete messages
+        long deleteStart = System.nanoTime();
+        DeleteMessageBatchResponse deleteMessageBatchResponse = deleteMessages(processedMessages);
+        statistics.recordDelete(System.nanoTime() - deleteStart, deleteMessageBatchResponse.hasFailed() ? deleteMessageBatchResponse.failed().size() : 0, false);
+        logger.debug("Delete Message Response: {}", deleteMessageBatchResponse);  
+        if (deleteRetryScheduler != null && deleteMessageBatchResponse.hasFailed()){//retry in the background and go back to receiving
+          if (deleteMessageBatchResponse.hasSuccessful())deleteMessageBatchResponse.successful().forEach((entry) -> recordDeleted(activeQueueUrl, entry.id(), entry));
+          statistics.recordInFlight(processedMessages.size() - received);//unprocessed messages are abandoned
+          if (inFlightBudget != null && processedMessages.size() < received){
+            List<Message> abandoned = new ArrayList<>(receiveMessageResponse.messages());
+            abandoned.removeAll(processedMessages);
+            inFlightBudget.release(abandoned);
+          }
+          handedOff = true;
+          scheduleDeleteRetries(processedMessages, deleteMessageBatchResponse);
+          return;
+        }
+        //handle failed deleted messages
+        List<DeleteMessageBatchResponse> deleteMessageBatchResponses = new ArrayList<>();
+        deleteMessageBatchResponses.add(deleteMessageBatchResponse);
+        long retry = 0;
+
+        while (deleteMessageBatchResponse.hasFailed()){//while there are failed messages
+          Set<String> failedIds = new HashSet<>();//hashset of failed ids
+          deleteMessageBatchResponse.failed()//failed entries
+                                    .stream()//stream
+                                    .forEach((batchResultErrorEntry) -> {//for each failed entry
+                                      logger.debug("Failed Batch Entry: {}", batchResultErrorEntry);
+                                      failedIds.add(batchResultErrorEntry.id());//add the failed message ids
+                                    });
+
+
+          if (retry >= 10)break;//stop if we have retried 10 times or more
+          backoff(retry, 500);//back off
+
+          //create list of messages that failed to be deleted
+          List<Message> failedMessages = processedMessages.stream()
+                                                          .filter((message) -> failedIds.contains(message.messageId()))
+                                                          .collect(Collectors.toList());
+          logStep("Deleting failed messages");
+
+          deleteStart = System.nanoTime();
+          deleteMessageBatchResponse = deleteFailedMessages(failedMessages);//delete failed messages
+          statistics.recordDelete(System.nanoTime() - deleteStart, deleteMessageBatchResponse.hasFailed() ? deleteMessageBatchResponse.failed().size() : 0, true);
+
+          logger.debug("Delete Message Response: {}", deleteMessageBatchResponse);
+
+          deleteMessageBatchResponses.add(deleteMessageBatchResponse);//add the response
+          retry++;//increment retry
+        }
+        //log messages that were deleted
+        deleteMessageBatchResponses.stream()
+                                   .filter((messageBatchResponse) -> messageBatchResponse.hasSuccessful())//get only successful responses
+                                   .map((successfulDeleteMessageBatchResponse) -> successfulDeleteMessageBatchResponse.successful())//List<List<DeleteMessageBatchResultEntry>>
+                                   .flatMap(List::stream)//flatten
+                                   .collect(Collectors.toList())//collect to list
+                                   .forEach((successfulDeleteMessageBatchResultEntry) -> {//for each DeleteMessageBatchResultEntry
+                                     recordDeleted(activeQueueUrl, successfulDeleteMessageBatchResultEntry.id(), successfulDeleteMessageBatchResultEntry);
+                                   });
+      }finally{
+        if (!handedOff){//deleted or left for redelivery
+          statistics.recordInFlight(-received);
+          if (inFlightBudget != null)inFlightBudget.release(receiveMessageResponse.messages());
+        }
+      }
+    }
   }
 
   /**
@@ -345,120 +1059,53 @@ public class ExampleSqsDThread extends SqsDThread{
    * 2. Processes the received messages.
    * 3. Deletes the processed messages.
    * 4. Retries failed deleted messages.
+   * When drained the batch in hand is finished and the thread stops. Nothing in the loop takes a lock.
+   * A drain with a deadline releases the messages it could not get to with a visibility timeout of 0.
    */
   @Override
   public void run(){
-    synchronized(this){
-      logger.info("Run Method called");
+    logger.info("Run Method called");
+    if (!lifecycle.start()){//only one caller moves the thread from NEW to RUNNING
       if (closed()){ //check if the thread has been stopped
         logger.error("Thread Already Stopped");
         throw new InvalidParameterException("SqsD thread closed");
       }
-      if (running()){//check if the thread is already running. return if so.
-        logger.warn("Already Running");
-        return;
-      }
-      if (!running()) {//if not running, set running to true. should only occur once
-        running = true;
-      }
-  
-      logger.info("Starting Thread");    
+      logger.warn("Already Running");//running or draining. return
+      return;
     }
+    logger.info("Starting Thread");
     
     while (running()){//while running
         try{
-            synchronized(logger){
-              logger.info("Receiving messages");  
-            }
-            
-            //receive messages
-            ReceiveMessageResponse receiveMessageResponse;
-            synchronized(this){
-              receiveMessageResponse = receiveMessages();
-            }
-            
-            //check if there are messages in the response
-            if (receiveMessageResponse.hasMessages()){
-              synchronized(logger){
-                logger.debug("Received Messages: " + receiveMessageResponse);
-                logger.info("Processing Messages");
-              }
-              
-              //process messages
-              List<Message> processedMessages;
-              synchronized (this){
-                processedMessages = processMessages(receiveMessageResponse);
-              }
-
-              synchronized(logger){
-                logger.debug("Processed messages: " + processedMessages);
-                logger.info("Deleting messages");
-              }
-              //delete messages
-              DeleteMessageBatchResponse deleteMessageBatchResponse;
-              synchronized(this){
-                deleteMessageBatchResponse = deleteMessages(processedMessages);
-              }
-              synchronized(logger){
-                logger.debug("Delete Message Response: " + deleteMessageBatchResponse);  
-              }
-              //handle failed deleted messages
-              List<DeleteMessageBatchResponse> deleteMessageBatchResponses = new ArrayList<>();
-              deleteMessageBatchResponses.add(deleteMessageBatchResponse);
-              long retry = 0;
-
-              while (deleteMessageBatchResponse.hasFailed()){//while there are failed messages
-                Set<String> failedIds = new HashSet<>();//hashset of failed ids
-                synchronized(logger){
-                  deleteMessageBatchResponse.failed()//failed entries
-                                            .stream()//stream
-                                            .forEach((batchResultErrorEntry) -> {//for each failed entry
-                                              logger.debug("Failed Batch Entry: " + batchResultErrorEntry);
-                                              failedIds.add(batchResultErrorEntry.id());//add the failed message ids
-                                            });
-                }
-                
-                
-                if (retry >= 10)break;//stop if we have retried 10 times or more
-                backoff(retry, 500);//back off
-                
-                //create list of messages that failed to be deleted
-                List<Message> failedMessages = processedMessages.stream()
-                                                                .filter((message) -> failedIds.contains(message.messageId()))
-                                                                .collect(Collectors.toList());
-                synchronized(logger){
-                  logger.info("Deleting failed messages");
-                }
-                
-                synchronized(this){
-                  deleteMessageBatchResponse = deleteFailedMessages(failedMessages);//delete failed messages
-                }
-
-                synchronized(logger){
-                  logger.debug("Delete Message Response: " + deleteMessageBatchResponse);
-                }
-                
-                deleteMessageBatchResponses.add(deleteMessageBatchResponse);//add the response
-                retry++;//increment retry
-              }
-              //log messages that were deleted
-              synchronized(logger){
-                deleteMessageBatchResponses.stream()
-                                           .filter((messageBatchResponse) -> messageBatchResponse.hasSuccessful())//get only successful responses
-                                           .map((successfulDeleteMessageBatchResponse) -> successfulDeleteMessageBatchResponse.successful())//List<List<DeleteMessageBatchResultEntry>>
-                                           .flatMap(List::stream)//flatten
-                                           .collect(Collectors.toList())//collect to list
-                                           .forEach((successfulDeleteMessageBatchResultEntry) -> {//for each DeleteMessageBatchResultEntry
-                                             logger.info("Messages Processed: " + successfulDeleteMessageBatchResultEntry);
-                                           });
-              }            
-          }
+            pollOnce();//receive, process and delete one batch
         }catch (InterruptedException ie){//thread was interrupted
-          synchronized(logger){
-            logger.info("Thread Interrupted: " + ie.getMessage());
-          }
+          logger.info("Thread Interrupted: " + ie.getMessage());
           stop();//stop
+        }catch (SdkException se){//an SQS call failed. the batch is redelivered after its visibility timeout
+          if (eventLog != null){
+            eventLog.record(EventType.POLL_FAILED, activeQueueUrl, null, 0, se.getMessage());
+          }else{
+            logger.warn("SQS call failed: {}", se.getMessage());
+          }
+          try{
+            Thread.sleep(ERROR_PAUSE_MILLIS);//do not spin on a failing endpoint
+          }catch(InterruptedException ie){
+            stop();
+          }
+        }
+    }
+    if (state() == State.DRAINING){//drained. wait for parallel work before stopping
+      if (dispatcher != null){
+        try{
+          if (!dispatcher.awaitIdle(drainRemainingNanos(TimeUnit.SECONDS.toNanos(30)), TimeUnit.NANOSECONDS)){
+            dispatcher.cancelWaiting().forEach(this::releaseMessages);//let other consumers have the messages no handler started
+            if (dispatcher.inFlight() > 0)logger.warn("Messages still in flight after drain: " + dispatcher.inFlight());
+          }
+        }catch(InterruptedException ie){
+          Thread.currentThread().interrupt();//preserve the interrupt
         }
+      }
+      stop();
     }
     logger.info("Thread Stopped!");
   }
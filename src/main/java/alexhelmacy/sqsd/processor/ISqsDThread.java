@@ -1,7 +1,29 @@
 package alexhelmacy.sqsd.processor;
 
 public interface ISqsDThread extends  Runnable{
+
+  /**
+   * lifecycle of an sqsd thread. NEW -> RUNNING -> DRAINING -> STOPPED. A thread can be stopped from any state.
+   */
+  enum State{
+    NEW,//created, not yet run
+    RUNNING,//receiving and processing
+    DRAINING,//no new receives. finishing work already received
+    STOPPED//stopped. terminal
+  }
+
+  /**
+   * notified after a thread changes state. Called on the thread that made the transition so it must not block
+   */
+  @FunctionalInterface
+  interface StateListener{
+    void stateChanged(ISqsDThread thread, State from, State to);
+  }
+
   void stop();//stop the sqsd thread
+  void drain();//stop receiving and finish work already received
   boolean running();//is the thread running
   boolean closed();//is the thread closed
+  State state();//the current lifecycle state
+  void addStateListener(StateListener listener);//listen for state changes
 }
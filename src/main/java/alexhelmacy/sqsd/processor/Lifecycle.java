@@ -0,0 +1,88 @@
+package alexhelmacy.sqsd.processor;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import alexhelmacy.sqsd.processor.ISqsDThread.State;
+import alexhelmacy.sqsd.processor.ISqsDThread.StateListener;
+
+/**
+ * Lock-free lifecycle state machine shared by sqsd threads. Transitions are compare-and-set so reading the state on the hot path never blocks
+ * and a stop request never waits behind a receive.
+ */
+public final class Lifecycle{
+  private final ISqsDThread owner;//the thread this lifecycle belongs to
+  private final AtomicReference<State> state = new AtomicReference<>(State.NEW);//the current state
+  private final List<StateListener> listeners = new CopyOnWriteArrayList<>();//state change listeners
+
+  /**
+   * Constructor
+   * @param owner the thread this lifecycle belongs to
+   */
+  public Lifecycle(ISqsDThread owner){
+    this.owner = owner;
+  }
+
+  /**
+   * @return the current state
+   */
+  public State state(){
+    return state.get();
+  }
+
+  /**
+   * NEW -> RUNNING
+   * @return true if the thread was started by this call
+   */
+  public boolean start(){
+    return transition(State.NEW, State.RUNNING);
+  }
+
+  /**
+   * RUNNING -> DRAINING
+   * @return true if the thread started draining because of this call
+   */
+  public boolean drain(){
+    return transition(State.RUNNING, State.DRAINING);
+  }
+
+  /**
+   * any state -> STOPPED
+   * @return the state before the call. STOPPED if the thread was already stopped
+   */
+  public State stop(){
+    State previous = state.getAndSet(State.STOPPED);
+    if (previous != State.STOPPED)notifyListeners(previous, State.STOPPED);
+    return previous;
+  }
+
+  /**
+   * move from one state to another if the thread is in the expected state
+   * @param from the expected state
+   * @param to the new state
+   * @return true if the transition happened
+   */
+  public boolean transition(State from, State to){
+    if (!state.compareAndSet(from, to))return false;
+    notifyListeners(from, to);
+    return true;
+  }
+
+  /**
+   * add a state listener
+   * @param listener the listener
+   */
+  public void addListener(StateListener listener){
+    listeners.add(listener);
+  }
+
+  /**
+   * notify every listener of a transition
+   * @param from the old state
+   * @param to the new state
+   */
+  private void notifyListeners(State from, State to){
+    for (StateListener listener: listeners)listener.stateChanged(owner, from, to);
+  }
+}
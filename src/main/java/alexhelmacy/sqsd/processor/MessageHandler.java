@@ -0,0 +1,16 @@
+package alexhelmacy.sqsd.processor;
+
+import software.amazon.awssdk.services.sqs.model.Message;
+
+/**
+ * Handles a single SQS message. Used by processing modes that work message by message instead of a whole ReceiveMessageResponse.
+ */
+@FunctionalInterface
+public interface MessageHandler {
+  /**
+   * handle one message
+   * @param message the message received from the queue
+   * @throws Exception if the message could not be handled. the message is not deleted and will be redelivered by SQS.
+   */
+  void handle(Message message) throws Exception;
+}
@@ -0,0 +1,469 @@
+package alexhelmacy.sqsd.processor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import alexhelmacy.sqsd.budget.InFlightBudget;
+import alexhelmacy.sqsd.delete.DeleteCoalescer;
+import alexhelmacy.sqsd.events.EventLog;
+import alexhelmacy.sqsd.events.EventType;
+import alexhelmacy.sqsd.journal.AckJournal;
+import alexhelmacy.sqsd.visibility.VisibilityHeartbeat;
+
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageSystemAttributeName;
+
+/**
+ * Fans the messages of a receive out to a processing pool. Each message is handed to the delete coalescer as soon as
+ * its own handler succeeds, so a slow message does not hold back the rest of its batch.
+ * The number of messages in flight is bounded so the poller only receives more when there is room.
+ * For FIFO queues the dispatcher can keep the order of each message group: messages of a group wait in a lane and are handled
+ * one after the other, while different groups are handled in parallel. When a message fails, the rest of its group in the receive is dropped
+ * and redelivered by SQS after the failed message.
+ * Messages that were dispatched but not started yet can be taken back with cancelWaiting, e.g. when a drain runs out of time.
+ */
+public class ParallelMessageDispatcher{
+  private static final long GIVE_UP_CHECK_MILLIS = 100;//how often a dispatch waiting for room checks whether to give up
+  private final ExecutorService executor;//processing pool. may be shared by many dispatchers
+  private final MessageHandler handler;//the message handler
+  private final DeleteCoalescer deleteCoalescer;//deletes successfully handled messages
+  private final Semaphore inFlight;//permits for messages being handled or deleted
+  private final int maxInFlight;//how many messages can be in flight
+  private final Logger logger;//the owning thread's logger
+  private final VisibilityHeartbeat heartbeat;//extends visibility while a message is handled. may be null
+  private final PollerStatistics statistics;//records deletes and messages in flight. may be null
+  private final InFlightBudget budget;//shared in-flight budget messages are released to. may be null
+  private final boolean ordered;//keep the order of each message group
+  private final EventLog eventLog;//records per-message events instead of the logger. may be null
+  private final AckJournal ackJournal;//records handled and deleted messages. may be null
+  private final Map<String, ArrayDeque<Queued>> lanes = new HashMap<>();//messages waiting behind the running message of each group. guarded by itself
+  private final Set<String> abandoned = new HashSet<>();//lanes dropped since the last dispatch. guarded by lanes
+  private final Set<Queued> waiting = ConcurrentHashMap.newKeySet();//dispatched messages no handler has started. removing one claims it
+
+  /**
+   * a dispatched message waiting for the pool or in a lane
+   */
+  private static final class Queued{
+    private final String queueUrl;//the queue the message was received from
+    private final Message message;//the message
+    private final VisibilityHeartbeat.Lease lease;//keeps the message invisible while it waits. may be null
+
+    private Queued(String queueUrl, Message message, VisibilityHeartbeat.Lease lease){
+      this.queueUrl = queueUrl;
+      this.message = message;
+      this.lease = lease;
+    }
+  }
+
+  /**
+   * return a dispatcher builder
+   * @return a new instance of a ParallelMessageDispatcherBuilder
+   */
+  public static final ParallelMessageDispatcherBuilder builder(){
+    return new ParallelMessageDispatcherBuilder();
+  }
+
+  /**
+   * ParallelMessageDispatcher builder class
+   */
+  public static final class ParallelMessageDispatcherBuilder{
+    private ExecutorService executor = null;//processing pool
+    private MessageHandler handler = null;//the message handler
+    private DeleteCoalescer deleteCoalescer = null;//deletes successfully handled messages
+    private int maxInFlight = 100;//how many messages can be handled or deleted at once
+    private Logger logger = null;//the owning thread's logger. the dispatcher's own logger when not set
+    private VisibilityHeartbeat heartbeat = null;//extends visibility while a message is handled or waits in its lane
+    private PollerStatistics statistics = null;//records deletes and messages in flight
+    private InFlightBudget budget = null;//shared in-flight budget messages are released to
+    private boolean ordered = false;//keep the order of each message group
+    private EventLog eventLog = null;//records per-message events instead of the logger
+    private AckJournal ackJournal = null;//records handled and deleted messages
+
+    /**
+     * sets the processing pool. It may be shared by many dispatchers
+     * @param executor the processing pool
+     * @return itself
+     */
+    public final ParallelMessageDispatcherBuilder executor(ExecutorService executor){
+      this.executor = executor;
+      return this;
+    }
+
+    /**
+     * sets the message handler
+     * @param handler the message handler
+     * @return itself
+     */
+    public final ParallelMessageDispatcherBuilder handler(MessageHandler handler){
+      this.handler = handler;
+      return this;
+    }
+
+    /**
+     * sets the delete coalescer successfully handled messages are deleted through
+     * @param deleteCoalescer the delete coalescer
+     * @return itself
+     */
+    public final ParallelMessageDispatcherBuilder deleteCoalescer(DeleteCoalescer deleteCoalescer){
+      this.deleteCoalescer = deleteCoalescer;
+      return this;
+    }
+
+    /**
+     * sets how many messages can be handled or deleted at once
+     * @param maxInFlight the number of messages
+     * @return itself
+     */
+    public final ParallelMessageDispatcherBuilder maxInFlight(int maxInFlight){
+      this.maxInFlight = maxInFlight;
+      return this;
+    }
+
+    /**
+     * sets the owning thread's logger
+     * @param logger the logger
+     * @return itself
+     */
+    public final ParallelMessageDispatcherBuilder logger(Logger logger){
+      this.logger = logger;
+      return this;
+    }
+
+    /**
+     * sets the heartbeat that extends visibility while a message is handled or waits in its lane
+     * @param heartbeat the visibility heartbeat
+     * @return itself
+     */
+    public final ParallelMessageDispatcherBuilder heartbeat(VisibilityHeartbeat heartbeat){
+      this.heartbeat = heartbeat;
+      return this;
+    }
+
+    /**
+     * sets the statistics deletes and messages in flight are recorded in
+     * @param statistics the owning thread's statistics
+     * @return itself
+     */
+    public final ParallelMessageDispatcherBuilder statistics(PollerStatistics statistics){
+      this.statistics = statistics;
+      return this;
+    }
+
+    /**
+     * sets the shared in-flight budget messages are released to once deleted or abandoned
+     * @param budget the in-flight budget
+     * @return itself
+     */
+    public final ParallelMessageDispatcherBuilder budget(InFlightBudget budget){
+      this.budget = budget;
+      return this;
+    }
+
+    /**
+     * sets whether the messages of each MessageGroupId are handled in order
+     * @param ordered true for FIFO queues
+     * @return itself
+     */
+    public final ParallelMessageDispatcherBuilder ordered(boolean ordered){
+      this.ordered = ordered;
+      return this;
+    }
+
+    /**
+     * sets the event log processed, failed and deleted messages are recorded in instead of the logger
+     * @param eventLog the event log
+     * @return itself
+     */
+    public final ParallelMessageDispatcherBuilder eventLog(EventLog eventLog){
+      this.eventLog = eventLog;
+      return this;
+    }
+
+    /**
+     * sets the journal each message is recorded in once handled and once deleted
+     * @param ackJournal the ack journal
+     * @return itself
+     */
+    public final ParallelMessageDispatcherBuilder ackJournal(AckJournal ackJournal){
+      this.ackJournal = ackJournal;
+      return this;
+    }
+
+    /**
+     * build the dispatcher
+     * @return a new ParallelMessageDispatcher
+     */
+    public final ParallelMessageDispatcher build(){
+      if (executor == null)throw new IllegalArgumentException("Executor must be specified");
+      if (handler == null)throw new IllegalArgumentException("Message handler must be specified");
+      if (deleteCoalescer == null)throw new IllegalArgumentException("Delete coalescer must be specified");
+      if (maxInFlight <= 0)throw new IllegalArgumentException("Max in flight must be at least 1");
+      return new ParallelMessageDispatcher(this);
+    }
+  }
+
+  /**
+   * ParallelMessageDispatcher constructor
+   * @param builder the dispatcher builder
+   */
+  ParallelMessageDispatcher(ParallelMessageDispatcherBuilder builder){
+    this.executor = builder.executor;
+    this.handler = builder.handler;
+    this.deleteCoalescer = builder.deleteCoalescer;
+    this.inFlight = new Semaphore(builder.maxInFlight);
+    this.maxInFlight = builder.maxInFlight;
+    this.logger = builder.logger != null ? builder.logger : LoggerFactory.getLogger(ParallelMessageDispatcher.class.getSimpleName());
+    this.heartbeat = builder.heartbeat;
+    this.statistics = builder.statistics;
+    this.budget = builder.budget;
+    this.ordered = builder.ordered;
+    this.eventLog = builder.eventLog;
+    this.ackJournal = builder.ackJournal;
+  }
+
+  /**
+   * hand each message to the processing pool. Blocks while the dispatcher is at its in-flight limit.
+   * @param queueUrl the queue the messages were received from
+   * @param messages the received messages
+   * @throws InterruptedException if interrupted while waiting for room
+   */
+  public void dispatch(String queueUrl, List<Message> messages) throws InterruptedException{
+    dispatch(queueUrl, messages, null);
+  }
+
+  /**
+   * hand each message to the processing pool. Blocks while the dispatcher is at its in-flight limit, unless told to give up
+   * @param queueUrl the queue the messages were received from
+   * @param messages the received messages
+   * @param giveUp checked while waiting for room. The rest of the batch is returned once it is true. may be null
+   * @return the messages that were not dispatched. empty unless the dispatch gave up
+   * @throws InterruptedException if interrupted while waiting for room
+   */
+  public List<Message> dispatch(String queueUrl, List<Message> messages, BooleanSupplier giveUp) throws InterruptedException{
+    if (ordered){//SQS holds a group back while its messages are in flight, so an abandoned group only comes back with the failed message
+      synchronized (lanes){
+        abandoned.clear();
+      }
+    }
+    for (int i = 0; i < messages.size(); i++){
+      Message message = messages.get(i);
+      boolean acquired = false;
+      try{
+        acquired = acquire(giveUp);
+      }finally{
+        if (!acquired && budget != null)budget.release(messages.subList(i, messages.size()));//the rest of the batch is not dispatched
+      }
+      if (!acquired)return messages.subList(i, messages.size());
+      if (statistics != null)statistics.recordInFlight(1);
+      String group = ordered ? message.attributes().get(MessageSystemAttributeName.MESSAGE_GROUP_ID) : null;
+      if (group != null){
+        enqueue(queueUrl + " " + group, queueUrl, message);
+        continue;
+      }
+      Queued queued = new Queued(queueUrl, message, null);
+      waiting.add(queued);
+      try{
+        executor.execute(() -> handle(queued));
+      }catch(RejectedExecutionException ree){//pool is shutting down. the message will be redelivered
+        if (waiting.remove(queued))release(message);
+        logger.warn("Processing pool rejected message " + message.messageId());
+      }
+    }
+    return Collections.emptyList();
+  }
+
+  /**
+   * take an in-flight permit
+   * @param giveUp checked while waiting. may be null to wait as long as it takes
+   * @return false if the dispatch gave up
+   * @throws InterruptedException if interrupted while waiting
+   */
+  private boolean acquire(BooleanSupplier giveUp) throws InterruptedException{
+    if (giveUp == null){
+      inFlight.acquire();
+      return true;
+    }
+    while (!giveUp.getAsBoolean()){
+      if (inFlight.tryAcquire(GIVE_UP_CHECK_MILLIS, TimeUnit.MILLISECONDS))return true;
+    }
+    return false;
+  }
+
+  /**
+   * add a message to the lane of its group. Starts the lane on the pool when the group has nothing running. Dropped when an
+   * earlier message of the group in this receive already failed
+   * @param lane the lane key of the queue and group
+   * @param queueUrl the queue url
+   * @param message the message
+   */
+  private void enqueue(String lane, String queueUrl, Message message){
+    VisibilityHeartbeat.Lease lease = heartbeat != null ? heartbeat.track(queueUrl, message) : null;//waiting in the lane counts as processing
+    Queued queued = new Queued(queueUrl, message, lease);
+    waiting.add(queued);
+    boolean dropped;
+    synchronized (lanes){
+      ArrayDeque<Queued> behind = lanes.get(lane);
+      if (behind != null){//the group is running. handled after the messages before it
+        behind.addLast(queued);
+        return;
+      }
+      dropped = abandoned.contains(lane);
+      if (!dropped)lanes.put(lane, new ArrayDeque<>());
+    }
+    if (dropped){//must not overtake the failed message. redelivered after it
+      if (lease != null)lease.complete();
+      if (waiting.remove(queued))release(message);
+      return;
+    }
+    try{
+      executor.execute(() -> runLane(lane, queued));
+    }catch(RejectedExecutionException ree){//pool is shutting down. the lane will be redelivered
+      logger.warn("Processing pool rejected message " + message.messageId());
+      abandon(lane, queued);
+    }
+  }
+
+  /**
+   * handle the messages of a lane in order until it is empty
+   * @param lane the lane key
+   * @param first the first message
+   */
+  private void runLane(String lane, Queued first){
+    Queued next = first;
+    while (next != null){
+      if (!handle(next)){//later messages of the group must not overtake the failed one
+        abandon(lane, null);
+        return;
+      }
+      synchronized (lanes){
+        next = lanes.get(lane).pollFirst();
+        if (next == null)lanes.remove(lane);
+      }
+    }
+  }
+
+  /**
+   * drop a lane and release its messages for redelivery. Messages already taken back by cancelWaiting are skipped
+   * @param lane the lane key
+   * @param first a message taken from the lane already. may be null
+   */
+  private void abandon(String lane, Queued first){
+    ArrayDeque<Queued> behind;
+    synchronized (lanes){
+      behind = lanes.remove(lane);
+      abandoned.add(lane);//the rest of the receive is dropped too
+    }
+    if (first != null)behind.addFirst(first);
+    int left = 0;
+    for (Queued queued: behind){
+      if (queued.lease != null)queued.lease.complete();
+      if (!waiting.remove(queued))continue;
+      release(queued.message);
+      left++;
+    }
+    if (left > 0)logger.info("Left " + left + " messages of lane " + lane + " for redelivery");
+  }
+
+  /**
+   * take back every dispatched message no handler has started. Their permits are released and they are not handled
+   * @return the messages taken back by queue url, for the caller to release or leave for redelivery
+   */
+  public Map<String, List<Message>> cancelWaiting(){
+    Map<String, List<Message>> cancelled = new LinkedHashMap<>();
+    for (Queued queued: waiting){
+      if (!waiting.remove(queued))continue;//a handler started it meanwhile
+      if (queued.lease != null)queued.lease.complete();
+      release(queued.message);
+      cancelled.computeIfAbsent(queued.queueUrl, (queueUrl) -> new ArrayList<>()).add(queued.message);
+    }
+    return cancelled;
+  }
+
+  /**
+   * wait until every dispatched message is handled and deleted
+   * @param timeout how long to wait
+   * @param unit the unit of the timeout
+   * @return true if every message finished in time
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException{
+    if (!inFlight.tryAcquire(maxInFlight, timeout, unit))return false;
+    inFlight.release(maxInFlight);
+    return true;
+  }
+
+  /**
+   * @return how many messages are being handled or deleted
+   */
+  public int inFlight(){
+    return maxInFlight - inFlight.availablePermits();
+  }
+
+  /**
+   * run the handler and delete the message if it succeeds
+   * @param queued the dispatched message. its heartbeat lease is tracked here when it has none
+   * @return false if the handler failed or the message was taken back by cancelWaiting
+   */
+  private boolean handle(Queued queued){
+    if (!waiting.remove(queued))return false;//taken back. its permit is already released
+    String queueUrl = queued.queueUrl;
+    Message message = queued.message;
+    VisibilityHeartbeat.Lease lease = queued.lease;
+    if (lease == null && heartbeat != null)lease = heartbeat.track(queueUrl, message);
+    try{
+      handler.handle(message);
+    }catch(Exception e){//leave the message for redelivery
+      if (eventLog != null){
+        eventLog.record(EventType.PROCESS_FAILED, queueUrl, message.messageId(), 0, e.getMessage());
+      }else{
+        logger.warn("Failed to process message {}: {}", message.messageId(), e.getMessage());
+      }
+      release(message);
+      return false;
+    }finally{
+      if (lease != null)lease.complete();//handled. the delete does not need more time
+    }
+    if (eventLog != null)eventLog.record(EventType.PROCESSED, queueUrl, message.messageId(), 0, null);
+    if (ackJournal != null)ackJournal.processed(queueUrl, message);//finished on restart if the JVM dies before the delete
+    long deleteStart = System.nanoTime();
+    deleteCoalescer.delete(queueUrl, message).whenComplete((deleted, throwable) -> {
+      if (statistics != null)statistics.recordDelete(System.nanoTime() - deleteStart, throwable != null ? 1 : 0, false);
+      release(message);
+      if (ackJournal != null && throwable == null)ackJournal.deleted(message.messageId());
+      if (eventLog != null){
+        eventLog.record(throwable != null ? EventType.DELETE_FAILED : EventType.DELETED, queueUrl, message.messageId(), 0, throwable != null ? throwable.getMessage() : null);
+      }else if (throwable != null){
+        logger.warn(throwable.getMessage());
+      }else{
+        logger.debug("Message Processed: {}", deleted);
+      }
+    });
+    return true;
+  }
+
+  /**
+   * release a permit once a message is deleted or abandoned
+   * @param message the message
+   */
+  private void release(Message message){
+    if (statistics != null)statistics.recordInFlight(-1);
+    if (budget != null)budget.release(message);
+    inFlight.release();
+  }
+}
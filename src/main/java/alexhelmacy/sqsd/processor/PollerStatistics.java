@@ -0,0 +1,216 @@
+package alexhelmacy.sqsd.processor;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import alexhelmacy.sqsd.metrics.LatencyHistogram;
+
+/**
+ * Running totals and latency histograms for one poller. Updated by the poller thread and read by anything sizing or observing SQSD.
+ */
+public final class PollerStatistics {
+
+  /**
+   * point in time copy of the totals
+   */
+  public static final class Snapshot{
+    public final long RECEIVES;//receive calls made
+    public final long EMPTY_RECEIVES;//receive calls that returned no messages
+    public final long MESSAGES;//messages received
+    public final long RECEIVE_NANOS;//time spent receiving
+    public final long PROCESSING_NANOS;//time spent processing
+    public final long DELETES;//delete requests made. one per message when deletes are coalesced
+    public final long DELETE_FAILURES;//messages that failed to be deleted, including failures that were retried
+    public final long DELETE_RETRIES;//delete requests retrying failed messages
+
+    /**
+     * Constructor
+     * @param receives receive calls made
+     * @param emptyReceives receive calls that returned no messages
+     * @param messages messages received
+     * @param receiveNanos time spent receiving
+     * @param processingNanos time spent processing
+     */
+    public Snapshot(long receives, long emptyReceives, long messages, long receiveNanos, long processingNanos){
+      this(receives, emptyReceives, messages, receiveNanos, processingNanos, 0, 0, 0);
+    }
+
+    /**
+     * Constructor with delete totals
+     * @param receives receive calls made
+     * @param emptyReceives receive calls that returned no messages
+     * @param messages messages received
+     * @param receiveNanos time spent receiving
+     * @param processingNanos time spent processing
+     * @param deletes delete requests made
+     * @param deleteFailures messages that failed to be deleted
+     * @param deleteRetries delete requests retrying failed messages
+     */
+    public Snapshot(long receives, long emptyReceives, long messages, long receiveNanos, long processingNanos, long deletes, long deleteFailures, long deleteRetries){
+      RECEIVES = receives;
+      EMPTY_RECEIVES = emptyReceives;
+      MESSAGES = messages;
+      RECEIVE_NANOS = receiveNanos;
+      PROCESSING_NANOS = processingNanos;
+      DELETES = deletes;
+      DELETE_FAILURES = deleteFailures;
+      DELETE_RETRIES = deleteRetries;
+    }
+
+    /**
+     * @param earlier an earlier snapshot of the same totals
+     * @return the change since the earlier snapshot
+     */
+    public Snapshot minus(Snapshot earlier){
+      return new Snapshot(RECEIVES - earlier.RECEIVES,
+                          EMPTY_RECEIVES - earlier.EMPTY_RECEIVES,
+                          MESSAGES - earlier.MESSAGES,
+                          RECEIVE_NANOS - earlier.RECEIVE_NANOS,
+                          PROCESSING_NANOS - earlier.PROCESSING_NANOS,
+                          DELETES - earlier.DELETES,
+                          DELETE_FAILURES - earlier.DELETE_FAILURES,
+                          DELETE_RETRIES - earlier.DELETE_RETRIES);
+    }
+
+    /**
+     * @param other another snapshot
+     * @return the sum of both snapshots
+     */
+    public Snapshot plus(Snapshot other){
+      return new Snapshot(RECEIVES + other.RECEIVES,
+                          EMPTY_RECEIVES + other.EMPTY_RECEIVES,
+                          MESSAGES + other.MESSAGES,
+                          RECEIVE_NANOS + other.RECEIVE_NANOS,
+                          PROCESSING_NANOS + other.PROCESSING_NANOS,
+                          DELETES + other.DELETES,
+                          DELETE_FAILURES + other.DELETE_FAILURES,
+                          DELETE_RETRIES + other.DELETE_RETRIES);
+    }
+  }
+
+  public static final Snapshot EMPTY = new Snapshot(0, 0, 0, 0, 0);//no activity
+  public static final int MAX_BATCH_SIZE = 10;//most messages a receive returns
+
+  private final LongAdder receives = new LongAdder();//receive calls made
+  private final LongAdder emptyReceives = new LongAdder();//receive calls that returned no messages
+  private final LongAdder messages = new LongAdder();//messages received
+  private final LongAdder receiveNanos = new LongAdder();//time spent receiving
+  private final LongAdder processingNanos = new LongAdder();//time spent processing
+  private final LongAdder deletes = new LongAdder();//delete requests made
+  private final LongAdder deleteFailures = new LongAdder();//messages that failed to be deleted
+  private final LongAdder deleteRetries = new LongAdder();//delete requests retrying failed messages
+  private final LongAdder inFlight = new LongAdder();//messages received and not yet deleted or abandoned
+  private final AtomicLongArray batchFill = new AtomicLongArray(MAX_BATCH_SIZE + 1);//receives by number of messages returned
+  private final LatencyHistogram receiveLatency = new LatencyHistogram();//time of each receive call
+  private final LatencyHistogram processingTime = new LatencyHistogram();//time to process or dispatch each batch
+  private final LatencyHistogram deleteLatency = new LatencyHistogram();//time of each delete request
+
+  /**
+   * record a receive call
+   * @param messageCount how many messages it returned
+   * @param nanos how long it took
+   */
+  public void recordReceive(int messageCount, long nanos){
+    receives.increment();
+    if (messageCount == 0)emptyReceives.increment();
+    messages.add(messageCount);
+    receiveNanos.add(nanos);
+    batchFill.incrementAndGet(Math.min(messageCount, MAX_BATCH_SIZE));
+    receiveLatency.record(nanos);
+  }
+
+  /**
+   * record processing of a batch
+   * @param nanos how long it took
+   */
+  public void recordProcessing(long nanos){
+    processingNanos.add(nanos);
+    processingTime.record(nanos);
+  }
+
+  /**
+   * record a delete request
+   * @param nanos how long it took
+   * @param failed how many of its messages failed to be deleted
+   * @param retry if the request retried messages that failed before
+   */
+  public void recordDelete(long nanos, int failed, boolean retry){
+    deletes.increment();
+    deleteFailures.add(failed);
+    if (retry)deleteRetries.increment();
+    deleteLatency.record(nanos);
+  }
+
+  /**
+   * record messages entering or leaving flight
+   * @param delta positive when messages are received, negative when they are deleted or abandoned
+   */
+  public void recordInFlight(int delta){
+    inFlight.add(delta);
+  }
+
+  /**
+   * @return messages received and not yet deleted or abandoned
+   */
+  public long inFlight(){
+    return inFlight.sum();
+  }
+
+  /**
+   * @return receives by number of messages returned. index 0 counts empty receives
+   */
+  public long[] batchFill(){
+    long[] fill = new long[batchFill.length()];
+    for (int i = 0; i < fill.length; i++)fill[i] = batchFill.get(i);
+    return fill;
+  }
+
+  /**
+   * @return time of each receive call
+   */
+  public LatencyHistogram receiveLatency(){
+    return receiveLatency;
+  }
+
+  /**
+   * @return time to process or dispatch each batch
+   */
+  public LatencyHistogram processingTime(){
+    return processingTime;
+  }
+
+  /**
+   * @return time of each delete request
+   */
+  public LatencyHistogram deleteLatency(){
+    return deleteLatency;
+  }
+
+  /**
+   * add the totals and histograms of another poller, e.g. to total several threads or keep the totals of a removed thread
+   * @param other the statistics to add
+   */
+  public void add(PollerStatistics other){
+    receives.add(other.receives.sum());
+    emptyReceives.add(other.emptyReceives.sum());
+    messages.add(other.messages.sum());
+    receiveNanos.add(other.receiveNanos.sum());
+    processingNanos.add(other.processingNanos.sum());
+    deletes.add(other.deletes.sum());
+    deleteFailures.add(other.deleteFailures.sum());
+    deleteRetries.add(other.deleteRetries.sum());
+    inFlight.add(other.inFlight.sum());
+    for (int i = 0; i < batchFill.length(); i++)batchFill.addAndGet(i, other.batchFill.get(i));
+    receiveLatency.add(other.receiveLatency);
+    processingTime.add(other.processingTime);
+    deleteLatency.add(other.deleteLatency);
+  }
+
+  /**
+   * @return a snapshot of the totals
+   */
+  public Snapshot snapshot(){
+    return new Snapshot(receives.sum(), emptyReceives.sum(), messages.sum(), receiveNanos.sum(), processingNanos.sum(),
+                        deletes.sum(), deleteFailures.sum(), deleteRetries.sum());
+  }
+}
@@ -1,15 +1,21 @@
 package alexhelmacy.sqsd.processor;
 
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import alexhelmacy.sqsd.DependencyFactory;
 
+import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchResponse;
 import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResponse;
 
 import software.amazon.awssdk.services.sqs.model.Message;
@@ -19,13 +25,16 @@ import software.amazon.awssdk.services.sqs.model.ReceiveMessageResponse;
 public abstract class SqsDThread implements ISqsDThread{
   public final String THREAD_ID = UUID.randomUUID().toString();//thread id
   
-  protected boolean running = false;//is the thread running?
-  protected boolean closed = false;//is the thread closed?
+  protected final Lifecycle lifecycle = new Lifecycle(this);//lock-free lifecycle state
   
   protected final Logger logger;//sqsd thread logger
   protected final SqsClient sqs;//sqs client for the sqsd thread
 
   protected final String queueUrl;//the queue url
+  protected final String region;//the region of the shared sqs client
+  protected final PollerStatistics statistics = new PollerStatistics();//receive and processing totals
+  private volatile long drainDeadline;//System.nanoTime the drain must finish by. only set when drainTimed
+  private volatile boolean drainTimed = false;//the drain has a deadline
 
   /**
    * SqsD Thread Constructor
@@ -33,9 +42,25 @@ public abstract class SqsDThread implements ISqsDThread{
    * @param region the region of the sqs queue
    */
   public SqsDThread(String queueUrl, String region){
+    this(queueUrl, region, null);
+  }
+
+  /**
+   * SqsD Thread Constructor with an sqs client
+   * @param queueUrl the queue url to read messages from
+   * @param region the region of the sqs queue
+   * @param sqs the sqs client. the shared client for the region is used when null. A provided client is not closed by the thread
+   */
+  public SqsDThread(String queueUrl, String region, SqsClient sqs){
     this.logger = LoggerFactory.getLogger(this.getClass().getSimpleName() + "-" + THREAD_ID);//assign a logger with the thread if id
-    sqs = DependencyFactory.sqsClient(region);//create the sqsd client
+    this.sqs = sqs != null ? sqs : DependencyFactory.acquireSqsClient(region);//acquire the shared sqs client for the region
     this.queueUrl = queueUrl;//assign the queue url
+    this.region = region;//assign the region so the client can be released
+    if (sqs == null){
+      lifecycle.addListener((thread, from, to) -> {
+        if (to == State.STOPPED)DependencyFactory.releaseSqsClient(region);//release the shared client once. STOPPED is only entered once
+      });
+    }
   }
 
   //abstract methods for basic SQSD thread operations.
@@ -50,33 +75,135 @@ public abstract class SqsDThread implements ISqsDThread{
    * @return the response of deleteMessages
    * @throws InterruptedException if thread is interrupted or the thread is closed
    */
-  synchronized protected DeleteMessageBatchResponse deleteFailedMessages(List<Message> failedMessages) throws InterruptedException{//delete failed messages implementation
+  protected DeleteMessageBatchResponse deleteFailedMessages(List<Message> failedMessages) throws InterruptedException{//delete failed messages implementation
     if (Thread.currentThread().isInterrupted())throw new InterruptedException("Thread Interrupted");
     if (closed()) throw new InterruptedException("Thread Should close");
     return deleteMessages(failedMessages);
   }
+  //Network calls are not synchronized. A virtual thread blocking inside a monitor pins its carrier thread.
+
   /**
    * receive messages from SQS Queue. implicitly calls the default request method to be implemented 
    * @return the response from receiving the messages from the SQS queue
    * @throws InterruptedException if the thread is interrupted or the thread is closed
    */
-  synchronized protected ReceiveMessageResponse receiveMessages() throws InterruptedException{//receive messages with default request
+  protected ReceiveMessageResponse receiveMessages() throws InterruptedException{//receive messages with default request
     if (Thread.currentThread().isInterrupted())throw new InterruptedException("Thread Interrupted");
-    if (closed()) throw new InterruptedException("Thread Should close");
+    if (!running()) throw new InterruptedException("Thread no longer receiving");//draining or stopped
     return receiveMessages(defaultRequest());
   }  
 
+  /**
+   * @return receive and processing totals for this thread
+   */
+  public final PollerStatistics statistics(){
+    return statistics;
+  }
+
+  /**
+   * stop the sqsd thread. The current receive is allowed to return.
+   */
+  @Override
+  public final void stop(){
+    lifecycle.stop();
+  }
+
+  /**
+   * stop receiving. Messages already received are processed and deleted before the thread stops. A thread that never ran is stopped.
+   */
+  @Override
+  public final void drain(){
+    if (!lifecycle.drain())lifecycle.transition(State.NEW, State.STOPPED);
+  }
+
+  /**
+   * stop receiving and finish the messages already received until the deadline. Messages still waiting once it passes are
+   * released with a visibility timeout of 0 so other consumers receive them right away.
+   * @param timeout how long the drain may take
+   * @param unit the unit of the timeout
+   */
+  public final void drain(long timeout, TimeUnit unit){
+    drainDeadline = System.nanoTime() + unit.toNanos(timeout);
+    drainTimed = true;
+    drain();
+  }
+
+  /**
+   * @return true if the thread is draining and its drain deadline has passed
+   */
+  protected final boolean drainExpired(){
+    return drainTimed && state() == State.DRAINING && System.nanoTime() - drainDeadline >= 0;
+  }
+
+  /**
+   * @param otherwise the time to return when the drain has no deadline
+   * @return nanoseconds left until the drain deadline, never negative
+   */
+  protected final long drainRemainingNanos(long otherwise){
+    return drainTimed ? Math.max(0, drainDeadline - System.nanoTime()) : otherwise;
+  }
+
+  /**
+   * make messages visible again right away by setting their visibility timeout to 0 in batches of up to 10. Failures are logged,
+   * those messages become visible when their timeout runs out
+   * @param queueUrl the queue the messages were received from
+   * @param messages the messages to release
+   * @return how many messages were released
+   */
+  protected int releaseMessages(String queueUrl, List<Message> messages){
+    int released = 0;
+    for (int start = 0; start < messages.size(); start += 10){
+      List<Message> batch = messages.subList(start, Math.min(start + 10, messages.size()));
+      List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<>(batch.size());
+      for (int i = 0; i < batch.size(); i++){
+        entries.add(ChangeMessageVisibilityBatchRequestEntry.builder()
+                                                            .id(Integer.toString(i))
+                                                            .receiptHandle(batch.get(i).receiptHandle())
+                                                            .visibilityTimeout(0)
+                                                            .build());
+      }
+      try{
+        ChangeMessageVisibilityBatchResponse response = sqs.changeMessageVisibilityBatch(ChangeMessageVisibilityBatchRequest.builder()
+                                                                                                                          .queueUrl(queueUrl)
+                                                                                                                          .entries(entries)
+                                                                                                                          .build());
+        released += batch.size() - (response.hasFailed() ? response.failed().size() : 0);
+      }catch(SdkException se){
+        logger.warn("Failed to release messages: {}", se.getMessage());
+      }
+    }
+    if (!messages.isEmpty())logger.info("Released {} of {} unprocessed messages", released, messages.size());
+    return released;
+  }
+
+  /**
+   * @return the current lifecycle state
+   */
+  @Override
+  public final State state(){
+    return lifecycle.state();
+  }
+
+  /**
+   * add a state listener
+   * @param listener the listener
+   */
+  @Override
+  public final void addStateListener(StateListener listener){
+    lifecycle.addListener(listener);
+  }
+
   /**
    * @return if the thread is running
    */
-  synchronized public final boolean running(){//check if thread is running
-    return running;
+  public final boolean running(){//check if thread is running
+    return lifecycle.state() == State.RUNNING;
   }
 
   /**
    * @return if thread is closed.
    */
-  synchronized public final boolean closed(){//check if thread is closed
-    return closed;
+  public final boolean closed(){//check if thread is closed
+    return lifecycle.state() == State.STOPPED;
   }
 }
@@ -0,0 +1,373 @@
+package alexhelmacy.sqsd.scaling;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import alexhelmacy.sqsd.DependencyFactory;
+import alexhelmacy.sqsd.SqsD;
+import alexhelmacy.sqsd.processor.PollerStatistics;
+import alexhelmacy.sqsd.processor.SqsDThread;
+
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.GetQueueAttributesRequest;
+import software.amazon.awssdk.services.sqs.model.QueueAttributeName;
+
+/**
+ * Grows and shrinks the number of SqsDThreads in an SqsD between a minimum and a maximum.
+ * Every interval the autoscaler looks at what the pollers did since the last interval and at the queue backlog:
+ * <ul>
+ *   <li>scale up when the backlog would take longer than the drain target at the measured per-thread rate,
+ *       or when receives come back full and rarely empty</li>
+ *   <li>scale down one thread at a time when most receives are empty and there is no backlog, after a cool down.
+ *       The removed thread drains: it finishes or releases the messages it holds before stopping</li>
+ * </ul>
+ */
+public class PollerAutoscaler implements AutoCloseable{
+
+  /**
+   * return an autoscaler builder
+   * @return a new instance of a PollerAutoscalerBuilder
+   */
+  public static final PollerAutoscalerBuilder builder(){
+    return new PollerAutoscalerBuilder();
+  }
+
+  /**
+   * PollerAutoscaler builder class
+   */
+  public static final class PollerAutoscalerBuilder{
+    private SqsD sqsd = null;//the sqsd to scale
+    private Supplier<SqsDThread> threadFactory = null;//creates threads when scaling up
+    private String queueUrl = null;//queue to read the backlog of
+    private String region = "us-east-1";//region of the shared client
+    private SqsClient sqs = null;//sqs client. the shared client for the region is used when not set
+    private int minThreads = 1;//fewest threads
+    private int maxThreads = -1;//most threads. defaults to the sqsd capacity
+    private int maxNumberOfMessages = 10;//max messages per receive. used to compute the batch fill rate
+    private long intervalSeconds = 10;//how often to evaluate
+    private double scaleUpEmptyRatio = 0.1;//scale up when at most this share of receives are empty
+    private double scaleUpFillRate = 0.8;//and batches are at least this full
+    private double scaleDownEmptyRatio = 0.5;//scale down when at least this share of receives are empty
+    private long drainTargetSeconds = 60;//scale up when the backlog takes longer than this to drain
+    private int scaleDownCooldownIntervals = 3;//intervals that must qualify in a row before scaling down
+
+    /**
+     * sets the sqsd to scale
+     * @param sqsd the sqsd
+     * @return itself
+     */
+    public final PollerAutoscalerBuilder sqsd(SqsD sqsd){
+      this.sqsd = sqsd;
+      return this;
+    }
+
+    /**
+     * sets the factory used to create threads when scaling up
+     * @param threadFactory the thread factory
+     * @return itself
+     */
+    public final PollerAutoscalerBuilder threadFactory(Supplier<SqsDThread> threadFactory){
+      this.threadFactory = threadFactory;
+      return this;
+    }
+
+    /**
+     * sets the queue url the backlog is read from
+     * @param queueUrl the queue url
+     * @return itself
+     */
+    public final PollerAutoscalerBuilder queueUrl(String queueUrl){
+      this.queueUrl = queueUrl;
+      return this;
+    }
+
+    /**
+     * sets the region of the shared sqs client. Ignored when an sqs client is set
+     * @param region the region as a string
+     * @return itself
+     */
+    public final PollerAutoscalerBuilder region(String region){
+      this.region = region;
+      return this;
+    }
+
+    /**
+     * sets the sqs client. The client is not closed by the autoscaler
+     * @param sqs the sqs client
+     * @return itself
+     */
+    public final PollerAutoscalerBuilder sqsClient(SqsClient sqs){
+      this.sqs = sqs;
+      return this;
+    }
+
+    /**
+     * sets the fewest threads
+     * @param minThreads the minimum
+     * @return itself
+     */
+    public final PollerAutoscalerBuilder minThreads(int minThreads){
+      this.minThreads = minThreads;
+      return this;
+    }
+
+    /**
+     * sets the most threads
+     * @param maxThreads the maximum. must not exceed the sqsd capacity
+     * @return itself
+     */
+    public final PollerAutoscalerBuilder maxThreads(int maxThreads){
+      this.maxThreads = maxThreads;
+      return this;
+    }
+
+    /**
+     * sets the max messages per receive used by the pollers
+     * @param maxNumberOfMessages max messages per receive
+     * @return itself
+     */
+    public final PollerAutoscalerBuilder maxNumberOfMessages(int maxNumberOfMessages){
+      this.maxNumberOfMessages = maxNumberOfMessages;
+      return this;
+    }
+
+    /**
+     * sets how often the autoscaler evaluates
+     * @param intervalSeconds the interval in seconds
+     * @return itself
+     */
+    public final PollerAutoscalerBuilder intervalSeconds(long intervalSeconds){
+      this.intervalSeconds = intervalSeconds;
+      return this;
+    }
+
+    /**
+     * sets the empty receive ratio at or below which the pollers are considered saturated
+     * @param scaleUpEmptyRatio between 0 and 1
+     * @return itself
+     */
+    public final PollerAutoscalerBuilder scaleUpEmptyRatio(double scaleUpEmptyRatio){
+      this.scaleUpEmptyRatio = scaleUpEmptyRatio;
+      return this;
+    }
+
+    /**
+     * sets the batch fill rate at or above which the pollers are considered saturated
+     * @param scaleUpFillRate between 0 and 1
+     * @return itself
+     */
+    public final PollerAutoscalerBuilder scaleUpFillRate(double scaleUpFillRate){
+      this.scaleUpFillRate = scaleUpFillRate;
+      return this;
+    }
+
+    /**
+     * sets the empty receive ratio at or above which the pollers are considered idle
+     * @param scaleDownEmptyRatio between 0 and 1
+     * @return itself
+     */
+    public final PollerAutoscalerBuilder scaleDownEmptyRatio(double scaleDownEmptyRatio){
+      this.scaleDownEmptyRatio = scaleDownEmptyRatio;
+      return this;
+    }
+
+    /**
+     * sets how quickly the backlog should drain
+     * @param drainTargetSeconds the target in seconds
+     * @return itself
+     */
+    public final PollerAutoscalerBuilder drainTargetSeconds(long drainTargetSeconds){
+      this.drainTargetSeconds = drainTargetSeconds;
+      return this;
+    }
+
+    /**
+     * sets how many intervals in a row must qualify before a thread is removed
+     * @param scaleDownCooldownIntervals the number of intervals
+     * @return itself
+     */
+    public final PollerAutoscalerBuilder scaleDownCooldownIntervals(int scaleDownCooldownIntervals){
+      this.scaleDownCooldownIntervals = scaleDownCooldownIntervals;
+      return this;
+    }
+
+    /**
+     * build the autoscaler
+     * @return a new PollerAutoscaler
+     */
+    public final PollerAutoscaler build(){
+      if (!(sqsd instanceof SqsD))throw new IllegalArgumentException("SqsD must be specified");
+      if (!(threadFactory instanceof Supplier))throw new IllegalArgumentException("Thread factory must be specified");
+      if (!(queueUrl instanceof String))throw new IllegalArgumentException("Queue URL must be specified");
+      if (maxThreads < 0)maxThreads = sqsd.capacity();
+      if (minThreads <= 0 || minThreads > maxThreads)throw new IllegalArgumentException("Min threads must be between 1 and max threads");
+      if (maxThreads > sqsd.capacity())throw new IllegalArgumentException("Max threads must not exceed the SqsD capacity of " + sqsd.capacity());
+      if (intervalSeconds <= 0)throw new IllegalArgumentException("Interval must be at least 1 second");
+      return new PollerAutoscaler(this);
+    }
+  }
+
+  private final SqsD SQSD;//the sqsd to scale
+  private final Supplier<SqsDThread> THREAD_FACTORY;//creates threads when scaling up
+  private final String QUEUE_URL;//queue to read the backlog of
+  private final SqsClient SQS;//sqs client
+  private final String REGION;//region of the shared client. null when the client was provided
+  private final int MIN_THREADS;//fewest threads
+  private final int MAX_THREADS;//most threads
+  private final int MAX_NUMBER_OF_MESSAGES;//max messages per receive
+  private final long INTERVAL_SECONDS;//how often to evaluate
+  private final double SCALE_UP_EMPTY_RATIO;//saturated when at most this share of receives are empty
+  private final double SCALE_UP_FILL_RATE;//and batches are at least this full
+  private final double SCALE_DOWN_EMPTY_RATIO;//idle when at least this share of receives are empty
+  private final long DRAIN_TARGET_SECONDS;//how quickly the backlog should drain
+  private final int SCALE_DOWN_COOLDOWN_INTERVALS;//intervals in a row before removing a thread
+  private final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor();//runs evaluations
+  private final Map<String, PollerStatistics.Snapshot> LAST = new HashMap<>();//last snapshot of each thread by thread id
+  private final Logger LOGGER = LoggerFactory.getLogger(this.getClass().getSimpleName());//logger
+
+  private int idleIntervals = 0;//qualifying scale down intervals in a row
+
+  /**
+   * PollerAutoscaler constructor
+   * @param builder the autoscaler builder
+   */
+  PollerAutoscaler(PollerAutoscalerBuilder builder){
+    SQSD = builder.sqsd;
+    THREAD_FACTORY = builder.threadFactory;
+    QUEUE_URL = builder.queueUrl;
+    if (builder.sqs instanceof SqsClient){
+      SQS = builder.sqs;
+      REGION = null;
+    }else{
+      SQS = DependencyFactory.acquireSqsClient(builder.region);
+      REGION = builder.region;
+    }
+    MIN_THREADS = builder.minThreads;
+    MAX_THREADS = builder.maxThreads;
+    MAX_NUMBER_OF_MESSAGES = Math.max(1, builder.maxNumberOfMessages);
+    INTERVAL_SECONDS = builder.intervalSeconds;
+    SCALE_UP_EMPTY_RATIO = builder.scaleUpEmptyRatio;
+    SCALE_UP_FILL_RATE = builder.scaleUpFillRate;
+    SCALE_DOWN_EMPTY_RATIO = builder.scaleDownEmptyRatio;
+    DRAIN_TARGET_SECONDS = builder.drainTargetSeconds;
+    SCALE_DOWN_COOLDOWN_INTERVALS = builder.scaleDownCooldownIntervals;
+  }
+
+  /**
+   * start evaluating every interval
+   */
+  public void start(){
+    LOGGER.info("Autoscaling between " + MIN_THREADS + " and " + MAX_THREADS + " threads every " + INTERVAL_SECONDS + " seconds");
+    SCHEDULER.scheduleWithFixedDelay(this::evaluateSafely, INTERVAL_SECONDS, INTERVAL_SECONDS, TimeUnit.SECONDS);
+  }
+
+  /**
+   * stop evaluating and release the sqs client
+   */
+  @Override
+  public void close(){
+    SCHEDULER.shutdownNow();
+    if (REGION != null)DependencyFactory.releaseSqsClient(REGION);
+  }
+
+  /**
+   * evaluate without letting an exception cancel the schedule
+   */
+  private void evaluateSafely(){
+    try{
+      evaluate();
+    }catch(RuntimeException re){
+      LOGGER.warn("Autoscaler evaluation failed: " + re.getMessage());
+    }
+  }
+
+  /**
+   * look at what the pollers did since the last interval and resize
+   */
+  synchronized void evaluate(){
+    PollerStatistics.Snapshot delta = PollerStatistics.EMPTY;
+    Map<String, PollerStatistics.Snapshot> current = new HashMap<>();
+    for (SqsDThread thread: SQSD.threads()){//sum the change of every active thread
+      PollerStatistics.Snapshot snapshot = thread.statistics().snapshot();
+      PollerStatistics.Snapshot last = LAST.getOrDefault(thread.THREAD_ID, PollerStatistics.EMPTY);
+      delta = delta.plus(snapshot.minus(last));
+      current.put(thread.THREAD_ID, snapshot);
+    }
+    LAST.clear();
+    LAST.putAll(current);
+
+    int active = SQSD.threads().size();
+    long backlog = backlog();
+    if (delta.RECEIVES == 0){//no receive finished this interval. threads are stuck in long processing or just started
+      LOGGER.debug("No receives this interval. Active: " + active + " Backlog: " + backlog);
+      return;
+    }
+    double emptyRatio = (double) delta.EMPTY_RECEIVES / delta.RECEIVES;
+    double fillRate = (double) delta.MESSAGES / (delta.RECEIVES * MAX_NUMBER_OF_MESSAGES);
+    double busySeconds = (delta.RECEIVE_NANOS + delta.PROCESSING_NANOS) / 1e9;
+    double perThreadRate = busySeconds > 0 ? delta.MESSAGES / busySeconds : 0;//messages per second one thread achieves, including processing latency
+
+    int desired = active;
+    if (backlog > 0 && perThreadRate > 0){//threads needed to drain the backlog within the target
+      int needed = (int) Math.ceil(backlog / (perThreadRate * DRAIN_TARGET_SECONDS));
+      if (needed > active)desired = needed;
+    }
+    if (emptyRatio <= SCALE_UP_EMPTY_RATIO && fillRate >= SCALE_UP_FILL_RATE){//saturated. grow by half
+      desired = Math.max(desired, active + Math.max(1, active / 2));
+    }
+
+    if (desired > active){
+      idleIntervals = 0;
+      resize(Math.min(desired, MAX_THREADS), active, emptyRatio, fillRate, backlog);
+    }else if (emptyRatio >= SCALE_DOWN_EMPTY_RATIO && backlog <= active * (long) MAX_NUMBER_OF_MESSAGES){//mostly idle
+      idleIntervals++;
+      if (idleIntervals >= SCALE_DOWN_COOLDOWN_INTERVALS){
+        idleIntervals = 0;
+        resize(Math.max(active - 1, MIN_THREADS), active, emptyRatio, fillRate, backlog);
+      }
+    }else{
+      idleIntervals = 0;
+    }
+  }
+
+  /**
+   * add or remove threads
+   * @param target the target thread count
+   * @param active the current thread count
+   * @param emptyRatio share of empty receives this interval
+   * @param fillRate batch fill rate this interval
+   * @param backlog approximate number of visible messages
+   */
+  private void resize(int target, int active, double emptyRatio, double fillRate, long backlog){
+    if (target == active)return;
+    LOGGER.info(String.format("Scaling %d -> %d threads. Empty ratio: %.2f Fill rate: %.2f Backlog: %d", active, target, emptyRatio, fillRate, backlog));
+    for (int i = active; i < target; i++)SQSD.addThread(THREAD_FACTORY.get());
+    for (int i = active; i > target; i--)SQSD.removeThread();
+  }
+
+  /**
+   * @return the approximate number of visible messages in the queue, or 0 if it could not be read
+   */
+  private long backlog(){
+    try{
+      String value = SQS.getQueueAttributes(GetQueueAttributesRequest.builder()
+                                                                     .queueUrl(QUEUE_URL)
+                                                                     .attributeNames(QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES)
+                                                                     .build())
+                        .attributes()
+                        .get(QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES);
+      return value == null ? 0 : Long.parseLong(value);
+    }catch(SdkException | NumberFormatException e){
+      LOGGER.warn("Failed to read the queue backlog: " + e.getMessage());
+      return 0;
+    }
+  }
+}
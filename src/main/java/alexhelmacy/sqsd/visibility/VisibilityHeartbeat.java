@@ -0,0 +1,404 @@
+package alexhelmacy.sqsd.visibility;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import alexhelmacy.sqsd.DependencyFactory;
+
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchResponse;
+import software.amazon.awssdk.services.sqs.model.Message;
+
+/**
+ * Keeps in-flight messages invisible while they are being processed so slow messages are not redelivered to another worker.
+ * Every tracked message sits in a single hashed timer wheel. One thread advances the wheel, and the messages due in a tick are
+ * extended with ChangeMessageVisibilityBatch calls of up to 10 entries per queue. A message stops being extended when its lease
+ * is completed or when it has been held for the max extension.
+ */
+public class VisibilityHeartbeat implements AutoCloseable{
+  public static final int MAX_BATCH_SIZE = 10;//SQS limit for ChangeMessageVisibilityBatch
+  public static final int MAX_VISIBILITY_SECONDS = 43200;//SQS limit for a message's total visibility timeout
+
+  /**
+   * return a heartbeat builder
+   * @return a new instance of a VisibilityHeartbeatBuilder
+   */
+  public static final VisibilityHeartbeatBuilder builder(){
+    return new VisibilityHeartbeatBuilder();
+  }
+
+  /**
+   * VisibilityHeartbeat builder class
+   */
+  public static final class VisibilityHeartbeatBuilder{
+    private SqsClient sqs = null;//sqs client. the shared client for the region is used when not set
+    private String region = "us-east-1";//region of the shared client
+    private int visibilityTimeoutSeconds = 30;//visibility timeout set on every heartbeat
+    private int heartbeatIntervalSeconds = -1;//time between heartbeats. defaults to half the visibility timeout
+    private int maxExtensionSeconds = 3600;//stop extending a message after it has been held this long
+    private long tickMillis = 1000;//resolution of the timer wheel
+    private int wheelSize = 512;//buckets in the timer wheel
+    private int senderThreads = 1;//threads sending ChangeMessageVisibilityBatch requests
+
+    /**
+     * sets the sqs client. The client is not closed by the heartbeat
+     * @param sqs the sqs client
+     * @return itself
+     */
+    public final VisibilityHeartbeatBuilder sqsClient(SqsClient sqs){
+      this.sqs = sqs;
+      return this;
+    }
+
+    /**
+     * sets the region of the shared sqs client. Ignored when an sqs client is set
+     * @param region the region as a string
+     * @return itself
+     */
+    public final VisibilityHeartbeatBuilder region(String region){
+      this.region = region;
+      return this;
+    }
+
+    /**
+     * sets the visibility timeout set on every heartbeat
+     * @param visibilityTimeoutSeconds the timeout in seconds
+     * @return itself
+     */
+    public final VisibilityHeartbeatBuilder visibilityTimeoutSeconds(int visibilityTimeoutSeconds){
+      this.visibilityTimeoutSeconds = visibilityTimeoutSeconds;
+      return this;
+    }
+
+    /**
+     * sets the time between heartbeats. Should be well under the visibility timeout
+     * @param heartbeatIntervalSeconds the interval in seconds
+     * @return itself
+     */
+    public final VisibilityHeartbeatBuilder heartbeatIntervalSeconds(int heartbeatIntervalSeconds){
+      this.heartbeatIntervalSeconds = heartbeatIntervalSeconds;
+      return this;
+    }
+
+    /**
+     * sets how long a message can be held before it is no longer extended
+     * @param maxExtensionSeconds the max in seconds
+     * @return itself
+     */
+    public final VisibilityHeartbeatBuilder maxExtensionSeconds(int maxExtensionSeconds){
+      this.maxExtensionSeconds = maxExtensionSeconds;
+      return this;
+    }
+
+    /**
+     * sets the resolution of the timer wheel
+     * @param tickMillis the tick in milliseconds
+     * @return itself
+     */
+    public final VisibilityHeartbeatBuilder tickMillis(long tickMillis){
+      this.tickMillis = tickMillis;
+      return this;
+    }
+
+    /**
+     * sets the number of buckets in the timer wheel
+     * @param wheelSize the number of buckets
+     * @return itself
+     */
+    public final VisibilityHeartbeatBuilder wheelSize(int wheelSize){
+      this.wheelSize = wheelSize;
+      return this;
+    }
+
+    /**
+     * sets the number of threads sending batches
+     * @param senderThreads the number of sender threads
+     * @return itself
+     */
+    public final VisibilityHeartbeatBuilder senderThreads(int senderThreads){
+      this.senderThreads = senderThreads;
+      return this;
+    }
+
+    /**
+     * build the heartbeat and start the timer wheel
+     * @return a new VisibilityHeartbeat
+     */
+    public final VisibilityHeartbeat build(){
+      if (visibilityTimeoutSeconds <= 0 || visibilityTimeoutSeconds > MAX_VISIBILITY_SECONDS)throw new IllegalArgumentException("Visibility timeout must be between 1 and " + MAX_VISIBILITY_SECONDS);
+      if (heartbeatIntervalSeconds <= 0)heartbeatIntervalSeconds = Math.max(1, visibilityTimeoutSeconds / 2);
+      if (heartbeatIntervalSeconds >= visibilityTimeoutSeconds)throw new IllegalArgumentException("Heartbeat interval must be shorter than the visibility timeout");
+      if (maxExtensionSeconds <= 0)throw new IllegalArgumentException("Max extension must be at least 1 second");
+      if (tickMillis <= 0)throw new IllegalArgumentException("Tick must be at least 1 millisecond");
+      if (wheelSize <= 0)throw new IllegalArgumentException("Wheel size must be at least 1");
+      if (senderThreads <= 0)throw new IllegalArgumentException("Sender threads must be at least 1");
+      return new VisibilityHeartbeat(this);
+    }
+  }
+
+  /**
+   * a message being kept invisible. Complete the lease when the message is done, whether it succeeded or not.
+   */
+  public static final class Lease implements AutoCloseable{
+    private final String queueUrl;//the queue the message was received from
+    private final Message message;//the message
+    private final long startNanos;//when the message was tracked
+    private volatile long dueTick;//tick of the next heartbeat
+    private volatile boolean done = false;//completed or expired
+
+    private Lease(String queueUrl, Message message){
+      this.queueUrl = queueUrl;
+      this.message = message;
+      this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * stop extending the message
+     */
+    public void complete(){
+      done = true;
+    }
+
+    /**
+     * @return if the message is still being extended
+     */
+    public boolean active(){
+      return !done;
+    }
+
+    /**
+     * @return the message
+     */
+    public Message message(){
+      return message;
+    }
+
+    /**
+     * same as complete
+     */
+    @Override
+    public void close(){
+      complete();
+    }
+  }
+
+  private final SqsClient SQS;//sqs client
+  private final String REGION;//region of the shared client. null when the client was provided
+  private final int VISIBILITY_TIMEOUT_SECONDS;//visibility timeout set on every heartbeat
+  private final long INTERVAL_TICKS;//ticks between heartbeats
+  private final long MAX_EXTENSION_NANOS;//stop extending after this long
+  private final long TICK_MILLIS;//resolution of the wheel
+  private final List<ConcurrentLinkedQueue<Lease>> WHEEL;//leases by the bucket of their next heartbeat
+  private final ScheduledExecutorService TICKER;//advances the wheel
+  private final ExecutorService SENDERS;//sends ChangeMessageVisibilityBatch requests
+  private final Logger LOGGER = LoggerFactory.getLogger(this.getClass().getSimpleName());//logger
+
+  private volatile long tick = 0;//current tick. only written by the ticker
+  private volatile boolean closed = false;//is the heartbeat closed
+
+  /**
+   * VisibilityHeartbeat constructor
+   * @param builder the heartbeat builder
+   */
+  VisibilityHeartbeat(VisibilityHeartbeatBuilder builder){
+    if (builder.sqs instanceof SqsClient){
+      this.SQS = builder.sqs;
+      this.REGION = null;
+    }else{
+      this.SQS = DependencyFactory.acquireSqsClient(builder.region);
+      this.REGION = builder.region;
+    }
+    this.VISIBILITY_TIMEOUT_SECONDS = builder.visibilityTimeoutSeconds;
+    this.TICK_MILLIS = builder.tickMillis;
+    this.INTERVAL_TICKS = Math.max(1, TimeUnit.SECONDS.toMillis(builder.heartbeatIntervalSeconds) / TICK_MILLIS);
+    this.MAX_EXTENSION_NANOS = TimeUnit.SECONDS.toNanos(builder.maxExtensionSeconds);
+    this.WHEEL = new ArrayList<>(builder.wheelSize);
+    for (int i = 0; i < builder.wheelSize; i++)WHEEL.add(new ConcurrentLinkedQueue<>());
+    this.TICKER = Executors.newSingleThreadScheduledExecutor();
+    this.SENDERS = Executors.newFixedThreadPool(builder.senderThreads);
+    TICKER.scheduleAtFixedRate(this::advance, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * start extending a message's visibility. The first heartbeat is one interval after the call
+   * @param queueUrl the queue the message was received from
+   * @param message the message
+   * @return the lease to complete when the message is done
+   */
+  public Lease track(String queueUrl, Message message){
+    Lease lease = new Lease(queueUrl, message);
+    if (closed){
+      lease.done = true;
+      return lease;
+    }
+    schedule(lease, INTERVAL_TICKS);
+    return lease;
+  }
+
+  /**
+   * start extending the visibility of every message
+   * @param queueUrl the queue the messages were received from
+   * @param messages the messages
+   * @return one lease per message in the same order
+   */
+  public List<Lease> track(String queueUrl, List<Message> messages){
+    List<Lease> leases = new ArrayList<>(messages.size());
+    for (Message message: messages)leases.add(track(queueUrl, message));
+    return leases;
+  }
+
+  /**
+   * complete every lease in the list
+   * @param leases the leases
+   */
+  public static void complete(List<Lease> leases){
+    for (Lease lease: leases)lease.complete();
+  }
+
+  /**
+   * @return how many leases are waiting in the wheel, including completed leases not yet swept
+   */
+  public int tracked(){
+    int tracked = 0;
+    for (ConcurrentLinkedQueue<Lease> bucket: WHEEL)tracked += bucket.size();
+    return tracked;
+  }
+
+  /**
+   * stop the wheel and release the sqs client. Tracked messages become visible when their current timeout runs out
+   */
+  @Override
+  public void close(){
+    closed = true;
+    TICKER.shutdownNow();
+    SENDERS.shutdown();
+    try{
+      if (!SENDERS.awaitTermination(30, TimeUnit.SECONDS))LOGGER.warn("Heartbeats did not finish before the timeout");
+    }catch(InterruptedException ie){
+      Thread.currentThread().interrupt();
+    }finally{
+      for (ConcurrentLinkedQueue<Lease> bucket: WHEEL)bucket.clear();
+      if (REGION != null)DependencyFactory.releaseSqsClient(REGION);
+    }
+  }
+
+  /**
+   * put a lease in the bucket of a future tick
+   * @param lease the lease
+   * @param ticks how many ticks from now
+   */
+  private void schedule(Lease lease, long ticks){
+    long due = tick + ticks;
+    lease.dueTick = due;
+    WHEEL.get((int)(due % WHEEL.size())).add(lease);
+  }
+
+  /**
+   * advance the wheel one tick and send heartbeats for the leases that are due
+   */
+  private void advance(){
+    try{
+      long now = ++tick;
+      ConcurrentLinkedQueue<Lease> bucket = WHEEL.get((int)(now % WHEEL.size()));
+      Map<String, List<Lease>> due = new HashMap<>();
+      long nowNanos = System.nanoTime();
+      Iterator<Lease> iterator = bucket.iterator();
+      while (iterator.hasNext()){
+        Lease lease = iterator.next();
+        if (lease.done){//completed. drop it
+          iterator.remove();
+          continue;
+        }
+        if (lease.dueTick > now)continue;//due on a later turn of the wheel
+        iterator.remove();
+        if (nowNanos - lease.startNanos >= MAX_EXTENSION_NANOS){//held long enough. let it become visible
+          lease.done = true;
+          LOGGER.warn("Stopped extending message " + lease.message.messageId() + " after the max extension");
+          continue;
+        }
+        List<Lease> queueLeases = due.get(lease.queueUrl);
+        if (queueLeases == null){
+          queueLeases = new ArrayList<>();
+          due.put(lease.queueUrl, queueLeases);
+        }
+        queueLeases.add(lease);
+      }
+      for (Map.Entry<String, List<Lease>> entry: due.entrySet()){
+        List<Lease> leases = entry.getValue();
+        for (int i = 0; i < leases.size(); i += MAX_BATCH_SIZE){
+          List<Lease> batch = leases.subList(i, Math.min(i + MAX_BATCH_SIZE, leases.size()));
+          SENDERS.execute(() -> send(entry.getKey(), batch));
+        }
+      }
+    }catch(RuntimeException re){//keep the wheel turning
+      LOGGER.warn("Heartbeat tick failed: " + re.getMessage());
+    }
+  }
+
+  /**
+   * send one ChangeMessageVisibilityBatch and reschedule the leases that were extended
+   * @param queueUrl the queue url
+   * @param batch at most 10 leases
+   */
+  private void send(String queueUrl, List<Lease> batch){
+    //entry ids only need to be unique within the request. indexes avoid collisions when the same message is tracked twice
+    List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<>(batch.size());
+    for (int i = 0; i < batch.size(); i++){
+      Lease lease = batch.get(i);
+      if (lease.done)continue;//completed since the tick
+      entries.add(ChangeMessageVisibilityBatchRequestEntry.builder()
+                                                          .id(Integer.toString(i))
+                                                          .receiptHandle(lease.message.receiptHandle())
+                                                          .visibilityTimeout(VISIBILITY_TIMEOUT_SECONDS)
+                                                          .build());
+    }
+    if (entries.isEmpty())return;
+    ChangeMessageVisibilityBatchResponse response;
+    try{
+      response = SQS.changeMessageVisibilityBatch(ChangeMessageVisibilityBatchRequest.builder()
+                                                                                     .queueUrl(queueUrl)
+                                                                                     .entries(entries)
+                                                                                     .build());
+    }catch(SdkException se){//the whole request failed. try again on the next tick
+      LOGGER.warn("ChangeMessageVisibilityBatch failed: " + se.getMessage());
+      for (ChangeMessageVisibilityBatchRequestEntry entry: entries)reschedule(batch.get(Integer.parseInt(entry.id())), 1);
+      return;
+    }
+    List<Integer> failedIndexes = new ArrayList<>();
+    for (BatchResultErrorEntry failed: response.failed()){//usually the message was deleted or its receipt handle expired
+      Lease lease = batch.get(Integer.parseInt(failed.id()));
+      failedIndexes.add(Integer.parseInt(failed.id()));
+      lease.done = true;
+      LOGGER.debug("Stopped extending message " + lease.message.messageId() + ": " + failed.code());
+    }
+    for (ChangeMessageVisibilityBatchRequestEntry entry: entries){
+      int index = Integer.parseInt(entry.id());
+      if (!failedIndexes.contains(index))reschedule(batch.get(index), INTERVAL_TICKS);
+    }
+  }
+
+  /**
+   * put an extended lease back in the wheel
+   * @param lease the lease
+   * @param ticks how many ticks from now
+   */
+  private void reschedule(Lease lease, long ticks){
+    if (!lease.done && !closed)schedule(lease, ticks);
+  }
+}
@@ -0,0 +1,89 @@
+package alexhelmacy.sqsd;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import alexhelmacy.sqsd.local.LocalSqsClient;
+import alexhelmacy.sqsd.processor.ExampleSqsDThread;
+import alexhelmacy.sqsd.processor.SqsDThread;
+
+/**
+ * Tests adding and removing threads of a running SqsD against a LocalSqsClient.
+ */
+public class SqsDTest{
+  private LocalSqsClient sqs;//the local client
+  private String queueUrl;//the queue every thread polls
+  private final CountDownLatch unblock = new CountDownLatch(1);//releases handlers that block
+  private final AtomicInteger blocked = new AtomicInteger();//threads that entered a blocking handler
+
+  @BeforeEach
+  public void setUp(){
+    sqs = LocalSqsClient.builder().build();
+    queueUrl = sqs.createQueue("sqsd");
+    sqs.enqueue(queueUrl, "body", 1000);
+  }
+
+  @Test
+  public void removedThreadsDrainAndStop() throws Exception{
+    SqsD sqsd = new SqsD(threads(3, false), false, 3, 3).removeDrainTimeout(1, TimeUnit.SECONDS);
+    sqsd.start();
+    SqsDThread removed = sqsd.removeThread();
+    sqsd.removeThread();
+    assertNull(sqsd.removeThread());//always keeps one thread
+    assertEquals(1, sqsd.threads().size());
+    assertTrue(await(removed::closed), "removed thread did not stop");
+    sqsd.stop("test done");
+  }
+
+  @Test
+  public void drainingThreadsDoNotBlockAddedThreads() throws Exception{
+    SqsD sqsd = new SqsD(threads(2, true), false, 2, 2).removeDrainTimeout(1, TimeUnit.MINUTES);
+    sqsd.start();
+    assertTrue(await(() -> blocked.get() == 2));
+    for (int i = 1; i <= 2; i++){//removed threads stay stuck draining and keep their pool thread. the other two are spare
+      sqsd.removeThread();
+      sqsd.addThread(thread(true));
+      int started = 2 + i;
+      assertTrue(await(() -> blocked.get() == started), "added thread " + i + " did not start");
+    }
+    unblock.countDown();
+    sqsd.stop("test done");
+  }
+
+  /**
+   * wait up to 5 seconds for a condition
+   */
+  private static boolean await(BooleanSupplier condition) throws InterruptedException{
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!condition.getAsBoolean()){
+      if (System.currentTimeMillis() > deadline)return false;
+      Thread.sleep(10);
+    }
+    return true;
+  }
+
+  private List<SqsDThread> threads(int count, boolean blocking){
+    List<SqsDThread> threads = new ArrayList<>();
+    for (int i = 0; i < count; i++)threads.add(thread(blocking));
+    return threads;
+  }
+
+  private SqsDThread thread(boolean blocking){
+    return new ExampleSqsDThread(ExampleSqsDThread.builder().queueUrl(queueUrl).waitTime(0).sqsClient(sqs).messageHandler((message) -> {
+      if (!blocking)return;
+      blocked.incrementAndGet();
+      unblock.await();
+    }));
+  }
+}
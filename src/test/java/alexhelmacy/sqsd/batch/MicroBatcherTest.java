@@ -0,0 +1,114 @@
+package alexhelmacy.sqsd.batch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import alexhelmacy.sqsd.local.LocalSqsClient;
+
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+
+/**
+ * Tests that MicroBatcher completes the future of each message with its own result. Messages come from a LocalSqsClient.
+ */
+public class MicroBatcherTest{
+  private List<Message> messages;//ten received messages
+
+  @BeforeEach
+  public void setUp(){
+    LocalSqsClient sqs = LocalSqsClient.builder().build();
+    String queueUrl = sqs.createQueue("batch");
+    sqs.enqueue(queueUrl, "body", 10);
+    messages = sqs.receiveMessage(ReceiveMessageRequest.builder().queueUrl(queueUrl).maxNumberOfMessages(10).build()).messages();
+  }
+
+  @Test
+  public void failedMessagesFailOnlyTheirOwnFuture() throws Exception{
+    Message rejected = messages.get(1);
+    Message unexplained = messages.get(4);
+    BatchHandler handler = (batch) -> BatchResult.builder().failed(rejected, "Rejected by the sink").failed(unexplained, null).build();
+    MicroBatcher batcher = MicroBatcher.builder().handler(handler).batchSize(10).maxLatencyMillis(10).build();
+    try{
+      List<CompletableFuture<Void>> futures = batcher.submit(messages);
+      for (int i = 0; i < messages.size(); i++){
+        CompletableFuture<Void> future = futures.get(i);
+        Message message = messages.get(i);
+        if (message != rejected && message != unexplained){
+          future.get(10, TimeUnit.SECONDS);
+          continue;
+        }
+        ExecutionException ee = assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+        BatchFailedException failure = (BatchFailedException)ee.getCause();
+        assertSame(message, failure.failedMessage());
+        assertTrue(failure.getMessage().endsWith(message == rejected ? "Rejected by the sink" : "Failed"));
+      }
+    }finally{
+      batcher.close();//waits for the handler threads, which count the failures after completing the futures
+    }
+    assertEquals(10, batcher.messages());
+    assertEquals(2, batcher.failures());
+  }
+
+  @Test
+  public void handlerExceptionFailsTheWholeBatch() throws Exception{
+    IllegalStateException sinkDown = new IllegalStateException("Sink down");
+    BatchHandler handler = (batch) -> {
+      throw sinkDown;
+    };
+    MicroBatcher batcher = MicroBatcher.builder().handler(handler).batchSize(10).maxLatencyMillis(10).build();
+    try{
+      List<CompletableFuture<Void>> futures = batcher.submit(messages);
+      for (int i = 0; i < messages.size(); i++){
+        CompletableFuture<Void> future = futures.get(i);
+        ExecutionException ee = assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+        BatchFailedException failure = (BatchFailedException)ee.getCause();
+        assertSame(messages.get(i), failure.failedMessage());
+        assertSame(sinkDown, failure.getCause());
+      }
+    }finally{
+      batcher.close();
+    }
+    assertEquals(10, batcher.failures());
+  }
+
+  @Test
+  public void batchesAreCutAtTheBatchSize() throws Exception{
+    List<Integer> sizes = Collections.synchronizedList(new ArrayList<>());
+    BatchHandler handler = (batch) -> {
+      sizes.add(batch.size());
+      return null;//every message handled
+    };
+    MicroBatcher batcher = MicroBatcher.builder().handler(handler).batchSize(4).maxLatencyMillis(20).maxPending(10).build();
+    try{
+      List<CompletableFuture<Void>> futures = batcher.submit(messages);
+      CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+    }finally{
+      batcher.close();
+    }
+    assertEquals(Arrays.asList(4, 4, 2), sizes);//the last batch is handed over once its latency runs out
+    assertEquals(3, batcher.batches());
+    assertEquals(0, batcher.failures());
+  }
+
+  @Test
+  public void submitAfterCloseFails() throws Exception{
+    MicroBatcher batcher = MicroBatcher.builder().handler((batch) -> null).build();
+    batcher.close();
+    CompletableFuture<Void> future = batcher.submit(messages.subList(0, 1)).get(0);
+    ExecutionException ee = assertThrows(ExecutionException.class, () -> future.get(1, TimeUnit.SECONDS));
+    assertTrue(ee.getCause() instanceof BatchFailedException);
+  }
+}
@@ -0,0 +1,101 @@
+package alexhelmacy.sqsd.budget;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import alexhelmacy.sqsd.local.LocalSqsClient;
+
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+
+/**
+ * Tests reserving, settling and releasing the in-flight budget with messages from a LocalSqsClient.
+ */
+public class InFlightBudgetTest{
+
+  @Test
+  public void settleChargesWhatWasReceived() throws Exception{
+    LocalSqsClient sqs = LocalSqsClient.builder().build();
+    String queueUrl = sqs.createQueue("budget");
+    sqs.enqueue(queueUrl, "body", 4);
+    InFlightBudget budget = InFlightBudget.builder().maxMessages(100).build();
+
+    InFlightBudget.Reservation reservation = budget.reserve(LocalSqsClient.MAX_BATCH_SIZE, 0, TimeUnit.MILLISECONDS);
+    assertEquals(LocalSqsClient.MAX_BATCH_SIZE, budget.messagesInUse());
+    List<Message> received = receive(sqs, queueUrl);
+    reservation.settle(received);
+    assertEquals(4, budget.messagesInUse());
+    long bytes = 0;
+    for (Message message: received)bytes += InFlightBudget.sizeOf(message);
+    assertEquals(bytes, budget.bytesInUse());
+
+    reservation.settle(Collections.emptyList());//settled once
+    assertEquals(4, budget.messagesInUse());
+    budget.release(received.get(0));
+    budget.release(received.subList(1, received.size()));
+    assertEquals(0, budget.messagesInUse());
+    assertEquals(0, budget.bytesInUse());
+  }
+
+  @Test
+  public void failedReceiveSettlesEmpty() throws Exception{
+    InFlightBudget budget = InFlightBudget.builder().maxMessages(10).build();
+    InFlightBudget.Reservation reservation = budget.reserve(10, 0, TimeUnit.MILLISECONDS);
+    reservation.settle(Collections.emptyList());
+    assertEquals(0, budget.messagesInUse());
+    assertEquals(0, budget.bytesInUse());
+    assertNotNull(budget.reserve(10, 0, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void reserveWaitsForRelease() throws Exception{
+    LocalSqsClient sqs = LocalSqsClient.builder().build();
+    String queueUrl = sqs.createQueue("budget");
+    sqs.enqueue(queueUrl, "body", 10);
+    InFlightBudget budget = InFlightBudget.builder().maxMessages(10).build();
+    InFlightBudget.Reservation reservation = budget.reserve(10, 0, TimeUnit.MILLISECONDS);
+    List<Message> received = receive(sqs, queueUrl);
+    reservation.settle(received);
+
+    assertNull(budget.reserve(1, 20, TimeUnit.MILLISECONDS));//spent for the whole timeout
+    CompletableFuture<InFlightBudget.Reservation> waiting = CompletableFuture.supplyAsync(() -> {
+      try{
+        return budget.reserve(5, 5, TimeUnit.SECONDS);
+      }catch(InterruptedException ie){
+        throw new IllegalStateException(ie);
+      }
+    });
+    Thread.sleep(50);
+    assertTrue(!waiting.isDone());
+    budget.release(received.subList(0, 5));
+    assertNotNull(waiting.get(5, TimeUnit.SECONDS));
+    assertEquals(1, budget.waits());
+    assertEquals(10, budget.messagesInUse());
+  }
+
+  @Test
+  public void oversizedReservationIsGrantedWhenNothingIsInFlight() throws Exception{
+    InFlightBudget budget = InFlightBudget.builder().maxMessages(5).maxBytes(1024).build();
+    InFlightBudget.Reservation reservation = budget.reserve(10, 0, TimeUnit.MILLISECONDS);
+    assertNotNull(reservation);
+    assertNull(budget.reserve(1, 0, TimeUnit.MILLISECONDS));
+    reservation.settle(Collections.emptyList());
+    assertNotNull(budget.reserve(1, 0, TimeUnit.MILLISECONDS));
+  }
+
+  /**
+   * receive one full batch
+   */
+  private static List<Message> receive(LocalSqsClient sqs, String queueUrl){
+    return sqs.receiveMessage(ReceiveMessageRequest.builder().queueUrl(queueUrl).maxNumberOfMessages(LocalSqsClient.MAX_BATCH_SIZE).build()).messages();
+  }
+}
@@ -0,0 +1,159 @@
+package alexhelmacy.sqsd.claimcheck;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests PayloadCache hits, eviction, oversized payloads and single-flight loading against a store that counts its reads.
+ */
+public class PayloadCacheTest{
+  private final AtomicInteger opens = new AtomicInteger();//payloads opened on the store
+  private volatile CountDownLatch gate = new CountDownLatch(0);//holds reads on the store until opened
+  private volatile IOException failure = null;//thrown by the next read when set
+
+  /**
+   * a store whose payloads are their key repeated to the pointer size, or to 100 bytes when the size is unknown
+   */
+  private final PayloadStore store = (pointer) -> {
+    opens.incrementAndGet();
+    try{
+      gate.await();
+    }catch(InterruptedException ie){
+      throw new IOException(ie);
+    }
+    IOException thrown = failure;
+    if (thrown != null){
+      failure = null;
+      throw thrown;
+    }
+    return new ByteArrayInputStream(payload(pointer));
+  };
+
+  @Test
+  public void secondReadIsAHit() throws Exception{
+    PayloadCache cache = PayloadCache.builder().build();
+    PayloadPointer pointer = new PayloadPointer("bucket", "a", 40);
+    assertArrayEquals(payload(pointer), read(cache, pointer));
+    assertArrayEquals(payload(pointer), read(cache, pointer));
+    assertEquals(1, opens.get());
+    assertEquals(1, cache.hits());
+    assertEquals(1, cache.misses());
+    assertEquals(40, cache.bytes());
+  }
+
+  @Test
+  public void leastRecentlyUsedPayloadIsEvicted() throws Exception{
+    PayloadCache cache = PayloadCache.builder().maxBytes(100).maxEntryBytes(50).build();
+    PayloadPointer a = new PayloadPointer("bucket", "a", 40);
+    PayloadPointer b = new PayloadPointer("bucket", "b", 40);
+    PayloadPointer c = new PayloadPointer("bucket", "c", 40);
+    read(cache, a);
+    read(cache, b);
+    read(cache, a);//b is the least recently used now
+    read(cache, c);
+    assertEquals(1, cache.evictions());
+    assertEquals(80, cache.bytes());
+
+    read(cache, a);
+    read(cache, c);
+    assertEquals(3, opens.get());
+    read(cache, b);
+    assertEquals(4, opens.get());
+  }
+
+  @Test
+  public void oversizedPayloadIsStreamedAndNotCached() throws Exception{
+    PayloadCache cache = PayloadCache.builder().maxBytes(100).maxEntryBytes(50).build();
+    PayloadPointer unknown = new PayloadPointer("bucket", "large", -1);
+    assertArrayEquals(payload(unknown), read(cache, unknown));
+    assertArrayEquals(payload(unknown), read(cache, unknown));
+    assertEquals(2, opens.get());
+    assertEquals(0, cache.bytes());
+
+    PayloadPointer known = new PayloadPointer("bucket", "known", 80);//streamed without buffering
+    assertArrayEquals(payload(known), read(cache, known));
+    assertEquals(0, cache.bytes());
+  }
+
+  @Test
+  public void concurrentMissesReadThePayloadOnce() throws Exception{
+    PayloadCache cache = PayloadCache.builder().build();
+    PayloadPointer pointer = new PayloadPointer("bucket", "shared", 1000);
+    gate = new CountDownLatch(1);
+    ExecutorService readers = Executors.newFixedThreadPool(8);
+    try{
+      List<Future<byte[]>> reads = new ArrayList<>();
+      for (int i = 0; i < 8; i++)reads.add(readers.submit(() -> read(cache, pointer)));
+      while (cache.misses() < 8)Thread.sleep(1);
+      Thread.sleep(50);//every reader is past its miss and waiting on the first read
+      gate.countDown();
+      for (Future<byte[]> read: reads)assertArrayEquals(payload(pointer), read.get(5, TimeUnit.SECONDS));
+    }finally{
+      readers.shutdownNow();
+    }
+    assertEquals(1, opens.get());
+    assertEquals(1000, cache.bytes());
+  }
+
+  @Test
+  public void failedReadReachesEveryWaiterAndIsRetried() throws Exception{
+    PayloadCache cache = PayloadCache.builder().build();
+    PayloadPointer pointer = new PayloadPointer("bucket", "failing", 40);
+    gate = new CountDownLatch(1);
+    failure = new IOException("store unavailable");
+    ExecutorService readers = Executors.newFixedThreadPool(4);
+    try{
+      List<Future<byte[]>> reads = new ArrayList<>();
+      for (int i = 0; i < 4; i++)reads.add(readers.submit(() -> read(cache, pointer)));
+      while (cache.misses() < 4)Thread.sleep(1);
+      Thread.sleep(50);
+      gate.countDown();
+      for (Future<byte[]> read: reads){
+        Exception thrown = assertThrows(Exception.class, () -> read.get(5, TimeUnit.SECONDS));
+        assertTrue(thrown.getCause() instanceof IOException);
+      }
+    }finally{
+      readers.shutdownNow();
+    }
+    assertEquals(1, opens.get());
+    assertEquals(0, cache.bytes());
+    assertArrayEquals(payload(pointer), read(cache, pointer));
+    assertEquals(2, opens.get());
+  }
+
+  /**
+   * read a whole payload through the cache
+   */
+  private byte[] read(PayloadCache cache, PayloadPointer pointer) throws IOException{
+    try (InputStream in = cache.open(pointer, store)){
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[16];
+      for (int read = in.read(buffer); read >= 0; read = in.read(buffer))out.write(buffer, 0, read);
+      return out.toByteArray();
+    }
+  }
+
+  private static byte[] payload(PayloadPointer pointer){
+    byte[] payload = new byte[pointer.size() >= 0 ? (int)pointer.size() : 100];
+    byte[] key = pointer.key().getBytes();
+    for (int i = 0; i < payload.length; i++)payload[i] = key[i % key.length];
+    return payload;
+  }
+}
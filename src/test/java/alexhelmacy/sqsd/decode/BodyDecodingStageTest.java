@@ -0,0 +1,114 @@
+package alexhelmacy.sqsd.decode;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import alexhelmacy.sqsd.local.LocalSqsClient;
+
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+
+/**
+ * Tests BodyDecodingStage on bodies received from a LocalSqsClient.
+ */
+public class BodyDecodingStageTest{
+  private LocalSqsClient sqs;//the local client
+  private String queueUrl;//the queue bodies are received from
+
+  @BeforeEach
+  public void setUp(){
+    sqs = LocalSqsClient.builder().build();
+    queueUrl = sqs.createQueue("decode");
+  }
+
+  @Test
+  public void base64GzipBodyIsDecoded() throws Exception{
+    String text = text(100_000);//larger than the first pooled buffers
+    BodyDecodingStage stage = BodyDecodingStage.builder().decoder(BodyDecoders.forName("base64")).decoder(BodyDecoders.gzip()).build();
+    try (DecodedBody body = stage.decode(receive(base64(gzip(text))))){
+      assertEquals(text, body.text().toString());
+      assertEquals(text.length(), body.bytes().remaining());
+      try (InputStream in = body.inputStream()){
+        assertEquals(10, in.skip(10));
+        assertEquals(text.charAt(10), (char)in.read());
+      }
+    }
+  }
+
+  @Test
+  public void buffersAreReusedByTheNextMessage() throws Exception{
+    BodyDecodingStage stage = BodyDecodingStage.builder().decoder(BodyDecoders.base64()).build();
+    List<String> decoded = new ArrayList<>();
+    for (int i = 0; i < 5; i++){
+      String text = text(1000 + i);
+      stage.handler((body) -> decoded.add(body.text().toString())).handle(receive(base64(text.getBytes(StandardCharsets.UTF_8))));
+      assertEquals(text, decoded.get(i));
+    }
+    assertTrue(stage.bufferPool().reused() > 0, "no buffer was reused");
+  }
+
+  @Test
+  public void bodyWithoutDecodersIsEncodedOnDemand() throws Exception{
+    StringBuilder cups = new StringBuilder("caf\u00e9 ");
+    for (int i = 0; i < 3000; i++)cups.append('\u2615');//three bytes each. the buffer sized for the characters grows while encoding
+    String text = cups.toString();
+    BodyDecodingStage stage = BodyDecodingStage.builder().build();
+    DecodedBody body = stage.decode(receive(text));
+    assertEquals(text, body.text());
+    ByteBuffer bytes = body.bytes();
+    byte[] copy = new byte[bytes.remaining()];
+    bytes.get(copy);
+    assertEquals(text, new String(copy, StandardCharsets.UTF_8));
+    body.close();
+    assertThrows(IllegalStateException.class, body::bytes);
+  }
+
+  @Test
+  public void malformedBodyFailsWithItsMessageId() throws Exception{
+    BodyDecodingStage stage = BodyDecodingStage.builder().decoder(BodyDecoders.gzip()).build();
+    Message message = receive("not gzip");
+    IOException thrown = assertThrows(IOException.class, () -> stage.decode(message));
+    assertTrue(thrown.getMessage().contains(message.messageId()));
+    assertThrows(IllegalArgumentException.class, () -> BodyDecoders.forName("zstd"));
+  }
+
+  /**
+   * send a body and receive it back
+   */
+  private Message receive(String body){
+    sqs.enqueue(queueUrl, body, 1);
+    return sqs.receiveMessage(ReceiveMessageRequest.builder().queueUrl(queueUrl).build()).messages().get(0);
+  }
+
+  private static String text(int length){
+    StringBuilder text = new StringBuilder(length);
+    for (int i = 0; i < length; i++)text.append((char)('a' + i % 26));
+    return text.toString();
+  }
+
+  private static byte[] gzip(String text) throws IOException{
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out)){
+      gzip.write(text.getBytes(StandardCharsets.UTF_8));
+    }
+    return out.toByteArray();
+  }
+
+  private static String base64(byte[] bytes){
+    return Base64.getMimeEncoder().encodeToString(bytes);//with line breaks
+  }
+}
@@ -0,0 +1,125 @@
+package alexhelmacy.sqsd.dedup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import alexhelmacy.sqsd.local.LocalSqsClient;
+
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+
+/**
+ * Tests DedupCache lookups, expiry and eviction with messages from a LocalSqsClient.
+ */
+public class DedupCacheTest{
+  private LocalSqsClient sqs;//the local client
+  private String queueUrl;//the queue messages are received from
+
+  @BeforeEach
+  public void setUp(){
+    sqs = LocalSqsClient.builder().build();
+    queueUrl = sqs.createQueue("dedup");
+  }
+
+  @Test
+  public void redeliveryIsADuplicate(){
+    sqs = LocalSqsClient.builder().visibilityTimeoutSeconds(0).build();//every receive redelivers what was not deleted
+    queueUrl = sqs.createQueue("redelivery");
+    sqs.enqueue(queueUrl, "body", 1);
+    DedupCache cache = DedupCache.builder().build();
+    Message first = receive(1).get(0);
+    assertFalse(cache.completed(first));
+    cache.complete(first);
+
+    Message redelivered = receive(1).get(0);
+    assertEquals(first.messageId(), redelivered.messageId());
+    assertTrue(cache.completed(redelivered));
+    assertEquals(1, cache.duplicates());
+  }
+
+  @Test
+  public void bodyKeyCatchesResentMessages(){
+    sqs.enqueue(queueUrl, "same", 2);
+    sqs.enqueue(queueUrl, "other", 1);
+    List<Message> received = receive(3);
+    DedupCache byId = DedupCache.builder().keys(DedupCache.Key.MESSAGE_ID).build();
+    DedupCache byBody = DedupCache.builder().keys(DedupCache.Key.BODY_MD5).build();
+    byId.complete(received.get(0));
+    byBody.complete(received.get(0));
+
+    assertTrue(byId.duplicates(received.subList(1, 3)).isEmpty());
+    List<Message> duplicates = byBody.duplicates(received.subList(1, 3));
+    assertEquals(1, duplicates.size());
+    assertEquals("same", duplicates.get(0).body());
+  }
+
+  @Test
+  public void fullSetEvictsTheOldestKey() throws Exception{
+    fullSetEvictsTheOldestKey(false);
+  }
+
+  @Test
+  public void fullSetEvictsTheOldestKeyOffHeap() throws Exception{
+    fullSetEvictsTheOldestKey(true);
+  }
+
+  @Test
+  public void expiredKeysAreForgottenAndReusedWithoutEviction() throws Exception{
+    DedupCache cache = DedupCache.builder().maxEntries(8).ttlMillis(20).build();
+    List<Message> messages = distinct(16);
+    cache.complete(messages.subList(0, 8));
+    assertTrue(cache.completed(messages.get(0)));
+    Thread.sleep(40);
+    assertFalse(cache.completed(messages.get(0)));
+    cache.complete(messages.subList(8, 16));
+    assertEquals(0, cache.evictions());
+    for (Message message: messages.subList(8, 16))assertTrue(cache.completed(message));
+  }
+
+  /**
+   * a single set of 8 slots takes 8 keys. The 9th pushes out the key closest to expiry
+   */
+  private void fullSetEvictsTheOldestKey(boolean offHeap) throws Exception{
+    DedupCache cache = DedupCache.builder().maxEntries(8).offHeap(offHeap).build();
+    List<Message> messages = distinct(9);
+    for (Message message: messages.subList(0, 8)){
+      cache.complete(message);
+      Thread.sleep(2);//distinct expiry times
+    }
+    assertEquals(0, cache.evictions());
+    cache.complete(messages.get(8));
+    assertEquals(1, cache.evictions());
+    assertFalse(cache.completed(messages.get(0)));
+    for (Message message: messages.subList(1, 9))assertTrue(cache.completed(message));
+
+    cache.complete(messages.get(1));//refreshing a key takes its own slot
+    assertEquals(1, cache.evictions());
+  }
+
+  /**
+   * receive messages with distinct bodies from the local queue
+   */
+  private List<Message> distinct(int count){
+    for (int i = 0; i < count; i++)sqs.enqueue(queueUrl, "body-" + i, 1);
+    return receive(count);
+  }
+
+  /**
+   * receive count messages in batches
+   */
+  private List<Message> receive(int count){
+    List<Message> received = new ArrayList<>();
+    while (received.size() < count){
+      int batch = Math.min(LocalSqsClient.MAX_BATCH_SIZE, count - received.size());
+      received.addAll(sqs.receiveMessage(ReceiveMessageRequest.builder().queueUrl(queueUrl).maxNumberOfMessages(batch).build()).messages());
+    }
+    return received;
+  }
+}
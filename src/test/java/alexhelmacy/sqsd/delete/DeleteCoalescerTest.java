@@ -0,0 +1,107 @@
+package alexhelmacy.sqsd.delete;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import alexhelmacy.sqsd.local.LocalSqsClient;
+
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResultEntry;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+
+/**
+ * Tests DeleteCoalescer against a LocalSqsClient failing some batch entries on purpose.
+ */
+public class DeleteCoalescerTest{
+  private static final int MESSAGES = 50;//messages deleted by each test
+
+  @Test
+  public void partialFailuresAreRequeued() throws Exception{
+    LocalSqsClient sqs = LocalSqsClient.builder().batchEntryFailureRate(0.3).seed(1).build();
+    String queueUrl = sqs.createQueue("coalesce");
+    List<Message> messages = receiveAll(sqs, queueUrl);
+    try (DeleteCoalescer coalescer = DeleteCoalescer.builder().sqsClient(sqs).maxDelayMillis(5).maxRetries(20).build()){
+      awaitAll(coalescer.delete(queueUrl, messages));
+    }
+    assertTrue(sqs.injectedErrors() > 0, "no entry failed, so nothing was retried");
+    assertEquals(MESSAGES, sqs.deleted());
+  }
+
+  @Test
+  public void partialFailuresGoThroughTheRetryScheduler() throws Exception{
+    LocalSqsClient sqs = LocalSqsClient.builder().batchEntryFailureRate(0.3).seed(2).build();
+    String queueUrl = sqs.createQueue("coalesce");
+    List<Message> messages = receiveAll(sqs, queueUrl);
+    try (DeleteRetryScheduler retryScheduler = DeleteRetryScheduler.builder().sqsClient(sqs).baseDelayMillis(1).maxDelayMillis(5).maxAttempts(20).build();
+         DeleteCoalescer coalescer = DeleteCoalescer.builder().sqsClient(sqs).maxDelayMillis(5).maxRetries(0).retryScheduler(retryScheduler).build()){
+      awaitAll(coalescer.delete(queueUrl, messages));
+    }
+    assertTrue(sqs.injectedErrors() > 0, "no entry failed, so nothing was retried");
+    assertEquals(MESSAGES, sqs.deleted());
+  }
+
+  @Test
+  public void retriesRunOut() throws Exception{
+    LocalSqsClient sqs = LocalSqsClient.builder().batchEntryFailureRate(1).build();
+    String queueUrl = sqs.createQueue("coalesce");
+    Message message = receiveAll(sqs, queueUrl).get(0);
+    try (DeleteCoalescer coalescer = DeleteCoalescer.builder().sqsClient(sqs).maxDelayMillis(0).maxRetries(2).build()){
+      ExecutionException ee = assertThrows(ExecutionException.class, () -> coalescer.delete(queueUrl, message).get(10, TimeUnit.SECONDS));
+      assertTrue(ee.getCause() instanceof DeleteFailedException);
+    }
+    assertEquals(3, sqs.injectedErrors());//the first attempt and two retries
+    assertEquals(0, sqs.deleted());
+  }
+
+  @Test
+  public void senderFaultsAreNotRetried() throws Exception{
+    LocalSqsClient sqs = LocalSqsClient.builder().build();
+    String queueUrl = sqs.createQueue("coalesce");
+    List<Message> messages = receiveAll(sqs, queueUrl);
+    Message expired = messages.get(0).toBuilder().receiptHandle("expired").build();
+    try (DeleteCoalescer coalescer = DeleteCoalescer.builder().sqsClient(sqs).maxDelayMillis(5).build()){
+      CompletableFuture<DeleteMessageBatchResultEntry> failed = coalescer.delete(queueUrl, expired);
+      List<CompletableFuture<DeleteMessageBatchResultEntry>> deleted = coalescer.delete(queueUrl, messages.subList(1, messages.size()));
+      ExecutionException ee = assertThrows(ExecutionException.class, () -> failed.get(10, TimeUnit.SECONDS));
+      assertTrue(((DeleteFailedException)ee.getCause()).senderFault());
+      awaitAll(deleted);
+    }
+    assertEquals(MESSAGES - 1, sqs.deleted());
+  }
+
+  @Test
+  public void deletesAfterCloseFail() throws Exception{
+    LocalSqsClient sqs = LocalSqsClient.builder().build();
+    String queueUrl = sqs.createQueue("coalesce");
+    Message message = receiveAll(sqs, queueUrl).get(0);
+    DeleteCoalescer coalescer = DeleteCoalescer.builder().sqsClient(sqs).build();
+    coalescer.close();
+    ExecutionException ee = assertThrows(ExecutionException.class, () -> coalescer.delete(queueUrl, message).get(1, TimeUnit.SECONDS));
+    assertTrue(ee.getCause() instanceof DeleteFailedException);
+    assertEquals(0, sqs.deleted());
+  }
+
+  /**
+   * put MESSAGES messages on the queue and receive them all
+   */
+  private static List<Message> receiveAll(LocalSqsClient sqs, String queueUrl){
+    sqs.enqueue(queueUrl, "body", MESSAGES);
+    List<Message> messages = new ArrayList<>(MESSAGES);
+    ReceiveMessageRequest request = ReceiveMessageRequest.builder().queueUrl(queueUrl).maxNumberOfMessages(LocalSqsClient.MAX_BATCH_SIZE).build();
+    while (messages.size() < MESSAGES)messages.addAll(sqs.receiveMessage(request).messages());
+    return messages;
+  }
+
+  private static void awaitAll(List<CompletableFuture<DeleteMessageBatchResultEntry>> futures) throws Exception{
+    CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+  }
+}
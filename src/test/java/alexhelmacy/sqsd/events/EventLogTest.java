@@ -0,0 +1,93 @@
+package alexhelmacy.sqsd.events;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests formatting, sampling and dropping of EventLog.
+ */
+public class EventLogTest{
+  private final List<String> lines = Collections.synchronizedList(new ArrayList<>());//lines handed to the sink
+
+  @Test
+  public void eventsAreWrittenAsJsonLinesBeforeClose(){
+    EventLog log = EventLog.builder().sink(lines::add).build();
+    assertTrue(log.record(EventType.POLL, "https://queue", null, 3, null));
+    assertTrue(log.record(EventType.PROCESS_FAILED, "https://queue", "m-1", 0, "bad \"body\"\n"));
+    log.close();
+
+    assertEquals(2, lines.size());
+    assertTrue(lines.get(0).contains("\"type\":\"POLL\""));
+    assertTrue(lines.get(0).contains("\"queue\":\"https://queue\""));
+    assertTrue(lines.get(0).contains("\"value\":3"));
+    assertFalse(lines.get(0).contains("messageId"));
+    assertTrue(lines.get(1).endsWith(",\"messageId\":\"m-1\",\"detail\":\"bad \\\"body\\\"\\n\"}"));
+    assertEquals(2, log.written());
+    assertFalse(log.record(EventType.POLL, null, null, 0, null));//closed
+  }
+
+  @Test
+  public void sampledOutTypesAreSkipped(){
+    EventLog log = EventLog.builder().sink(lines::add).sample(EventType.RECEIVED, 0).sample(EventType.PROCESSED, 4).build();
+    assertFalse(log.enabled(EventType.RECEIVED));
+    assertTrue(log.enabled(EventType.PROCESSED));
+    int kept = 0;
+    for (int i = 0; i < 1000; i++){
+      assertFalse(log.record(EventType.RECEIVED, null, "m-" + i, 0, null));
+      if (log.record(EventType.PROCESSED, null, "m-" + i, 0, null))kept++;
+    }
+    log.close();
+    assertTrue(kept > 150 && kept < 350, "kept " + kept + " of 1000 sampled 1 in 4");
+    assertEquals(kept, lines.size());
+    assertEquals(2000 - kept, log.sampledOut());
+  }
+
+  @Test
+  public void fullRingDropsAndReportsTheLoss() throws Exception{
+    CountDownLatch firstLine = new CountDownLatch(1);
+    CountDownLatch unblock = new CountDownLatch(1);
+    EventLog log = EventLog.builder().capacity(4).sink((line) -> {
+      lines.add(line);
+      firstLine.countDown();
+      try{
+        unblock.await();
+      }catch(InterruptedException ie){
+        Thread.currentThread().interrupt();
+      }
+    }).build();
+    log.record(EventType.POLL, null, null, 1, null);
+    assertTrue(firstLine.await(5, TimeUnit.SECONDS));//the writer is stuck in the sink
+    int kept = 0;
+    for (int i = 0; i < 10; i++)if (log.record(EventType.DELETED, null, "m-" + i, 0, null))kept++;
+    assertEquals(4, kept);
+    assertEquals(6, log.dropped());
+    unblock.countDown();
+    log.close();
+
+    assertEquals(6, lines.size());//the first event, the 4 kept and the report
+    assertTrue(lines.get(5).contains("\"type\":\"DROPPED\""));
+    assertTrue(lines.get(5).contains("\"value\":6"));
+  }
+
+  @Test
+  public void failingSinkDoesNotStopTheWriter(){
+    EventLog log = EventLog.builder().sink((line) -> {
+      if (line.contains("m-0"))throw new IllegalStateException("Failed on purpose");
+      lines.add(line);
+    }).build();
+    log.record(EventType.DELETED, null, "m-0", 0, null);
+    log.record(EventType.DELETED, null, "m-1", 0, null);
+    log.close();
+    assertEquals(1, lines.size());
+    assertEquals(1, log.written());
+  }
+}
@@ -0,0 +1,201 @@
+package alexhelmacy.sqsd.forward;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpServer;
+
+import alexhelmacy.sqsd.local.LocalSqsClient;
+import alexhelmacy.sqsd.processor.ExampleSqsDThread;
+
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageAttributeValue;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
+
+/**
+ * Tests HttpForwarder and HttpForwardingSqsDThread against a local worker and a LocalSqsClient.
+ * The worker fails every message whose body starts with "fail".
+ */
+public class HttpForwarderTest{
+  private LocalSqsClient sqs;//the local client
+  private HttpServer worker;//the local worker
+  private final List<String> bodies = Collections.synchronizedList(new ArrayList<>());//bodies posted to the worker in order
+  private final Map<String, Headers> headers = new ConcurrentHashMap<>();//request headers by body
+  private HttpForwarder forwarder;//the forwarder under test
+
+  @BeforeEach
+  public void setUp() throws IOException{
+    sqs = LocalSqsClient.builder().build();
+    worker = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    worker.createContext("/", (exchange) -> {
+      String body = read(exchange.getRequestBody());
+      bodies.add(body);
+      headers.put(body, exchange.getRequestHeaders());
+      exchange.sendResponseHeaders(body.startsWith("fail") ? 500 : 200, -1);
+      exchange.close();
+    });
+    worker.start();
+  }
+
+  @AfterEach
+  public void tearDown(){
+    if (forwarder != null)forwarder.close();
+    worker.stop(0);
+  }
+
+  @Test
+  public void messageIsPostedWithItsMetadata() throws Exception{
+    String queueUrl = sqs.createQueue("forward");
+    forwarder = forwarder(queueUrl).build();
+    Map<String, MessageAttributeValue> attributes = new ConcurrentHashMap<>();
+    attributes.put("tenant", MessageAttributeValue.builder().dataType("String").stringValue("acme").build());
+    attributes.put("sneaky", MessageAttributeValue.builder().dataType("String").stringValue("x\r\nX-Injected: 1").build());
+    sqs.sendMessage(SendMessageRequest.builder().queueUrl(queueUrl).messageBody("hello").messageAttributes(attributes).build());
+    Message message = receive(queueUrl);
+
+    forwarder.handle(message);
+    assertEquals(Arrays.asList("hello"), bodies);
+    Headers sent = headers.get("hello");
+    assertEquals(message.messageId(), sent.getFirst("X-Aws-Sqsd-Msgid"));
+    assertEquals("forward", sent.getFirst("X-Aws-Sqsd-Queue"));
+    assertEquals("1", sent.getFirst("X-Aws-Sqsd-Receive-Count"));
+    assertEquals("acme", sent.getFirst(HttpForwarder.ATTRIBUTE_HEADER_PREFIX + "tenant"));
+    assertEquals("x  X-Injected: 1", sent.getFirst(HttpForwarder.ATTRIBUTE_HEADER_PREFIX + "sneaky"));
+    assertNull(sent.getFirst("X-Injected"));
+    assertEquals(1, forwarder.forwarded());
+  }
+
+  @Test
+  public void failedMessageIsLeftForRedelivery() throws Exception{
+    String queueUrl = sqs.createQueue("forward");
+    forwarder = forwarder(queueUrl).errorVisibilityTimeoutSeconds(0).build();
+    sqs.enqueue(queueUrl, "fail", 1);
+    Message message = receive(queueUrl);
+
+    assertThrows(IOException.class, () -> forwarder.handle(message));
+    assertEquals(1, forwarder.failed());
+    assertEquals(message.messageId(), receive(queueUrl).messageId());//visible again right away
+
+    HttpForwarder unreachable = HttpForwarder.builder().workerUrl("http://127.0.0.1:1/").queueUrl(queueUrl).sqsClient(sqs).build();
+    try{
+      assertEquals(-1, unreachable.forward(message));
+      assertEquals(1, unreachable.failed());
+    }finally{
+      unreachable.close();
+    }
+  }
+
+  @Test
+  public void threadDeletesOnlyHandledMessages() throws Exception{
+    String queueUrl = sqs.createQueue("forward");
+    forwarder = forwarder(queueUrl).build();
+    sqs.enqueue(queueUrl, "ok", 5);
+    sqs.enqueue(queueUrl, "fail", 5);
+    HttpForwardingSqsDThread thread = thread(queueUrl, false);
+    Thread running = new Thread(thread);
+    running.start();
+    try{
+      assertTrue(await(() -> forwarder.forwarded() == 5 && forwarder.failed() == 5), "not every message was forwarded");
+      assertTrue(await(() -> sqs.deleted() == 5));
+    }finally{
+      thread.stop();
+      running.join(5000);
+    }
+    assertEquals(10, bodies.size());
+    assertEquals(5, sqs.deleted());
+  }
+
+  @Test
+  public void fifoBatchSkipsTheRestOfAFailedGroup() throws Exception{
+    String queueUrl = sqs.createQueue("forward.fifo");
+    forwarder = forwarder(queueUrl).build();
+    for (String body: new String[]{"fail-a1", "ok-b1", "ok-a2", "ok-b2", "ok-a3", "ok-b3"}){
+      String group = body.substring(body.length() - 2, body.length() - 1);
+      sqs.sendMessage(SendMessageRequest.builder().queueUrl(queueUrl).messageBody(body).messageGroupId(group).build());
+    }
+    HttpForwardingSqsDThread thread = thread(queueUrl, true);
+    Thread running = new Thread(thread);
+    running.start();
+    try{
+      assertTrue(await(() -> sqs.deleted() == 3));
+      Thread.sleep(100);//group a stays in flight so later polls receive nothing
+    }finally{
+      thread.stop();
+      running.join(5000);
+    }
+    assertEquals(new HashSet<>(Arrays.asList("fail-a1", "ok-b1", "ok-b2", "ok-b3")), new HashSet<>(bodies));
+    assertFalse(bodies.contains("ok-a2"));//posted after a1 failed it would overtake a1
+    assertEquals(4, bodies.size());
+  }
+
+  /**
+   * @return a forwarder to the local worker
+   */
+  private HttpForwarder.HttpForwarderBuilder forwarder(String queueUrl){
+    return HttpForwarder.builder().workerUrl("http://127.0.0.1:" + worker.getAddress().getPort() + "/").queueUrl(queueUrl).sqsClient(sqs).maxConcurrency(4);
+  }
+
+  private HttpForwardingSqsDThread thread(String queueUrl, boolean fifo){
+    return new HttpForwardingSqsDThread(ExampleSqsDThread.builder()
+                                                         .queueUrl(queueUrl)
+                                                         .maxNumberOfMessages(LocalSqsClient.MAX_BATCH_SIZE)
+                                                         .waitTime(0)
+                                                         .fifo(fifo)
+                                                         .sqsClient(sqs), forwarder);
+  }
+
+  /**
+   * receive one message with every attribute
+   */
+  private Message receive(String queueUrl){
+    return sqs.receiveMessage(ReceiveMessageRequest.builder()
+                                                   .queueUrl(queueUrl)
+                                                   .messageAttributeNames("All")
+                                                   .messageSystemAttributeNamesWithStrings("All")
+                                                   .build())
+              .messages()
+              .get(0);
+  }
+
+  /**
+   * wait up to 5 seconds for a condition
+   */
+  private static boolean await(BooleanSupplier condition) throws InterruptedException{
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!condition.getAsBoolean()){
+      if (System.currentTimeMillis() > deadline)return false;
+      Thread.sleep(10);
+    }
+    return true;
+  }
+
+  private static String read(InputStream in) throws IOException{
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    for (int read = in.read(buffer); read >= 0; read = in.read(buffer))out.write(buffer, 0, read);
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,129 @@
+package alexhelmacy.sqsd.journal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import alexhelmacy.sqsd.dedup.DedupCache;
+import alexhelmacy.sqsd.local.LocalSqsClient;
+
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+
+/**
+ * Tests that AckJournal replays whole records and stops at a torn one, finishing the deletes on a LocalSqsClient.
+ */
+public class AckJournalTest{
+  private static final int HEADER_BYTES = 8;//magic and version
+
+  @TempDir
+  Path directory;//holds the journal file
+
+  private LocalSqsClient sqs;//the local client
+  private String queueUrl;//the queue the messages were received from
+  private List<Message> messages;//three received messages
+
+  @BeforeEach
+  public void setUp(){
+    sqs = LocalSqsClient.builder().build();
+    queueUrl = sqs.createQueue("journal");
+    sqs.enqueue(queueUrl, "body", 3);
+    messages = sqs.receiveMessage(ReceiveMessageRequest.builder().queueUrl(queueUrl).maxNumberOfMessages(3).build()).messages();
+  }
+
+  @Test
+  public void deletedMessagesAreNotReplayed(){
+    Path path = directory.resolve("acks.journal");
+    try (AckJournal journal = journal(path)){
+      journal.processed(queueUrl, messages);
+      journal.deleted(messages.get(0).messageId());
+    }
+    try (AckJournal journal = journal(path)){
+      assertEquals(2, journal.pending());
+      assertEquals(2, journal.recover(null));
+    }
+    assertEquals(2, sqs.deleted());
+  }
+
+  @Test
+  public void replayStopsAtACorruptRecord() throws IOException{
+    Path path = directory.resolve("acks.journal");
+    writeProcessed(path);
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+      int last = recordStart(channel, 2);
+      ByteBuffer original = ByteBuffer.allocate(1);
+      channel.read(original, last + 20);
+      channel.write(ByteBuffer.wrap(new byte[]{(byte)~original.get(0)}), last + 20);//inside the queue url. the checksum no longer matches
+    }
+    assertReplaysFirstTwo(path);
+  }
+
+  @Test
+  public void replayStopsAtAPartialRecord() throws IOException{
+    Path path = directory.resolve("acks.journal");
+    writeProcessed(path);
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+      int last = recordStart(channel, 2);
+      ByteBuffer length = ByteBuffer.allocate(4);
+      length.putInt(0, (int)channel.size());
+      channel.write(length, last);//the length was written but the record runs past the end of the file
+    }
+    assertReplaysFirstTwo(path);
+  }
+
+  /**
+   * record the three messages as handled, one record each
+   */
+  private void writeProcessed(Path path){
+    try (AckJournal journal = journal(path)){
+      for (Message message: messages)journal.processed(queueUrl, message);
+    }
+  }
+
+  /**
+   * replay a journal whose third record is torn. The first two are deleted and the journal carries on after them
+   */
+  private void assertReplaysFirstTwo(Path path){
+    DedupCache dedupCache = DedupCache.builder().build();
+    try (AckJournal journal = journal(path)){
+      assertEquals(2, journal.pending());
+      assertEquals(2, journal.recover(dedupCache));
+    }
+    assertEquals(2, sqs.deleted());
+    assertTrue(dedupCache.completed(messages.get(0)));
+    assertTrue(dedupCache.completed(messages.get(1)));
+    assertFalse(dedupCache.completed(messages.get(2)));
+    try (AckJournal journal = journal(path)){
+      assertEquals(0, journal.pending());//the delete records replaced the torn one
+    }
+  }
+
+  private AckJournal journal(Path path){
+    return AckJournal.builder().path(path).sizeBytes(4096).sqsClient(sqs).build();
+  }
+
+  /**
+   * @return the offset of a record, walking the length of each record before it
+   */
+  private static int recordStart(FileChannel channel, int record) throws IOException{
+    int position = HEADER_BYTES;
+    ByteBuffer length = ByteBuffer.allocate(4);
+    for (int i = 0; i < record; i++){
+      length.clear();
+      channel.read(length, position);
+      position += 4 + length.getInt(0) + 4;//length, payload and checksum
+    }
+    return position;
+  }
+}
@@ -0,0 +1,117 @@
+package alexhelmacy.sqsd.multiqueue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import alexhelmacy.sqsd.local.LocalSqsClient;
+
+/**
+ * Tests how QueueScheduler shares pollers between queues whose backlogs are read from a LocalSqsClient.
+ */
+public class QueueSchedulerTest{
+  private LocalSqsClient sqs;//the local client
+  private String heavy;//queue with weight 3
+  private String light;//queue with weight 1
+  private QueueScheduler scheduler;//the scheduler under test
+
+  @BeforeEach
+  public void setUp(){
+    sqs = LocalSqsClient.builder().build();
+    heavy = sqs.createQueue("heavy");
+    light = sqs.createQueue("light");
+  }
+
+  @AfterEach
+  public void tearDown(){
+    if (scheduler != null)scheduler.close();
+  }
+
+  @Test
+  public void pollersAreSharedByWeight() throws Exception{
+    sqs.enqueue(heavy, "body", 1000);
+    sqs.enqueue(light, "body", 1000);
+    start();
+
+    acquire(8);
+    assertEquals(6, scheduler.active(heavy));
+    assertEquals(2, scheduler.active(light));
+  }
+
+  @Test
+  public void emptyQueueKeepsOneLongPoll() throws Exception{
+    sqs.enqueue(light, "body", 1000);
+    start();
+
+    acquire(4);
+    assertEquals(1, scheduler.active(heavy));//the weight does not matter without messages
+    assertEquals(3, scheduler.active(light));
+  }
+
+  @Test
+  public void smallBacklogCapsItsQueue() throws Exception{
+    sqs.enqueue(heavy, "body", 20);//two full receives
+    sqs.enqueue(light, "body", 1000);
+    start();
+
+    acquire(8);
+    assertEquals(2, scheduler.active(heavy));
+    assertEquals(6, scheduler.active(light));
+  }
+
+  @Test
+  public void extraPollersAreSharedByWeightWhenEveryQueueIsAtItsLimit() throws Exception{
+    sqs.enqueue(heavy, "body", 10);
+    sqs.enqueue(light, "body", 10);
+    start();
+
+    acquire(8);
+    assertEquals(6, scheduler.active(heavy));
+    assertEquals(2, scheduler.active(light));
+  }
+
+  @Test
+  public void releaseTracksReceives() throws Exception{
+    sqs.enqueue(heavy, "body", 1000);
+    sqs.enqueue(light, "body", 1000);
+    start();
+
+    String queueUrl = scheduler.acquire();
+    assertEquals(heavy, queueUrl);
+    scheduler.release(queueUrl, 10);
+    assertEquals(0, scheduler.active(heavy));
+    assertEquals(990, scheduler.backlog(heavy));
+    assertEquals(10, scheduler.messages(heavy));
+
+    scheduler.acquire();
+    scheduler.release(heavy, 0);//drained
+    assertEquals(0, scheduler.backlog(heavy));
+    acquire(4);
+    assertEquals(1, scheduler.active(heavy));
+    assertEquals(3, scheduler.active(light));
+
+    scheduler.release(light, -1);//failed receives count as cycles only
+    assertEquals(10, scheduler.messages(heavy));
+    assertEquals(0, scheduler.messages(light));
+    assertEquals(3, scheduler.cycles(heavy));
+    assertEquals(3, scheduler.cycles(light));
+  }
+
+  /**
+   * build the scheduler and wait for its first backlog read
+   */
+  private void start() throws InterruptedException{
+    scheduler = QueueScheduler.builder().queue(heavy, 3).queue(light, 1).sqsClient(sqs).refreshSeconds(60).build();
+    long deadline = System.currentTimeMillis() + 5000;
+    while ((scheduler.backlog(heavy) < 0 || scheduler.backlog(light) < 0) && System.currentTimeMillis() < deadline)Thread.sleep(5);
+  }
+
+  /**
+   * acquire queues without releasing them
+   */
+  private void acquire(int pollers){
+    for (int i = 0; i < pollers; i++)scheduler.acquire();
+  }
+}
@@ -0,0 +1,74 @@
+package alexhelmacy.sqsd.pipeline;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import alexhelmacy.sqsd.local.LocalSqsClient;
+
+/**
+ * Tests that PipelineSqsD stops its stages in order, so nothing handled before the stop is left undeleted.
+ */
+public class PipelineSqsDTest{
+  private LocalSqsClient sqs;//the local client
+  private String queueUrl;//the queue the pipeline drains
+
+  @BeforeEach
+  public void setUp(){
+    sqs = LocalSqsClient.builder().build();
+    queueUrl = sqs.createQueue("pipeline");
+  }
+
+  @Test
+  public void messageStillBeingHandledOnStopIsDeleted() throws Exception{
+    CountDownLatch started = new CountDownLatch(1);
+    AtomicInteger handled = new AtomicInteger();
+    PipelineSqsD pipeline = builder(1).handler((message) -> {
+      started.countDown();
+      Thread.sleep(1500);//outlasts the pollers' last receive, so the processor is still busy once they stopped
+      handled.incrementAndGet();
+    }).build();
+    sqs.enqueue(queueUrl, "body", 1);
+    pipeline.start();
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+
+    pipeline.stop("Test");
+    assertEquals(1, handled.get());
+    assertEquals(1, sqs.deleted());//deleters only stopped once the processor handed the message over
+  }
+
+  @Test
+  public void everyReceivedMessageIsHandledAndDeleted() throws Exception{
+    AtomicInteger handled = new AtomicInteger();
+    PipelineSqsD pipeline = builder(4).handler((message) -> {
+      Thread.sleep(2);
+      handled.incrementAndGet();
+    }).build();
+    sqs.enqueue(queueUrl, "body", 1000);
+    pipeline.start();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (sqs.received() < 100 && System.nanoTime() < deadline)Thread.sleep(5);
+
+    pipeline.stop("Test");
+    assertTrue(sqs.received() < 1000, "the queue was drained before the stop");
+    assertEquals(sqs.received(), handled.get());
+    assertEquals(sqs.received(), sqs.deleted());
+  }
+
+  private PipelineSqsD.PipelineSqsDBuilder builder(int processors){
+    return PipelineSqsD.builder()
+                       .sqsClient(sqs)
+                       .queueUrl(queueUrl)
+                       .waitTime(1)
+                       .pollers(1)
+                       .processors(processors)
+                       .deleters(1)
+                       .maxBatchDelayMillis(20);
+  }
+}
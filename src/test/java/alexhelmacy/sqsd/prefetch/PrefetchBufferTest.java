@@ -0,0 +1,104 @@
+package alexhelmacy.sqsd.prefetch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import alexhelmacy.sqsd.local.LocalSqsClient;
+
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageResponse;
+
+/**
+ * Tests PrefetchBuffer against a LocalSqsClient.
+ */
+public class PrefetchBufferTest{
+  private LocalSqsClient sqs;//the local client
+  private String queueUrl;//the queue the buffer receives from
+  private PrefetchBuffer buffer;//the buffer under test
+
+  @BeforeEach
+  public void setUp(){
+    sqs = LocalSqsClient.builder().build();
+    queueUrl = sqs.createQueue("prefetch");
+  }
+
+  @AfterEach
+  public void tearDown(){
+    if (buffer != null)buffer.close();
+  }
+
+  @Test
+  public void workersTakeEveryMessageOnce() throws Exception{
+    buffer = builder().minBuffered(5).maxBuffered(20).build();
+    sqs.enqueue(queueUrl, "body", 30);
+    Set<String> ids = new HashSet<>();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (ids.size() < 30 && System.currentTimeMillis() < deadline){
+      ReceiveMessageResponse response = buffer.receive(PrefetchBuffer.MAX_BATCH_SIZE, 1);
+      if (!response.hasMessages())continue;
+      for (Message message: response.messages())assertTrue(ids.add(message.messageId()), "taken twice " + message.messageId());
+      assertTrue(buffer.buffered() <= 20);
+    }
+    assertEquals(30, ids.size());
+    assertFalse(buffer.receive(PrefetchBuffer.MAX_BATCH_SIZE, 0).hasMessages());//empty like a receive
+    assertEquals(0, sqs.redelivered());
+    assertEquals(0, buffer.released());
+  }
+
+  @Test
+  public void idleBufferStopsAtTheMinimum() throws Exception{
+    buffer = builder().minBuffered(5).build();
+    sqs.enqueue(queueUrl, "body", 50);
+    assertEquals(1, buffer.receive(1, 5).messages().size());
+    Thread.sleep(500);
+    assertTrue(sqs.received() <= 5, "received " + sqs.received() + " while idle");
+  }
+
+  @Test
+  public void expiringMessagesAreReleased() throws Exception{
+    buffer = builder().visibilityTimeoutSeconds(2).minRemainingSeconds(1).minBuffered(10).build();
+    sqs.enqueue(queueUrl, "body", 10);
+    assertEquals(1, buffer.receive(1, 5).messages().size());//the other nine stay buffered
+    Thread.sleep(1500);
+    assertEquals(0, buffer.buffered());
+    assertEquals(9, buffer.released());
+    assertEquals(9, receive());//visible right away instead of after the timeout
+  }
+
+  @Test
+  public void closeReleasesBufferedMessages() throws Exception{
+    buffer = builder().minBuffered(10).build();
+    sqs.enqueue(queueUrl, "body", 10);
+    assertEquals(1, buffer.receive(1, 5).messages().size());
+    long deadline = System.currentTimeMillis() + 5000;
+    while (buffer.buffered() < 9 && System.currentTimeMillis() < deadline)Thread.sleep(10);
+    buffer.close();
+    assertEquals(9, buffer.released());
+    assertEquals(9, receive());
+  }
+
+  /**
+   * @return a buffer on the local client that does not long poll
+   */
+  private PrefetchBuffer.PrefetchBufferBuilder builder(){
+    return PrefetchBuffer.builder().sqsClient(sqs).queueUrl(queueUrl).waitTimeSeconds(0).sweepMillis(50);
+  }
+
+  /**
+   * receive straight from the queue
+   * @return the number of visible messages received
+   */
+  private int receive(){
+    ReceiveMessageResponse response = sqs.receiveMessage(ReceiveMessageRequest.builder().queueUrl(queueUrl).maxNumberOfMessages(LocalSqsClient.MAX_BATCH_SIZE).build());
+    return response.hasMessages() ? response.messages().size() : 0;
+  }
+}
@@ -0,0 +1,161 @@
+package alexhelmacy.sqsd.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import alexhelmacy.sqsd.budget.InFlightBudget;
+import alexhelmacy.sqsd.dedup.DedupCache;
+import alexhelmacy.sqsd.events.EventLog;
+import alexhelmacy.sqsd.local.LocalSqsClient;
+
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageSystemAttributeName;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+
+/**
+ * Tests single poll cycles of ExampleSqsDThread against a LocalSqsClient.
+ */
+public class ExampleSqsDThreadTest{
+  private LocalSqsClient sqs;//the local client
+  private final List<Message> handled = Collections.synchronizedList(new ArrayList<>());//handled messages in order
+
+  @BeforeEach
+  public void setUp(){
+    sqs = LocalSqsClient.builder().build();
+  }
+
+  @Test
+  public void serialFifoSkipsTheRestOfAFailedGroup() throws Exception{
+    String queueUrl = sqs.createQueue("serial.fifo");
+    sqs.enqueue(queueUrl, "body", 6, 2);
+    List<String> failed = new ArrayList<>();
+    ExampleSqsDThread thread = start(ExampleSqsDThread.builder().queueUrl(queueUrl).fifo(true).messageHandler((message) -> {
+      handled.add(message);
+      if (group(message).equals("group-0")){
+        failed.add(message.messageId());
+        throw new IllegalStateException("Failed on purpose");
+      }
+    }));
+
+    thread.pollOnce();
+    thread.stop();
+    assertEquals(1, failed.size());//nothing of group-0 ran after its first message failed
+    assertEquals(4, handled.size());
+    for (Message message: handled.subList(1, handled.size()))assertEquals("group-1", group(message));
+    assertEquals(3, sqs.deleted());
+  }
+
+  @Test
+  public void failedDuplicateDeletesDoNotLeakTheBudget() throws Exception{
+    LocalSqsClient failing = LocalSqsClient.builder().errorRate(0.3).seed(3).build();
+    String queueUrl = failing.createQueue("duplicates");
+    DedupCache dedupCache = DedupCache.builder().keys(DedupCache.Key.BODY_MD5).build();
+    failing.enqueue(queueUrl, "duplicate", 1);
+    Message handledBefore = null;
+    while (handledBefore == null){
+      try{
+        handledBefore = failing.receiveMessage(ReceiveMessageRequest.builder().queueUrl(queueUrl).build()).messages().get(0);
+      }catch(SdkException se){//injected
+      }
+    }
+    dedupCache.complete(handledBefore);//every later message with this body is a duplicate
+    InFlightBudget budget = InFlightBudget.builder().maxMessages(100).build();
+    ExampleSqsDThread thread = new ExampleSqsDThread(ExampleSqsDThread.builder()
+                                                                      .queueUrl(queueUrl)
+                                                                      .maxNumberOfMessages(LocalSqsClient.MAX_BATCH_SIZE)
+                                                                      .waitTime(0)
+                                                                      .sqsClient(failing)
+                                                                      .inFlightBudget(budget)
+                                                                      .dedupCache(dedupCache));
+    thread.lifecycle.start();
+    int errors = 0;
+    for (int i = 0; i < 200; i++){
+      failing.enqueue(queueUrl, "duplicate", 5);//each receive holds duplicates and fresh messages
+      failing.enqueue(queueUrl, "fresh-" + i, 5);
+      try{
+        thread.pollOnce();
+      }catch(SdkException se){//a receive or a delete of the fresh messages failed. they are redelivered
+        errors++;
+      }
+      assertEquals(0, budget.messagesInUse(), "budget leaked after cycle " + i);
+    }
+    thread.stop();
+    assertTrue(errors > 0, "no call failed");
+    assertEquals(0, budget.bytesInUse());
+  }
+
+  @Test
+  public void budgetIsReleasedWhenReceivesHandlersOrDeletesFail() throws Exception{
+    LocalSqsClient failing = LocalSqsClient.builder().errorRate(0.2).batchEntryFailureRate(0.2).seed(5).build();
+    String queueUrl = failing.createQueue("failing");
+    InFlightBudget budget = InFlightBudget.builder().maxMessages(100).build();
+    ExampleSqsDThread thread = new ExampleSqsDThread(ExampleSqsDThread.builder()
+                                                                      .queueUrl(queueUrl)
+                                                                      .maxNumberOfMessages(LocalSqsClient.MAX_BATCH_SIZE)
+                                                                      .waitTime(0)
+                                                                      .sqsClient(failing)
+                                                                      .inFlightBudget(budget)
+                                                                      .messageHandler((message) -> {
+                                                                        if (message.body().endsWith("3"))throw new IllegalStateException("Failed on purpose");
+                                                                      }));
+    thread.lifecycle.start();
+    int errors = 0;
+    for (int i = 0; i < 100; i++){
+      failing.enqueue(queueUrl, "body-" + (i % 5), LocalSqsClient.MAX_BATCH_SIZE);
+      try{
+        thread.pollOnce();
+      }catch(SdkException se){//injected
+        errors++;
+      }
+      assertEquals(0, budget.messagesInUse(), "budget leaked after cycle " + i);
+    }
+    thread.stop();
+    assertTrue(errors > 0, "no call failed");
+    assertTrue(failing.injectedErrors() > errors, "no delete entry failed");
+    assertEquals(0, budget.bytesInUse());
+  }
+
+  @Test
+  public void pollCycleIsRecordedInTheEventLog() throws Exception{
+    String queueUrl = sqs.createQueue("events");
+    sqs.enqueue(queueUrl, "body", 3);
+    List<String> lines = Collections.synchronizedList(new ArrayList<>());
+    EventLog eventLog = EventLog.builder().sink(lines::add).build();
+    ExampleSqsDThread thread = start(ExampleSqsDThread.builder().queueUrl(queueUrl).eventLog(eventLog).messageHandler(handled::add));
+
+    thread.pollOnce();
+    thread.stop();
+    eventLog.close();
+    assertEquals(1, count(lines, "POLL"));
+    assertTrue(lines.get(0).contains("\"value\":3"));
+    assertEquals(3, count(lines, "PROCESSED"));
+    assertEquals(3, count(lines, "DELETED"));
+    assertEquals(7, lines.size());
+    assertEquals(3, handled.size());
+  }
+
+  /**
+   * build a thread on the local client and move it to RUNNING without starting the run loop
+   */
+  private ExampleSqsDThread start(ExampleSqsDThread.ExampleSqsDThreadBuilder builder){
+    ExampleSqsDThread thread = new ExampleSqsDThread(builder.maxNumberOfMessages(LocalSqsClient.MAX_BATCH_SIZE).waitTime(0).sqsClient(sqs));
+    thread.lifecycle.start();
+    return thread;
+  }
+
+  private static long count(List<String> lines, String type){
+    return lines.stream().filter((line) -> line.contains("\"type\":\"" + type + "\"")).count();
+  }
+
+  private static String group(Message message){
+    return message.attributes().get(MessageSystemAttributeName.MESSAGE_GROUP_ID);
+  }
+}
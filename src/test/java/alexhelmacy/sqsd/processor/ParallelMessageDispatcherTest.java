@@ -0,0 +1,158 @@
+package alexhelmacy.sqsd.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import alexhelmacy.sqsd.delete.DeleteCoalescer;
+import alexhelmacy.sqsd.local.LocalSqsClient;
+
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageSystemAttributeName;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+
+/**
+ * Tests ParallelMessageDispatcher lanes and cancelWaiting against a LocalSqsClient.
+ */
+public class ParallelMessageDispatcherTest{
+  private LocalSqsClient sqs;//the local client
+  private ExecutorService executor;//processing pool
+  private DeleteCoalescer coalescer;//deletes handled messages
+  private final List<String> handled = Collections.synchronizedList(new ArrayList<>());//ids of handled messages in order
+
+  @BeforeEach
+  public void setUp(){
+    sqs = LocalSqsClient.builder().build();
+    executor = Executors.newFixedThreadPool(4);
+    coalescer = DeleteCoalescer.builder().sqsClient(sqs).maxDelayMillis(5).build();
+  }
+
+  @AfterEach
+  public void tearDown(){
+    coalescer.close();
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void failedMessageAbandonsTheRestOfItsLane() throws Exception{
+    String queueUrl = sqs.createQueue("lanes.fifo");
+    sqs.enqueue(queueUrl, "body", 6, 2);
+    List<Message> messages = receive(queueUrl);
+    assertEquals(6, messages.size());
+    List<Message> failing = group(messages, "group-0");
+    List<Message> passing = group(messages, "group-1");
+    ParallelMessageDispatcher dispatcher = dispatcher((message) -> {
+      handled.add(message.messageId());
+      if (message.messageId().equals(failing.get(0).messageId()))throw new IllegalStateException("Failed on purpose");
+    }, true);
+
+    dispatcher.dispatch(queueUrl, messages);
+    assertTrue(dispatcher.awaitIdle(10, TimeUnit.SECONDS));//permits come back once the deletes finished
+
+    List<String> handledPassing = new ArrayList<>();
+    for (String messageId: handled){
+      if (!messageId.equals(failing.get(0).messageId()))handledPassing.add(messageId);
+    }
+    assertEquals(ids(passing), handledPassing);//the other group ran in order, and nothing after the failed message did
+    assertEquals(1 + passing.size(), handled.size());
+    assertEquals(0, dispatcher.inFlight());
+    assertEquals(passing.size(), sqs.deleted());
+  }
+
+  @Test
+  public void cancelWaitingTakesBackMessagesNotStarted() throws Exception{
+    String queueUrl = sqs.createQueue("cancel");
+    sqs.enqueue(queueUrl, "body", 5);
+    ExecutorService single = Executors.newSingleThreadExecutor();
+    try{
+      CountDownLatch started = new CountDownLatch(1);
+      CountDownLatch release = new CountDownLatch(1);
+      ParallelMessageDispatcher dispatcher = ParallelMessageDispatcher.builder()
+                                                                      .executor(single)
+                                                                      .handler(blockingHandler(started, release))
+                                                                      .deleteCoalescer(coalescer)
+                                                                      .build();
+      dispatcher.dispatch(queueUrl, receive(queueUrl));
+      assertTrue(started.await(10, TimeUnit.SECONDS));
+
+      Map<String, List<Message>> cancelled = dispatcher.cancelWaiting();
+      assertEquals(4, cancelled.get(queueUrl).size());
+      assertEquals(1, dispatcher.inFlight());
+      release.countDown();
+      assertTrue(dispatcher.awaitIdle(10, TimeUnit.SECONDS));
+      assertEquals(1, handled.size());
+      assertEquals(1, sqs.deleted());
+    }finally{
+      single.shutdownNow();
+    }
+  }
+
+  @Test
+  public void cancelWaitingTakesBackLaneMessages() throws Exception{
+    String queueUrl = sqs.createQueue("cancel.fifo");
+    sqs.enqueue(queueUrl, "body", 3, 1);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ParallelMessageDispatcher dispatcher = dispatcher(blockingHandler(started, release), true);
+    List<Message> messages = receive(queueUrl);
+    dispatcher.dispatch(queueUrl, messages);
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+
+    Map<String, List<Message>> cancelled = dispatcher.cancelWaiting();
+    assertEquals(new HashSet<>(ids(messages.subList(1, 3))), new HashSet<>(ids(cancelled.get(queueUrl))));//taken back in no particular order
+    release.countDown();
+    assertTrue(dispatcher.awaitIdle(10, TimeUnit.SECONDS));
+    assertEquals(ids(messages.subList(0, 1)), handled);//the lane stops at the messages taken back
+    assertEquals(1, sqs.deleted());
+  }
+
+  private ParallelMessageDispatcher dispatcher(MessageHandler handler, boolean ordered){
+    return ParallelMessageDispatcher.builder().executor(executor).handler(handler).deleteCoalescer(coalescer).ordered(ordered).build();
+  }
+
+  /**
+   * a handler recording each message. The first message blocks until released
+   */
+  private MessageHandler blockingHandler(CountDownLatch started, CountDownLatch release){
+    return (message) -> {
+      handled.add(message.messageId());
+      started.countDown();
+      if (!release.await(10, TimeUnit.SECONDS))throw new IllegalStateException("Not released");
+    };
+  }
+
+  private List<Message> receive(String queueUrl){
+    return sqs.receiveMessage(ReceiveMessageRequest.builder()
+                                                   .queueUrl(queueUrl)
+                                                   .maxNumberOfMessages(LocalSqsClient.MAX_BATCH_SIZE)
+                                                   .messageSystemAttributeNames(MessageSystemAttributeName.ALL)
+                                                   .build()).messages();
+  }
+
+  private static List<Message> group(List<Message> messages, String group){
+    List<Message> members = new ArrayList<>();
+    for (Message message: messages){
+      if (group.equals(message.attributes().get(MessageSystemAttributeName.MESSAGE_GROUP_ID)))members.add(message);
+    }
+    return members;
+  }
+
+  private static List<String> ids(List<Message> messages){
+    List<String> ids = new ArrayList<>(messages.size());
+    for (Message message: messages)ids.add(message.messageId());
+    return ids;
+  }
+}
@@ -0,0 +1,136 @@
+package alexhelmacy.sqsd.scaling;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import alexhelmacy.sqsd.SqsD;
+import alexhelmacy.sqsd.local.LocalSqsClient;
+import alexhelmacy.sqsd.processor.ExampleSqsDThread;
+import alexhelmacy.sqsd.processor.SqsDThread;
+
+/**
+ * Tests PollerAutoscaler decisions with the backlog of a LocalSqsClient queue. The sqsd is not started, so each interval's
+ * receives are recorded on the thread statistics by the test.
+ */
+public class PollerAutoscalerTest{
+  private static final int CAPACITY = 4;//capacity of the sqsd
+  private static final long RECEIVE_NANOS = TimeUnit.SECONDS.toNanos(1);//time of each recorded receive
+
+  private LocalSqsClient sqs;//the local client
+  private String queueUrl;//the queue the backlog is read from
+  private PollerAutoscaler autoscaler;//the autoscaler under test
+  private SqsD sqsd;//the sqsd being scaled
+
+  @BeforeEach
+  public void setUp(){
+    sqs = LocalSqsClient.builder().build();
+    queueUrl = sqs.createQueue("autoscaled");
+  }
+
+  @AfterEach
+  public void tearDown(){
+    if (autoscaler != null)autoscaler.close();
+    if (sqsd != null)sqsd.stop("test done");
+  }
+
+  @Test
+  public void backlogScalesUpToMaxThreads(){
+    sqs.enqueue(queueUrl, "body", 10_000);
+    start(1, 1, 3, 3);
+
+    receive(10, 10);//10 messages/sec per thread leaves 10000 messages for far longer than the drain target
+    autoscaler.evaluate();
+    assertEquals(3, sqsd.threads().size());
+    receive(10, 10);
+    autoscaler.evaluate();
+    assertEquals(3, sqsd.threads().size());
+  }
+
+  @Test
+  public void saturatedPollersGrowByHalf(){
+    start(2, 1, CAPACITY, 3);
+
+    receive(10, 10);//full and never empty
+    autoscaler.evaluate();
+    assertEquals(3, sqsd.threads().size());
+    receive(10, 10);
+    autoscaler.evaluate();
+    assertEquals(CAPACITY, sqsd.threads().size());
+  }
+
+  @Test
+  public void idlePollersShrinkToMinThreadsAfterTheCooldown(){
+    start(CAPACITY, 2, CAPACITY, 2);
+
+    receive(10, 0);
+    autoscaler.evaluate();
+    assertEquals(CAPACITY, sqsd.threads().size());//first idle interval
+    receive(10, 0);
+    autoscaler.evaluate();
+    assertEquals(CAPACITY - 1, sqsd.threads().size());
+    for (int i = 0; i < 6; i++){
+      receive(10, 0);
+      autoscaler.evaluate();
+    }
+    assertEquals(2, sqsd.threads().size());
+  }
+
+  @Test
+  public void intervalWithoutReceivesChangesNothing(){
+    sqs.enqueue(queueUrl, "body", 10_000);
+    start(2, 1, CAPACITY, 1);
+
+    autoscaler.evaluate();
+    assertEquals(2, sqsd.threads().size());
+  }
+
+  @Test
+  public void boundsAreValidated(){
+    sqsd = new SqsD(threads(1), false, CAPACITY, CAPACITY);
+    assertThrows(IllegalArgumentException.class, () -> builder().minThreads(0).build());
+    assertThrows(IllegalArgumentException.class, () -> builder().minThreads(3).maxThreads(2).build());
+    assertThrows(IllegalArgumentException.class, () -> builder().maxThreads(CAPACITY + 1).build());
+  }
+
+  /**
+   * build an sqsd with some threads and an autoscaler for it
+   */
+  private void start(int threads, int minThreads, int maxThreads, int cooldownIntervals){
+    sqsd = new SqsD(threads(threads), false, CAPACITY, CAPACITY);
+    autoscaler = builder().minThreads(minThreads).maxThreads(maxThreads).scaleDownCooldownIntervals(cooldownIntervals).build();
+  }
+
+  /**
+   * @return an autoscaler builder for the sqsd on the local queue
+   */
+  private PollerAutoscaler.PollerAutoscalerBuilder builder(){
+    return PollerAutoscaler.builder().sqsd(sqsd).threadFactory(this::thread).queueUrl(queueUrl).sqsClient(sqs);
+  }
+
+  /**
+   * record receives of the same size on every thread
+   */
+  private void receive(int receives, int messages){
+    for (SqsDThread thread: sqsd.threads()){
+      for (int i = 0; i < receives; i++)thread.statistics().recordReceive(messages, RECEIVE_NANOS);
+    }
+  }
+
+  private List<SqsDThread> threads(int count){
+    List<SqsDThread> threads = new ArrayList<>();
+    for (int i = 0; i < count; i++)threads.add(thread());
+    return threads;
+  }
+
+  private SqsDThread thread(){
+    return new ExampleSqsDThread(ExampleSqsDThread.builder().queueUrl(queueUrl).sqsClient(sqs).build());
+  }
+}
@@ -0,0 +1,105 @@
+package alexhelmacy.sqsd.visibility;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import alexhelmacy.sqsd.local.LocalSqsClient;
+
+import software.amazon.awssdk.services.sqs.model.DeleteMessageRequest;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+
+/**
+ * Tests VisibilityHeartbeat against a LocalSqsClient whose messages become visible again after 2 seconds.
+ */
+public class VisibilityHeartbeatTest{
+  private LocalSqsClient sqs;//the local client
+  private String queueUrl;//the queue messages are received from
+  private VisibilityHeartbeat heartbeat;//the heartbeat under test
+
+  @BeforeEach
+  public void setUp(){
+    sqs = LocalSqsClient.builder().visibilityTimeoutSeconds(2).build();
+    queueUrl = sqs.createQueue("heartbeat");
+  }
+
+  @AfterEach
+  public void tearDown(){
+    if (heartbeat != null)heartbeat.close();
+  }
+
+  @Test
+  public void trackedMessagesStayInvisible() throws Exception{
+    heartbeat = builder().build();
+    sqs.enqueue(queueUrl, "body", 12);//two heartbeat batches
+    List<Message> received = receive();
+    received.addAll(receive());
+    List<VisibilityHeartbeat.Lease> leases = heartbeat.track(queueUrl, received);
+    leases.get(0).complete();//handled but not deleted. visible again once its timeout runs out
+    Message deleted = received.get(1);
+    sqs.deleteMessage(DeleteMessageRequest.builder().queueUrl(queueUrl).receiptHandle(deleted.receiptHandle()).build());
+
+    Thread.sleep(3000);
+    List<Message> redelivered = receive();
+    assertEquals(1, redelivered.size());
+    assertEquals(received.get(0).messageId(), redelivered.get(0).messageId());
+    assertFalse(leases.get(1).active());//its heartbeat failed
+    for (VisibilityHeartbeat.Lease lease: leases.subList(2, leases.size()))assertTrue(lease.active());
+
+    Set<String> ids = new HashSet<>();
+    for (Message message: received.subList(2, received.size())){//receipt handles are still valid
+      sqs.deleteMessage(DeleteMessageRequest.builder().queueUrl(queueUrl).receiptHandle(message.receiptHandle()).build());
+      ids.add(message.messageId());
+    }
+    assertEquals(10, ids.size());
+    VisibilityHeartbeat.complete(leases);
+  }
+
+  @Test
+  public void extensionStopsAfterTheMax() throws Exception{
+    heartbeat = builder().maxExtensionSeconds(1).build();
+    sqs.enqueue(queueUrl, "body", 1);
+    VisibilityHeartbeat.Lease lease = heartbeat.track(queueUrl, receive().get(0));
+
+    Thread.sleep(2500);//the heartbeat after the max lets it go
+    assertFalse(lease.active());
+    Thread.sleep(1000);//the last extension runs out
+    assertEquals(1, receive().size());
+  }
+
+  @Test
+  public void closedHeartbeatTracksNothing(){
+    heartbeat = builder().build();
+    sqs.enqueue(queueUrl, "body", 1);
+    Message message = receive().get(0);
+    heartbeat.track(queueUrl, message);
+    assertEquals(1, heartbeat.tracked());
+    heartbeat.close();
+    assertEquals(0, heartbeat.tracked());
+    assertFalse(heartbeat.track(queueUrl, message).active());
+  }
+
+  /**
+   * @return a heartbeat on the local client that extends every second
+   */
+  private VisibilityHeartbeat.VisibilityHeartbeatBuilder builder(){
+    return VisibilityHeartbeat.builder().sqsClient(sqs).visibilityTimeoutSeconds(2).heartbeatIntervalSeconds(1).tickMillis(50);
+  }
+
+  /**
+   * receive one full batch
+   */
+  private List<Message> receive(){
+    return new ArrayList<>(sqs.receiveMessage(ReceiveMessageRequest.builder().queueUrl(queueUrl).maxNumberOfMessages(LocalSqsClient.MAX_BATCH_SIZE).build()).messages());
+  }
+}